@@ -13,12 +13,24 @@ final class AttendeeContentDelegate extends BaseContentDelegate<Attendee> {
   private static final String TAG = "AttendeeContentDelegate";
 
   AttendeeContentDelegate(CommonLogger.Factory commonLoggerFactory, ContentResolver resolver) {
+    this(
+        commonLoggerFactory,
+        resolver,
+        new ContentOperationBatch(
+            commonLoggerFactory, resolver, ContentOperationBatch.DEFAULT_MAX_OPERATIONS));
+  }
+
+  AttendeeContentDelegate(
+      CommonLogger.Factory commonLoggerFactory,
+      ContentResolver resolver,
+      ContentOperationBatch batch) {
     super(
         commonLoggerFactory.create(TAG),
         Attendees.CONTENT_URI,
         ATTENDEE_EMAIL,
         FIELDS,
         resolver,
+        batch,
         /* idColumn= */ Attendees._ID,
         /* parentIdColumn= */ Attendees.EVENT_ID);
   }
@@ -5,7 +5,6 @@ import static com.google.common.collect.Iterables.getOnlyElement;
 import static java.util.Objects.requireNonNull;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
@@ -29,6 +28,10 @@ import javax.annotation.Nullable;
  * Base class for Android {@link PlatformContentDelegate}s.
  *
  * <p>Fields to read and write are represented by the {@link FieldTranslator}s.
+ *
+ * <p>Writes are added to a {@link ContentOperationBatch} that may be shared by the delegates of a
+ * calendar, its events and attendees. Reads apply the pending writes first so they always observe
+ * them. Finding an id only applies them when a pending write could change the result.
  */
 abstract class BaseContentDelegate<MessageT extends MessageLite>
     implements PlatformContentDelegate<MessageT> {
@@ -36,6 +39,7 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
   protected static final String ACCOUNT_NAME = "CloudlessCalSync";
 
   protected final ContentResolver resolver;
+  protected final ContentOperationBatch batch;
   protected final CommonLogger logger;
   protected final FieldTranslator<String> keyField;
   private final ImmutableSet<FieldTranslator<?>> fields;
@@ -53,6 +57,7 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
       FieldTranslator<String> keyField,
       ImmutableSet<FieldTranslator<?>> fields,
       ContentResolver resolver,
+      ContentOperationBatch batch,
       String idColumn,
       @Nullable String parentIdColumn) {
     this.logger = logger;
@@ -60,6 +65,7 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
     this.keyField = keyField;
     this.fields = fields;
     this.resolver = resolver;
+    this.batch = batch;
     this.parentIdColumn = parentIdColumn;
     this.idColumn = idColumn;
   }
@@ -67,12 +73,14 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
   @Override
   @Nullable
   public Content<MessageT> read(Object parentId, String key) {
+    batch.flush();
     ContentValues constraints = createKeyConstraints(parentId, key);
     return getOnlyElement(queryAllColumns(constraints), /* defaultValue= */ null);
   }
 
   @Override
   public ImmutableList<Content<MessageT>> readAll(Object parentId) {
+    batch.flush();
     ContentValues constraints = new ContentValues();
     addParentConstraint(constraints, parentId);
     return queryAllColumns(constraints);
@@ -83,29 +91,50 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
     return insertFieldsToUri(parentId, content, getWriteFields(), getWriteContentUri());
   }
 
-  /** Inserts the content using the fields to the contentUri. */
-  protected long insertFieldsToUri(
+  /**
+   * Inserts the content using the fields to the contentUri.
+   *
+   * <p>Returns the row id or a {@link ContentOperationBatch.PendingId} if the insert is deferred.
+   */
+  protected Object insertFieldsToUri(
       Object parentId, MessageT content, Collection<FieldTranslator<?>> fields, Uri contentUri) {
     ContentValues values = createContentValues(content, fields);
+    ContentValues keyValues = new ContentValues();
+    keyField.messageToContent(content, keyValues);
+    Object rowKey = createRowKey(parentId, keyValues);
+    if (parentId instanceof ContentOperationBatch.PendingId) {
+      // A parent in the same batch is referenced by the index of its insert.
+      return batch.insert(contentUri, values, parentIdColumn, parentId, rowKey);
+    }
     addParentConstraint(values, parentId);
-    return insertValuesToUri(contentUri, values);
+    return batch.insert(
+        contentUri, values, /* parentIdColumn= */ null, /* parentId= */ null, rowKey);
   }
 
-  /** Inserts the given values to the contentUri. */
-  protected long insertValuesToUri(Uri contentUri, ContentValues values) {
-    Uri uri = resolver.insert(contentUri, values);
-    return ContentUris.parseId(requireNonNull(uri, "Calendar provider insert must return Uri"));
+  /**
+   * Inserts the given values to the contentUri.
+   *
+   * <p>Returns the row id or a {@link ContentOperationBatch.PendingId} if the insert is deferred.
+   */
+  protected Object insertValuesToUri(Uri contentUri, ContentValues values) {
+    return batch.insert(contentUri, values, /* parentIdColumn= */ null, /* parentId= */ null);
   }
 
   @Override
-  public boolean delete(Object parentId, String key) {
+  public void delete(Object parentId, String key) {
     ContentValues constraints = createKeyConstraints(parentId, key);
     WhereAndArgs whereAndArgs = buildWhereAndArgs(constraints);
-    int rows = resolver.delete(getWriteContentUri(), whereAndArgs.where, whereAndArgs.args);
-    if (rows > 1) {
+    Integer rows =
+        batch.delete(
+            getWriteContentUri(),
+            whereAndArgs.where,
+            whereAndArgs.args,
+            createRowKey(parentId, createKeyValues(key)));
+    if (rows == null) {
+      logger.debug("Deferred delete for key %s", key);
+    } else if (rows > 1) {
       logger.warn("Expected to delete one row but did %d for key %s", rows, key);
     }
-    return rows > 0;
   }
 
   @Override
@@ -113,13 +142,29 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
     ContentValues constraints = new ContentValues();
     addParentConstraint(constraints, parentId);
     WhereAndArgs whereAndArgs = buildWhereAndArgs(constraints);
-    int rows = resolver.delete(getWriteContentUri(), whereAndArgs.where, whereAndArgs.args);
-    logger.debug("Deleted %s rows", rows);
+    Integer rows = batch.delete(getWriteContentUri(), whereAndArgs.where, whereAndArgs.args);
+    if (rows != null) {
+      logger.debug("Deleted %s rows", rows);
+    }
   }
 
   @Override
   @Nullable
   public Object find(Object parentId, String key) {
+    Object rowKey = createRowKey(parentId, createKeyValues(key));
+    if (batch.mayChangeRowId(rowKey)) {
+      batch.flush();
+    } else {
+      ContentOperationBatch.PendingId pendingId = batch.getPendingInsert(rowKey);
+      if (pendingId != null) {
+        return pendingId;
+      }
+      if (parentId instanceof ContentOperationBatch.PendingId
+          && !((ContentOperationBatch.PendingId) parentId).isResolved()) {
+        // The children of a parent that is still being inserted can only be pending inserts.
+        return null;
+      }
+    }
     ContentValues constraints = createKeyConstraints(parentId, key);
     return getOnlyElement(
         query(ImmutableSet.of(idColumn), constraints, this::cursorToId), /* defaultValue= */ null);
@@ -131,8 +176,11 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
     addParentConstraint(values, parentId);
     ContentValues constraints = createKeyConstraints(parentId, key);
     WhereAndArgs whereAndArgs = buildWhereAndArgs(constraints);
-    int rows = resolver.update(getWriteContentUri(), values, whereAndArgs.where, whereAndArgs.args);
-    if (rows == 1) {
+    Integer rows =
+        batch.update(getWriteContentUri(), values, whereAndArgs.where, whereAndArgs.args);
+    if (rows == null) {
+      logger.debug("Deferred update for key %s", key);
+    } else if (rows == 1) {
       logger.debug("Deleted one row for key %s", key);
     } else {
       logger.warn("Expected to delete one row but did %d for key %s", rows, key);
@@ -142,6 +190,11 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
     return key;
   }
 
+  @Override
+  public void flush() {
+    batch.flush();
+  }
+
   /** Gets the {@link Uri} to use to write content. */
   protected Uri getWriteContentUri() {
     return requireNonNull(contentUri);
@@ -169,13 +222,16 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
    * Adds the {@code id) to the {@code constraints) in the given {@code column}.
    */
   private void addIdConstraint(ContentValues constraints, String column, Object id) {
-    if (id instanceof String) {
-      constraints.put(column, (String) id);
-    } else if (id instanceof Long) {
-      constraints.put(column, (Long) id);
+    // Selecting by a row that is still being inserted requires applying the insert first.
+    Object resolvedId = batch.resolve(id);
+    if (resolvedId instanceof String) {
+      constraints.put(column, (String) resolvedId);
+    } else if (resolvedId instanceof Long) {
+      constraints.put(column, (Long) resolvedId);
     }
   }
 
+
   /**
    * Creates a {@link ContentValues} containing the field values for the {@code parentId} and {@code
    * key}.
@@ -187,6 +243,24 @@ abstract class BaseContentDelegate<MessageT extends MessageLite>
     return constraints;
   }
 
+  /** Creates a {@link ContentValues} containing only the field values for the {@code key}. */
+  private ContentValues createKeyValues(String key) {
+    ContentValues keyValues = new ContentValues();
+    keyField.set(key, keyValues);
+    return keyValues;
+  }
+
+  /**
+   * Creates the key that identifies a row in the {@link ContentOperationBatch}.
+   *
+   * <p>The {@code parentId} is not resolved so rows under a pending parent can be identified
+   * without applying the batch.
+   */
+  private Object createRowKey(@Nullable Object parentId, ContentValues keyValues) {
+    return Arrays.asList(
+        getWriteContentUri(), parentIdColumn == null ? null : parentId, keyValues);
+  }
+
   private ImmutableList<Content<MessageT>> queryAllColumns(ContentValues constraints) {
     return query(buildColumnProjection(fields), constraints, this::cursorToContent);
   }
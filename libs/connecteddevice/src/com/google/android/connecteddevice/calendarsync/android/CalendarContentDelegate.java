@@ -31,12 +31,26 @@ final class CalendarContentDelegate extends BaseContentDelegate<Calendar>
       CommonLogger.Factory commonLoggerFactory,
       ContentResolver resolver,
       ContentOwnership ownership) {
+    this(
+        commonLoggerFactory,
+        resolver,
+        new ContentOperationBatch(
+            commonLoggerFactory, resolver, ContentOperationBatch.DEFAULT_MAX_OPERATIONS),
+        ownership);
+  }
+
+  CalendarContentDelegate(
+      CommonLogger.Factory commonLoggerFactory,
+      ContentResolver resolver,
+      ContentOperationBatch batch,
+      ContentOwnership ownership) {
     super(
         commonLoggerFactory.create(TAG),
         getContentUri(ownership),
         createKeyField(ownership),
         createFieldTranslators(ownership),
         resolver,
+        batch,
         /* idColumn= */ Calendars._ID,
         /* parentIdColumn */ ownership == SOURCE ? null : Calendars.CAL_SYNC1);
   }
@@ -146,6 +160,7 @@ final class CalendarContentDelegate extends BaseContentDelegate<Calendar>
     ContentValues constraints = new ContentValues();
     addAccountNameAndType(constraints);
     WhereAndArgs whereAndArgs = buildWhereAndArgs(constraints);
+    batch.flush();
     int rows = resolver.delete(getWriteContentUri(), whereAndArgs.where, whereAndArgs.args);
     logger.debug("Cleaned %s calendars", rows);
     return rows > 0;
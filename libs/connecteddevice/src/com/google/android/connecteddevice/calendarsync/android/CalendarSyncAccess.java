@@ -130,9 +130,10 @@ public class CalendarSyncAccess<CalendarSyncT extends BaseCalendarSync> {
         public ReplicaCalendarSync createCalendarSync(RemoteSender sender, Handler handler) {
           ReplicaCalendarSyncComponent.Builder builder =
               DaggerReplicaCalendarSyncComponent.builder();
+          ContentOperationBatch batch = createBatch();
           CalendarContentDelegate calendarContentDelegate =
-              new CalendarContentDelegate(commonLoggerFactory, resolver, ownership);
-          setCommonDependencies(builder, sender, handler, calendarContentDelegate);
+              new CalendarContentDelegate(commonLoggerFactory, resolver, batch, ownership);
+          setCommonDependencies(builder, sender, handler, batch, calendarContentDelegate);
           builder.contentCleanerDelegate(calendarContentDelegate);
           return builder.build().createReplicaCalendarSync();
         }
@@ -153,11 +154,13 @@ public class CalendarSyncAccess<CalendarSyncT extends BaseCalendarSync> {
         @Override
         public SourceCalendarSync createCalendarSync(RemoteSender sender, Handler handler) {
           SourceCalendarSyncComponent.Builder builder = DaggerSourceCalendarSyncComponent.builder();
+          ContentOperationBatch batch = createBatch();
           setCommonDependencies(
               builder,
               sender,
               handler,
-              new CalendarContentDelegate(commonLoggerFactory, resolver, ownership));
+              batch,
+              new CalendarContentDelegate(commonLoggerFactory, resolver, batch, ownership));
           builder.timeWindowSupplier(timeWindowSupplier);
           return builder.build().createSourceCalendarSync();
         }
@@ -185,11 +188,18 @@ public class CalendarSyncAccess<CalendarSyncT extends BaseCalendarSync> {
 
     protected abstract CalendarSyncT createCalendarSync(RemoteSender sender, Handler handler);
 
+    /** Creates the batch shared by the content delegates of a single calendar sync. */
+    protected ContentOperationBatch createBatch() {
+      return new ContentOperationBatch(
+          commonLoggerFactory, resolver, ContentOperationBatch.DEFAULT_MAX_OPERATIONS);
+    }
+
     /** Creates and sets dependencies common to both source and replica. */
     protected <BuilderT extends BaseComponentBuilder<BuilderT>> void setCommonDependencies(
         BuilderT builder,
         RemoteSender sender,
         Handler handler,
+        ContentOperationBatch batch,
         CalendarContentDelegate calendarContentDelegate) {
       builder
           .commonLoggerFactory(commonLoggerFactory)
@@ -197,8 +207,9 @@ public class CalendarSyncAccess<CalendarSyncT extends BaseCalendarSync> {
           .scheduler(new HandlerScheduler(handler, Clock.system(ZoneId.systemDefault())))
           .calendarContentDelegate(calendarContentDelegate)
           .eventContentDelegateFactory(
-              new EventContentDelegate.Factory(commonLoggerFactory, resolver, ownership))
-          .attendeeContentDelegate(new AttendeeContentDelegate(commonLoggerFactory, resolver))
+              new EventContentDelegate.Factory(commonLoggerFactory, resolver, batch, ownership))
+          .attendeeContentDelegate(
+              new AttendeeContentDelegate(commonLoggerFactory, resolver, batch))
           .calendarsObservable(new ResolverCalendarsObservable(handler, resolver));
     }
   }
@@ -0,0 +1,245 @@
+package com.google.android.connecteddevice.calendarsync.android;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.CalendarContract;
+import com.google.android.connecteddevice.calendarsync.common.CommonLogger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Groups writes to the calendar provider so they are applied in as few binder transactions as
+ * possible.
+ *
+ * <p>Inserts return a {@link PendingId} until the batch is applied. A {@link PendingId} used as the
+ * parent id of a later insert in the same batch becomes a back reference, so a calendar, its events
+ * and their attendees can all be created in a single {@link ContentResolver#applyBatch}.
+ *
+ * <p>Writes can be tagged with a row key that identifies the row they affect. This lets the id of
+ * a row be found without applying the batch when no pending write can change it.
+ *
+ * <p>The batch is applied when it holds {@code maxOperations} or when {@link #flush()} is called.
+ * This class is not thread safe and must only be used on the sync handler thread.
+ */
+final class ContentOperationBatch {
+  private static final String TAG = "ContentOperationBatch";
+
+  /** Stays well below the number of operations the calendar provider applies before yielding. */
+  static final int DEFAULT_MAX_OPERATIONS = 250;
+
+  private final CommonLogger logger;
+  private final ContentResolver resolver;
+  private final int maxOperations;
+  private final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+  private final List<PendingId> pendingIds = new ArrayList<>();
+  private final Map<Object, PendingId> pendingInserts = new HashMap<>();
+  private final Set<Object> pendingDeletes = new HashSet<>();
+  // Writes without a row key may affect any row.
+  private boolean hasUnkeyedWrites = false;
+
+  ContentOperationBatch(
+      CommonLogger.Factory commonLoggerFactory, ContentResolver resolver, int maxOperations) {
+    checkArgument(maxOperations > 0, "maxOperations must be positive");
+    this.logger = commonLoggerFactory.create(TAG);
+    this.resolver = resolver;
+    this.maxOperations = maxOperations;
+  }
+
+  /**
+   * Adds an insert of {@code values} to {@code uri}.
+   *
+   * <p>If {@code parentId} is not {@code null} it is written to the {@code parentIdColumn}.
+   *
+   * @return the row id if the insert has already been applied, otherwise a {@link PendingId}
+   */
+  Object insert(
+      Uri uri, ContentValues values, @Nullable String parentIdColumn, @Nullable Object parentId) {
+    return insert(uri, values, parentIdColumn, parentId, /* rowKey= */ null);
+  }
+
+  /**
+   * Adds an insert of {@code values} to {@code uri} for the row identified by {@code rowKey}.
+   *
+   * <p>Until the batch is applied the returned {@link PendingId} is also returned by {@link
+   * #getPendingInsert(Object)} for the same {@code rowKey}.
+   *
+   * @return the row id if the insert has already been applied, otherwise a {@link PendingId}
+   */
+  Object insert(
+      Uri uri,
+      ContentValues values,
+      @Nullable String parentIdColumn,
+      @Nullable Object parentId,
+      @Nullable Object rowKey) {
+    ContentProviderOperation.Builder builder =
+        ContentProviderOperation.newInsert(uri).withValues(values);
+    if (parentIdColumn != null && parentId instanceof PendingId) {
+      PendingId pendingParentId = (PendingId) parentId;
+      if (pendingParentId.isResolved()) {
+        builder.withValue(parentIdColumn, pendingParentId.getId());
+      } else {
+        builder.withValueBackReference(parentIdColumn, pendingParentId.index);
+      }
+    }
+    PendingId pendingId = new PendingId(operations.size());
+    pendingIds.add(pendingId);
+    if (rowKey == null) {
+      hasUnkeyedWrites = true;
+    } else {
+      pendingInserts.put(rowKey, pendingId);
+    }
+    add(builder.build());
+    return pendingId.isResolved() ? pendingId.getId() : pendingId;
+  }
+
+  /**
+   * Adds an update of the rows matching {@code where} and {@code args}.
+   *
+   * @return the number of rows updated if already applied, otherwise {@code null}
+   */
+  @Nullable
+  Integer update(Uri uri, ContentValues values, String where, String[] args) {
+    return add(
+        ContentProviderOperation.newUpdate(uri)
+            .withValues(values)
+            .withSelection(where, args)
+            .build());
+  }
+
+  /**
+   * Adds a delete of the rows matching {@code where} and {@code args}.
+   *
+   * @return the number of rows deleted if already applied, otherwise {@code null}
+   */
+  @Nullable
+  Integer delete(Uri uri, String where, String[] args) {
+    return delete(uri, where, args, /* rowKey= */ null);
+  }
+
+  /**
+   * Adds a delete of the row identified by {@code rowKey} that matches {@code where} and {@code
+   * args}.
+   *
+   * <p>A {@code null} row key means the delete may affect any row.
+   *
+   * @return the number of rows deleted if already applied, otherwise {@code null}
+   */
+  @Nullable
+  Integer delete(Uri uri, String where, String[] args, @Nullable Object rowKey) {
+    if (rowKey == null) {
+      hasUnkeyedWrites = true;
+    } else {
+      pendingDeletes.add(rowKey);
+    }
+    return add(ContentProviderOperation.newDelete(uri).withSelection(where, args).build());
+  }
+
+  /** Returns the id of the pending insert of the row identified by {@code rowKey} if any. */
+  @Nullable
+  PendingId getPendingInsert(Object rowKey) {
+    return pendingInserts.get(rowKey);
+  }
+
+  /**
+   * Returns {@code true} if the id of the row identified by {@code rowKey} is only known once the
+   * batch is applied, because the row has a pending delete or a pending write may affect any row.
+   *
+   * <p>When this is {@code false} the id of the row is either its {@link
+   * #getPendingInsert(Object)} or can be queried without applying the batch.
+   */
+  boolean mayChangeRowId(Object rowKey) {
+    return hasUnkeyedWrites || pendingDeletes.contains(rowKey);
+  }
+
+  /** Applies all pending operations. */
+  void flush() {
+    if (!operations.isEmpty()) {
+      apply();
+    }
+  }
+
+  /** Returns the row id for {@code id}, applying the pending operations if it is not known yet. */
+  Object resolve(Object id) {
+    if (!(id instanceof PendingId)) {
+      return id;
+    }
+    PendingId pendingId = (PendingId) id;
+    if (!pendingId.isResolved()) {
+      flush();
+    }
+    return pendingId.getId();
+  }
+
+  /** Adds the operation and returns its count if the batch was applied as a result. */
+  @Nullable
+  private Integer add(ContentProviderOperation operation) {
+    operations.add(operation);
+    if (operations.size() < maxOperations) {
+      return null;
+    }
+    ContentProviderResult[] results = apply();
+    Integer count = results[results.length - 1].count;
+    return count == null ? Integer.valueOf(0) : count;
+  }
+
+  private ContentProviderResult[] apply() {
+    logger.debug("Applying %d operations", operations.size());
+    try {
+      ContentProviderResult[] results = resolver.applyBatch(CalendarContract.AUTHORITY, operations);
+      for (PendingId pendingId : pendingIds) {
+        Uri uri =
+            requireNonNull(
+                results[pendingId.index].uri, "Calendar provider insert must return Uri");
+        pendingId.id = ContentUris.parseId(uri);
+      }
+      return results;
+    } catch (RemoteException | OperationApplicationException e) {
+      throw new IllegalStateException("Could not apply calendar operations", e);
+    } finally {
+      operations.clear();
+      pendingIds.clear();
+      pendingInserts.clear();
+      pendingDeletes.clear();
+      hasUnkeyedWrites = false;
+    }
+  }
+
+  /** The id of a row whose insert has not been applied yet. */
+  static final class PendingId {
+    private final int index;
+    private long id = -1;
+
+    private PendingId(int index) {
+      this.index = index;
+    }
+
+    boolean isResolved() {
+      return id >= 0;
+    }
+
+    long getId() {
+      checkState(isResolved(), "Insert has not been applied");
+      return id;
+    }
+
+    @Override
+    public String toString() {
+      return isResolved() ? Long.toString(id) : "pending#" + index;
+    }
+  }
+}
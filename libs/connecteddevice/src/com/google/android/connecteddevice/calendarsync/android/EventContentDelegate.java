@@ -57,14 +57,17 @@ final class EventContentDelegate extends BaseContentDelegate<Event> {
 
     private final CommonLogger.Factory commonLoggerFactory;
     private final ContentResolver resolver;
+    private final ContentOperationBatch batch;
     private final ContentOwnership ownership;
 
     Factory(
         CommonLogger.Factory commonLoggerFactory,
         ContentResolver resolver,
+        ContentOperationBatch batch,
         ContentOwnership ownership) {
       this.commonLoggerFactory = commonLoggerFactory;
       this.resolver = resolver;
+      this.batch = batch;
       this.ownership = ownership;
     }
 
@@ -76,7 +79,7 @@ final class EventContentDelegate extends BaseContentDelegate<Event> {
      */
     @Override
     public PlatformContentDelegate<Event> create(@Nullable Range<Instant> timeRange) {
-      return new EventContentDelegate(commonLoggerFactory, resolver, ownership, timeRange);
+      return new EventContentDelegate(commonLoggerFactory, resolver, batch, ownership, timeRange);
     }
   }
 
@@ -92,6 +95,21 @@ final class EventContentDelegate extends BaseContentDelegate<Event> {
       ContentResolver resolver,
       ContentOwnership ownership,
       Range<Instant> timeRange) {
+    this(
+        commonLoggerFactory,
+        resolver,
+        new ContentOperationBatch(
+            commonLoggerFactory, resolver, ContentOperationBatch.DEFAULT_MAX_OPERATIONS),
+        ownership,
+        timeRange);
+  }
+
+  EventContentDelegate(
+      CommonLogger.Factory commonLoggerFactory,
+      ContentResolver resolver,
+      ContentOperationBatch batch,
+      ContentOwnership ownership,
+      Range<Instant> timeRange) {
     super(
         commonLoggerFactory.create(TAG),
         timeRange != null
@@ -100,6 +118,7 @@ final class EventContentDelegate extends BaseContentDelegate<Event> {
         createKeyField(ownership),
         createReadInstanceFields(ownership),
         resolver,
+        batch,
         /* idColumn= */ Instances.EVENT_ID,
         /* parentIdColumn= */ Instances.CALENDAR_ID);
     writeEventFields = createWriteEventFields(ownership);
@@ -157,9 +176,8 @@ final class EventContentDelegate extends BaseContentDelegate<Event> {
     String recurringKey = createRecurringKey(originalEventId, originalBeginTime);
 
     // Use super to avoid logic in this class around deleting a recurring instance.
-    if (super.delete(calendarId, recurringKey)) {
-      logger.debug("Deleted instance of recurring event %s", recurringKey);
-    }
+    logger.debug("Deleting any instance of recurring event %s", recurringKey);
+    super.delete(calendarId, recurringKey);
   }
 
   @Override
@@ -189,12 +207,11 @@ final class EventContentDelegate extends BaseContentDelegate<Event> {
   }
 
   @Override
-  public boolean delete(Object calendarId, String key) {
+  public void delete(Object calendarId, String key) {
     if (ownership == SOURCE && getRecurrenceTypeFromKey(key) == RecurrenceType.RECURRING) {
       insertCancelledException(key);
-      return true;
     } else {
-      return super.delete(calendarId, key);
+      super.delete(calendarId, key);
     }
   }
 
@@ -214,7 +231,7 @@ final class EventContentDelegate extends BaseContentDelegate<Event> {
     insertValuesToUri(eventExceptionUri, values);
   }
 
-  private long insertEventException(String key, Event event) {
+  private Object insertEventException(String key, Event event) {
     // Use a special content uri to insert exceptions to recurring events.
     Instant originalBeginTime = getBeginTimeFromKey(key);
     Uri eventExceptionUri = createEventExceptionContentUri(key);
@@ -250,7 +267,7 @@ final class EventContentDelegate extends BaseContentDelegate<Event> {
   /**
    * Duplicates the event as an exception so changes to attendees will not affect every instance.
    */
-  private long duplicateEventAsException(Object calendarId, String key) {
+  private Object duplicateEventAsException(Object calendarId, String key) {
     logger.debug("Inserting exception to duplicate recurring event %s", key);
 
     // Make a duplicate of the event as an exception to be updated.
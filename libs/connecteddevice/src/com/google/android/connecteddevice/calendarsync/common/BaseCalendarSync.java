@@ -164,6 +164,9 @@ public abstract class BaseCalendarSync {
     // TODO Changes made concurrently by another application could be lost.
     CalendarManager manager = getCalendarManager(state);
     manager.applyUpdateMessages(state.deviceId, updates);
+
+    // Apply any writes that the platform deferred while updating the hierarchy.
+    manager.flush();
     send(newUpdateBuilder(UpdateCalendars.Type.ACKNOWLEDGE).build(), state.deviceId);
   }
 
@@ -101,6 +101,11 @@ abstract class ContentManager<
     }
   }
 
+  /** Applies any writes that were deferred by the platform. */
+  public void flush() {
+    delegate.flush();
+  }
+
   public ImmutableSet<MessageT> createUpdateMessages(
       Collection<MessageT> previousContents, Collection<MessageT> currentContents) {
     return createReplaceOrUpdateMessages(previousContents, currentContents, true);
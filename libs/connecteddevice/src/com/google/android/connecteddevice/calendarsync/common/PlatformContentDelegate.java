@@ -53,10 +53,11 @@ public interface PlatformContentDelegate<MessageT extends MessageLite> {
   Object insert(Object parentId, MessageT content);
 
   /**
-   * Deletes the content item with the given {@code parentId} and {@code key} and returns {@code
-   * true} if the item was deleted.
+   * Deletes the content item with the given {@code parentId} and {@code key}.
+   *
+   * <p>The delete may be deferred until {@link #flush()} so whether the item existed is not known.
    */
-  boolean delete(Object parentId, String key);
+  void delete(Object parentId, String key);
 
   /** Deletes all content items with the given {@code parentId}. */
   void deleteAll(Object parentId);
@@ -71,6 +72,15 @@ public interface PlatformContentDelegate<MessageT extends MessageLite> {
    */
   String update(Object parentId, String key, MessageT content);
 
+  /**
+   * Applies any writes that the platform has deferred.
+   *
+   * <p>Platforms may group writes to reduce the cost of each one. In that case the id returned by
+   * {@link #insert(Object, MessageLite)} can be a placeholder that is only valid as the {@code
+   * parentId} of children until the writes are applied. Reads must always observe earlier writes.
+   */
+  default void flush() {}
+
   /**
    * A holder for the proto {@code message} and the {@code id} which is an object that will be used
    * as the parentId by the platform implementation to find the children. The {@code id} will be
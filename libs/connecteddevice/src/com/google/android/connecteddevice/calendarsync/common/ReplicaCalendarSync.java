@@ -78,6 +78,7 @@ public class ReplicaCalendarSync extends BaseCalendarSync {
     if (deviceIdToState.containsKey(deviceId)) {
       CalendarManager manager = getCalendarManager(deviceId);
       manager.deleteAll(deviceId);
+      manager.flush();
     } else {
       logger.warn("Clear was called but there was no state for device %s", deviceId);
     }
@@ -36,7 +36,10 @@ import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.properties.Delegates
-import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 
 /**
  * Manages the version, capability exchange and device verification that must be completed in order
@@ -57,7 +60,7 @@ import kotlinx.coroutines.runBlocking
  * 2. Create a [ProtocolStream] with the current [ConnectionProtocol].
  * 3. If the current [ConnectionProtocol] requires device verification, process the next
  *    [DeviceMessage] received over the created [ProtocolStream] as challenge message and send back
- *    new challenge.
+ *    new challenge. The challenge response is computed on the storage dispatcher of the device.
  * 4. Create a [MultiProtocolSecureChannel], add [ProtocolStream]s for all connected
  *    [ConnectionProtocol]s and notify that the channel has been resolved.
  */
@@ -67,7 +70,9 @@ class ChannelResolver(
   private val callback: Callback,
   private val streamFactory: ProtocolStreamFactory = ProtocolStreamFactoryImpl(),
   private var encryptionRunner: EncryptionRunner = newRunner(EncryptionRunnerType.UKEY2),
+  private val storageDispatcher: CoroutineDispatcher? = null,
 ) {
+  private val storageScope = CoroutineScope(SupervisorJob())
   private val currentDevice: AtomicReference<ProtocolDevice?> =
     AtomicReference<ProtocolDevice?>(null)
   // protocol device -> listeners. This map tracks listeners for channel resolving on connected
@@ -210,30 +215,46 @@ class ChannelResolver(
             return
           }
           logd(TAG, "Responding to challenge.")
-          val deviceChallengeResponse = runBlocking {
-            storage.hashWithChallengeSecret(id.toString(), deviceChallenge)
-          }
-          if (deviceChallengeResponse == null) {
-            onError("Failed to generate challenge response.")
-            return
-          }
-          val challengeResponseMessage =
-            DeviceMessage.createOutgoingMessage(
-              /* recipient= */ null,
-              /* isMessageEncrypted= */ false,
-              ENCRYPTION_HANDSHAKE,
-              deviceChallengeResponse,
-            )
-          stream.sendMessage(challengeResponseMessage)
-          resolveChannel(stream)
+          val dispatcher =
+            storageDispatcher ?: MultiProtocolSecureChannel.storageDispatcherFor(id.toString())
+          storageScope.launch(dispatcher) { respondToChallenge(stream, id, deviceChallenge) }
         }
       }
   }
 
+  private suspend fun respondToChallenge(
+    stream: ProtocolStream,
+    deviceId: UUID,
+    deviceChallenge: ByteArray,
+  ) {
+    val deviceChallengeResponse =
+      storage.hashWithChallengeSecret(deviceId.toString(), deviceChallenge)
+    if (deviceChallengeResponse == null) {
+      onError("Failed to generate challenge response.")
+      return
+    }
+    val challengeResponseMessage =
+      DeviceMessage.createOutgoingMessage(
+        /* recipient= */ null,
+        /* isMessageEncrypted= */ false,
+        ENCRYPTION_HANDSHAKE,
+        deviceChallengeResponse,
+      )
+    stream.sendMessage(challengeResponseMessage)
+    resolveChannel(stream)
+  }
+
   private fun resolveChannel(stream: ProtocolStream) {
     encryptionRunner.setIsReconnect(isReconnect)
     val channel =
-      MultiProtocolSecureChannel(stream, storage, encryptionRunner, oobRunner, deviceId?.toString())
+      MultiProtocolSecureChannel(
+        stream,
+        storage,
+        encryptionRunner,
+        oobRunner,
+        deviceId?.toString(),
+        storageDispatcher = storageDispatcher,
+      )
     protocolDevices.keys.forEach { channel.addStream(ProtocolStream(it)) }
     clearDataReceivedListeners()
     callback.onChannelResolved(channel)
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.connecteddevice.connection
+
+import java.util.UUID
+import java.util.zip.Deflater
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Decides whether, and how hard, outgoing messages should be compressed for each recipient.
+ *
+ * Messages shorter than [minMessageSize] are never compressed. For longer messages the deflate
+ * level starts at [Deflater.BEST_COMPRESSION] and is tuned from the cost of previous compressions:
+ * it steps down while each saved byte costs more CPU time than it takes to transmit a byte, and
+ * steps back up once compression is cheap again. The transmit time is the one measured on the
+ * recipient's streams; until a stream has measured it, [maxNanosPerSavedByte] is used instead.
+ * After [failureThreshold] consecutive messages for a recipient fail to shrink by at least
+ * [minSavingsRatio], compression is skipped for that recipient for a number of messages that
+ * doubles on each further failure, up to [maxBackoffMessages].
+ */
+class CompressionPolicy(
+  private val minMessageSize: Int = DEFAULT_MIN_MESSAGE_SIZE,
+  private val minSavingsRatio: Double = DEFAULT_MIN_SAVINGS_RATIO,
+  private val maxNanosPerSavedByte: Long = DEFAULT_MAX_NANOS_PER_SAVED_BYTE,
+  private val failureThreshold: Int = DEFAULT_FAILURE_THRESHOLD,
+  private val maxBackoffMessages: Int = DEFAULT_MAX_BACKOFF_MESSAGES,
+) {
+  private val lock = Any()
+  private val recipientStates = mutableMapOf<UUID?, RecipientState>()
+
+  /**
+   * Returns the deflate level a [size] byte message for [recipient] should be compressed with, or
+   * `null` if it should be sent uncompressed.
+   */
+  fun levelFor(recipient: UUID?, size: Int): Int? =
+    synchronized(lock) {
+      val state = recipientStates.getOrPut(recipient) { RecipientState() }
+      when {
+        size < minMessageSize -> {
+          state.skippedMessages++
+          null
+        }
+        state.remainingBackoffMessages > 0 -> {
+          state.remainingBackoffMessages--
+          state.skippedMessages++
+          null
+        }
+        else -> state.level
+      }
+    }
+
+  /**
+   * Records that a message for [recipient] was compressed from [originalSize] to [compressedSize]
+   * bytes in [elapsedNanos] and adjusts the policy for that recipient's next message.
+   *
+   * [transmitNanosPerByte] is the measured time it takes to send a byte to the recipient, or `null`
+   * if it has not been measured yet.
+   */
+  fun onMessageCompressed(
+    recipient: UUID?,
+    originalSize: Int,
+    compressedSize: Int,
+    elapsedNanos: Long,
+    transmitNanosPerByte: Double? = null,
+  ) {
+    synchronized(lock) {
+      val state = recipientStates.getOrPut(recipient) { RecipientState() }
+      state.compressedMessages++
+      state.originalBytes += originalSize
+      state.compressedBytes += min(compressedSize, originalSize)
+      state.compressionNanos += elapsedNanos
+
+      val savedBytes = originalSize - compressedSize
+      if (savedBytes < originalSize * minSavingsRatio) {
+        recordFailure(state)
+      } else {
+        state.consecutiveFailures = 0
+        state.backoffMessages = 0
+      }
+      val maxNanos = transmitNanosPerByte?.takeIf { it > 0 } ?: maxNanosPerSavedByte.toDouble()
+      state.level = nextLevel(state.level, savedBytes, elapsedNanos, maxNanos)
+    }
+  }
+
+  /** Returns a snapshot of the compression statistics for [recipient]. */
+  fun statsFor(recipient: UUID?): CompressionStats =
+    synchronized(lock) {
+      val state = recipientStates[recipient] ?: RecipientState()
+      CompressionStats(
+        compressedMessages = state.compressedMessages,
+        skippedMessages = state.skippedMessages,
+        originalBytes = state.originalBytes,
+        compressedBytes = state.compressedBytes,
+        compressionNanos = state.compressionNanos,
+        level = state.level,
+        isBackingOff = state.remainingBackoffMessages > 0,
+      )
+    }
+
+  private fun recordFailure(state: RecipientState) {
+    state.consecutiveFailures++
+    if (state.consecutiveFailures < failureThreshold) {
+      return
+    }
+    state.consecutiveFailures = 0
+    state.backoffMessages = min(max(state.backoffMessages * 2, 1), maxBackoffMessages)
+    state.remainingBackoffMessages = state.backoffMessages
+  }
+
+  private fun nextLevel(
+    level: Int,
+    savedBytes: Int,
+    elapsedNanos: Long,
+    maxNanosPerSavedByte: Double,
+  ): Int {
+    val nanosPerSavedByte =
+      if (savedBytes > 0) elapsedNanos.toDouble() / savedBytes else Double.POSITIVE_INFINITY
+    return when {
+      nanosPerSavedByte > maxNanosPerSavedByte -> max(level - 1, Deflater.BEST_SPEED)
+      nanosPerSavedByte < maxNanosPerSavedByte / CHEAP_COMPRESSION_FACTOR ->
+        min(level + 1, Deflater.BEST_COMPRESSION)
+      else -> level
+    }
+  }
+
+  private class RecipientState {
+    var level = Deflater.BEST_COMPRESSION
+    var consecutiveFailures = 0
+    var backoffMessages = 0
+    var remainingBackoffMessages = 0
+    var compressedMessages = 0
+    var skippedMessages = 0
+    var originalBytes = 0L
+    var compressedBytes = 0L
+    var compressionNanos = 0L
+  }
+
+  /** Compression statistics of the messages sent to a single recipient. */
+  data class CompressionStats(
+    /** Number of messages that compression was attempted for. */
+    val compressedMessages: Int,
+    /** Number of messages that were sent without attempting compression. */
+    val skippedMessages: Int,
+    /** Total size of the messages that compression was attempted for. */
+    val originalBytes: Long,
+    /** Total size of those messages as sent, never larger than [originalBytes]. */
+    val compressedBytes: Long,
+    /** Total time spent compressing messages. */
+    val compressionNanos: Long,
+    /** Deflate level the next message will be compressed with. */
+    val level: Int,
+    /** Whether compression is currently being skipped because payloads failed to shrink. */
+    val isBackingOff: Boolean,
+  ) {
+    /** Ratio of sent to original bytes of compressed messages; `1.0` if nothing was compressed. */
+    val compressionRatio: Double
+      get() = if (originalBytes == 0L) 1.0 else compressedBytes.toDouble() / originalBytes
+  }
+
+  companion object {
+    /** Messages shorter than this are not worth the cost of compressing. */
+    const val DEFAULT_MIN_MESSAGE_SIZE = 64
+
+    /** Compression must save at least this fraction of a message to count as successful. */
+    const val DEFAULT_MIN_SAVINGS_RATIO = 0.1
+
+    /**
+     * The most CPU time worth spending to save one byte before the transmit time has been measured.
+     * This is far below the time it takes to transmit a byte over the supported transports, so it
+     * only trips on pathological payloads.
+     */
+    const val DEFAULT_MAX_NANOS_PER_SAVED_BYTE = 1_000L
+
+    /** Number of consecutive unsuccessful compressions before backing off. */
+    const val DEFAULT_FAILURE_THRESHOLD = 3
+
+    /** Upper bound on the number of messages compression is skipped for while backing off. */
+    const val DEFAULT_MAX_BACKOFF_MESSAGES = 64
+
+    private const val CHEAP_COMPRESSION_FACTOR = 4
+  }
+}
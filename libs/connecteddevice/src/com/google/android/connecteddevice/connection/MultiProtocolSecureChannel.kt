@@ -31,8 +31,12 @@ import com.google.android.encryptionrunner.HandshakeMessage.HandshakeState
 import com.google.android.encryptionrunner.Key
 import com.google.protobuf.ByteString
 import java.security.SignatureException
+import java.util.ArrayDeque
 import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
 import java.util.concurrent.locks.ReentrantLock
 import java.util.zip.DataFormatException
@@ -40,11 +44,23 @@ import java.util.zip.Deflater
 import java.util.zip.Inflater
 import kotlin.concurrent.withLock
 import kotlin.math.roundToLong
-import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineExceptionHandler
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.launch
 
 /**
  * Establishes a secure channel with [EncryptionRunner] over [ProtocolStream]s as server side, sends
  * and receives messages securely after the secure channel has been established.
+ *
+ * Handshake steps that read or write [storage] continue on the dispatcher returned by
+ * [storageDispatcherFor] for the device, so the thread that delivered the handshake message is
+ * released right away. A [storageDispatcher] replaces the dispatchers of all devices, e.g. in
+ * tests. Failing to read or save the encryption key fails the channel with
+ * [ChannelError.CHANNEL_ERROR_INVALID_ENCRYPTION_KEY].
  */
 open class MultiProtocolSecureChannel(
   stream: ProtocolStream,
@@ -56,6 +72,9 @@ open class MultiProtocolSecureChannel(
   protected val inflater: Inflater = Inflater(),
   private val deflater: Deflater = Deflater(Deflater.BEST_COMPRESSION),
   private val isCompressionEnabled: Boolean = true,
+  private val compressionPolicy: CompressionPolicy = CompressionPolicy(),
+  private val streamScheduler: StreamScheduler = StreamScheduler(),
+  private val storageDispatcher: CoroutineDispatcher? = null,
 ) {
 
   enum class ChannelError {
@@ -88,9 +107,30 @@ open class MultiProtocolSecureChannel(
     MESSAGE_ERROR_DECOMPRESSION_FAILURE,
   }
 
-  private val encryptionKeyLock = ReentrantLock()
+  // Messages in the order of their place in the encrypted sequence, guarded by itself.
+  private val outgoingMessages = ArrayDeque<OutgoingMessage>()
+
+  // Whether a thread is handing ready messages to the streams, guarded by outgoingMessages.
+  private var isTransmitting = false
+
+  // Messages received from any stream and not yet processed, guarded by itself.
+  private val incomingMessages = ArrayDeque<DeviceMessage>()
+
+  // Whether a thread is processing received messages, guarded by incomingMessages.
+  private var isReceiving = false
+
+  // Orders the hand-off of messages to streams with resending the messages of a lost stream.
+  private val transmitLock = ReentrantLock()
   private val streams = ConcurrentHashMap.newKeySet<ProtocolStream>()
   private val encryptionKey = AtomicReference<Key>()
+  private val storageScope =
+    CoroutineScope(
+      SupervisorJob() +
+        CoroutineExceptionHandler { _, e ->
+          loge(TAG, "Failed to access the encryption key in storage.", e)
+          notifySecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_ENCRYPTION_KEY)
+        }
+    )
 
   private var visualVerificationCode: String? = null
 
@@ -109,7 +149,7 @@ open class MultiProtocolSecureChannel(
    */
   private var isCanceled: Boolean = false
 
-  @HandshakeState private var state: Int = HandshakeState.UNKNOWN
+  @Volatile @HandshakeState private var state: Int = HandshakeState.UNKNOWN
 
   /** Callback that notifies secure channel events. */
   var callback: Callback? = null
@@ -265,16 +305,28 @@ open class MultiProtocolSecureChannel(
     showVerificationCodeListener!!.showVerificationCode(code)
   }
 
-  @Throws(HandshakeException::class)
   private fun processHandshakeResumingSession(message: ByteArray) {
     logd(TAG, "Process resuming session.")
-    if (deviceId == null) {
+    val id = deviceId
+    if (id == null) {
       loge(TAG, "Reconnect with invalid device id.")
       notifySecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_DEVICE_ID)
       return
     }
     logd(TAG, "Start reconnection authentication.")
-    val previousKey = runBlocking { storage.getEncryptionKey(deviceId.toString()) }
+    storageScope.launch(dispatcherFor(id)) {
+      try {
+        resumeSession(id, message)
+      } catch (e: HandshakeException) {
+        loge(TAG, "Handshake failed.", e)
+        notifySecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_HANDSHAKE)
+      }
+    }
+  }
+
+  @Throws(HandshakeException::class)
+  private suspend fun resumeSession(deviceId: String, message: ByteArray) {
+    val previousKey = storage.getEncryptionKey(deviceId)
     if (previousKey == null) {
       loge(TAG, "Unable to resume session, previous key is null.")
       notifySecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_ENCRYPTION_KEY)
@@ -293,7 +345,7 @@ open class MultiProtocolSecureChannel(
       notifySecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_ENCRYPTION_KEY)
       return
     }
-    runBlocking { storage.saveEncryptionKey(deviceId.toString(), newKey.asBytes()) }
+    storage.saveEncryptionKey(deviceId, newKey.asBytes())
     logd(TAG, "Saved new key for reconnection.")
     encryptionKey.set(newKey)
     sendServerAuthToClient(handshakeMessage.nextMessage)
@@ -311,15 +363,19 @@ open class MultiProtocolSecureChannel(
 
   /** Notifies that the device id is received from remote device during association. */
   open fun setDeviceIdDuringAssociation(deviceId: UUID) {
-    this.deviceId = deviceId.toString()
-    if (encryptionKey.get() == null) {
+    val id = deviceId.toString()
+    this.deviceId = id
+    val key = encryptionKey.get()
+    if (key == null) {
       loge(TAG, "Key is null when received client device id $deviceId.")
       notifySecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_ENCRYPTION_KEY)
       return
     }
-    runBlocking { storage.saveEncryptionKey(deviceId.toString(), encryptionKey.get().asBytes()) }
+    storageScope.launch(dispatcherFor(id)) { storage.saveEncryptionKey(id, key.asBytes()) }
   }
 
+  private fun dispatcherFor(deviceId: String) = storageDispatcher ?: storageDispatcherFor(deviceId)
+
   /**
    * Called by the client to notify that the user has accepted a pairing code or any out-of-band
    * confirmation, and send confirmation signals to remote bluetooth device.
@@ -373,6 +429,7 @@ open class MultiProtocolSecureChannel(
    */
   open fun cancel() {
     isCanceled = true
+    storageScope.coroutineContext.cancelChildren()
   }
 
   /** Adds a protocol stream to this channel. */
@@ -389,7 +446,7 @@ open class MultiProtocolSecureChannel(
       object : ProtocolStream.ProtocolDisconnectListener {
         override fun onProtocolDisconnected() {
           logd(TAG, "The stream's protocol has disconnected. Removing from secure channel.")
-          streams.remove(stream)
+          removeStream(stream)
           // deviceId is set after association completes.
           val disconnectedDuringAssociation = streams.isEmpty() && deviceId == null
           if (disconnectedDuringAssociation && !isCanceled) {
@@ -400,6 +457,32 @@ open class MultiProtocolSecureChannel(
       }
   }
 
+  /**
+   * Removes a disconnected [stream] and resends the messages it did not finish on the stream chosen
+   * by [streamScheduler].
+   *
+   * This happens under [transmitLock] so that messages encrypted later cannot overtake the resent
+   * ones.
+   */
+  private fun removeStream(stream: ProtocolStream) {
+    transmitLock.withLock {
+      streams.remove(stream)
+      streamScheduler.onStreamRemoved(stream)
+      val unsentMessages = stream.takeUnsentMessages()
+      if (unsentMessages.isEmpty()) {
+        return
+      }
+      val nextStream =
+        streamScheduler.selectStream(streams, unsentMessages.sumOf { it.serializedSize })
+      if (nextStream == null) {
+        loge(TAG, "No stream left to resend ${unsentMessages.size} unsent messages. Dropping.")
+        return
+      }
+      logd(TAG, "Resending ${unsentMessages.size} unsent messages on another stream.")
+      nextStream.resendMessages(unsentMessages)
+    }
+  }
+
   /** Requests all streams to initiate a disconnection. */
   open fun requestDisconnect() {
     for (stream in streams) {
@@ -440,8 +523,7 @@ open class MultiProtocolSecureChannel(
   }
 
   private fun sendMessage(deviceMessage: DeviceMessage): Boolean {
-    val stream = streams.firstOrNull()
-    if (stream == null) {
+    if (streams.isEmpty()) {
       loge(TAG, "Attempted to send a message to a disconnected device, ignored.")
       return false
     }
@@ -449,29 +531,76 @@ open class MultiProtocolSecureChannel(
     if (isCompressionEnabled) {
       compressMessage(deviceMessage)
     }
-    encryptionKeyLock.withLock {
-      if (deviceMessage.isMessageEncrypted) {
-        try {
-          encryptMessage(deviceMessage)
-        } catch (e: IllegalStateException) {
-          loge(TAG, "Secure channel has not been established.")
-          return false
+    val outgoingMessage = OutgoingMessage(deviceMessage)
+    // Only the place of the message in the encrypted sequence is decided under the lock. The
+    // encryption itself can then run concurrently with other messages and with decryption.
+    val pendingEncryption =
+      synchronized(outgoingMessages) {
+        val encryption =
+          if (deviceMessage.isMessageEncrypted) {
+            val key = encryptionKey.get()
+            if (key == null) {
+              loge(TAG, "Secure channel has not been established.")
+              return false
+            }
+            key.prepareEncryption(deviceMessage.message)
+          } else {
+            null
+          }
+        outgoingMessages.add(outgoingMessage)
+        encryption
+      }
+    if (pendingEncryption != null) {
+      try {
+        deviceMessage.setMessage(pendingEncryption.encrypt())
+      } catch (e: RuntimeException) {
+        loge(TAG, "Failed to encrypt message. Dropping.", e)
+        outgoingMessage.isDropped = true
+      }
+    }
+    synchronized(outgoingMessages) { outgoingMessage.isReady = true }
+    transmitReadyMessages()
+    return !outgoingMessage.isDropped
+  }
+
+  /**
+   * Hands messages whose encryption has finished to the streams in the order of their place in the
+   * encrypted sequence, which is the order the remote device decrypts them in.
+   *
+   * Only one thread transmits at a time. A thread that finds another one transmitting leaves its
+   * ready message to that thread.
+   */
+  private fun transmitReadyMessages() {
+    synchronized(outgoingMessages) {
+      if (isTransmitting) {
+        return
+      }
+      isTransmitting = true
+    }
+    while (true) {
+      val outgoingMessage =
+        synchronized(outgoingMessages) {
+          if (outgoingMessages.peekFirst()?.isReady != true) {
+            isTransmitting = false
+            return
+          }
+          outgoingMessages.removeFirst()
         }
+      if (!outgoingMessage.isDropped) {
+        transmit(outgoingMessage.deviceMessage)
       }
-      // Include the call to send the message in the lock, because the call chops the message into
-      // packets and queues them to be sent out. Proper locking ensures the order of encryption is
-      // the same as delivery.
-      // TODO: Send message through one of the connected streams for now.
-      stream.sendMessage(deviceMessage)
     }
-    return true
   }
 
-  private fun encryptMessage(deviceMessage: DeviceMessage) {
-    val key =
-      encryptionKey.get() ?: throw IllegalStateException("Secure channel has not been established.")
-    val encryptedMessage = key.encryptData(deviceMessage.message)
-    deviceMessage.setMessage(encryptedMessage)
+  private fun transmit(deviceMessage: DeviceMessage) {
+    transmitLock.withLock {
+      val stream = streamScheduler.selectStream(streams, deviceMessage.message.size)
+      if (stream == null) {
+        loge(TAG, "All streams disconnected before the message could be sent, ignored.")
+        return
+      }
+      stream.sendMessage(deviceMessage)
+    }
   }
 
   /** Inform the secure channel related events through [callback]. */
@@ -518,13 +647,47 @@ open class MultiProtocolSecureChannel(
     }
   }
 
+  /**
+   * Processes messages from all streams one at a time in the order they arrived, because the remote
+   * device's sequence numbers are only accepted in order. Decryption does not wait for messages
+   * being encrypted.
+   *
+   * A thread that finds another one processing leaves its message to that thread.
+   */
   @VisibleForTesting
   internal fun onDeviceMessageReceived(deviceMessage: DeviceMessage) {
+    synchronized(incomingMessages) {
+      incomingMessages.addLast(deviceMessage)
+      if (isReceiving) {
+        return
+      }
+      isReceiving = true
+    }
+    while (true) {
+      val incomingMessage =
+        synchronized(incomingMessages) {
+          incomingMessages.pollFirst()
+            ?: run {
+              isReceiving = false
+              return
+            }
+        }
+      try {
+        processReceivedMessage(incomingMessage)
+      } catch (e: RuntimeException) {
+        // Leave the remaining messages to the next thread rather than stalling the channel.
+        synchronized(incomingMessages) { isReceiving = false }
+        throw e
+      }
+    }
+  }
+
+  private fun processReceivedMessage(deviceMessage: DeviceMessage) {
     if (deviceMessage.message.isEmpty()) {
       loge(TAG, "Received empty message, ignored.")
       return
     }
-    var success = encryptionKeyLock.withLock { decryptMessage(deviceMessage) }
+    var success = decryptMessage(deviceMessage)
     if (success) {
       success = decompressMessage(deviceMessage)
     }
@@ -566,11 +729,28 @@ open class MultiProtocolSecureChannel(
   @VisibleForTesting
   internal fun compressMessage(deviceMessage: DeviceMessage) {
     val originalMessage = deviceMessage.message
+    val recipient = deviceMessage.recipient
+    val level = compressionPolicy.levelFor(recipient, originalMessage.size)
+    if (level == null) {
+      logd(TAG, "Skipping compression of ${originalMessage.size} byte message.")
+      deviceMessage.originalMessageSize = 0
+      return
+    }
     val compressedMessage = ByteArray(originalMessage.size)
+    val startNanos = System.nanoTime()
     deflater.reset()
+    deflater.setLevel(level)
     deflater.setInput(originalMessage)
     deflater.finish()
     val compressedSize = deflater.deflate(compressedMessage)
+    compressionPolicy.onMessageCompressed(
+      recipient,
+      originalMessage.size,
+      compressedSize,
+      System.nanoTime() - startNanos,
+      // The message may go out on the fastest stream, where saving a byte is worth the least.
+      streams.mapNotNull { it.nanosPerByte }.minOrNull(),
+    )
     if (compressedSize >= originalMessage.size) {
       logd(TAG, "Message compression resulted in no savings. Sending original message.")
       deviceMessage.originalMessageSize = 0
@@ -579,15 +759,18 @@ open class MultiProtocolSecureChannel(
     deviceMessage.originalMessageSize = originalMessage.size
     deviceMessage.message = compressedMessage.copyOf(compressedSize)
     val compressionSavings =
-      ((originalMessage.size - compressedSize) / originalMessage.size.toDouble()).roundToLong() *
-        100L
+      ((originalMessage.size - compressedSize) * 100.0 / originalMessage.size).roundToLong()
     logd(
       TAG,
-      "Message compressed from ${originalMessage.size} to $compressedSize bytes saving " +
-        "$compressionSavings%",
+      "Message compressed at level $level from ${originalMessage.size} to $compressedSize bytes " +
+        "saving $compressionSavings%",
     )
   }
 
+  /** Returns the compression statistics of the messages sent to [recipient]. */
+  fun getCompressionStats(recipient: UUID?): CompressionPolicy.CompressionStats =
+    compressionPolicy.statsFor(recipient)
+
   @VisibleForTesting
   internal fun decompressMessage(deviceMessage: DeviceMessage): Boolean {
     val message = deviceMessage.message
@@ -645,6 +828,12 @@ open class MultiProtocolSecureChannel(
     fun onMessageReceivedError(error: MessageError) {}
   }
 
+  /** A message waiting for its encryption to finish before it is handed to a stream. */
+  private class OutgoingMessage(val deviceMessage: DeviceMessage) {
+    var isReady = false
+    var isDropped = false
+  }
+
   /** Listener that will be invoked to display verification code. */
   interface ShowVerificationCodeListener {
     /** Invoked when a verification [code] needs to be displayed during device association. */
@@ -653,5 +842,34 @@ open class MultiProtocolSecureChannel(
 
   companion object {
     private const val TAG = "MultiProtocolSecureChannel"
+
+    // Serial dispatchers that devices are spread across by the hash of their id.
+    private const val STORAGE_DISPATCHER_COUNT = 4
+    private const val STORAGE_THREAD_KEEP_ALIVE_SECONDS = 30L
+
+    private val storageDispatchers by lazy {
+      List(STORAGE_DISPATCHER_COUNT) {
+        ThreadPoolExecutor(
+            /* corePoolSize= */ 1,
+            /* maximumPoolSize= */ 1,
+            STORAGE_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            LinkedBlockingQueue(),
+          )
+          .apply { allowCoreThreadTimeOut(true) }
+          .asCoroutineDispatcher()
+      }
+    }
+
+    /**
+     * Returns the dispatcher for the storage work of handshakes with [deviceId].
+     *
+     * Work for one device runs one at a time, so the key saved at the end of one session is ordered
+     * before the key read when the device next reconnects. Devices share a fixed number of
+     * dispatchers, so a handshake only waits for another device that happens to share one. Their
+     * threads exit when idle.
+     */
+    internal fun storageDispatcherFor(deviceId: String): CoroutineDispatcher =
+      storageDispatchers[Math.floorMod(deviceId.hashCode(), STORAGE_DISPATCHER_COUNT)]
   }
 }
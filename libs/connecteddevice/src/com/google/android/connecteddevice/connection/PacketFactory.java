@@ -21,10 +21,11 @@ import static java.lang.Math.min;
 
 import androidx.annotation.VisibleForTesting;
 import com.google.android.companionprotos.PacketProto.Packet;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /** Factory for creating {@link Packet} protos. */
 class PacketFactory {
@@ -55,25 +56,33 @@ class PacketFactory {
   static List<Packet> makePackets(byte[] payload, int messageId, int maxSize)
       throws PacketFactoryException {
     List<Packet> blePackets = new ArrayList<>();
+    Iterator<Packet> packets = makePacketIterator(payload, messageId, maxSize);
+    while (packets.hasNext()) {
+      blePackets.add(packets.next());
+    }
+    return blePackets;
+  }
+
+  /**
+   * Returns an {@link Iterator} that lazily splits the given data into {@link Packet}s that fit
+   * within the given {@code maxSize}.
+   *
+   * <p>The payload of each {@link Packet} is a view into {@code payload} rather than a copy, so
+   * {@code payload} must not be modified while the returned packets are in use.
+   *
+   * @param payload The payload to potentially split across multiple {@link Packet}s.
+   * @param messageId The unique id for identifying message.
+   * @param maxSize The maximum size of each chunk.
+   * @return An {@link Iterator} over the {@link Packet}s of the message in order.
+   * @throws PacketFactoryException if an error occurred during the splitting of data.
+   */
+  static Iterator<Packet> makePacketIterator(byte[] payload, int messageId, int maxSize)
+      throws PacketFactoryException {
     int payloadSize = payload.length;
     int totalPackets = getTotalPacketNumber(messageId, payloadSize, maxSize);
     int maxPayloadSize =
         maxSize - getPacketHeaderSize(totalPackets, messageId, min(payloadSize, maxSize));
-
-    int start = 0;
-    int end = min(payloadSize, maxPayloadSize);
-    for (int packetNum = 1; packetNum <= totalPackets; packetNum++) {
-      blePackets.add(
-          Packet.newBuilder()
-              .setPacketNumber(packetNum)
-              .setTotalPackets(totalPackets)
-              .setMessageId(messageId)
-              .setPayload(ByteString.copyFrom(Arrays.copyOfRange(payload, start, end)))
-              .build());
-      start = end;
-      end = min(start + maxPayloadSize, payloadSize);
-    }
-    return blePackets;
+    return new PacketIterator(payload, messageId, totalPackets, maxPayloadSize);
   }
 
   /**
@@ -156,5 +165,46 @@ class PacketFactory {
     return 5;
   }
 
+  /** Produces the {@link Packet}s of a single message on demand. */
+  private static class PacketIterator implements Iterator<Packet> {
+    private final byte[] payload;
+    private final int messageId;
+    private final int totalPackets;
+    private final int maxPayloadSize;
+
+    private int nextPacketNumber = 1;
+    private int start = 0;
+
+    PacketIterator(byte[] payload, int messageId, int totalPackets, int maxPayloadSize) {
+      this.payload = payload;
+      this.messageId = messageId;
+      this.totalPackets = totalPackets;
+      this.maxPayloadSize = maxPayloadSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextPacketNumber <= totalPackets;
+    }
+
+    @Override
+    public Packet next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("All " + totalPackets + " packets have been created.");
+      }
+      int end = min(start + maxPayloadSize, payload.length);
+      Packet packet =
+          Packet.newBuilder()
+              .setPacketNumber(nextPacketNumber)
+              .setTotalPackets(totalPackets)
+              .setMessageId(messageId)
+              .setPayload(UnsafeByteOperations.unsafeWrap(payload, start, end - start))
+              .build();
+      start = end;
+      nextPacketNumber++;
+      return packet;
+    }
+  }
+
   private PacketFactory() {}
 }
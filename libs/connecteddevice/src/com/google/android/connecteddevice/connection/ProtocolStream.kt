@@ -15,10 +15,12 @@
  */
 package com.google.android.connecteddevice.connection
 
+import android.os.SystemClock
 import com.google.android.companionprotos.DeviceMessageProto
 import com.google.android.companionprotos.OperationProto.OperationType
 import com.google.android.companionprotos.PacketProto.Packet
 import com.google.android.connecteddevice.model.DeviceMessage
+import com.google.android.connecteddevice.transport.ConnectionProtocol
 import com.google.android.connecteddevice.transport.IDataReceivedListener
 import com.google.android.connecteddevice.transport.IDataSendCallback
 import com.google.android.connecteddevice.transport.IDeviceDisconnectedListener
@@ -32,14 +34,42 @@ import com.google.android.connecteddevice.util.SafeLog.loge
 import com.google.android.connecteddevice.util.SafeLog.logw
 import com.google.protobuf.ByteString
 import com.google.protobuf.ExtensionRegistryLite
-import java.io.ByteArrayOutputStream
 import java.io.IOException
+import java.time.Duration
 import java.util.ArrayDeque
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 
-/** Data stream for a specified [device]. */
-open class ProtocolStream(private val device: ProtocolDevice) {
+/**
+ * Data stream for a specified [device].
+ *
+ * Up to [maxPacketsInFlight] packets are handed to the underlying protocol before waiting for their
+ * send confirmations. A value of `1` results in stop-and-wait sending. By default, the window is
+ * taken from the [ConnectionProtocol] of the [device] when it is available in process.
+ *
+ * Incoming messages are reassembled into buffers sized from the first packet, up to a few packets
+ * at first, and grown as more packets arrive. A message that receives no packet for
+ * [reassemblyTimeout] is dropped. Buffers of all partial messages together may hold at most
+ * [maxReassemblyBytes]; the least recently active messages are dropped to make room, and a single
+ * message that could never fit is dropped while the device stays connected.
+ *
+ * The stream reports the bytes it still has to send and the rate at which the protocol confirms
+ * them, so that a [StreamScheduler] can pick between the streams of a device. Messages that were
+ * not completely written when the protocol disconnects can be taken with [takeUnsentMessages] and
+ * sent on another stream.
+ */
+open class ProtocolStream
+@JvmOverloads
+constructor(
+  private val device: ProtocolDevice,
+  private val maxPacketsInFlight: Int =
+    (device.protocol as? ConnectionProtocol)?.maxPacketsInFlight
+      ?: ConnectionProtocol.DEFAULT_MAX_PACKETS_IN_FLIGHT,
+  private val reassemblyTimeout: Duration = DEFAULT_REASSEMBLY_TIMEOUT,
+  private val maxReassemblyBytes: Int = DEFAULT_MAX_REASSEMBLY_BYTES,
+  private val elapsedRealtime: () -> Long = SystemClock::elapsedRealtime,
+  private val elapsedRealtimeNanos: () -> Long = SystemClock::elapsedRealtimeNanos,
+) {
   /** Listener which will be notified when there is new [DeviceMessage] received. */
   var messageReceivedListener: MessageReceivedListener? = null
 
@@ -49,20 +79,76 @@ open class ProtocolStream(private val device: ProtocolDevice) {
    */
   var protocolDisconnectListener: ProtocolDisconnectListener? = null
 
-  private val packetQueue = ArrayDeque<Packet>()
-  // messageId  -> accumulated bytes
-  private val pendingData: MutableMap<Int, ByteArrayOutputStream> = HashMap()
+  private val sendLock = Any()
+
+  // Queued messages with their packets, created lazily as room opens in the send window.
+  private val packetQueue = ArrayDeque<QueuedMessage>()
 
-  // messageId -> nextExpectedPacketNumber
-  private val pendingPacketNumber: MutableMap<Int, Int> = HashMap()
+  // Packets handed to the protocol in the order they were written, awaiting confirmation.
+  private val inFlightPackets = ArrayDeque<InFlightPacket>()
+
+  // messageId -> partially received message, guarded by this stream
+  private val pendingMessages = LinkedHashMap<Int, PendingMessage>()
+
+  // messageId -> recently completed or dropped message, guarded by this stream
+  private val finishedMessages =
+    object : LinkedHashMap<Int, FinishedMessage>() {
+      override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Int, FinishedMessage>) =
+        size > MAX_FINISHED_MESSAGES
+    }
+
+  private var reservedReassemblyBytes = 0L
+  private var expiredDropCount = 0L
+  private var overflowDropCount = 0L
   private val messageIdGenerator = MessageIdGenerator()
-  private val isSendingInProgress = AtomicBoolean(false)
   private val isConnected = AtomicBoolean(true)
 
-  private var maxWriteSize: Int
+  // Bytes of queued messages whose packets have not been confirmed, guarded by sendLock.
+  private var queuedBytes = 0L
+
+  // Smoothed time the protocol takes to confirm a byte, 0 until measured, guarded by sendLock.
+  private var confirmationNanosPerByte = 0.0
+  private var lastConfirmationNanos = 0L
+
+  // Whether a thread is writing packets to the protocol, guarded by sendLock.
+  private var isWriting = false
+
+  // Messages left unwritten by a failed write or the last disconnection, guarded by sendLock.
+  private var unsentMessages = mutableListOf<DeviceMessageProto.Message>()
+
+  private var writeSize: Int
+
+  /** The largest packet, in bytes, that the underlying protocol currently accepts. */
+  open val maxWriteSize: Int
+    get() = writeSize
+
+  /** Bytes of messages sent to this stream that the protocol has not yet confirmed as sent. */
+  open val pendingBytes: Long
+    get() = synchronized(sendLock) { queuedBytes }
+
+  /**
+   * Smoothed nanoseconds the protocol has taken to confirm each byte sent, or `null` if no send has
+   * been confirmed yet.
+   */
+  open val nanosPerByte: Double?
+    get() = synchronized(sendLock) { confirmationNanosPerByte.takeIf { it > 0 } }
+
+  /** Number of partial messages dropped because no packet arrived within the timeout. */
+  val expiredDroppedMessages: Long
+    get() = synchronized(this) { expiredDropCount }
+
+  /** Number of partial messages dropped to stay within the reassembly byte limit. */
+  val overflowDroppedMessages: Long
+    get() = synchronized(this) { overflowDropCount }
 
   init {
-    logd(TAG, "Creating new ProtocolStream for protocol device ${device.protocolId}.")
+    require(maxPacketsInFlight > 0) { "maxPacketsInFlight must be positive." }
+    require(maxReassemblyBytes > 0) { "maxReassemblyBytes must be positive." }
+    logd(
+      TAG,
+      "Creating new ProtocolStream for protocol device ${device.protocolId} with a window of " +
+        "$maxPacketsInFlight packets.",
+    )
     device.protocol.registerDataReceivedListener(
       device.protocolId,
       object : IDataReceivedListener.Stub() {
@@ -76,6 +162,13 @@ open class ProtocolStream(private val device: ProtocolDevice) {
       object : IDeviceDisconnectedListener.Stub() {
         override fun onDeviceDisconnected(protocolId: String) {
           isConnected.set(false)
+          synchronized(sendLock) {
+            packetQueue.filter { it.packets.hasNext() }.forEach { addUnsentMessage(it.message) }
+            packetQueue.clear()
+            inFlightPackets.clear()
+            queuedBytes = 0
+          }
+          clearPendingMessages()
           protocolDisconnectListener?.onProtocolDisconnected()
         }
       },
@@ -84,11 +177,11 @@ open class ProtocolStream(private val device: ProtocolDevice) {
       device.protocolId,
       object : IDeviceMaxDataSizeChangedListener.Stub() {
         override fun onDeviceMaxDataSizeChanged(protocolId: String, maxBytes: Int) {
-          maxWriteSize = maxBytes
+          writeSize = maxBytes
         }
       },
     )
-    maxWriteSize = device.protocol.getMaxWriteSize(device.protocolId)
+    writeSize = device.protocol.getMaxWriteSize(device.protocolId)
   }
 
   /** Sends a message to request the mobile side to initiate a disconnection. */
@@ -108,42 +201,127 @@ open class ProtocolStream(private val device: ProtocolDevice) {
     sendDeviceMessageProto(deviceMessage.toDeviceMessageProto())
   }
 
+  /**
+   * Sends [messages] that another stream of the device could not finish sending, in their original
+   * order.
+   */
+  open fun resendMessages(messages: List<DeviceMessageProto.Message>) {
+    messages.forEach { sendDeviceMessageProto(it) }
+  }
+
+  /**
+   * Returns the messages that had not been completely written to the protocol when it disconnected,
+   * in the order they were sent, and forgets them.
+   *
+   * Messages whose last packet was written are not returned even if their confirmation is
+   * outstanding, because the remote device may already have received them. Messages with a packet
+   * that failed to send are always returned.
+   */
+  open fun takeUnsentMessages(): List<DeviceMessageProto.Message> {
+    synchronized(sendLock) {
+      val messages = unsentMessages
+      unsentMessages = mutableListOf()
+      return messages
+    }
+  }
+
   private fun sendDeviceMessageProto(message: DeviceMessageProto.Message) {
     if (!isConnected.get()) {
       logw(TAG, "Unable to send message to disconnected device.")
+      synchronized(sendLock) { addUnsentMessage(message) }
       return
     }
     val rawBytes = message.toByteArray()
     val packets =
       try {
-        PacketFactory.makePackets(rawBytes, messageIdGenerator.next(), maxWriteSize)
+        PacketFactory.makePacketIterator(rawBytes, messageIdGenerator.next(), writeSize)
       } catch (e: PacketFactoryException) {
         loge(TAG, "Error while creating message packets.", e)
         return
       }
-    packetQueue.addAll(packets)
-    writeNextMessageInQueue()
+    synchronized(sendLock) {
+      if (!isConnected.get()) {
+        // Disconnected while the packets were being created.
+        addUnsentMessage(message)
+        return
+      }
+      packetQueue.add(QueuedMessage(message, packets, rawBytes.size))
+      queuedBytes += rawBytes.size
+    }
+    writeNextPacketsInQueue()
   }
 
-  private fun writeNextMessageInQueue() {
-    if (packetQueue.isEmpty()) {
-      logd(TAG, "There are no more packets to send.")
-      return
+  /** Keeps [message] to be sent on another stream, unless it only concerns this stream. */
+  private fun addUnsentMessage(message: DeviceMessageProto.Message) {
+    if (message.operation != OperationType.DISCONNECT) {
+      unsentMessages.add(message)
     }
-    val isLockAcquired = isSendingInProgress.compareAndSet(false, true)
-    if (!isLockAcquired) {
-      logd(TAG, "Unable to send a packet at this time.")
-      return
+  }
+
+  /**
+   * Writes queued packets until either the queue is drained or the send window is full.
+   *
+   * Only one thread writes at a time so that packets reach the protocol in order. The protocol is
+   * called without holding [sendLock], so it may confirm a packet from any thread before
+   * [ConnectionProtocol.sendData] returns; a thread that finds another one writing leaves the
+   * packets that became available to it.
+   */
+  private fun writeNextPacketsInQueue() {
+    synchronized(sendLock) {
+      if (isWriting) {
+        return
+      }
+      isWriting = true
     }
-    val packet = packetQueue.remove()
-    logd(
-      TAG,
-      "Writing packet ${packet.packetNumber} of ${packet.totalPackets} for ${packet.messageId}.",
-    )
-    send(packet.toByteArray())
+    var unsentPacket: InFlightPacket? = null
+    try {
+      while (true) {
+        unsentPacket = synchronized(sendLock) { takeNextPacket() } ?: return
+        send(unsentPacket)
+        unsentPacket = null
+      }
+    } catch (e: Exception) {
+      // Also catches the RemoteException of a binder protocol, which Kotlin does not make callers
+      // handle. The packet never reached the protocol, so it must not hold its place in the window.
+      unsentPacket?.let { onPacketFailed(it) }
+      synchronized(sendLock) { isWriting = false }
+      throw e
+    }
+  }
+
+  /**
+   * Moves the next queued packet into the send window, or returns `null` and gives up writing if
+   * there is none or the window is full. Must be called while holding [sendLock].
+   */
+  private fun takeNextPacket(): InFlightPacket? {
+    while (isConnected.get() && packetQueue.isNotEmpty()) {
+      val queuedMessage = packetQueue.first
+      if (!queuedMessage.packets.hasNext()) {
+        packetQueue.removeFirst()
+        continue
+      }
+      if (inFlightPackets.size >= maxPacketsInFlight) {
+        logd(
+          TAG,
+          "Send window of %d packets is full. Waiting for confirmation.",
+          maxPacketsInFlight,
+        )
+        isWriting = false
+        return null
+      }
+      val packet = queuedMessage.packets.next()
+      queuedMessage.unwrittenBytes -= packet.payload.size()
+      val inFlightPacket = InFlightPacket(queuedMessage, packet, elapsedRealtimeNanos())
+      inFlightPackets.add(inFlightPacket)
+      logd(TAG, "Writing packet %d of message %d.", packet.packetNumber, packet.messageId)
+      return inFlightPacket
+    }
+    logd(TAG, "There are no more packets to send.")
+    isWriting = false
+    return null
   }
 
-  private fun send(data: ByteArray) {
+  private fun send(inFlightPacket: InFlightPacket) {
     if (!isConnected.get()) {
       logw(TAG, "Unable to send data to disconnected device.")
       return
@@ -151,26 +329,106 @@ open class ProtocolStream(private val device: ProtocolDevice) {
     logd(TAG, "Send data with callback.")
     device.protocol.sendData(
       device.protocolId,
-      data,
+      inFlightPacket.packet.toByteArray(),
       object : IDataSendCallback.Stub() {
         override fun onDataSentSuccessfully() {
-          logd(TAG, "Data sent successfully. Sending next message in queue.")
-          isSendingInProgress.set(false)
-          writeNextMessageInQueue()
+          onPacketSent(inFlightPacket)
         }
 
         override fun onDataFailedToSend() {
           loge(TAG, "Data failed to send. Disconnecting.")
+          onPacketFailed(inFlightPacket)
           device.protocol.disconnectDevice(device.protocolId)
+          // Keeps the stream moving should the protocol not disconnect.
+          writeNextPacketsInQueue()
         }
       },
     )
   }
 
+  /**
+   * Marks [inFlightPacket] as sent and retires confirmed packets from the head of the window.
+   *
+   * Confirmations are retired in the order the packets were written, so a confirmation arriving
+   * ahead of an earlier packet's does not open the window until the earlier packet is confirmed.
+   */
+  private fun onPacketSent(inFlightPacket: InFlightPacket) {
+    synchronized(sendLock) {
+      inFlightPacket.isSent = true
+      retireSentPackets()
+    }
+    logd(TAG, "Data sent successfully. Sending next packets in queue.")
+    writeNextPacketsInQueue()
+  }
+
+  /**
+   * Removes [inFlightPacket] from the window so that the window does not wait on it while the
+   * protocol disconnects. The rest of its message is not written and the message is kept to be sent
+   * on another stream.
+   */
+  private fun onPacketFailed(inFlightPacket: InFlightPacket) {
+    synchronized(sendLock) {
+      if (!inFlightPackets.remove(inFlightPacket)) {
+        // The window was already cleared by a disconnection.
+        return
+      }
+      var droppedBytes = inFlightPacket.packet.payload.size().toLong()
+      val queuedMessage = inFlightPacket.queuedMessage
+      if (!queuedMessage.isFailed) {
+        queuedMessage.isFailed = true
+        packetQueue.remove(queuedMessage)
+        droppedBytes += queuedMessage.unwrittenBytes
+        addUnsentMessage(queuedMessage.message)
+      }
+      queuedBytes = (queuedBytes - droppedBytes).coerceAtLeast(0)
+      retireSentPackets()
+    }
+  }
+
+  /** Retires confirmed packets from the head of the window. Must be called holding [sendLock]. */
+  private fun retireSentPackets() {
+    val firstWrittenNanos = inFlightPackets.peekFirst()?.writtenNanos
+    var confirmedBytes = 0L
+    while (inFlightPackets.peekFirst()?.isSent == true) {
+      val packet = inFlightPackets.removeFirst().packet
+      confirmedBytes += packet.payload.size()
+      if (packet.packetNumber == packet.totalPackets) {
+        logd(TAG, "Message %d sent successfully.", packet.messageId)
+      }
+    }
+    if (firstWrittenNanos != null && confirmedBytes > 0) {
+      recordConfirmation(confirmedBytes, firstWrittenNanos)
+    }
+  }
+
+  /**
+   * Updates the confirmation rate with [confirmedBytes] retired at once.
+   *
+   * The sample covers the time since the previous confirmation, or since the oldest retired packet
+   * was written if the stream was idle in between, so that waiting for new messages does not count
+   * against the stream.
+   */
+  private fun recordConfirmation(confirmedBytes: Long, firstWrittenNanos: Long) {
+    queuedBytes = (queuedBytes - confirmedBytes).coerceAtLeast(0)
+    val now = elapsedRealtimeNanos()
+    val elapsedNanos = now - maxOf(lastConfirmationNanos, firstWrittenNanos)
+    lastConfirmationNanos = now
+    if (elapsedNanos <= 0) {
+      return
+    }
+    val sample = elapsedNanos.toDouble() / confirmedBytes
+    confirmationNanosPerByte =
+      if (confirmationNanosPerByte == 0.0) {
+        sample
+      } else {
+        confirmationNanosPerByte + (sample - confirmationNanosPerByte) * RATE_SMOOTHING_FACTOR
+      }
+  }
+
   /** Process incoming data from stream. */
   @Synchronized // Guarantee order for byte streams
   private fun onDataReceived(data: ByteArray) {
-    logd(TAG, "Received ${data.size} bytes.")
+    logd(TAG, "Received %d bytes.", data.size)
     val packet =
       try {
         Packet.parseFrom(data, ExtensionRegistryLite.getEmptyRegistry())
@@ -183,24 +441,25 @@ open class ProtocolStream(private val device: ProtocolDevice) {
   }
 
   private fun processPacket(packet: Packet) {
+    val now = elapsedRealtime()
+    dropExpiredMessages(now)
     if (!isExpectedPacketNumber(packet)) {
       return
     }
     val messageId = packet.messageId
-    val currentPayloadStream = pendingData.getOrPut(messageId) { ByteArrayOutputStream() }
-    val payload = packet.payload.toByteArray()
-    try {
-      currentPayloadStream.write(payload)
-    } catch (e: IOException) {
-      loge(TAG, "Error writing packet to stream. Disconnecting.", e)
-      device.protocol.disconnectDevice(device.protocolId)
+    val pendingMessage =
+      if (packet.packetNumber == 1) {
+        startMessage(packet) ?: return
+      } else {
+        pendingMessages.getValue(messageId)
+      }
+    if (!reserve(messageId, pendingMessage, packet.payload.size())) {
       return
     }
-    logd(
-      TAG,
-      "Parsed packet ${packet.packetNumber} of ${packet.totalPackets} for message $messageId. " +
-        "Writing ${payload.size}.",
-    )
+    pendingMessage.append(packet.payload)
+    pendingMessage.nextPacketNumber = packet.packetNumber + 1
+    pendingMessage.lastPacketTime = now
+    logd(TAG, "Parsed packet %d of message %d.", packet.packetNumber, messageId)
     if (packet.packetNumber == 1) {
       onMessageStarted(messageId)
     }
@@ -208,20 +467,34 @@ open class ProtocolStream(private val device: ProtocolDevice) {
       return
     }
 
-    pendingData.remove(messageId)
-    receiveMessage(messageId, currentPayloadStream.toByteArray())
+    removePendingMessage(messageId)
+    finishedMessages[messageId] = FinishedMessage(packet.totalPackets, wasDropped = false)
+    receiveMessage(messageId, pendingMessage.toByteArray())
   }
 
   private fun isExpectedPacketNumber(packet: Packet): Boolean {
     val messageId = packet.messageId
     val packetNumber = packet.packetNumber
-    val expectedPacket = pendingPacketNumber.getOrDefault(messageId, 1)
+    val finishedMessage = finishedMessages[messageId]
+    if (finishedMessage != null && !pendingMessages.containsKey(messageId)) {
+      if (finishedMessage.wasDropped) {
+        logw(TAG, "Received packet $packetNumber for dropped message $messageId. Ignoring.")
+        if (packetNumber == packet.totalPackets) {
+          finishedMessages.remove(messageId)
+        }
+        return false
+      }
+      if (packetNumber == finishedMessage.lastPacketNumber) {
+        logw(TAG, "Received duplicate packet $packetNumber for message $messageId. Ignoring.")
+        return false
+      }
+      // The peer reused the id of a completed message.
+      finishedMessages.remove(messageId)
+    }
+    val expectedPacket = pendingMessages[messageId]?.nextPacketNumber ?: 1
 
     if (packetNumber == expectedPacket - 1) {
-      logw(
-        TAG,
-        "Received duplicate packet ${packet.packetNumber} for message $messageId. Ignoring.",
-      )
+      logw(TAG, "Received duplicate packet $packetNumber for message $messageId. Ignoring.")
       return false
     }
 
@@ -230,11 +503,121 @@ open class ProtocolStream(private val device: ProtocolDevice) {
       device.protocol.disconnectDevice(device.protocolId)
       return false
     }
+    return true
+  }
 
-    pendingPacketNumber[messageId] = packetNumber + 1
+  /**
+   * Creates the buffer for the message that starts with [firstPacket].
+   *
+   * Every packet but the last carries as much payload as the first, so the size of the whole message
+   * is known up front. The peer chooses the packet count, though, so only the first
+   * [INITIAL_REASSEMBLY_PACKETS] packets are allocated until more of the message actually arrives.
+   */
+  private fun startMessage(firstPacket: Packet): PendingMessage? {
+    val estimatedSize =
+      firstPacket.payload.size().toLong() * firstPacket.totalPackets.coerceAtLeast(1)
+    if (estimatedSize > maxReassemblyBytes) {
+      loge(
+        TAG,
+        "Message ${firstPacket.messageId} of up to $estimatedSize bytes exceeds the reassembly " +
+          "limit of $maxReassemblyBytes bytes. Dropping.",
+      )
+      if (firstPacket.totalPackets > 1) {
+        // Ignore the rest of the message.
+        finishedMessages[firstPacket.messageId] =
+          FinishedMessage(lastPacketNumber = 0, wasDropped = true)
+      }
+      overflowDropCount++
+      return null
+    }
+    val initialSize =
+      minOf(estimatedSize, firstPacket.payload.size().toLong() * INITIAL_REASSEMBLY_PACKETS)
+    if (!makeRoom(initialSize, firstPacket.messageId)) {
+      return null
+    }
+    val pendingMessage = PendingMessage(initialSize.toInt(), estimatedSize.toInt())
+    pendingMessages[firstPacket.messageId] = pendingMessage
+    reservedReassemblyBytes += initialSize
+    return pendingMessage
+  }
+
+  /**
+   * Ensures [pendingMessage] can hold [payloadSize] more bytes, growing its buffer within the
+   * reassembly limit.
+   *
+   * The buffer doubles up to the size estimated from the first packet, so a large message is copied
+   * only a few times. It grows past the estimate only if the peer sent more than it announced.
+   */
+  private fun reserve(messageId: Int, pendingMessage: PendingMessage, payloadSize: Int): Boolean {
+    val requiredSize = pendingMessage.size.toLong() + payloadSize
+    if (requiredSize <= pendingMessage.capacity) {
+      return true
+    }
+    val newCapacity =
+      maxOf(
+        requiredSize,
+        minOf(pendingMessage.capacity * 2L, pendingMessage.estimatedSize.toLong()),
+      )
+    val extraBytes = newCapacity - pendingMessage.capacity
+    if (requiredSize > maxReassemblyBytes || !makeRoom(extraBytes, messageId)) {
+      loge(TAG, "Message $messageId exceeds the reassembly limit. Dropping.")
+      dropPendingMessage(messageId)
+      overflowDropCount++
+      return false
+    }
+    pendingMessage.grow(newCapacity.toInt())
+    reservedReassemblyBytes += extraBytes
     return true
   }
 
+  /**
+   * Drops the least recently active partial messages other than [messageId] until [bytes] more can
+   * be reserved.
+   */
+  private fun makeRoom(bytes: Long, messageId: Int): Boolean {
+    while (reservedReassemblyBytes + bytes > maxReassemblyBytes) {
+      val leastRecentId =
+        pendingMessages.entries
+          .filter { it.key != messageId }
+          .minByOrNull { it.value.lastPacketTime }
+          ?.key ?: return false
+      logw(TAG, "Dropping partial message $leastRecentId to stay within the reassembly limit.")
+      dropPendingMessage(leastRecentId)
+      overflowDropCount++
+    }
+    return true
+  }
+
+  private fun dropExpiredMessages(now: Long) {
+    if (pendingMessages.isEmpty()) {
+      return
+    }
+    val oldestAllowed = now - reassemblyTimeout.toMillis()
+    val expiredIds = pendingMessages.filterValues { it.lastPacketTime < oldestAllowed }.keys
+    for (messageId in expiredIds) {
+      logw(TAG, "Partial message $messageId timed out. Dropping.")
+      dropPendingMessage(messageId)
+      expiredDropCount++
+    }
+  }
+
+  private fun dropPendingMessage(messageId: Int) {
+    removePendingMessage(messageId)
+    finishedMessages[messageId] = FinishedMessage(lastPacketNumber = 0, wasDropped = true)
+  }
+
+  private fun removePendingMessage(messageId: Int) {
+    val pendingMessage = pendingMessages.remove(messageId) ?: return
+    reservedReassemblyBytes -= pendingMessage.capacity
+  }
+
+  @Synchronized
+  private fun clearPendingMessages() {
+    pendingMessages.clear()
+    finishedMessages.clear()
+    reservedReassemblyBytes = 0
+  }
+
   private fun receiveMessage(messageId: Int, messageBytes: ByteArray) {
     onMessageFullyReceived(messageId, messageBytes.size)
     logd(TAG, "Received complete device message $messageId of ${messageBytes.size} bytes.")
@@ -257,6 +640,56 @@ open class ProtocolStream(private val device: ProtocolDevice) {
     messageReceivedListener?.onMessageReceived(deviceMessage)
   }
 
+  /**
+   * A [message] waiting in the send queue, its remaining [packets] and the payload bytes of the
+   * packets not yet written.
+   */
+  private class QueuedMessage(
+    val message: DeviceMessageProto.Message,
+    val packets: Iterator<Packet>,
+    var unwrittenBytes: Int,
+  ) {
+    var isFailed = false
+  }
+
+  /** A [packet] that has been written to the protocol and whether its send was confirmed. */
+  private class InFlightPacket(
+    val queuedMessage: QueuedMessage,
+    val packet: Packet,
+    val writtenNanos: Long,
+  ) {
+    var isSent = false
+  }
+
+  /** The payload of a message received so far, expected to total [estimatedSize] bytes. */
+  private class PendingMessage(capacity: Int, val estimatedSize: Int) {
+    private var buffer = ByteArray(capacity)
+
+    var size = 0
+      private set
+
+    var nextPacketNumber = 1
+    var lastPacketTime = 0L
+
+    val capacity: Int
+      get() = buffer.size
+
+    fun append(payload: ByteString) {
+      payload.copyTo(buffer, size)
+      size += payload.size()
+    }
+
+    fun grow(newCapacity: Int) {
+      buffer = buffer.copyOf(newCapacity)
+    }
+
+    /** Returns the payload, without copying when the buffer was sized exactly. */
+    fun toByteArray(): ByteArray = if (size == buffer.size) buffer else buffer.copyOf(size)
+  }
+
+  /** A message that is no longer reassembled, kept to recognize its late packets. */
+  private class FinishedMessage(val lastPacketNumber: Int, val wasDropped: Boolean)
+
   /** A generator of unique IDs for messages. */
   private class MessageIdGenerator {
     private val messageId = AtomicInteger(0)
@@ -287,6 +720,21 @@ open class ProtocolStream(private val device: ProtocolDevice) {
   companion object {
     private const val TAG = "ProtocolStream"
 
+    // Finished message ids remembered to ignore duplicate or late packets.
+    private const val MAX_FINISHED_MESSAGES = 32
+
+    // Weight of the newest sample in the smoothed confirmation rate.
+    private const val RATE_SMOOTHING_FACTOR = 0.125
+
+    /** Partial messages that receive no packet for this long are dropped. */
+    @JvmField val DEFAULT_REASSEMBLY_TIMEOUT: Duration = Duration.ofSeconds(30)
+
+    // Packets of a new message that are allocated before more of it arrives.
+    private const val INITIAL_REASSEMBLY_PACKETS = 8
+
+    /** Limit on the bytes buffered for all partial messages of a stream. */
+    const val DEFAULT_MAX_REASSEMBLY_BYTES = 4 * 1024 * 1024
+
     fun DeviceMessage.toDeviceMessageProto(): DeviceMessageProto.Message {
       val builder =
         DeviceMessageProto.Message.newBuilder()
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.connecteddevice.connection
+
+import com.google.android.connecteddevice.util.SafeLog.logd
+
+/**
+ * Chooses which of the [ProtocolStream]s of a device sends the next message.
+ *
+ * A stream is scored by the time it is expected to need for the bytes it already has pending plus
+ * the new message, based on its measured confirmation rate. Streams that have not been measured yet
+ * are assumed to be as fast as the fastest measured stream so they get a chance to be measured, and
+ * ties go to the stream with the larger [ProtocolStream.maxWriteSize].
+ *
+ * The remote device has to decrypt messages in the order they were encrypted, and every stream
+ * delivers independently. The scheduler therefore keeps using the stream it last chose while that
+ * stream still has bytes pending, and only moves to a better stream once it has drained.
+ */
+open class StreamScheduler {
+  private var activeStream: ProtocolStream? = null
+
+  /**
+   * Returns the stream from [streams] that should send a message of [messageSize] bytes, or `null`
+   * if there are no streams.
+   */
+  @Synchronized
+  open fun selectStream(streams: Collection<ProtocolStream>, messageSize: Int): ProtocolStream? {
+    val currentStream = activeStream
+    if (currentStream != null && currentStream.pendingBytes > 0 && currentStream in streams) {
+      return currentStream
+    }
+    val fastestNanosPerByte = streams.mapNotNull { it.nanosPerByte }.minOrNull() ?: 0.0
+    val selectedStream =
+      streams.minWithOrNull(
+        compareBy<ProtocolStream> {
+            (it.pendingBytes + messageSize) * (it.nanosPerByte ?: fastestNanosPerByte)
+          }
+          .thenByDescending { it.maxWriteSize }
+      )
+    if (currentStream != null && selectedStream != currentStream) {
+      logd(TAG, "Switching to a different stream for outgoing messages.")
+    }
+    activeStream = selectedStream
+    return selectedStream
+  }
+
+  /** Forgets [stream] after it has been removed from the device. */
+  @Synchronized
+  open fun onStreamRemoved(stream: ProtocolStream) {
+    if (activeStream == stream) {
+      activeStream = null
+    }
+  }
+
+  companion object {
+    private const val TAG = "StreamScheduler"
+  }
+}
@@ -26,6 +26,10 @@ interface DeviceController {
   /** The devices that are currently connected. */
   val connectedDevices: List<ConnectedDevice>
 
+  /** Returns the connected device with id [deviceId], or `null` if it is not connected. */
+  fun findConnectedDevice(deviceId: String): ConnectedDevice? =
+    connectedDevices.firstOrNull { it.deviceId == deviceId }
+
   /** Start the controller and initiate connections to known devices. */
   fun start()
 
@@ -49,7 +49,6 @@ import com.google.protobuf.ByteString
 import com.google.protobuf.InvalidProtocolBufferException
 import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 import java.util.concurrent.locks.ReentrantLock
@@ -66,6 +65,7 @@ constructor(
   private val systemQueryCache: SystemQueryCache = SystemQueryCache.create(),
   private val loggingManager: LoggingManager,
   private val callbackExecutor: Executor = Executors.newCachedThreadPool(),
+  private val missedMessageStore: MissedMessageStore = MissedMessageStore(),
 ) : IFeatureCoordinator.Stub() {
 
   private val deviceAssociationCallbacks = AidlThreadSafeCallbacks<IDeviceAssociationCallback>()
@@ -92,11 +92,6 @@ constructor(
   // callback notifications.
   @GuardedBy("lock") private val blockedRecipients = mutableSetOf<ParcelUuid>()
 
-  // recipientId -> (deviceId -> message bytes)
-  private val recipientMissedMessages:
-    MutableMap<ParcelUuid, MutableMap<String, MutableList<DeviceMessage>>> =
-    ConcurrentHashMap()
-
   /**
    * Coordinator between external features and connected devices.
    *
@@ -163,8 +158,7 @@ constructor(
 
       // Checks if deviceId currently has established a secure channel.
       private fun hasSecureChannel(deviceId: String): Boolean =
-        controller.connectedDevices.firstOrNull { it.deviceId == deviceId }?.hasSecureChannel()
-          ?: false
+        controller.findConnectedDevice(deviceId)?.hasSecureChannel() ?: false
 
       override fun unregisterDeviceCallback(
         deviceId: String,
@@ -175,7 +169,7 @@ constructor(
       }
 
       override fun sendMessage(deviceId: String, message: ByteArray): Boolean {
-        val connectedDevice = controller.connectedDevices.firstOrNull { it.deviceId == deviceId }
+        val connectedDevice = controller.findConnectedDevice(deviceId)
         if (connectedDevice == null) {
           loge(TAG, "Device $deviceId not found. Unable to send message.")
           return false
@@ -259,7 +253,7 @@ constructor(
       blockedRecipients.clear()
     }
     controller.reset()
-    recipientMissedMessages.clear()
+    missedMessageStore.clear()
   }
 
   /** Removes all associated devices for a user. */
@@ -398,8 +392,8 @@ constructor(
     recipientId: ParcelUuid,
     callback: IInterface,
   ) {
-    val missedMessages = recipientMissedMessages[recipientId]?.remove(connectedDevice.deviceId)
-    if (missedMessages?.isNotEmpty() != true) {
+    val missedMessages = missedMessageStore.remove(recipientId, connectedDevice.deviceId)
+    if (missedMessages.isEmpty()) {
       return
     }
     logd(TAG, "Notifying $recipientId of missed messages.")
@@ -622,8 +616,7 @@ constructor(
   }
 
   override fun isFeatureSupportedCached(deviceId: String, featureId: String): Int {
-    val connectedDevice =
-      controller.connectedDevices.firstOrNull { it.deviceId == deviceId } ?: return 0
+    val connectedDevice = controller.findConnectedDevice(deviceId) ?: return 0
     return when (systemQueryCache.isFeatureSupported(connectedDevice, UUID.fromString(featureId))) {
       true -> 1
       false -> -1
@@ -645,10 +638,7 @@ constructor(
   }
 
   private fun saveMissedMessage(connectedDevice: ConnectedDevice, message: DeviceMessage) =
-    recipientMissedMessages
-      .computeIfAbsent(ParcelUuid(message.recipient)) { ConcurrentHashMap() }
-      .computeIfAbsent(connectedDevice.deviceId) { CopyOnWriteArrayList() }
-      .add(message)
+    missedMessageStore.add(ParcelUuid(message.recipient), connectedDevice.deviceId, message)
 
   @VisibleForTesting
   internal fun onDeviceConnectedInternal(connectedDevice: ConnectedDevice) {
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.connecteddevice.core
+
+import android.os.ParcelUuid
+import android.os.SystemClock
+import androidx.annotation.GuardedBy
+import com.google.android.connecteddevice.model.DeviceMessage
+import com.google.android.connecteddevice.util.SafeLog.logw
+import java.time.Duration
+
+/**
+ * Holds messages that arrived for recipients that have not registered a callback yet.
+ *
+ * Each recipient may hold at most [maxMessagesPerRecipient] messages totalling
+ * [maxBytesPerRecipient] payload bytes across all devices. Once either limit is exceeded, the
+ * oldest messages for that recipient are dropped first. All recipients together may hold at most
+ * [maxMessages] messages totalling [maxBytes] payload bytes, beyond which the oldest messages in the
+ * store are dropped regardless of their recipient. Messages older than [timeToLive] are dropped
+ * whenever a message is added or removed, so a recipient that never registers does not pin its
+ * messages forever.
+ */
+class MissedMessageStore(
+  private val maxMessagesPerRecipient: Int = DEFAULT_MAX_MESSAGES_PER_RECIPIENT,
+  private val maxBytesPerRecipient: Long = DEFAULT_MAX_BYTES_PER_RECIPIENT,
+  private val maxMessages: Int = DEFAULT_MAX_MESSAGES,
+  private val maxBytes: Long = DEFAULT_MAX_BYTES,
+  private val timeToLive: Duration = DEFAULT_TIME_TO_LIVE,
+  private val elapsedRealtime: () -> Long = SystemClock::elapsedRealtime,
+) {
+  private val lock = Any()
+
+  // recipientId -> messages for all devices in arrival order
+  @GuardedBy("lock") private val recipientMessages = mutableMapOf<ParcelUuid, RecipientMessages>()
+
+  @GuardedBy("lock") private var nextSequenceNumber = 0L
+  @GuardedBy("lock") private var overflowDropCount = 0L
+  @GuardedBy("lock") private var expiredDropCount = 0L
+
+  /** Number of messages dropped because a recipient or the store exceeded a count or byte limit. */
+  val overflowDroppedMessages: Long
+    get() = synchronized(lock) { overflowDropCount }
+
+  /** Number of messages dropped because they were not claimed within the time to live. */
+  val expiredDroppedMessages: Long
+    get() = synchronized(lock) { expiredDropCount }
+
+  /** Saves [message] from [deviceId] until [recipientId] registers. */
+  fun add(recipientId: ParcelUuid, deviceId: String, message: DeviceMessage) {
+    synchronized(lock) {
+      val now = elapsedRealtime()
+      dropExpired(now)
+      val messages = recipientMessages.getOrPut(recipientId) { RecipientMessages() }
+      messages.add(MissedMessage(deviceId, message, now, nextSequenceNumber++))
+      var dropped = 0
+      while (
+        messages.size > maxMessagesPerRecipient || messages.totalBytes > maxBytesPerRecipient
+      ) {
+        messages.removeOldest()
+        dropped++
+      }
+      if (dropped > 0) {
+        overflowDropCount += dropped
+        logw(TAG, "Missed messages for $recipientId exceeded limits. Dropped $dropped oldest.")
+      }
+      if (messages.isEmpty()) {
+        recipientMessages.remove(recipientId)
+      }
+      dropOverTotalLimits()
+    }
+  }
+
+  /**
+   * Removes and returns the unexpired messages saved for [recipientId] from [deviceId] in the order
+   * they arrived.
+   */
+  fun remove(recipientId: ParcelUuid, deviceId: String): List<DeviceMessage> =
+    synchronized(lock) {
+      dropExpired(elapsedRealtime())
+      val messages = recipientMessages[recipientId] ?: return emptyList()
+      val removed = messages.removeForDevice(deviceId)
+      if (messages.isEmpty()) {
+        recipientMessages.remove(recipientId)
+      }
+      removed
+    }
+
+  /** Removes all saved messages. Does not reset the drop counters. */
+  fun clear() {
+    synchronized(lock) { recipientMessages.clear() }
+  }
+
+  @GuardedBy("lock")
+  private fun dropExpired(now: Long) {
+    val oldestAllowed = now - timeToLive.toMillis()
+    var dropped = 0
+    val iterator = recipientMessages.values.iterator()
+    while (iterator.hasNext()) {
+      val messages = iterator.next()
+      while (!messages.isEmpty() && messages.oldest.receivedTime < oldestAllowed) {
+        messages.removeOldest()
+        dropped++
+      }
+      if (messages.isEmpty()) {
+        iterator.remove()
+      }
+    }
+    if (dropped > 0) {
+      expiredDropCount += dropped
+      logw(TAG, "Dropped $dropped expired missed messages.")
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun dropOverTotalLimits() {
+    var totalMessages = recipientMessages.values.sumOf { it.size }
+    var totalBytes = recipientMessages.values.sumOf { it.totalBytes }
+    var dropped = 0
+    while (totalMessages > maxMessages || totalBytes > maxBytes) {
+      val (recipientId, messages) =
+        recipientMessages.entries.minByOrNull { it.value.oldest.sequenceNumber } ?: break
+      totalBytes -= messages.removeOldest().message.message.size
+      totalMessages--
+      dropped++
+      if (messages.isEmpty()) {
+        recipientMessages.remove(recipientId)
+      }
+    }
+    if (dropped > 0) {
+      overflowDropCount += dropped
+      logw(TAG, "Missed messages exceeded total limits. Dropped $dropped oldest.")
+    }
+  }
+
+  private class MissedMessage(
+    val deviceId: String,
+    val message: DeviceMessage,
+    val receivedTime: Long,
+    val sequenceNumber: Long,
+  )
+
+  /** The missed messages of a single recipient, oldest first. */
+  private class RecipientMessages {
+    private var messages = ArrayDeque<MissedMessage>()
+
+    var totalBytes = 0L
+      private set
+
+    val size: Int
+      get() = messages.size
+
+    val oldest: MissedMessage
+      get() = messages.first()
+
+    fun isEmpty() = messages.isEmpty()
+
+    fun add(missedMessage: MissedMessage) {
+      messages.addLast(missedMessage)
+      totalBytes += missedMessage.message.message.size
+    }
+
+    fun removeOldest(): MissedMessage {
+      val removed = messages.removeFirst()
+      totalBytes -= removed.message.message.size
+      return removed
+    }
+
+    fun removeForDevice(deviceId: String): List<DeviceMessage> {
+      val removed = mutableListOf<DeviceMessage>()
+      val remaining = ArrayDeque<MissedMessage>()
+      for (missedMessage in messages) {
+        if (missedMessage.deviceId == deviceId) {
+          totalBytes -= missedMessage.message.message.size
+          removed.add(missedMessage.message)
+        } else {
+          remaining.addLast(missedMessage)
+        }
+      }
+      messages = remaining
+      return removed
+    }
+  }
+
+  companion object {
+    private const val TAG = "MissedMessageStore"
+
+    const val DEFAULT_MAX_MESSAGES_PER_RECIPIENT = 100
+    const val DEFAULT_MAX_BYTES_PER_RECIPIENT = 1024L * 1024L
+    const val DEFAULT_MAX_MESSAGES = 500
+    const val DEFAULT_MAX_BYTES = 4L * 1024L * 1024L
+    @JvmField val DEFAULT_TIME_TO_LIVE: Duration = Duration.ofMinutes(5)
+  }
+}
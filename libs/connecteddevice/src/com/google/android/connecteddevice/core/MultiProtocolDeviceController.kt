@@ -15,6 +15,7 @@
  */
 package com.google.android.connecteddevice.core
 
+import android.app.ActivityManager
 import android.content.Context
 import android.database.sqlite.SQLiteCantOpenDatabaseException
 import android.os.ParcelUuid
@@ -97,64 +98,51 @@ constructor(
 
   @VisibleForTesting internal val associationPendingDeviceId = AtomicReference<UUID?>(null)
 
-  private val associatedDevices = mutableListOf<AssociatedDevice>()
-  private val driverDevices = mutableListOf<AssociatedDevice>()
-  private val passengerDevices = mutableListOf<AssociatedDevice>()
+  // Index of the associated devices by device id. It is loaded from storage once on start and then
+  // kept up to date with the changes reported by the storage callbacks.
+  private val associatedDevices = ConcurrentHashMap<String, AssociatedDevice>()
+  private val driverDeviceIds = ConcurrentHashMap.newKeySet<String>()
+  private val passengerDeviceIds = ConcurrentHashMap.newKeySet<String>()
 
   @VisibleForTesting internal val disconnectRequestedDevices = mutableMapOf<UUID, Job>()
 
   private val storageCallback =
     object : ConnectedDeviceStorage.AssociatedDeviceCallback {
       override fun onAssociatedDeviceAdded(device: AssociatedDevice) {
-        lifecycleOwner.lifecycleScope.launch {
-          logd(TAG, "An associated device has been added. Repopulating devices from storage.")
-          populateDevices()
-          // Make sure the internal status are synched from storage before invoking callbacks.
-          invokeCallbacksWithAssociatedDevice(device)
-        }
+        logd(TAG, "An associated device has been added.")
+        putAssociatedDevice(device, isDriverDevice = isOwnedByCurrentUser(device))
+        // Make sure the internal status are synched from storage before invoking callbacks.
+        invokeCallbacksWithAssociatedDevice(device)
       }
 
       override fun onAssociatedDeviceRemoved(device: AssociatedDevice) {
-        lifecycleOwner.lifecycleScope.launch {
-          logd(TAG, "An associated device has been removed. Repopulating devices from storage.")
-          populateDevices()
-        }
+        logd(TAG, "An associated device has been removed.")
+        associatedDevices.remove(device.id)
+        driverDeviceIds.remove(device.id)
+        passengerDeviceIds.remove(device.id)
+        refreshConnectedDevices()
       }
 
       override fun onAssociatedDeviceUpdated(device: AssociatedDevice) {
-        lifecycleOwner.lifecycleScope.launch {
-          logd(TAG, "An associated device has been updated. Repopulating devices from storage.")
-          populateDevices()
-        }
+        logd(TAG, "An associated device has been updated.")
+        putAssociatedDevice(device, isDriverDevice = isOwnedByCurrentUser(device))
       }
     }
 
-  override val connectedDevices: List<ConnectedDevice>
-    get() =
-      connectedRemoteDevices.values
-        .filter { device ->
-          val associatedDevice =
-            associatedDevices.firstOrNull { it.id == device.deviceId.toString() }
-          val associated = associatedDevice != null
-          if (!associated) {
-            logd(TAG, "Device ${device.deviceId} is not in associated devices. Skipped. ")
-          }
+  private val connectedDeviceSnapshotLock = Any()
 
-          associated
-        }
-        .map { device ->
-          val associatedDevice =
-            associatedDevices.firstOrNull { it.id == device.deviceId.toString() }
-          val belongsToDriver = driverDevices.any { it.id == device.deviceId.toString() }
-          val hasSecureChannel = device.secureChannel != null
+  /**
+   * Immutable view of the connected devices that are associated. It is rebuilt whenever a device
+   * connects, disconnects or establishes a secure channel, or whenever the associated devices
+   * change, so that reads neither scan nor allocate.
+   */
+  @Volatile private var connectedDeviceSnapshot = ConnectedDeviceSnapshot(emptyMap())
 
-          ConnectedDevice(
-            device.deviceId.toString(),
-            associatedDevice?.name,
-            belongsToDriver,
-            hasSecureChannel,
-          )
-        }
+  override val connectedDevices: List<ConnectedDevice>
+    get() = connectedDeviceSnapshot.devices
+
+  override fun findConnectedDevice(deviceId: String): ConnectedDevice? =
+    connectedDeviceSnapshot.devicesById[deviceId]
 
   init {
     storage.registerAssociatedDeviceCallback(storageCallback)
@@ -165,21 +153,19 @@ constructor(
       logd(TAG, "Starting controller and initiating connections with driver devices.")
       // Runs as the first line of the function to avoid the following database interaction from
       // throwing exception.
-      populateDevices()
-      val driverDevices = storage.getDriverAssociatedDevices()
-      for (device in driverDevices) {
-        if (device.isConnectionEnabled) {
-          initiateConnectionToDevice(UUID.fromString(device.id))
-        }
-      }
-      if (!enablePassenger) {
+      val storedDevices = populateDevices()
+      val startupDevices =
+        storedDevices.driverDevices.filter { it.isConnectionEnabled }.toMutableList()
+      if (enablePassenger) {
+        logd(TAG, "Initiating connections with passenger devices.")
+        startupDevices.addAll(storedDevices.passengerDevices)
+      } else {
         logd(TAG, "The passenger experience is disabled. Skipping discovery of passenger devices.")
-        return@launch
       }
-      logd(TAG, "Initiating connections with passenger devices.")
-      val passengerDevices = storage.getPassengerAssociatedDevices()
-      for (device in passengerDevices) {
-        initiateConnectionToDevice(UUID.fromString(device.id))
+      // Each device waits on its own challenge, so one slow storage lookup does not hold back the
+      // discovery of the others.
+      for (device in startupDevices) {
+        launch { initiateConnection(UUID.fromString(device.id)) }
       }
     }
   }
@@ -189,6 +175,7 @@ constructor(
     logd(TAG, "Resetting controller and disconnecting ${callbackDevices.size} devices.")
     // Current devices must be cleared prior to issuing callbacks to avoid race conditions.
     connectedRemoteDevices.clear()
+    refreshConnectedDevices()
     for (protocol in protocolDelegate.protocols) {
       protocol.reset()
     }
@@ -204,6 +191,10 @@ constructor(
   }
 
   override fun initiateConnectionToDevice(deviceId: UUID) {
+    runBlocking { initiateConnection(deviceId) }
+  }
+
+  private suspend fun initiateConnection(deviceId: UUID) {
     logd(TAG, "Start listening for device with id: $deviceId")
     // Generate {challenge, concatenated challenge to advertise}.
     val challenge = generateChallenge(deviceId)
@@ -371,8 +362,16 @@ constructor(
     callbacks.remove(callback)
   }
 
-  /** Populates associated devices from the storage. */
-  private suspend fun populateDevices() {
+  /**
+   * Populates associated devices from the storage.
+   *
+   * Opening the database can fail transiently at boot, so failed attempts are retried with an
+   * exponential backoff.
+   *
+   * @return The driver and passenger devices that were loaded.
+   */
+  private suspend fun populateDevices(): StoredDevices {
+    var retryDelayMillis = INITIAL_POPULATE_RETRY_DELAY_MS
     while (true) {
       try {
         logd(TAG, "Populating associated devices from storage.")
@@ -381,23 +380,44 @@ constructor(
         val passengerOnlyDevices = storage.getPassengerAssociatedDevices()
         val allDevices = storage.getAllAssociatedDevices()
 
-        associatedDevices.clear()
-        associatedDevices.addAll(allDevices)
-        driverDevices.clear()
-        driverDevices.addAll(driverOnlyDevices)
-        passengerDevices.clear()
-        passengerDevices.addAll(passengerOnlyDevices)
+        val allDevicesById = allDevices.associateBy { it.id }
+        associatedDevices.keys.retainAll(allDevicesById.keys)
+        associatedDevices.putAll(allDevicesById)
+        val driverIds = driverOnlyDevices.mapTo(mutableSetOf()) { it.id }
+        driverDeviceIds.retainAll(driverIds)
+        driverDeviceIds.addAll(driverIds)
+        val passengerIds = passengerOnlyDevices.mapTo(mutableSetOf()) { it.id }
+        passengerDeviceIds.retainAll(passengerIds)
+        passengerDeviceIds.addAll(passengerIds)
+        refreshConnectedDevices()
         logd(TAG, "Devices populated successfully.")
 
-        break
+        return StoredDevices(driverOnlyDevices, passengerOnlyDevices)
       } catch (sqliteException: SQLiteCantOpenDatabaseException) {
         // Transient error can happen at boot when we access the storage.
         loge(TAG, "Caught transient exception while retrieving devices. Retrying.")
-        delay(timeMillis = 100)
+        delay(retryDelayMillis)
+        retryDelayMillis = (retryDelayMillis * 2).coerceAtMost(MAX_POPULATE_RETRY_DELAY_MS)
       }
     }
   }
 
+  /** Adds or replaces [device] in the associated devices and refreshes the connected devices. */
+  private fun putAssociatedDevice(device: AssociatedDevice, isDriverDevice: Boolean) {
+    associatedDevices[device.id] = device
+    if (isDriverDevice) {
+      driverDeviceIds.add(device.id)
+      passengerDeviceIds.remove(device.id)
+    } else {
+      passengerDeviceIds.add(device.id)
+      driverDeviceIds.remove(device.id)
+    }
+    refreshConnectedDevices()
+  }
+
+  private fun isOwnedByCurrentUser(device: AssociatedDevice) =
+    device.userId == ActivityManager.getCurrentUser()
+
   /**
    * Create challenge for connection advertisement.
    *
@@ -406,12 +426,11 @@ constructor(
    * 2. Hash with stored challenge secret to generate challenge.
    * 3. Return the challenge and salt.
    */
-  private fun generateChallenge(id: UUID): ConnectChallenge? {
+  private suspend fun generateChallenge(id: UUID): ConnectChallenge? {
     val salt = ByteUtils.randomBytes(SALT_BYTES)
     val zeroPadded =
       ByteUtils.concatByteArrays(salt, ByteArray(TOTAL_AD_DATA_BYTES - SALT_BYTES)) ?: return null
-    val challenge =
-      runBlocking { storage.hashWithChallengeSecret(id.toString(), zeroPadded) } ?: return null
+    val challenge = storage.hashWithChallengeSecret(id.toString(), zeroPadded) ?: return null
     return ConnectChallenge(challenge, salt)
   }
 
@@ -460,6 +479,7 @@ constructor(
           logw(TAG, "Could not find device $deviceId.")
           return
         }
+        refreshConnectedDevices()
         invokeCallbacksWithDevice(device) { connectedDevice, callback ->
           callback.onDeviceConnected(connectedDevice)
         }
@@ -580,6 +600,7 @@ constructor(
           }
           device.secureChannel = channel
           device.channelResolver = null
+          refreshConnectedDevices()
         }
 
         override fun onChannelResolutionError() {
@@ -629,6 +650,7 @@ constructor(
       "Device $disconnectedDeviceId has no more protocols connected. Issuing disconnect callback.",
     )
     connectedRemoteDevices.remove(disconnectedDeviceId)
+    refreshConnectedDevices()
     logConnectedRemoteDevices()
 
     if (disconnectedDeviceId in disconnectRequestedDevices) {
@@ -774,6 +796,7 @@ constructor(
     connectedRemoteDevices.remove(pendingDeviceId)
     associationPendingDeviceId.set(null)
     connectedRemoteDevices.put(deviceId, newDevice)
+    refreshConnectedDevices()
     logConnectedRemoteDevices()
 
     oobRunner.reset()
@@ -802,23 +825,25 @@ constructor(
   }
 
   private fun persistAssociatedDevice(deviceId: String) {
+    val userId =
+      if (enablePassenger) AssociatedDevice.UNCLAIMED_USER_ID else ActivityManager.getCurrentUser()
     val associatedDevice =
       AssociatedDevice(
         deviceId,
         /* address= */ "",
         /* name= */ null,
         /* isConnectionEnabled= */ true,
+        userId,
       )
     lifecycleOwner.lifecycleScope.launch {
       if (enablePassenger) {
         logd(TAG, "Saving newly associated device $deviceId as unclaimed.")
-        storage.addAssociatedDeviceForUser(AssociatedDevice.UNCLAIMED_USER_ID, associatedDevice)
+        storage.addAssociatedDeviceForUser(userId, associatedDevice)
       } else {
         logd(TAG, "Saving newly associated device $deviceId as a driver's device.")
         storage.addAssociatedDeviceForDriver(associatedDevice)
-        driverDevices.add(associatedDevice)
       }
-      associatedDevices.add(associatedDevice)
+      putAssociatedDevice(associatedDevice, isDriverDevice = isOwnedByCurrentUser(associatedDevice))
     }
   }
 
@@ -830,7 +855,7 @@ constructor(
     device: ConnectedRemoteDevice,
     onCallback: (ConnectedDevice, Callback) -> Unit,
   ) {
-    val connectedDevice = device.toConnectedDevice(passengerDevices)
+    val connectedDevice = device.toConnectedDevice(passengerDeviceIds)
     callbacks.invoke { onCallback(connectedDevice, it) }
   }
 
@@ -838,13 +863,47 @@ constructor(
     logd(TAG, "Invoke callbacks with associated device")
     val hasSecureChannel =
       connectedRemoteDevices.get(UUID.fromString(associatedDevice.id))?.secureChannel != null
-    val belongsToDriver = passengerDevices.none { device -> device.id == associatedDevice.id }
+    val belongsToDriver = associatedDevice.id !in passengerDeviceIds
     val connectedDevice =
       ConnectedDevice(associatedDevice.id, associatedDevice.name, belongsToDriver, hasSecureChannel)
     callbacks.invoke { it.onDeviceConnected(connectedDevice) }
     callbacks.invoke { it.onSecureChannelEstablished(connectedDevice) }
   }
 
+  /** Rebuilds [connectedDeviceSnapshot] from the connected and associated devices. */
+  private fun refreshConnectedDevices() {
+    synchronized(connectedDeviceSnapshotLock) {
+      val devicesById = LinkedHashMap<String, ConnectedDevice>()
+      for (device in connectedRemoteDevices.values) {
+        val deviceId = device.deviceId.toString()
+        val associatedDevice = associatedDevices[deviceId]
+        if (associatedDevice == null) {
+          logd(TAG, "Device $deviceId is not in associated devices. Skipped.")
+          continue
+        }
+        devicesById[deviceId] =
+          ConnectedDevice(
+            deviceId,
+            associatedDevice.name,
+            /* belongsToDriver= */ deviceId in driverDeviceIds,
+            /* hasSecureChannel= */ device.secureChannel != null,
+          )
+      }
+      connectedDeviceSnapshot = ConnectedDeviceSnapshot(devicesById)
+    }
+  }
+
+  /** The driver and passenger devices loaded from storage. */
+  private class StoredDevices(
+    val driverDevices: List<AssociatedDevice>,
+    val passengerDevices: List<AssociatedDevice>,
+  )
+
+  /** The connected devices, along with an index of them by device id. */
+  private class ConnectedDeviceSnapshot(val devicesById: Map<String, ConnectedDevice>) {
+    val devices: List<ConnectedDevice> = devicesById.values.toList()
+  }
+
   /** Container class to hold information about a connected device. */
   internal data class ConnectedRemoteDevice(
     val deviceId: UUID,
@@ -856,11 +915,11 @@ constructor(
     var channelResolver: ChannelResolver? = null
 
     /** Returns the [ConnectedDevice] equivalent or `null` if the conversion failed. */
-    fun toConnectedDevice(passengerDevices: List<AssociatedDevice>): ConnectedDevice {
+    fun toConnectedDevice(passengerDeviceIds: Set<String>): ConnectedDevice {
       // TODO: During device removal, the device record might have already been cleared
       // so we have to do a reversed check against passenger device. This value may still be true if
       // device is already disassociated.
-      val belongsToDriver = passengerDevices.none { device -> device.id == deviceId.toString() }
+      val belongsToDriver = deviceId.toString() !in passengerDeviceIds
       val hasSecureChannel = secureChannel != null
       return ConnectedDevice(deviceId.toString(), name, belongsToDriver, hasSecureChannel)
     }
@@ -892,5 +951,7 @@ constructor(
     private const val SALT_BYTES = 8
     private const val TOTAL_AD_DATA_BYTES = 16
     private const val DEVICE_ID_BYTES = 16
+    private const val INITIAL_POPULATE_RETRY_DELAY_MS = 100L
+    private const val MAX_POPULATE_RETRY_DELAY_MS = 5_000L
   }
 }
@@ -80,14 +80,43 @@ public final class LogRecord {
    * @param message Log message.
    * @param exception Log exception.
    */
+  public LogRecord(
+      @NonNull Level level, @NonNull String tag, @NonNull String message, Exception exception) {
+    this(
+        System.currentTimeMillis(),
+        Process.myPid(),
+        Process.myTid(),
+        level,
+        tag,
+        message,
+        exception);
+  }
+
+  /**
+   * Creates a log record for a message that was logged earlier.
+   *
+   * @param timeMillis Time the message was logged at, in milliseconds since the epoch.
+   * @param processId Id of the process that logged the message.
+   * @param threadId Id of the thread that logged the message.
+   * @param level Log priority level.
+   * @param tag Log tag.
+   * @param message Log message.
+   * @param exception Log exception.
+   */
   // Date APIs are only used for log messages and must be Java 7 compatible for external
   // applications
   @SuppressWarnings("JavaUtilDate")
   public LogRecord(
-      @NonNull Level level, @NonNull String tag, @NonNull String message, Exception exception) {
-    time = new Date();
-    processId = Process.myPid();
-    threadId = Process.myTid();
+      long timeMillis,
+      int processId,
+      int threadId,
+      @NonNull Level level,
+      @NonNull String tag,
+      @NonNull String message,
+      @Nullable Exception exception) {
+    time = new Date(timeMillis);
+    this.processId = processId;
+    this.threadId = threadId;
     this.level = level;
     this.tag = tag;
     if (exception != null) {
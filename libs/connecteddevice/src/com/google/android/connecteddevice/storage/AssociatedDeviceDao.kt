@@ -27,13 +27,25 @@ import androidx.room.Query
 public interface AssociatedDeviceDao {
 
   /** Gets an associated device based on device id. */
-  @Query("SELECT * FROM associated_devices WHERE id LIKE :deviceId LIMIT 1")
+  @Query("SELECT * FROM associated_devices WHERE id = :deviceId LIMIT 1")
   suspend fun getAssociatedDevice(deviceId: String): AssociatedDeviceEntity?
 
   /** Gets all AssociatedDeviceEntities associated with a user. */
-  @Query("SELECT * FROM associated_devices WHERE userId LIKE :userId")
+  @Query("SELECT * FROM associated_devices WHERE userId = :userId")
   suspend fun getAssociatedDevicesForUser(userId: Int): List<AssociatedDeviceEntity>
 
+  /** Gets all AssociatedDeviceEntities that are not associated with a user. */
+  @Query("SELECT * FROM associated_devices WHERE userId != :userId")
+  suspend fun getAssociatedDevicesNotBelongingToUser(userId: Int): List<AssociatedDeviceEntity>
+
+  /** Gets the ids of all devices associated with a user. */
+  @Query("SELECT id FROM associated_devices WHERE userId = :userId")
+  suspend fun getAssociatedDeviceIdsForUser(userId: Int): List<String>
+
+  /** Gets the ids of all devices that are not associated with a user. */
+  @Query("SELECT id FROM associated_devices WHERE userId != :userId")
+  suspend fun getAssociatedDeviceIdsNotBelongingToUser(userId: Int): List<String>
+
   /** Gets all AssociatedDeviceEntities. */
   @Query("SELECT * FROM associated_devices")
   suspend fun getAllAssociatedDevices(): List<AssociatedDeviceEntity>
@@ -47,8 +59,46 @@ public interface AssociatedDeviceDao {
   /** Removes the AssociatedDeviceEntity. */
   @Delete suspend fun removeAssociatedDevice(connectedDevice: AssociatedDeviceEntity)
 
+  /** Sets the user of a device. Returns the number of updated rows. */
+  @Query("UPDATE associated_devices SET userId = :userId WHERE id = :deviceId")
+  suspend fun updateAssociatedDeviceUserId(deviceId: String, userId: Int): Int
+
+  /** Sets the name of a device. Returns the number of updated rows. */
+  @Query("UPDATE associated_devices SET name = :name WHERE id = :deviceId")
+  suspend fun updateAssociatedDeviceName(deviceId: String, name: String): Int
+
+  /** Sets the name of a device that does not have one yet. Returns the number of updated rows. */
+  @Query("UPDATE associated_devices SET name = :name WHERE id = :deviceId AND name IS NULL")
+  suspend fun setAssociatedDeviceNameIfAbsent(deviceId: String, name: String): Int
+
+  /** Sets the operating system name of a device. Returns the number of updated rows. */
+  @Query("UPDATE associated_devices SET os = :os WHERE id = :deviceId")
+  suspend fun updateAssociatedDeviceOs(deviceId: String, os: String): Int
+
+  /** Sets the operating system version of a device. Returns the number of updated rows. */
+  @Query("UPDATE associated_devices SET osVersion = :osVersion WHERE id = :deviceId")
+  suspend fun updateAssociatedDeviceOsVersion(deviceId: String, osVersion: String): Int
+
+  /** Sets the Companion SDK version of a device. Returns the number of updated rows. */
+  @Query(
+    "UPDATE associated_devices SET companionSdkVersion = :companionSdkVersion WHERE id = :deviceId"
+  )
+  suspend fun updateAssociatedDeviceCompanionSdkVersion(
+    deviceId: String,
+    companionSdkVersion: String,
+  ): Int
+
+  /** Sets whether connection is enabled for a device. Returns the number of updated rows. */
+  @Query(
+    "UPDATE associated_devices SET isConnectionEnabled = :isConnectionEnabled WHERE id = :deviceId"
+  )
+  suspend fun updateAssociatedDeviceConnectionEnabled(
+    deviceId: String,
+    isConnectionEnabled: Boolean,
+  ): Int
+
   /** Gets the key associated with a device id. */
-  @Query("SELECT * FROM associated_device_keys WHERE id LIKE :deviceId LIMIT 1")
+  @Query("SELECT * FROM associated_device_keys WHERE id = :deviceId LIMIT 1")
   suspend fun getAssociatedDeviceKey(deviceId: String): AssociatedDeviceKeyEntity?
 
   /**
@@ -62,7 +112,7 @@ public interface AssociatedDeviceDao {
   @Delete suspend fun removeAssociatedDeviceKey(keyEntity: AssociatedDeviceKeyEntity)
 
   /** Gets the challenge secret associated with a device id. */
-  @Query("SELECT * FROM associated_devices_challenge_secrets WHERE id LIKE :deviceId LIMIT 1")
+  @Query("SELECT * FROM associated_devices_challenge_secrets WHERE id = :deviceId LIMIT 1")
   suspend fun getAssociatedDeviceChallengeSecret(
     deviceId: String
   ): AssociatedDeviceChallengeSecretEntity?
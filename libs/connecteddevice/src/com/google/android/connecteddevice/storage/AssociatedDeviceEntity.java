@@ -19,12 +19,13 @@ package com.google.android.connecteddevice.storage;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 import com.google.android.companionprotos.DeviceOS;
 import com.google.android.connecteddevice.model.AssociatedDevice;
 
 /** Table entity representing an associated device. */
-@Entity(tableName = "associated_devices")
+@Entity(tableName = "associated_devices", indices = {@Index("userId")})
 public class AssociatedDeviceEntity {
 
   /** Id of the device. */
@@ -26,7 +26,7 @@ import androidx.room.RoomDatabase;
       AssociatedDeviceKeyEntity.class,
       AssociatedDeviceChallengeSecretEntity.class
     },
-    version = 3,
+    version = 4,
     exportSchema = true)
 public abstract class ConnectedDeviceDatabase extends RoomDatabase {
   /** Return the DAO for the associated device table. */
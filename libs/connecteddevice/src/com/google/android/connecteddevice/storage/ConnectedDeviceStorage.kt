@@ -19,6 +19,8 @@ package com.google.android.connecteddevice.storage
 import android.app.ActivityManager
 import android.content.Context
 import android.content.SharedPreferences
+import android.util.LruCache
+import androidx.annotation.VisibleForTesting
 import androidx.room.Room
 import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
@@ -36,8 +38,16 @@ import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 import javax.crypto.Mac
 import javax.crypto.spec.SecretKeySpec
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 
-/** Storage for connected devices in a car. */
+/**
+ * Storage for connected devices in a car.
+ *
+ * Decrypted encryption keys and challenge secrets are cached for the lifetime of the process, so
+ * repeated reconnects of the same device do not query the database and decrypt the value again.
+ * The cached values are replaced when they are saved and dropped when the device is removed.
+ */
 open class ConnectedDeviceStorage(
   private val context: Context,
   private val cryptoHelper: CryptoHelper,
@@ -65,13 +75,21 @@ open class ConnectedDeviceStorage(
   }
   private val callbacks = ThreadSafeCallbacks<AssociatedDeviceCallback>()
 
+  // Orders loading credentials into the caches with saving and removing them, so a load that
+  // started before a save cannot put the old value back.
+  private val credentialMutex = Mutex()
+  private val encryptionKeys = LruCache<String, ByteArray>(MAX_CACHED_CREDENTIALS)
+  private val challengeSecrets = LruCache<String, ByteArray>(MAX_CACHED_CREDENTIALS)
+  // HMACs initialized with the challenge secret of each device. Guarded by the instance itself.
+  private val challengeMacs = LruCache<String, Mac>(MAX_CACHED_CREDENTIALS)
+
   constructor(
     context: Context
   ) : this(
     context,
     KeyStoreCryptoHelper(),
     Room.databaseBuilder(context, ConnectedDeviceDatabase::class.java, DATABASE_NAME)
-      .addMigrations(MIGRATION_2_3)
+      .addMigrations(MIGRATION_2_3, MIGRATION_3_4)
       .fallbackToDestructiveMigration(dropAllTables = true)
       .build()
       .associatedDeviceDao(),
@@ -102,12 +120,20 @@ open class ConnectedDeviceStorage(
 
   /** Returns the encryption key for [deviceId]; `null` if not recognized. */
   open suspend fun getEncryptionKey(deviceId: String): ByteArray? {
-    val entity = associatedDeviceDatabase.getAssociatedDeviceKey(deviceId)
-    if (entity == null) {
-      logd(TAG, "Encryption key not found!")
-      return null
+    encryptionKeys[deviceId]?.let {
+      return it.copyOf()
+    }
+    return credentialMutex.withLock {
+      encryptionKeys[deviceId]?.let {
+        return@withLock it.copyOf()
+      }
+      val entity = associatedDeviceDatabase.getAssociatedDeviceKey(deviceId)
+      if (entity == null) {
+        logd(TAG, "Encryption key not found!")
+        return@withLock null
+      }
+      cryptoHelper.decrypt(entity.encryptedKey)?.also { encryptionKeys.put(deviceId, it.copyOf()) }
     }
-    return cryptoHelper.decrypt(entity.encryptedKey)
   }
 
   /** Saves the encryption key for the given deviceId. */
@@ -115,7 +141,10 @@ open class ConnectedDeviceStorage(
     val encryptedKey = cryptoHelper.encrypt(encryptionKey)
     val entity = AssociatedDeviceKeyEntity(deviceId, encryptedKey)
 
-    associatedDeviceDatabase.addOrReplaceAssociatedDeviceKey(entity)
+    credentialMutex.withLock {
+      associatedDeviceDatabase.addOrReplaceAssociatedDeviceKey(entity)
+      encryptionKeys.put(deviceId, encryptionKey.copyOf())
+    }
     logd(TAG, "Successfully wrote encryption key for $deviceId.")
   }
 
@@ -132,19 +161,32 @@ open class ConnectedDeviceStorage(
     val encryptedKey = cryptoHelper.encrypt(secret)
     val entity = AssociatedDeviceChallengeSecretEntity(deviceId, encryptedKey)
 
-    associatedDeviceDatabase.addOrReplaceAssociatedDeviceChallengeSecret(entity)
+    credentialMutex.withLock {
+      associatedDeviceDatabase.addOrReplaceAssociatedDeviceChallengeSecret(entity)
+      challengeSecrets.put(deviceId, secret.copyOf())
+      challengeMacs.remove(deviceId)
+    }
     logd(TAG, "Successfully wrote challenge secret for $deviceId.")
   }
 
   /** Returns the challenge secret associated with the deviceId; `null` if not recognized. */
   suspend fun getChallengeSecret(deviceId: String): ByteArray? {
-    val entity = associatedDeviceDatabase.getAssociatedDeviceChallengeSecret(deviceId)
-    if (entity == null) {
-      logd(TAG, "Challenge secret not found!")
-      return null
+    challengeSecrets[deviceId]?.let {
+      return it.copyOf()
+    }
+    return credentialMutex.withLock {
+      challengeSecrets[deviceId]?.let {
+        return@withLock it.copyOf()
+      }
+      val entity = associatedDeviceDatabase.getAssociatedDeviceChallengeSecret(deviceId)
+      if (entity == null) {
+        logd(TAG, "Challenge secret not found!")
+        return@withLock null
+      }
+      cryptoHelper.decrypt(entity.encryptedChallengeSecret)?.also {
+        challengeSecrets.put(deviceId, it.copyOf())
+      }
     }
-
-    return cryptoHelper.decrypt(entity.encryptedChallengeSecret)
   }
 
   /**
@@ -152,6 +194,11 @@ open class ConnectedDeviceStorage(
    * unsuccessful.
    */
   open suspend fun hashWithChallengeSecret(deviceId: String, value: ByteArray): ByteArray? {
+    val mac = challengeMacs[deviceId] ?: createChallengeMac(deviceId) ?: return null
+    return synchronized(mac) { mac.doFinal(value) }
+  }
+
+  private suspend fun createChallengeMac(deviceId: String): Mac? {
     val challengeSecret = getChallengeSecret(deviceId)
     if (challengeSecret == null) {
       loge(TAG, "Unable to find challenge secret for device $deviceId.")
@@ -174,7 +221,13 @@ open class ConnectedDeviceStorage(
       return null
     }
 
-    return mac.doFinal(value)
+    credentialMutex.withLock {
+      // Only cache the HMAC if the secret was not replaced or removed while it was created.
+      if (challengeSecrets[deviceId]?.contentEquals(challengeSecret) == true) {
+        challengeMacs.put(deviceId, mac)
+      }
+    }
+    return mac
   }
 
   /** Gets a list of all the associated devices. */
@@ -203,16 +256,14 @@ open class ConnectedDeviceStorage(
 
   // Used by test.
   internal suspend fun getAssociatedDevicesNotBelongingToUser(userId: Int): List<AssociatedDevice> {
-    val entities = associatedDeviceDatabase.getAllAssociatedDevices() ?: emptyList()
+    val entities = associatedDeviceDatabase.getAssociatedDevicesNotBelongingToUser(userId)
 
-    return entities.filter { it.userId != userId }.map { it.toAssociatedDevice() }
+    return entities.map { it.toAssociatedDevice() }
   }
 
   /** Returns a list of device ids of associated devices for the given userId. */
   open suspend fun getAssociatedDeviceIdsForUser(userId: Int): List<String> {
-    val userDevices = getAssociatedDevicesForUser(userId)
-
-    return userDevices.map { it.id }
+    return associatedDeviceDatabase.getAssociatedDeviceIdsForUser(userId)
   }
 
   /** Returns a list of device ids of associated devices for the current driver. */
@@ -226,9 +277,7 @@ open class ConnectedDeviceStorage(
   }
 
   internal suspend fun getAssociatedDeviceIdsNotBelongingToUser(userId: Int): List<String> {
-    val entities = associatedDeviceDatabase.getAllAssociatedDevices() ?: emptyList()
-
-    return entities.filter { it.userId != userId }.map { it.id }
+    return associatedDeviceDatabase.getAssociatedDeviceIdsNotBelongingToUser(userId)
   }
 
   /** Adds the associated device of the given deviceId for the current driver. */
@@ -240,7 +289,8 @@ open class ConnectedDeviceStorage(
   open suspend fun addAssociatedDeviceForUser(userId: Int, device: AssociatedDevice) {
     val entity = AssociatedDeviceEntity(userId, device, /* isConnectionEnabled= */ true)
     addOrReplaceAssociatedDevice(entity)
-    callbacks.invoke { it.onAssociatedDeviceAdded(device) }
+    val addedDevice = entity.toAssociatedDevice()
+    callbacks.invoke { it.onAssociatedDeviceAdded(addedDevice) }
   }
 
   /** Updates the name for an associated device. */
@@ -249,7 +299,9 @@ open class ConnectedDeviceStorage(
       logw(TAG, "Attempted to update the device name to an empty string. Ignoring.")
       return
     }
-    updateAssociatedDevice(deviceId) { it.name = name }
+    updateAssociatedDevice(deviceId) {
+      associatedDeviceDatabase.updateAssociatedDeviceName(deviceId, name)
+    }
   }
 
   /**
@@ -262,29 +314,39 @@ open class ConnectedDeviceStorage(
       logw(TAG, "Attempted to set the device name to an empty string. Ignoring.")
       return
     }
-    updateAssociatedDevice(deviceId) { entity ->
-      if (entity.name != null) {
-        logd(TAG, "Name was already set for device $deviceId. No further action taken.")
-        return@updateAssociatedDevice
-      }
-      entity.name = name
+    val updatedRows = associatedDeviceDatabase.setAssociatedDeviceNameIfAbsent(deviceId, name)
+    if (updatedRows == 0) {
+      logd(TAG, "Name was already set for device $deviceId or it is unknown. No action taken.")
+      return
     }
+    notifyAssociatedDeviceUpdated(deviceId)
   }
 
   open suspend fun updateAssociatedDeviceOs(deviceId: String, deviceOs: DeviceOS) {
-    updateAssociatedDevice(deviceId) { it.os = deviceOs }
+    updateAssociatedDevice(deviceId) {
+      associatedDeviceDatabase.updateAssociatedDeviceOs(deviceId, deviceOs.name)
+    }
   }
 
   open suspend fun updateAssociatedDeviceOsVersion(deviceId: String, deviceOsVersion: String) {
-    updateAssociatedDevice(deviceId) { it.osVersion = deviceOsVersion }
+    updateAssociatedDevice(deviceId) {
+      associatedDeviceDatabase.updateAssociatedDeviceOsVersion(deviceId, deviceOsVersion)
+    }
   }
 
   open suspend fun updateAssociatedDeviceCompanionSdkVersion(deviceId: String, sdkVersion: String) {
-    updateAssociatedDevice(deviceId) { it.companionSdkVersion = sdkVersion }
+    updateAssociatedDevice(deviceId) {
+      associatedDeviceDatabase.updateAssociatedDeviceCompanionSdkVersion(deviceId, sdkVersion)
+    }
   }
 
   /** Removes the associated device of the given deviceId. */
   open suspend fun removeAssociatedDevice(deviceId: String) {
+    credentialMutex.withLock {
+      encryptionKeys.remove(deviceId)
+      challengeSecrets.remove(deviceId)
+      challengeMacs.remove(deviceId)
+    }
     val entity = associatedDeviceDatabase.getAssociatedDevice(deviceId)
     if (entity == null) {
       return
@@ -298,7 +360,12 @@ open class ConnectedDeviceStorage(
     deviceId: String,
     isConnectionEnabled: Boolean,
   ) {
-    updateAssociatedDevice(deviceId) { it.isConnectionEnabled = isConnectionEnabled }
+    updateAssociatedDevice(deviceId) {
+      associatedDeviceDatabase.updateAssociatedDeviceConnectionEnabled(
+        deviceId,
+        isConnectionEnabled,
+      )
+    }
   }
 
   /** Returns the associated device with the given deviceId. */
@@ -314,28 +381,39 @@ open class ConnectedDeviceStorage(
   /** Updates the identified associated device to be claimed by the current user. */
   open suspend fun claimAssociatedDevice(deviceId: String) {
     logd(TAG, "Claiming device $deviceId for the current user.")
-    updateAssociatedDevice(deviceId) { it.userId = ActivityManager.getCurrentUser() }
+    updateAssociatedDevice(deviceId) {
+      associatedDeviceDatabase.updateAssociatedDeviceUserId(
+        deviceId,
+        ActivityManager.getCurrentUser(),
+      )
+    }
   }
 
   /** Removes the claim on the identified associated device leaving it in an unclaimed state. */
   open suspend fun removeAssociatedDeviceClaim(deviceId: String) {
     logd(TAG, "Removing the user claim for device $deviceId.")
-    updateAssociatedDevice(deviceId) { it.userId = AssociatedDevice.UNCLAIMED_USER_ID }
+    updateAssociatedDevice(deviceId) {
+      associatedDeviceDatabase.updateAssociatedDeviceUserId(
+        deviceId,
+        AssociatedDevice.UNCLAIMED_USER_ID,
+      )
+    }
   }
 
-  private suspend fun updateAssociatedDevice(
-    deviceId: String,
-    update: (entity: AssociatedDeviceEntity) -> Unit,
-  ) {
-    val entity = associatedDeviceDatabase.getAssociatedDevice(deviceId)
-    if (entity == null) {
+  /**
+   * Applies [update], a single-statement update of the device's row that returns the number of
+   * updated rows, and notifies callbacks of the updated device.
+   */
+  private suspend fun updateAssociatedDevice(deviceId: String, update: suspend () -> Int) {
+    if (update() == 0) {
       logw(TAG, "Could not retrieve device with $deviceId. Ignoring.")
       return
     }
+    notifyAssociatedDeviceUpdated(deviceId)
+  }
 
-    update(entity)
-
-    addOrReplaceAssociatedDevice(entity)
+  private suspend fun notifyAssociatedDeviceUpdated(deviceId: String) {
+    val entity = associatedDeviceDatabase.getAssociatedDevice(deviceId) ?: return
     callbacks.invoke { it.onAssociatedDeviceUpdated(entity.toAssociatedDevice()) }
   }
 
@@ -358,6 +436,9 @@ open class ConnectedDeviceStorage(
 
     const val CHALLENGE_SECRET_BYTES = 32
 
+    // Bounds the decrypted credentials kept in memory to a generous number of associated devices.
+    private const val MAX_CACHED_CREDENTIALS = 16
+
     // Database migration from version 2 to 3.
     // This migration adds the os, osVersion, and companionSdkVersion columns to the
     // associated_devices table.
@@ -371,5 +452,19 @@ open class ConnectedDeviceStorage(
           database.execSQL("ALTER TABLE associated_devices ADD companionSdkVersion TEXT;")
         }
       }
+
+    // Database migration from version 3 to 4.
+    // This migration indexes the userId column of the associated_devices table, which the driver
+    // and passenger device queries filter on.
+    @VisibleForTesting
+    internal val MIGRATION_3_4 =
+      object : Migration(3, 4) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+          database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_associated_devices_userId` " +
+              "ON `associated_devices` (`userId`)"
+          )
+        }
+      }
   }
 }
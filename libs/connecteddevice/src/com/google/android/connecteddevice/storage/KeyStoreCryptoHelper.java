@@ -67,6 +67,9 @@ final class KeyStoreCryptoHelper implements CryptoHelper {
   // possible value.
   private static final int GCM_AUTHENTICATION_TAG_LENGTH = 128;
 
+  // The key loaded from the KeyStore, kept so that the KeyStore is only loaded once per process.
+  @Nullable private volatile Key keyStoreKey;
+
   @Override
   @Nullable
   public String encrypt(@Nullable byte[] value) {
@@ -75,7 +78,7 @@ final class KeyStoreCryptoHelper implements CryptoHelper {
       return null;
     }
 
-    Key key = getKeyStoreKey(KEY_ALIAS);
+    Key key = getKeyStoreKey();
     try {
       Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
       cipher.init(Cipher.ENCRYPT_MODE, key);
@@ -112,7 +115,7 @@ final class KeyStoreCryptoHelper implements CryptoHelper {
     byte[] ivSpec = Base64.decode(values[1], Base64.DEFAULT);
 
     try {
-      Key key = getKeyStoreKey(KEY_ALIAS);
+      Key key = getKeyStoreKey();
       Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
       cipher.init(
           Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_AUTHENTICATION_TAG_LENGTH, ivSpec));
@@ -130,7 +133,17 @@ final class KeyStoreCryptoHelper implements CryptoHelper {
   }
 
   @Nullable
-  private static Key getKeyStoreKey(@NonNull String keyAlias) {
+  private Key getKeyStoreKey() {
+    Key key = keyStoreKey;
+    if (key == null) {
+      key = loadKeyStoreKey(KEY_ALIAS);
+      keyStoreKey = key;
+    }
+    return key;
+  }
+
+  @Nullable
+  private static Key loadKeyStoreKey(@NonNull String keyAlias) {
     KeyStore keyStore;
     try {
       keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
@@ -22,7 +22,6 @@ import com.google.android.connecteddevice.util.DirectExecutor
 import com.google.android.connecteddevice.util.SafeLog.logd
 import com.google.android.connecteddevice.util.SafeLog.logw
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.Executor
 
 /**
@@ -44,7 +43,14 @@ abstract class ConnectionProtocol() : IConnectionProtocol.Stub() {
     MutableMap<String, AidlThreadSafeCallbacks<IDeviceMaxDataSizeChangedListener>> =
     ConcurrentHashMap()
 
-  private val missedData: MutableMap<String, MutableList<ByteArray>> = ConcurrentHashMap()
+  private val missedData: MutableMap<String, MissedDataBuffer> = ConcurrentHashMap()
+
+  /**
+   * The maximum number of packets a stream may write to this protocol before receiving their send
+   * confirmations. Protocols that can only track a single outstanding write should keep the default
+   * of [DEFAULT_MAX_PACKETS_IN_FLIGHT].
+   */
+  open val maxPacketsInFlight: Int = DEFAULT_MAX_PACKETS_IN_FLIGHT
 
   /**
    * `true` if challenge exchange is required to verify the remote device for establishing a secure
@@ -106,7 +112,7 @@ abstract class ConnectionProtocol() : IConnectionProtocol.Stub() {
     logd(TAG, "Registering a new DataReceivedListener.")
     val listeners = dataReceivedListeners.computeIfAbsent(protocolId) { AidlThreadSafeCallbacks() }
     listeners.add(listener, callbackExecutor)
-    missedData.remove(protocolId)?.forEach { data ->
+    missedData.remove(protocolId)?.drain()?.forEach { data ->
       listeners.invoke { it.onDataReceived(protocolId, data) }
     }
   }
@@ -201,7 +207,7 @@ abstract class ConnectionProtocol() : IConnectionProtocol.Stub() {
    * Notifies that [data] has been received from connected device.
    *
    * If there's no registered dataReceivedListener to notify, the data will be cached for the
-   * listeners registered later.
+   * listeners registered later, within the limits of a [MissedDataBuffer].
    */
   fun notifyDataReceived(protocolId: String, data: ByteArray) {
     dataReceivedListeners[protocolId]
@@ -212,11 +218,14 @@ abstract class ConnectionProtocol() : IConnectionProtocol.Stub() {
           TAG,
           "No callback has been registered for connection $protocolId, cached received message."
         )
-        missedData.computeIfAbsent(protocolId) { CopyOnWriteArrayList() }.add(data)
+        missedData.computeIfAbsent(protocolId) { MissedDataBuffer() }.add(data)
       }
   }
 
   companion object {
     private const val TAG = "ConnectionProtocol"
+
+    /** Number of packets in flight for protocols that confirm each write before the next. */
+    const val DEFAULT_MAX_PACKETS_IN_FLIGHT = 1
   }
 }
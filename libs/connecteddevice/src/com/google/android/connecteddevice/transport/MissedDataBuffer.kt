@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.connecteddevice.transport
+
+import androidx.annotation.GuardedBy
+import com.google.android.connecteddevice.util.SafeLog.logw
+
+/**
+ * Holds data that a transport received before a listener was registered to receive it.
+ *
+ * The buffer holds at most [maxCount] entries totalling [maxBytes] bytes. Once either limit is
+ * exceeded, the oldest entries are dropped first and counted in [droppedCount].
+ */
+class MissedDataBuffer
+@JvmOverloads
+constructor(
+  private val maxCount: Int = DEFAULT_MAX_COUNT,
+  private val maxBytes: Long = DEFAULT_MAX_BYTES,
+) {
+  private val lock = Any()
+
+  @GuardedBy("lock") private val entries = ArrayDeque<ByteArray>()
+  @GuardedBy("lock") private var totalBytes = 0L
+  @GuardedBy("lock") private var dropCount = 0L
+
+  /** Number of entries currently held. */
+  val size: Int
+    get() = synchronized(lock) { entries.size }
+
+  /** Number of entries dropped because the buffer exceeded its count or byte limit. */
+  val droppedCount: Long
+    get() = synchronized(lock) { dropCount }
+
+  /** Appends [data], dropping the oldest entries if the buffer is over its limits. */
+  fun add(data: ByteArray) {
+    synchronized(lock) {
+      entries.addLast(data)
+      totalBytes += data.size
+      var dropped = 0
+      while (entries.size > maxCount || totalBytes > maxBytes) {
+        totalBytes -= entries.removeFirst().size
+        dropped++
+      }
+      if (dropped > 0) {
+        dropCount += dropped
+        logw(TAG, "Missed data exceeded limits. Dropped $dropped oldest entries.")
+      }
+    }
+  }
+
+  /** Removes and returns all held entries in the order they were added. */
+  fun drain(): List<ByteArray> =
+    synchronized(lock) {
+      val drained = entries.toList()
+      entries.clear()
+      totalBytes = 0
+      drained
+    }
+
+  /** Removes all held entries. Does not reset [droppedCount]. */
+  fun clear() {
+    synchronized(lock) {
+      entries.clear()
+      totalBytes = 0
+    }
+  }
+
+  companion object {
+    private const val TAG = "MissedDataBuffer"
+
+    const val DEFAULT_MAX_COUNT = 100
+    const val DEFAULT_MAX_BYTES = 1024L * 1024L
+  }
+}
@@ -18,7 +18,6 @@ package com.google.android.connecteddevice.transport.proxy;
 
 import static com.google.android.connecteddevice.util.SafeLog.loge;
 import static com.google.android.connecteddevice.util.SafeLog.logi;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -39,15 +38,18 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Periodically attempts to read message from input stream.
+ * Reads messages from input stream as soon as they arrive.
  *
  * <p>Messages are parsed into BLE proxy protos. Based on message type, this class creates
  * corresponding Android platform Bluetooth API class and notifies the registered callback.
+ *
+ * <p>A dedicated thread blocks on the input stream so that the scheduler, which is shared with the
+ * writes to the proxy, stays free. Each message is handed to the scheduler as soon as it has been
+ * read.
  */
 class MessageReader implements CentralConnectionStatus.Callback {
   private static final String TAG = "MessageReader";
-  // Interval between each attempt to process data in the input stream.
-  private static final int READ_INPUT_STREAM_INTERNAL_MS = 50;
+  private static final String READER_THREAD_NAME = "ProxyMessageReader";
   private static final BluetoothDevice FAKE_BLUETOOTH_DEVICE =
       BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:AA:BB");
 
@@ -55,7 +57,9 @@ class MessageReader implements CentralConnectionStatus.Callback {
   private final ScheduledExecutorService scheduler;
 
   private InputStream inputStream;
-  private Callback callback;
+  // Cleared by invalidate() while messages may still be dispatched on the scheduler, so every use
+  // reads it once into a local and checks for null.
+  private volatile Callback callback;
 
   // Tracks the connected GATT central. For simplicity, assume there is only one connection.
   private CentralConnectionStatus connectionStatus;
@@ -70,34 +74,62 @@ class MessageReader implements CentralConnectionStatus.Callback {
     this.scheduler = scheduler;
   }
 
-  @SuppressWarnings("FutureReturnValueIgnored")
-  // Exception is handled by the Runnable, and notified via callback. Ignore the returned future.
+  /** Starts reading the input stream on a dedicated thread. */
   public void startProcessingInputStream() {
-    scheduler.scheduleWithFixedDelay(
-        () -> {
-          if (keepRunning.get()) {
-            try {
-              if (inputStream.available() == 0) {
-                return;
-              }
-
-              BlePeripheralMessageParcel parcel =
-                  BlePeripheralMessageParcel.parser().parseDelimitedFrom(inputStream);
-
-              processMessageParcel(parcel);
-            } catch (IOException e) {
-              loge(TAG, "Exception while processing input stream.", e);
-              callback.onInputStreamFailure();
-            }
-          }
-        },
-        /* initialDelay= */ 0,
-        READ_INPUT_STREAM_INTERNAL_MS,
-        MILLISECONDS);
+    InputStream stream = inputStream;
+    Thread readerThread = new Thread(() -> readInputStream(stream), READER_THREAD_NAME);
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  private void readInputStream(InputStream stream) {
+    while (keepRunning.get()) {
+      BlePeripheralMessageParcel parcel;
+      try {
+        parcel = BlePeripheralMessageParcel.parser().parseDelimitedFrom(stream);
+      } catch (IOException e) {
+        if (keepRunning.get()) {
+          loge(TAG, "Exception while processing input stream.", e);
+          scheduler.execute(this::notifyInputStreamFailure);
+        }
+        return;
+      }
+      if (parcel == null) {
+        if (keepRunning.get()) {
+          loge(TAG, "Input stream reached its end.");
+          scheduler.execute(this::notifyInputStreamFailure);
+        }
+        return;
+      }
+      scheduler.execute(() -> dispatchMessageParcel(parcel));
+    }
+  }
+
+  private void dispatchMessageParcel(BlePeripheralMessageParcel parcel) {
+    if (!keepRunning.get()) {
+      return;
+    }
+    try {
+      processMessageParcel(parcel);
+    } catch (IOException e) {
+      loge(TAG, "Exception while processing input stream.", e);
+      notifyInputStreamFailure();
+    }
+  }
+
+  private void notifyInputStreamFailure() {
+    Callback callback = this.callback;
+    if (keepRunning.get() && callback != null) {
+      callback.onInputStreamFailure();
+    }
   }
 
   @VisibleForTesting
   void processMessageParcel(BlePeripheralMessageParcel parcel) throws IOException {
+    Callback callback = this.callback;
+    if (callback == null) {
+      return;
+    }
     PayloadType payloadType = parcel.getType();
     ByteString payload = parcel.getPayload();
 
@@ -116,7 +148,7 @@ class MessageReader implements CentralConnectionStatus.Callback {
         break;
       case NOTIFY_CENTRAL_WROTE_VALUE:
         handleNotifyCentralDidWriteValueMessage(
-            NotifyCentralDidWriteValueMessage.parser().parseFrom(payload));
+            NotifyCentralDidWriteValueMessage.parser().parseFrom(payload), callback);
         break;
       case NOTIFY_STATE_UPDATED:
         handleNotifyPeripheralStateDidUpdateMessage(
@@ -143,7 +175,10 @@ class MessageReader implements CentralConnectionStatus.Callback {
 
   @Override
   public void onCentralConnected(Central central) {
-    callback.onRemoteDeviceConnected(FAKE_BLUETOOTH_DEVICE);
+    Callback callback = this.callback;
+    if (callback != null) {
+      callback.onRemoteDeviceConnected(FAKE_BLUETOOTH_DEVICE);
+    }
   }
 
   @Override
@@ -153,10 +188,14 @@ class MessageReader implements CentralConnectionStatus.Callback {
       connectionStatus = null;
     }
 
-    callback.onRemoteDeviceDisconnected(FAKE_BLUETOOTH_DEVICE);
+    Callback callback = this.callback;
+    if (callback != null) {
+      callback.onRemoteDeviceDisconnected(FAKE_BLUETOOTH_DEVICE);
+    }
   }
 
-  private void handleNotifyCentralDidWriteValueMessage(NotifyCentralDidWriteValueMessage message) {
+  private static void handleNotifyCentralDidWriteValueMessage(
+      NotifyCentralDidWriteValueMessage message, Callback callback) {
     BluetoothGattCharacteristic gattCharacteristic =
         ProtoConverter.toGattCharacteristic(message.getCharacteristic());
     logi(TAG, "Received value from central of " + gattCharacteristic.getValue().length + " bytes.");
@@ -175,14 +214,14 @@ class MessageReader implements CentralConnectionStatus.Callback {
   /**
    * Cleans up this class.
    *
-   * <p>Stops processing the input stream; also closes the input stream. Once invalidted, this
-   * object cannot be re-used.
+   * <p>Stops processing the input stream; also closes the input stream, which unblocks the reader
+   * thread. Once invalidted, this object cannot be re-used.
    */
   public void invalidate() {
     logi(TAG, "Invalidating MessageReader.");
     try {
-      callback = null;
       keepRunning.set(false);
+      callback = null;
       inputStream.close();
       inputStream = null;
       logi(TAG, "MessageReader.invalidate:[closed stream]");
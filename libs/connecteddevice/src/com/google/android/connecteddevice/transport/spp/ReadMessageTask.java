@@ -25,30 +25,52 @@ import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This task runs during a connection with a remote device. It handles the read of all incoming
  * data.
+ *
+ * <p>Data is read from the socket in chunks into a receive buffer that is reused for the lifetime
+ * of the task, so a message only allocates the array that is delivered to the {@link Callback}. A
+ * length prefix that is negative or larger than the maximum message size is treated as a read error
+ * before anything is allocated for it.
  */
 class ReadMessageTask implements Runnable {
   private static final String TAG = "ReadMessageTask";
+
+  /** Default upper bound on the length of a single incoming message. */
+  static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+
+  @VisibleForTesting static final int RECEIVE_BUFFER_SIZE = 8192;
+
   private final InputStream inputStream;
   private final Callback callback;
   private final Executor callbackExecutor;
+  private final int maxMessageSize;
   private final AtomicBoolean isCanceled = new AtomicBoolean(false);
-  private final byte[] sizeBuffer = new byte[SppManager.LENGTH_BYTES_SIZE];
+  // Only accessed on the thread running this task.
+  private final byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+  private int receiveStart = 0;
+  private int receiveEnd = 0;
 
   ReadMessageTask(
       @NonNull InputStream inputStream,
       @NonNull Callback callback,
       @NonNull Executor callbackExecutor) {
+    this(inputStream, callback, callbackExecutor, DEFAULT_MAX_MESSAGE_SIZE);
+  }
+
+  ReadMessageTask(
+      @NonNull InputStream inputStream,
+      @NonNull Callback callback,
+      @NonNull Executor callbackExecutor,
+      int maxMessageSize) {
     this.inputStream = inputStream;
     this.callback = callback;
     this.callbackExecutor = callbackExecutor;
+    this.maxMessageSize = maxMessageSize;
   }
 
   @Override
@@ -56,16 +78,28 @@ class ReadMessageTask implements Runnable {
     logi(TAG, "Begin task: started listening to incoming messages.");
     // Keep listening to the InputStream when task started.
     while (!isCanceled.get()) {
-      if (!readData(inputStream, sizeBuffer)) {
-        cancel();
-        callbackExecutor.execute(callback::onMessageReadError);
+      if (!fillReceiveBuffer(SppManager.LENGTH_BYTES_SIZE)) {
+        notifyReadError();
+        break;
+      }
+      int messageLength = readLength();
+      if (messageLength < 0 || messageLength > maxMessageSize) {
+        loge(
+            TAG,
+            "Received invalid message length "
+                + messageLength
+                + ", maximum is "
+                + maxMessageSize
+                + ". Disconnecting.");
+        notifyReadError();
         break;
       }
-      int messageLength = ByteBuffer.wrap(sizeBuffer).order(ByteOrder.LITTLE_ENDIAN).getInt();
       byte[] dataBuffer = new byte[messageLength];
-      if (!readData(inputStream, dataBuffer)) {
-        cancel();
-        callbackExecutor.execute(callback::onMessageReadError);
+      int bufferedLength = Math.min(receiveEnd - receiveStart, messageLength);
+      System.arraycopy(receiveBuffer, receiveStart, dataBuffer, 0, bufferedLength);
+      receiveStart += bufferedLength;
+      if (bufferedLength < messageLength && !readData(inputStream, dataBuffer, bufferedLength)) {
+        notifyReadError();
         break;
       }
 
@@ -74,32 +108,81 @@ class ReadMessageTask implements Runnable {
     }
   }
 
+  private void notifyReadError() {
+    cancel();
+    callbackExecutor.execute(callback::onMessageReadError);
+  }
+
+  /** Reads the little-endian length prefix at the start of the receive buffer. */
+  private int readLength() {
+    int length =
+        (receiveBuffer[receiveStart] & 0xFF)
+            | (receiveBuffer[receiveStart + 1] & 0xFF) << 8
+            | (receiveBuffer[receiveStart + 2] & 0xFF) << 16
+            | (receiveBuffer[receiveStart + 3] & 0xFF) << 24;
+    receiveStart += SppManager.LENGTH_BYTES_SIZE;
+    return length;
+  }
+
+  /**
+   * Reads from {@code inputStream} until the receive buffer holds at least {@code minLength} bytes
+   * and returns {@code true} if the operation succeeded.
+   */
+  private boolean fillReceiveBuffer(int minLength) {
+    if (receiveEnd - receiveStart >= minLength) {
+      return true;
+    }
+    if (receiveStart > 0) {
+      System.arraycopy(receiveBuffer, receiveStart, receiveBuffer, 0, receiveEnd - receiveStart);
+      receiveEnd -= receiveStart;
+      receiveStart = 0;
+    }
+    while (receiveEnd < minLength) {
+      int bytesRead =
+          read(inputStream, receiveBuffer, receiveEnd, receiveBuffer.length - receiveEnd);
+      if (bytesRead == -1) {
+        return false;
+      }
+      receiveEnd += bytesRead;
+    }
+    return true;
+  }
+
   /**
    * Read data from {@code inputStream} until the {@code buffer} is full and returns {@code true} if
    * the operation succeeded.
    */
   @VisibleForTesting
   boolean readData(InputStream inputStream, byte[] buffer) {
-    int offset = 0;
-    int bytesToRead = buffer.length;
-    int bytesRead;
-    while (bytesToRead > 0) {
-      try {
-        bytesRead = inputStream.read(buffer, offset, bytesToRead);
-      } catch (IOException e) {
-        logw(TAG, "Encountered an exception when listening for incoming message.");
-        return false;
-      }
+    return readData(inputStream, buffer, /* offset= */ 0);
+  }
+
+  private boolean readData(InputStream inputStream, byte[] buffer, int offset) {
+    while (offset < buffer.length) {
+      int bytesRead = read(inputStream, buffer, offset, buffer.length - offset);
       if (bytesRead == -1) {
-        loge(TAG, "EOF when reading data from input stream.");
         return false;
       }
       offset += bytesRead;
-      bytesToRead -= bytesRead;
     }
     return true;
   }
 
+  /** Reads into {@code buffer} and returns the number of bytes read, or -1 on failure. */
+  private static int read(InputStream inputStream, byte[] buffer, int offset, int length) {
+    int bytesRead;
+    try {
+      bytesRead = inputStream.read(buffer, offset, length);
+    } catch (IOException e) {
+      logw(TAG, "Encountered an exception when listening for incoming message.");
+      return -1;
+    }
+    if (bytesRead == -1) {
+      loge(TAG, "EOF when reading data from input stream.");
+    }
+    return bytesRead;
+  }
+
   public void cancel() {
     isCanceled.set(true);
   }
@@ -27,16 +27,15 @@ import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import com.google.android.connecteddevice.transport.MissedDataBuffer;
 import com.google.android.connecteddevice.util.ThreadSafeCallbacks;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -58,6 +57,7 @@ public class SppManager {
   // among client and server.
   private final BluetoothAdapter adapter;
   private final boolean isSecure;
+  private final int maxMessageSize;
   private final Object lock = new Object();
   /** Task to listen to secure RFCOMM channel. */
   @VisibleForTesting AcceptTask acceptTask;
@@ -69,24 +69,42 @@ public class SppManager {
   private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
   private final Executor taskCallbackExecutor;
   // Only the first registered {@code OnMessageReceivedListener} will receive the missed messages.
-  private final ConcurrentLinkedQueue<byte[]> missedMessages = new ConcurrentLinkedQueue<>();
+  private final MissedDataBuffer missedMessages = new MissedDataBuffer();
 
   @GuardedBy("lock")
   @VisibleForTesting
   ConnectionState state;
 
   @VisibleForTesting BluetoothSocket connectedSocket;
+
+  @GuardedBy("lock")
+  private SppMessageWriter messageWriter;
+
   private final ThreadSafeCallbacks<ConnectionCallback> callbacks = new ThreadSafeCallbacks<>();
   private final ThreadSafeCallbacks<OnMessageReceivedListener> receivedListeners =
       new ThreadSafeCallbacks<>();
 
   public SppManager(@NonNull Context context, boolean isSecure) {
-    this(context, isSecure, Executors.newSingleThreadExecutor());
+    this(context, isSecure, ReadMessageTask.DEFAULT_MAX_MESSAGE_SIZE);
+  }
+
+  /**
+   * Creates a manager that treats an incoming message longer than {@code maxMessageSize} bytes as
+   * a read error and disconnects.
+   */
+  public SppManager(@NonNull Context context, boolean isSecure, int maxMessageSize) {
+    this(context, isSecure, Executors.newSingleThreadExecutor(), maxMessageSize);
   }
 
   @VisibleForTesting
   SppManager(@NonNull Context context, boolean isSecure, @NonNull Executor executor) {
+    this(context, isSecure, executor, ReadMessageTask.DEFAULT_MAX_MESSAGE_SIZE);
+  }
+
+  private SppManager(
+      @NonNull Context context, boolean isSecure, @NonNull Executor executor, int maxMessageSize) {
     this.isSecure = isSecure;
+    this.maxMessageSize = maxMessageSize;
     taskCallbackExecutor = executor;
     adapter = context.getSystemService(BluetoothManager.class).getAdapter();
   }
@@ -126,13 +144,15 @@ public class SppManager {
   public void addOnMessageReceivedListener(
       @NonNull OnMessageReceivedListener listener, @NonNull Executor executor) {
     receivedListeners.add(listener, executor);
-    while (!missedMessages.isEmpty()) {
+    List<byte[]> drainedMessages = missedMessages.drain();
+    if (!drainedMessages.isEmpty()) {
       logd(
           TAG,
-          "OnMessageReceivedListener registered, poll missed message, current missed messages size"
-              + " is "
-              + missedMessages.size());
-      byte[] missedMessage = missedMessages.poll();
+          "OnMessageReceivedListener registered, delivering "
+              + drainedMessages.size()
+              + " missed messages.");
+    }
+    for (byte[] missedMessage : drainedMessages) {
       // Invokes message received callback only when there is currently a connection.
       if (connectedSocket != null) {
         receivedListeners.invoke(
@@ -224,55 +244,39 @@ public class SppManager {
         loge(TAG, "Try to send data when device is disconnected");
         return false;
       }
-    }
 
-    byte[] dataReadyToSend = wrapWithArrayLength(data);
-    if (dataReadyToSend == null) {
-      loge(TAG, "Wrapping data with array length failed.");
-      return false;
+      if (messageWriter == null) {
+        try {
+          messageWriter =
+              new SppMessageWriter(
+                  connectedSocket.getOutputStream(), writeExecutor, this::cleanup);
+        } catch (IOException e) {
+          loge(TAG, "Error retrieving output stream from socket.", e);
+          return false;
+        }
+      }
+      messageWriter.write(data, pendingSentMessage);
     }
-
-    writeExecutor.execute(
-        () -> {
-          try {
-            connectedSocket.getOutputStream().write(dataReadyToSend);
-            pendingSentMessage.notifyMessageSent();
-            logd(TAG, "Sent message to remote device with length: " + dataReadyToSend.length);
-          } catch (IOException e) {
-            loge(TAG, "Exception during write", e);
-            cleanup();
-          }
-        });
-
     return true;
   }
 
   /**
    * Wrap the raw byte array with array length.
    *
-   * <p>Should be called every time when server wants to send a message to client.
+   * <p>Outgoing messages are framed by {@link SppMessageWriter} without this copy; this is kept to
+   * build expected frames.
    *
    * @param rawData Original data
-   * @return The wrapped data or `null` if wrapping failed.
+   * @return The wrapped data.
    */
-  @Nullable
+  @NonNull
   @VisibleForTesting
   static byte[] wrapWithArrayLength(@NonNull byte[] rawData) {
-    int length = rawData.length;
-    byte[] lengthBytes =
-        ByteBuffer.allocate(LENGTH_BYTES_SIZE)
-            .order(ByteOrder.LITTLE_ENDIAN)
-            .putInt(length)
-            .array();
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    try {
-      outputStream.write(lengthBytes);
-      outputStream.write(rawData);
-    } catch (IOException e) {
-      loge(TAG, "Error wrap data with array length");
-      return null;
-    }
-    return outputStream.toByteArray();
+    return ByteBuffer.allocate(LENGTH_BYTES_SIZE + rawData.length)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(rawData.length)
+        .put(rawData)
+        .array();
   }
 
   /**
@@ -319,6 +323,7 @@ public class SppManager {
     }
 
     connectedSocket = null;
+    messageWriter = null;
     state = ConnectionState.DISCONNECTED;
   }
 
@@ -347,7 +352,8 @@ public class SppManager {
     }
 
     readMessageTask =
-        new ReadMessageTask(inputStream, readMessageTaskCallback, taskCallbackExecutor);
+        new ReadMessageTask(
+            inputStream, readMessageTaskCallback, taskCallbackExecutor, maxMessageSize);
 
     // Start listening to incoming messages
     taskExecutor.execute(readMessageTask);
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.connecteddevice.transport.spp;
+
+import static com.google.android.connecteddevice.util.SafeLog.logd;
+import static com.google.android.connecteddevice.util.SafeLog.loge;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes length-prefixed messages to the {@link OutputStream} of a connected RFCOMM socket.
+ *
+ * <p>Messages are queued by {@link #write} and written on the provided executor. Every message
+ * queued by the time a write runs is framed into the same buffer, so a burst of small messages
+ * reaches the socket as a few large writes instead of one write per message. The length prefix is
+ * written straight into the buffer and payloads larger than the buffer bypass it, so no framed copy
+ * of a message is ever allocated.
+ */
+class SppMessageWriter {
+  private static final String TAG = "SppMessageWriter";
+
+  /** Size of the buffer that messages are coalesced into before they are written to the socket. */
+  @VisibleForTesting static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final OutputStream outputStream;
+  private final Executor writeExecutor;
+  private final Callback callback;
+  private final int bufferSize;
+  private final ConcurrentLinkedQueue<QueuedMessage> queuedMessages =
+      new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean isWriteScheduled = new AtomicBoolean(false);
+  // Only accessed on the write executor.
+  private final byte[] lengthBytes = new byte[SppManager.LENGTH_BYTES_SIZE];
+  private final List<PendingSentMessage> unflushedMessages = new ArrayList<>();
+
+  SppMessageWriter(
+      @NonNull OutputStream outputStream,
+      @NonNull Executor writeExecutor,
+      @NonNull Callback callback) {
+    this(outputStream, writeExecutor, callback, DEFAULT_BUFFER_SIZE);
+  }
+
+  @VisibleForTesting
+  SppMessageWriter(
+      @NonNull OutputStream outputStream,
+      @NonNull Executor writeExecutor,
+      @NonNull Callback callback,
+      int bufferSize) {
+    this.outputStream = new BufferedOutputStream(outputStream, bufferSize);
+    this.writeExecutor = writeExecutor;
+    this.callback = callback;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Queues {@code data} to be written with its length prefix and notifies {@code
+   * pendingSentMessage} once it has been written to the socket.
+   */
+  void write(@NonNull byte[] data, @NonNull PendingSentMessage pendingSentMessage) {
+    queuedMessages.add(new QueuedMessage(data, pendingSentMessage));
+    if (isWriteScheduled.compareAndSet(false, true)) {
+      writeExecutor.execute(this::writeQueuedMessages);
+    }
+  }
+
+  private void writeQueuedMessages() {
+    try {
+      do {
+        int unflushedBytes = 0;
+        QueuedMessage message;
+        while ((message = queuedMessages.poll()) != null) {
+          writeFrame(message.data);
+          unflushedMessages.add(message.pendingSentMessage);
+          unflushedBytes += SppManager.LENGTH_BYTES_SIZE + message.data.length;
+          if (unflushedBytes >= bufferSize) {
+            flush(unflushedBytes);
+            unflushedBytes = 0;
+          }
+        }
+        flush(unflushedBytes);
+        isWriteScheduled.set(false);
+        // A message queued after the last poll but before the flag was cleared did not schedule
+        // another write, so pick it up here.
+      } while (!queuedMessages.isEmpty() && isWriteScheduled.compareAndSet(false, true));
+    } catch (IOException e) {
+      loge(TAG, "Exception during write", e);
+      queuedMessages.clear();
+      unflushedMessages.clear();
+      isWriteScheduled.set(false);
+      callback.onWriteError();
+    }
+  }
+
+  private void writeFrame(byte[] data) throws IOException {
+    int length = data.length;
+    lengthBytes[0] = (byte) length;
+    lengthBytes[1] = (byte) (length >>> 8);
+    lengthBytes[2] = (byte) (length >>> 16);
+    lengthBytes[3] = (byte) (length >>> 24);
+    outputStream.write(lengthBytes);
+    outputStream.write(data);
+  }
+
+  private void flush(int unflushedBytes) throws IOException {
+    if (unflushedMessages.isEmpty()) {
+      return;
+    }
+    outputStream.flush();
+    logd(
+        TAG,
+        "Sent "
+            + unflushedMessages.size()
+            + " messages to remote device with total length: "
+            + unflushedBytes);
+    for (PendingSentMessage pendingSentMessage : unflushedMessages) {
+      pendingSentMessage.notifyMessageSent();
+    }
+    unflushedMessages.clear();
+  }
+
+  private static class QueuedMessage {
+    final byte[] data;
+    final PendingSentMessage pendingSentMessage;
+
+    QueuedMessage(byte[] data, PendingSentMessage pendingSentMessage) {
+      this.data = data;
+      this.pendingSentMessage = pendingSentMessage;
+    }
+  }
+
+  /** Interface to be notified of {@link SppMessageWriter} failures. */
+  interface Callback {
+    /** Triggered when a write to the socket failed. Queued messages are discarded. */
+    void onWriteError();
+  }
+}
@@ -201,7 +201,11 @@ constructor(
 
   override fun isDeviceVerificationRequired() = false
 
+  /** Writes are queued in order on the [SppManager], so several packets can be outstanding. */
+  override val maxPacketsInFlight = SPP_MAX_PACKETS_IN_FLIGHT
+
   companion object {
     private const val TAG = "SppProtocol"
+    private const val SPP_MAX_PACKETS_IN_FLIGHT = 8
   }
 }
@@ -795,9 +795,7 @@ public class TrustedDeviceManager extends ITrustedDeviceManager.Stub {
       return;
     }
 
-    TrustedDeviceEntity entity = database.getTrustedDeviceIfValid(device.getDeviceId());
-
-    if (entity == null) {
+    if (!database.isTrustedDeviceValid(device.getDeviceId())) {
       logw(TAG, "Received unlock request from an untrusted device.");
       return;
     }
@@ -12,23 +12,27 @@ import java.util.List;
 public interface TrustedDeviceDao {
 
   /** Get a {@link TrustedDeviceEntity} based on device id. */
-  @Query("SELECT * FROM trusted_devices WHERE id LIKE :deviceId LIMIT 1")
+  @Query("SELECT * FROM trusted_devices WHERE id = :deviceId LIMIT 1")
   TrustedDeviceEntity getTrustedDevice(String deviceId);
 
   /** Get a {@link TrustedDeviceEntity} based on device id only if it is valid. */
-  @Query("SELECT * FROM trusted_devices WHERE id LIKE :deviceId AND isValid = 1 LIMIT 1")
+  @Query("SELECT * FROM trusted_devices WHERE id = :deviceId AND isValid = 1 LIMIT 1")
   TrustedDeviceEntity getTrustedDeviceIfValid(String deviceId);
 
+  /** Returns {@code true} if a valid {@link TrustedDeviceEntity} exists for the device id. */
+  @Query("SELECT EXISTS(SELECT 1 FROM trusted_devices WHERE id = :deviceId AND isValid = 1)")
+  boolean isTrustedDeviceValid(String deviceId);
+
   /** Get a {@link FeatureStateEntity} based on device id. */
   @Query("SELECT * FROM feature_state WHERE id = :deviceId")
   FeatureStateEntity getFeatureState(String deviceId);
 
   /** Get all {@link TrustedDeviceEntity}s associated with a user. */
-  @Query("SELECT * FROM trusted_devices WHERE userId LIKE :userId AND isValid = 1")
+  @Query("SELECT * FROM trusted_devices WHERE userId = :userId AND isValid = 1")
   List<TrustedDeviceEntity> getValidTrustedDevicesForUser(int userId);
 
   /** Get all invalid {@link TrustedDeviceEntity}s associated with a user. */
-  @Query("SELECT * FROM trusted_devices WHERE userId LIKE :userId AND isValid = 0")
+  @Query("SELECT * FROM trusted_devices WHERE userId = :userId AND isValid = 0")
   List<TrustedDeviceEntity> getInvalidTrustedDevicesForUser(int userId);
 
   /**
@@ -10,7 +10,7 @@ import androidx.room.RoomDatabase;
       FeatureStateEntity.class,
       TrustedDeviceTokenEntity.class
     },
-    version = 4,
+    version = 5,
     exportSchema = true)
 public abstract class TrustedDeviceDatabase extends RoomDatabase {
   /** Return the DAO for the trusted device table. */
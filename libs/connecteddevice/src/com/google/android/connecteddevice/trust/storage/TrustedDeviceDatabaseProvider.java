@@ -60,6 +60,22 @@ public class TrustedDeviceDatabaseProvider {
         }
       };
 
+  /**
+   * Performs the database migration from 4 to 5.
+   *
+   * <p>This migration indexes the columns that trusted devices are looked up by for a user.
+   */
+  @VisibleForTesting
+  static final Migration MIGRATION_4_5 =
+      new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+          database.execSQL(
+              "CREATE INDEX IF NOT EXISTS `index_trusted_devices_userId_isValid` "
+                  + "ON `trusted_devices` (`userId`, `isValid`)");
+        }
+      };
+
   private static TrustedDeviceDatabaseProvider instance;
 
   @VisibleForTesting final TrustedDeviceDatabase database;
@@ -68,7 +84,7 @@ public class TrustedDeviceDatabaseProvider {
   TrustedDeviceDatabaseProvider(@NonNull Context context, boolean allowMainThreadQueries) {
     RoomDatabase.Builder<TrustedDeviceDatabase> builder =
         Room.databaseBuilder(context, TrustedDeviceDatabase.class, DATABASE_NAME)
-            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4)
+            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5)
             .enableMultiInstanceInvalidation();
     if (allowMainThreadQueries) {
       builder.allowMainThreadQueries();
@@ -3,12 +3,15 @@ package com.google.android.connecteddevice.trust.storage;
 import androidx.annotation.NonNull;
 import androidx.room.Entity;
 import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 import com.google.android.connecteddevice.trust.api.TrustedDevice;
 import java.util.Objects;
 
 /** Table entity representing a trusted device. */
-@Entity(tableName = "trusted_devices")
+@Entity(
+    tableName = "trusted_devices",
+    indices = {@Index({"userId", "isValid"})})
 public final class TrustedDeviceEntity {
   /** Device id of trusted device. */
   @PrimaryKey
@@ -17,31 +17,62 @@
 package com.google.android.connecteddevice.util;
 
 import android.os.Process;
+import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import com.google.android.connecteddevice.logging.model.LogRecord;
 import com.google.android.connecteddevice.logging.model.LogRecord.Level;
 import com.google.android.connecteddevice.logging.util.LoggingUtils;
-import com.google.common.collect.EvictingQueue;
-import com.google.common.collect.Queues;
 import java.util.ArrayList;
+import java.util.IllegalFormatException;
 import java.util.List;
-import java.util.Queue;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
-/** Singleton class that saves internal log records. */
+/**
+ * Singleton class that saves internal log records.
+ *
+ * <p>The most recent records are kept in a ring of reusable slots, so saving a record does not
+ * allocate. Writers only lock the slot they write to, and messages given as a format string with
+ * arguments are not formatted until the records are exported with {@link #toByteArray()}. Only
+ * strings and boxed primitives are kept as arguments; any other argument is converted to a string
+ * when the record is saved, so the ring never keeps a caller's object alive or sees it change.
+ */
 public class Logger {
   private static final int MAX_LOG_SIZE = 500;
 
+  // How the message of a record is completed from its arguments when it is exported.
+  private static final int FORMAT_NONE = 0;
+  private static final int FORMAT_OBJECTS = 1;
+  private static final int FORMAT_INTS = 2;
+
   private static final AtomicReference<Logger> loggerReference = new AtomicReference<>(null);
-  private final Queue<LogRecord> logRecordQueue =
-      Queues.synchronizedQueue(EvictingQueue.create(MAX_LOG_SIZE));
 
-  private Logger() {}
+  private final Slot[] slots;
+  private final AtomicLong nextSequence = new AtomicLong();
+  private final int processId = Process.myPid();
+
+  private Logger() {
+    this(MAX_LOG_SIZE);
+  }
+
+  @VisibleForTesting
+  Logger(int capacity) {
+    slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+    }
+  }
 
   /** Get the {@link Logger} instance. */
   @NonNull
   public static Logger getLogger() {
+    Logger logger = loggerReference.get();
+    if (logger != null) {
+      return logger;
+    }
     loggerReference.compareAndSet(null, new Logger());
     return loggerReference.get();
   }
@@ -53,42 +84,206 @@ public class Logger {
 
   /** Save log record message with log priority {@link Level#VERBOSE}. */
   public void verbose(@NonNull String tag, @NonNull String message) {
-    addLogRecord(new LogRecord(Level.VERBOSE, tag, message));
+    addLogRecord(Level.VERBOSE, tag, message, FORMAT_NONE, null, null, 0, 0, null);
+  }
+
+  /**
+   * Save log record with log priority {@link Level#VERBOSE} whose message is formatted from {@code
+   * format} and the arguments when it is exported.
+   */
+  public void verbose(
+      @NonNull String tag, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+    addLogRecord(Level.VERBOSE, tag, format, FORMAT_OBJECTS, arg1, arg2, 0, 0, null);
   }
 
   /** Save log record message with log priority {@link Level#DEBUG}. */
   public void debug(@NonNull String tag, @NonNull String message) {
-    addLogRecord(new LogRecord(Level.DEBUG, tag, message));
+    addLogRecord(Level.DEBUG, tag, message, FORMAT_NONE, null, null, 0, 0, null);
+  }
+
+  /**
+   * Save log record with log priority {@link Level#DEBUG} whose message is formatted from {@code
+   * format} and the arguments when it is exported.
+   */
+  public void debug(
+      @NonNull String tag, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+    addLogRecord(Level.DEBUG, tag, format, FORMAT_OBJECTS, arg1, arg2, 0, 0, null);
+  }
+
+  /**
+   * Save log record with log priority {@link Level#DEBUG} whose message is formatted from {@code
+   * format} and the arguments when it is exported. Unlike the overload taking objects, the
+   * arguments are not boxed.
+   */
+  public void debug(@NonNull String tag, @NonNull String format, int arg1, int arg2) {
+    addLogRecord(Level.DEBUG, tag, format, FORMAT_INTS, null, null, arg1, arg2, null);
   }
 
   /** Save log record message with log priority {@link Level#INFO} */
   public void info(@NonNull String tag, @NonNull String message) {
-    addLogRecord(new LogRecord(Level.INFO, tag, message));
+    addLogRecord(Level.INFO, tag, message, FORMAT_NONE, null, null, 0, 0, null);
+  }
+
+  /**
+   * Save log record with log priority {@link Level#INFO} whose message is formatted from {@code
+   * format} and the arguments when it is exported.
+   */
+  public void info(
+      @NonNull String tag, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+    addLogRecord(Level.INFO, tag, format, FORMAT_OBJECTS, arg1, arg2, 0, 0, null);
   }
 
   /** Save log record message with log priority {@link Level#WARN} */
   public void warn(@NonNull String tag, @NonNull String message) {
-    addLogRecord(new LogRecord(Level.WARN, tag, message));
+    addLogRecord(Level.WARN, tag, message, FORMAT_NONE, null, null, 0, 0, null);
   }
 
   /** Save log record message with log priority {@link Level#ERROR} */
   public void error(@NonNull String tag, @NonNull String message) {
-    addLogRecord(new LogRecord(Level.ERROR, tag, message));
+    addLogRecord(Level.ERROR, tag, message, FORMAT_NONE, null, null, 0, 0, null);
   }
 
   /** Save log record message and exception with log priority {@link Level#ERROR} */
   public void error(@NonNull String tag, @NonNull String message, @Nullable Exception exception) {
-    addLogRecord(new LogRecord(Level.ERROR, tag, message, exception));
+    addLogRecord(Level.ERROR, tag, message, FORMAT_NONE, null, null, 0, 0, exception);
   }
 
   /** Get log records of this Logger in JSON format. */
   @NonNull
   public byte[] toByteArray() {
-    List<LogRecord> currentRecords = new ArrayList<>(logRecordQueue);
-    return LoggingUtils.objectToBytes(currentRecords);
+    return LoggingUtils.objectToBytes(getLogRecords());
   }
 
-  private void addLogRecord(@NonNull LogRecord logRecord) {
-    logRecordQueue.add(logRecord);
+  /** Returns the saved log records, oldest first. */
+  @VisibleForTesting
+  @NonNull
+  List<LogRecord> getLogRecords() {
+    long end = nextSequence.get();
+    long start = Math.max(0, end - slots.length);
+    List<LogRecord> records = new ArrayList<>((int) (end - start));
+    for (long sequence = start; sequence < end; sequence++) {
+      Slot slot = slotFor(sequence);
+      synchronized (slot) {
+        // Skip slots that are still being written or have since been reused for a newer record.
+        if (slot.sequence == sequence) {
+          records.add(slot.toLogRecord(processId));
+        }
+      }
+    }
+    return records;
+  }
+
+  private void addLogRecord(
+      @NonNull Level level,
+      @NonNull String tag,
+      @NonNull String message,
+      int formatKind,
+      @Nullable Object arg1,
+      @Nullable Object arg2,
+      int intArg1,
+      int intArg2,
+      @Nullable Exception exception) {
+    Object retainedArg1 = toRetainedArgument(arg1);
+    Object retainedArg2 = toRetainedArgument(arg2);
+    long sequence = nextSequence.getAndIncrement();
+    Slot slot = slotFor(sequence);
+    synchronized (slot) {
+      if (slot.sequence > sequence) {
+        // A writer that started later has already lapped this one; its record is newer.
+        return;
+      }
+      slot.sequence = sequence;
+      slot.timeMillis = System.currentTimeMillis();
+      slot.threadId = Process.myTid();
+      slot.level = level;
+      slot.tag = tag;
+      slot.message = message;
+      slot.formatKind = formatKind;
+      // Records without object arguments pass null, which releases those of the record replaced.
+      slot.arg1 = retainedArg1;
+      slot.arg2 = retainedArg2;
+      slot.intArg1 = intArg1;
+      slot.intArg2 = intArg2;
+      slot.exception = exception;
+    }
+  }
+
+  @Nullable
+  private static Object toRetainedArgument(@Nullable Object arg) {
+    if (arg == null
+        || arg instanceof String
+        || arg instanceof Integer
+        || arg instanceof Long
+        || arg instanceof Short
+        || arg instanceof Byte
+        || arg instanceof Float
+        || arg instanceof Double
+        || arg instanceof Boolean
+        || arg instanceof Character) {
+      return arg;
+    }
+    return String.valueOf(arg);
+  }
+
+  private Slot slotFor(long sequence) {
+    return slots[(int) (sequence % slots.length)];
+  }
+
+  /** A reusable holder for the fields of a single log record. */
+  private static final class Slot {
+    @GuardedBy("this")
+    long sequence = -1;
+
+    @GuardedBy("this")
+    long timeMillis;
+
+    @GuardedBy("this")
+    int threadId;
+
+    @GuardedBy("this")
+    Level level;
+
+    @GuardedBy("this")
+    String tag;
+
+    @GuardedBy("this")
+    String message;
+
+    @GuardedBy("this")
+    int formatKind;
+
+    @GuardedBy("this")
+    Object arg1;
+
+    @GuardedBy("this")
+    Object arg2;
+
+    @GuardedBy("this")
+    int intArg1;
+
+    @GuardedBy("this")
+    int intArg2;
+
+    @GuardedBy("this")
+    Exception exception;
+
+    @GuardedBy("this")
+    LogRecord toLogRecord(int processId) {
+      return new LogRecord(timeMillis, processId, threadId, level, tag, formatMessage(), exception);
+    }
+
+    @GuardedBy("this")
+    private String formatMessage() {
+      if (formatKind == FORMAT_NONE) {
+        return message;
+      }
+      Object formatArg1 = formatKind == FORMAT_INTS ? (Object) intArg1 : arg1;
+      Object formatArg2 = formatKind == FORMAT_INTS ? (Object) intArg2 : arg2;
+      try {
+        return String.format(Locale.US, message, formatArg1, formatArg2);
+      } catch (IllegalFormatException e) {
+        return message + " [" + formatArg1 + ", " + formatArg2 + "]";
+      }
+    }
   }
 }
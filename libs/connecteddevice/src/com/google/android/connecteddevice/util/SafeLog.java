@@ -19,8 +19,18 @@ package com.google.android.connecteddevice.util;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import java.util.IllegalFormatException;
+import java.util.Locale;
 
-/** Convenience logging methods that respect allow list tags. */
+/**
+ * Convenience logging methods that respect allow list tags.
+ *
+ * <p>The overloads that take a format string and arguments are meant for hot paths such as
+ * per-packet lines. They leave formatting to the internal {@link Logger} until the record is
+ * exported, and only format the message for logcat once {@link Log#isLoggable} passes for the tag,
+ * whether or not {@code LOCAL_MODE} is on. Use {@code adb shell setprop log.tag.<tag> <level>} to
+ * see them there.
+ */
 public class SafeLog {
 
   private static final boolean LOCAL_MODE = true;
@@ -35,6 +45,26 @@ public class SafeLog {
     Logger.getLogger().verbose(tag, message);
   }
 
+  /**
+   * Log a message formatted from {@code format} and {@code arg} if tag is allow listed for {@code
+   * Log.VERBOSE}.
+   */
+  public static void logv(@NonNull String tag, @NonNull String format, @Nullable Object arg) {
+    logv(tag, format, arg, /* arg2= */ null);
+  }
+
+  /**
+   * Log a message formatted from {@code format} and the arguments if tag is allow listed for
+   * {@code Log.VERBOSE}.
+   */
+  public static void logv(
+      @NonNull String tag, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+    if (Log.isLoggable(tag, Log.VERBOSE)) {
+      Log.v(tag, format(format, arg1, arg2));
+    }
+    Logger.getLogger().verbose(tag, format, arg1, arg2);
+  }
+
   /** Log message if tag is allow listed for {@code Log.INFO}. */
   public static void logi(@NonNull String tag, @NonNull String message) {
     if (LOCAL_MODE || Log.isLoggable(tag, Log.INFO)) {
@@ -43,6 +73,26 @@ public class SafeLog {
     Logger.getLogger().info(tag, message);
   }
 
+  /**
+   * Log a message formatted from {@code format} and {@code arg} if tag is allow listed for {@code
+   * Log.INFO}.
+   */
+  public static void logi(@NonNull String tag, @NonNull String format, @Nullable Object arg) {
+    logi(tag, format, arg, /* arg2= */ null);
+  }
+
+  /**
+   * Log a message formatted from {@code format} and the arguments if tag is allow listed for
+   * {@code Log.INFO}.
+   */
+  public static void logi(
+      @NonNull String tag, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+    if (Log.isLoggable(tag, Log.INFO)) {
+      Log.i(tag, format(format, arg1, arg2));
+    }
+    Logger.getLogger().info(tag, format, arg1, arg2);
+  }
+
   /** Log message if tag is allow listed for {@code Log.DEBUG}. */
   public static void logd(@NonNull String tag, @NonNull String message) {
     if (LOCAL_MODE || Log.isLoggable(tag, Log.DEBUG)) {
@@ -51,6 +101,45 @@ public class SafeLog {
     Logger.getLogger().debug(tag, message);
   }
 
+  /**
+   * Log a message formatted from {@code format} and {@code arg} if tag is allow listed for {@code
+   * Log.DEBUG}.
+   */
+  public static void logd(@NonNull String tag, @NonNull String format, @Nullable Object arg) {
+    logd(tag, format, arg, /* arg2= */ null);
+  }
+
+  /**
+   * Log a message formatted from {@code format} and the arguments if tag is allow listed for
+   * {@code Log.DEBUG}.
+   */
+  public static void logd(
+      @NonNull String tag, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+    if (Log.isLoggable(tag, Log.DEBUG)) {
+      Log.d(tag, format(format, arg1, arg2));
+    }
+    Logger.getLogger().debug(tag, format, arg1, arg2);
+  }
+
+  /**
+   * Log a message formatted from {@code format} and {@code arg} if tag is allow listed for {@code
+   * Log.DEBUG}. Unlike the overload taking an object, {@code arg} is not boxed.
+   */
+  public static void logd(@NonNull String tag, @NonNull String format, int arg) {
+    logd(tag, format, arg, /* arg2= */ 0);
+  }
+
+  /**
+   * Log a message formatted from {@code format} and the arguments if tag is allow listed for
+   * {@code Log.DEBUG}. Unlike the overload taking objects, the arguments are not boxed.
+   */
+  public static void logd(@NonNull String tag, @NonNull String format, int arg1, int arg2) {
+    if (Log.isLoggable(tag, Log.DEBUG)) {
+      Log.d(tag, format(format, arg1, arg2));
+    }
+    Logger.getLogger().debug(tag, format, arg1, arg2);
+  }
+
   /** Log message if tag is allow listed for {@code Log.WARN}. */
   public static void logw(@NonNull String tag, @NonNull String message) {
     if (LOCAL_MODE || Log.isLoggable(tag, Log.WARN)) {
@@ -72,4 +161,13 @@ public class SafeLog {
     }
     Logger.getLogger().error(tag, message, exception);
   }
+
+  private static String format(
+      @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+    try {
+      return String.format(Locale.US, format, arg1, arg2);
+    } catch (IllegalFormatException e) {
+      return format + " [" + arg1 + ", " + arg2 + "]";
+    }
+  }
 }
@@ -101,6 +101,7 @@ public class AttendeeContentDelegateTest {
     Attendee attendee = createTestAttendee();
 
     delegate.insert(EVENT_ID, attendee);
+    delegate.flush();
 
     ProviderCall expected = new ProviderCall(MethodType.INSERT, Attendees.CONTENT_URI);
     ContentValues values = expected.getValues();
@@ -122,6 +123,7 @@ public class AttendeeContentDelegateTest {
   @Test
   public void delete() {
     delegate.delete(EVENT_ID, EMAIL);
+    delegate.flush();
 
     ProviderCall expected = new ProviderCall(MethodType.DELETE, Attendees.CONTENT_URI);
     expected.setSelection(
@@ -134,6 +136,7 @@ public class AttendeeContentDelegateTest {
   @Test
   public void deleteAll() {
     delegate.deleteAll(EVENT_ID);
+    delegate.flush();
 
     ProviderCall expected = new ProviderCall(MethodType.DELETE, Attendees.CONTENT_URI);
     expected.setSelection("event_id = ?", new String[] {Long.toString(EVENT_ID)});
@@ -147,6 +150,7 @@ public class AttendeeContentDelegateTest {
     Attendee attendee = createTestAttendee();
 
     delegate.update(EVENT_ID, EMAIL, attendee);
+    delegate.flush();
 
     ProviderCall expected = new ProviderCall(MethodType.UPDATE, Attendees.CONTENT_URI);
     expected.setSelection(
@@ -114,6 +114,7 @@ public class CalendarContentDelegateTest {
             .build();
 
     delegate.insert(DEVICE_ID, calendar);
+    delegate.flush();
 
     Uri expectedUri = addSyncAdapterParameters(Calendars.CONTENT_URI);
     ProviderCall expected = new ProviderCall(MethodType.INSERT, expectedUri);
@@ -136,6 +137,7 @@ public class CalendarContentDelegateTest {
             .build();
 
     delegate.insert(DEVICE_ID, calendar);
+    delegate.flush();
 
     Uri expectedUri = Calendars.CONTENT_URI;
     ProviderCall expected = new ProviderCall(MethodType.INSERT, expectedUri);
@@ -152,6 +154,7 @@ public class CalendarContentDelegateTest {
     CalendarContentDelegate delegate = createCalendarContentDelegate(REPLICA);
 
     delegate.delete(DEVICE_ID, KEY);
+    delegate.flush();
 
     Uri expectedUri = addSyncAdapterParameters(Calendars.CONTENT_URI);
     ProviderCall expected = new ProviderCall(MethodType.DELETE, expectedUri);
@@ -168,6 +171,7 @@ public class CalendarContentDelegateTest {
     CalendarContentDelegate delegate = createCalendarContentDelegate(REPLICA);
 
     delegate.deleteAll(DEVICE_ID);
+    delegate.flush();
 
     Uri expectedUri = addSyncAdapterParameters(Calendars.CONTENT_URI);
     ProviderCall expected = new ProviderCall(MethodType.DELETE, expectedUri);
@@ -204,6 +208,7 @@ public class CalendarContentDelegateTest {
             .build();
 
     delegate.update(DEVICE_ID, KEY, calendar);
+    delegate.flush();
 
     Uri expectedUri = addSyncAdapterParameters(Calendars.CONTENT_URI);
     ProviderCall expected = new ProviderCall(MethodType.UPDATE, expectedUri);
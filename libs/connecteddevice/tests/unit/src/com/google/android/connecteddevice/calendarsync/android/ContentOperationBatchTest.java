@@ -0,0 +1,211 @@
+package com.google.android.connecteddevice.calendarsync.android;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Attendees;
+import android.provider.CalendarContract.Calendars;
+import android.provider.CalendarContract.Events;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.android.connecteddevice.calendarsync.Attendee;
+import com.google.android.connecteddevice.calendarsync.Calendar;
+import com.google.android.connecteddevice.calendarsync.Event;
+import com.google.android.connecteddevice.calendarsync.android.ContentOperationBatch.PendingId;
+import com.google.android.connecteddevice.calendarsync.android.TestCalendarProvider.ProviderCall;
+import com.google.android.connecteddevice.calendarsync.android.TestCalendarProvider.ProviderCall.MethodType;
+import com.google.android.connecteddevice.calendarsync.common.CommonLogger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import java.time.Instant;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ContentOperationBatchTest {
+  private static final String DEVICE_ID = "the device id";
+  private static final long CALENDAR_ID = 10L;
+  private static final long EVENT_ID = 20L;
+  private static final String EMAIL = "attendee@example.com";
+  private static final int EVENT_COUNT = 10;
+  private static final int ATTENDEES_PER_EVENT = 3;
+  private static final int MAX_OPERATIONS = 4;
+  private static final Instant BEGIN_TIME = Instant.ofEpochSecond(1_600_000_000L);
+  private static final Range<Instant> TIME_RANGE =
+      Range.closedOpen(BEGIN_TIME, BEGIN_TIME.plusSeconds(86_400));
+
+  private final CommonLogger.Factory loggerFactory = new CommonLogger.NoOpLoggerFactory();
+  private ContentResolver resolver;
+  private TestCalendarProvider testCalendarProvider;
+  private ContentOperationBatch batch;
+
+  @Before
+  public void setUp() {
+    ProviderInfo info = new ProviderInfo();
+    info.authority = CalendarContract.AUTHORITY;
+    testCalendarProvider =
+        Robolectric.buildContentProvider(TestCalendarProvider.class).create(info).get();
+    testCalendarProvider.setColumns(ImmutableList.of(Calendars._ID));
+    resolver = ApplicationProvider.getApplicationContext().getContentResolver();
+    batch = new ContentOperationBatch(loggerFactory, resolver, MAX_OPERATIONS);
+  }
+
+  @Test
+  public void insert_deferredUntilFlush() {
+    Object id = batch.insert(Calendars.CONTENT_URI, new ContentValues(), null, null);
+
+    assertThat(id).isInstanceOf(PendingId.class);
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(0);
+
+    batch.flush();
+
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(1);
+    assertThat(batch.resolve(id)).isEqualTo(1L); // Hard coded result from TestCalendarProvider.
+  }
+
+  @Test
+  public void insert_childOfPendingParentUsesBackReference() {
+    Object calendarId = batch.insert(Calendars.CONTENT_URI, new ContentValues(), null, null);
+
+    batch.insert(Events.CONTENT_URI, new ContentValues(), Events.CALENDAR_ID, calendarId);
+    batch.flush();
+
+    ProviderCall eventInsert = testCalendarProvider.getCalls().get(1);
+    assertThat(eventInsert.getValues().getAsLong(Events.CALENDAR_ID)).isEqualTo(1L);
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void add_appliesWhenMaxOperationsReached() {
+    for (int i = 0; i < MAX_OPERATIONS * 2 + 1; i++) {
+      batch.delete(Events.CONTENT_URI, Events._ID + " = ?", new String[] {Integer.toString(i)});
+    }
+
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(2);
+    batch.flush();
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(3);
+    assertThat(testCalendarProvider.getCalls()).hasSize(MAX_OPERATIONS * 2 + 1);
+  }
+
+  @Test
+  public void delete_returnsCountWhenApplied() {
+    ContentOperationBatch unbatched =
+        new ContentOperationBatch(loggerFactory, resolver, /* maxOperations= */ 1);
+
+    Integer rows = unbatched.delete(Events.CONTENT_URI, Events._ID + " = ?", new String[] {"1"});
+
+    assertThat(rows).isEqualTo(1); // Hard coded result from TestCalendarProvider.
+  }
+
+  @Test
+  public void resolve_appliesPendingInsert() {
+    Object id = batch.insert(Calendars.CONTENT_URI, new ContentValues(), null, null);
+
+    Object resolved = batch.resolve(id);
+
+    assertThat(resolved).isEqualTo(1L);
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void find_pendingInsert_returnsPendingIdWithoutApplying() {
+    AttendeeContentDelegate delegate = new AttendeeContentDelegate(loggerFactory, resolver, batch);
+    Object insertedId = delegate.insert(EVENT_ID, Attendee.newBuilder().setEmail(EMAIL).build());
+
+    Object foundId = delegate.find(EVENT_ID, EMAIL);
+
+    assertThat(foundId).isSameInstanceAs(insertedId);
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void find_pendingUpdate_queriesWithoutApplying() {
+    AttendeeContentDelegate delegate = new AttendeeContentDelegate(loggerFactory, resolver, batch);
+    delegate.update(EVENT_ID, EMAIL, Attendee.newBuilder().setEmail(EMAIL).build());
+
+    delegate.find(EVENT_ID, EMAIL);
+
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(0);
+    assertThat(getOnlyElement(testCalendarProvider.getCalls()).getType())
+        .isEqualTo(MethodType.QUERY);
+  }
+
+  @Test
+  public void find_pendingDelete_appliesFirst() {
+    AttendeeContentDelegate delegate = new AttendeeContentDelegate(loggerFactory, resolver, batch);
+    delegate.delete(EVENT_ID, EMAIL);
+
+    delegate.find(EVENT_ID, EMAIL);
+
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void find_childOfPendingParent_returnsNullWithoutApplying() {
+    EventContentDelegate eventDelegate =
+        new EventContentDelegate(
+            loggerFactory, resolver, batch, ContentOwnership.REPLICA, TIME_RANGE);
+    AttendeeContentDelegate attendeeDelegate =
+        new AttendeeContentDelegate(loggerFactory, resolver, batch);
+    Event event = Event.newBuilder().setKey(EventContentDelegate.createSingleKey(1)).build();
+    Object eventId = eventDelegate.insert(CALENDAR_ID, event);
+
+    Object attendeeId = attendeeDelegate.find(eventId, EMAIL);
+
+    assertThat(attendeeId).isNull();
+    assertThat(testCalendarProvider.getApplyBatchCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void sharedBatch_createsCalendarWithFewerRoundTrips() {
+    createCalendar(
+        new ContentOperationBatch(
+            loggerFactory, resolver, ContentOperationBatch.DEFAULT_MAX_OPERATIONS));
+    int batchedRoundTrips = testCalendarProvider.getApplyBatchCount();
+    List<ProviderCall> batchedCalls = ImmutableList.copyOf(testCalendarProvider.getCalls());
+
+    createCalendar(new ContentOperationBatch(loggerFactory, resolver, /* maxOperations= */ 1));
+    int unbatchedRoundTrips = testCalendarProvider.getApplyBatchCount() - batchedRoundTrips;
+
+    int rows = 1 + EVENT_COUNT * (1 + ATTENDEES_PER_EVENT);
+    assertThat(batchedCalls).hasSize(rows);
+    assertThat(batchedRoundTrips).isEqualTo(1);
+    assertThat(unbatchedRoundTrips).isEqualTo(rows);
+    for (ProviderCall call : batchedCalls) {
+      assertThat(call.getType()).isEqualTo(MethodType.INSERT);
+      if (call.getUri().getPath().equals(Attendees.CONTENT_URI.getPath())) {
+        assertThat(call.getValues().getAsLong(Attendees.EVENT_ID)).isEqualTo(1L);
+      }
+    }
+  }
+
+  /** Creates a calendar with events and attendees the way the replica does. */
+  private void createCalendar(ContentOperationBatch sharedBatch) {
+    CalendarContentDelegate calendarDelegate =
+        new CalendarContentDelegate(loggerFactory, resolver, sharedBatch, ContentOwnership.REPLICA);
+    EventContentDelegate eventDelegate =
+        new EventContentDelegate(
+            loggerFactory, resolver, sharedBatch, ContentOwnership.REPLICA, TIME_RANGE);
+    AttendeeContentDelegate attendeeDelegate =
+        new AttendeeContentDelegate(loggerFactory, resolver, sharedBatch);
+
+    Object calendarId =
+        calendarDelegate.insert(DEVICE_ID, Calendar.newBuilder().setKey("calendar").build());
+    for (int i = 0; i < EVENT_COUNT; i++) {
+      Event event = Event.newBuilder().setKey(EventContentDelegate.createSingleKey(i)).build();
+      Object eventId = eventDelegate.insert(calendarId, event);
+      for (int j = 0; j < ATTENDEES_PER_EVENT; j++) {
+        attendeeDelegate.insert(
+            eventId, Attendee.newBuilder().setEmail("attendee" + j + "@example.com").build());
+      }
+    }
+    calendarDelegate.flush();
+  }
+}
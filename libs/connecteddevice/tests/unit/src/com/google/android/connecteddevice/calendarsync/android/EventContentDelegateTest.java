@@ -23,6 +23,7 @@ import com.google.android.connecteddevice.calendarsync.Color;
 import com.google.android.connecteddevice.calendarsync.Event;
 import com.google.android.connecteddevice.calendarsync.Event.Status;
 import com.google.android.connecteddevice.calendarsync.TimeZone;
+import com.google.android.connecteddevice.calendarsync.android.ContentOperationBatch.PendingId;
 import com.google.android.connecteddevice.calendarsync.android.TestCalendarProvider.ProviderCall;
 import com.google.android.connecteddevice.calendarsync.android.TestCalendarProvider.ProviderCall.MethodType;
 import com.google.android.connecteddevice.calendarsync.common.CommonLogger;
@@ -169,8 +170,10 @@ public class EventContentDelegateTest {
     Event event = createTestEvent();
 
     Object insertedId = delegate.insert(CALENDAR_ID, event);
+    delegate.flush();
 
-    assertThat(insertedId).isEqualTo(1); // Hard coded result from TestConProvider.
+    // Hard coded result from TestConProvider.
+    assertThat(((PendingId) insertedId).getId()).isEqualTo(1);
     ProviderCall expected = new ProviderCall(MethodType.INSERT, Events.CONTENT_URI);
     expected.setValues(createExpectedContentValues());
     ProviderCall call = getOnlyElement(testCalendarProvider.getCalls());
@@ -183,8 +186,10 @@ public class EventContentDelegateTest {
     Event event = createTestEvent();
 
     Object insertedId = delegate.insert(CALENDAR_ID, event);
+    delegate.flush();
 
-    assertThat(insertedId).isEqualTo(1); // Hard coded result from TestConProvider.
+    // Hard coded result from TestConProvider.
+    assertThat(((PendingId) insertedId).getId()).isEqualTo(1);
     ProviderCall expected =
         new ProviderCall(MethodType.INSERT, addSyncAdapterParameters(Events.CONTENT_URI));
     ContentValues expectedContentValues = createExpectedContentValues();
@@ -199,6 +204,7 @@ public class EventContentDelegateTest {
     EventContentDelegate delegate = createEventContentDelegate(ContentOwnership.SOURCE);
 
     delegate.delete(CALENDAR_ID, KEY);
+    delegate.flush();
 
     ProviderCall expected = new ProviderCall(MethodType.DELETE, Events.CONTENT_URI);
     expected.setSelection(
@@ -213,6 +219,7 @@ public class EventContentDelegateTest {
     EventContentDelegate delegate = createEventContentDelegate(ContentOwnership.REPLICA);
 
     delegate.delete(CALENDAR_ID, KEY);
+    delegate.flush();
 
     ProviderCall expected =
         new ProviderCall(MethodType.DELETE, addSyncAdapterParameters(Events.CONTENT_URI));
@@ -227,6 +234,7 @@ public class EventContentDelegateTest {
     EventContentDelegate delegate = createEventContentDelegate(ContentOwnership.REPLICA);
 
     delegate.deleteAll(CALENDAR_ID);
+    delegate.flush();
 
     Uri expectedUri = addSyncAdapterParameters(Events.CONTENT_URI);
     ProviderCall expected = new ProviderCall(MethodType.DELETE, expectedUri);
@@ -241,6 +249,7 @@ public class EventContentDelegateTest {
     Event event = createTestEvent();
 
     delegate.update(CALENDAR_ID, KEY, event);
+    delegate.flush();
 
     ProviderCall expected = new ProviderCall(MethodType.UPDATE, Events.CONTENT_URI);
     expected.setSelection(
@@ -257,6 +266,7 @@ public class EventContentDelegateTest {
     Event event = createTestEvent();
 
     delegate.update(CALENDAR_ID, KEY, event);
+    delegate.flush();
 
     ProviderCall expected =
         new ProviderCall(MethodType.UPDATE, addSyncAdapterParameters(Events.CONTENT_URI));
@@ -315,6 +325,7 @@ public class EventContentDelegateTest {
     Event recurringEvent = createTestEvent().toBuilder().setKey(recurringKey).build();
 
     delegate.update(CALENDAR_ID, recurringKey, recurringEvent);
+    delegate.flush();
 
     Uri.Builder expectedUriBuilder = Events.CONTENT_EXCEPTION_URI.buildUpon();
     ContentUris.appendId(expectedUriBuilder, ID);
@@ -345,6 +356,7 @@ public class EventContentDelegateTest {
     Event recurringEvent = createTestEvent().toBuilder().setKey(recurringKey).build();
 
     delegate.update(CALENDAR_ID, recurringKey, recurringEvent);
+    delegate.flush();
 
     Uri expectedContentUri = addSyncAdapterParameters(Events.CONTENT_URI);
     ProviderCall expected = new ProviderCall(MethodType.UPDATE, expectedContentUri);
@@ -362,9 +374,9 @@ public class EventContentDelegateTest {
     EventContentDelegate delegate = createEventContentDelegate(SOURCE);
     String recurringKey = EventContentDelegate.createRecurringKey(ID, BEGIN_TIME);
 
-    boolean deleted = delegate.delete(CALENDAR_ID, recurringKey);
+    delegate.delete(CALENDAR_ID, recurringKey);
+    delegate.flush();
 
-    assertThat(deleted).isTrue();
     Uri.Builder expectedUriBuilder = Events.CONTENT_EXCEPTION_URI.buildUpon();
     ContentUris.appendId(expectedUriBuilder, ID);
     Uri expectedUri = expectedUriBuilder.build();
@@ -384,9 +396,9 @@ public class EventContentDelegateTest {
     EventContentDelegate delegate = createEventContentDelegate(REPLICA);
     String recurringKey = EventContentDelegate.createRecurringKey(ID, BEGIN_TIME);
 
-    boolean deleted = delegate.delete(CALENDAR_ID, recurringKey);
+    delegate.delete(CALENDAR_ID, recurringKey);
+    delegate.flush();
 
-    assertThat(deleted).isTrue();
     Uri expectedContentUri = addSyncAdapterParameters(Events.CONTENT_URI);
     ProviderCall expected = new ProviderCall(MethodType.DELETE, expectedContentUri);
     expected.setSelection(
@@ -404,6 +416,7 @@ public class EventContentDelegateTest {
     Event exceptionEvent = createTestEvent().toBuilder().setKey(exceptionKey).build();
 
     delegate.insert(CALENDAR_ID, exceptionEvent);
+    delegate.flush();
 
     ProviderCall deleteCall = testCalendarProvider.getCalls().get(0);
     Uri expectedDeleteUri = addSyncAdapterParameters(Events.CONTENT_URI);
@@ -432,9 +445,10 @@ public class EventContentDelegateTest {
     testCalendarProvider.addRow(TEST_COLUMN_VALUES);
 
     Object id = delegate.find(CALENDAR_ID, recurringKey);
+    delegate.flush();
 
     // The returned id is the dummy value returned by TestCalendarProvider.insert().
-    assertThat(id).isEqualTo(1);
+    assertThat(((PendingId) id).getId()).isEqualTo(1);
     Uri.Builder expectedInsertUriBuilder = Events.CONTENT_EXCEPTION_URI.buildUpon();
     ContentUris.appendId(expectedInsertUriBuilder, ID);
     Uri expectedInsertUri = expectedInsertUriBuilder.build();
@@ -3,8 +3,11 @@ package com.google.android.connecteddevice.calendarsync.android;
 import static com.google.common.truth.Truth.assertThat;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MatrixCursor.RowBuilder;
@@ -31,6 +34,7 @@ public class TestCalendarProvider extends ContentProvider {
 
   private MatrixCursor cursor;
   private final List<ProviderCall> calls = new ArrayList<>();
+  private int applyBatchCount = 0;
 
   /** Hold details of a single call to a method. */
   public static class ProviderCall {
@@ -171,6 +175,18 @@ public class TestCalendarProvider extends ContentProvider {
     return calls;
   }
 
+  /** Gets the number of times {@link #applyBatch(ArrayList)} was called. */
+  public int getApplyBatchCount() {
+    return applyBatchCount;
+  }
+
+  @Override
+  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    applyBatchCount++;
+    return super.applyBatch(operations);
+  }
+
   @Override
   public Cursor query(
       Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
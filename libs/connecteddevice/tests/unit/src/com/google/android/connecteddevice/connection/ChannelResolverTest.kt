@@ -36,6 +36,7 @@ import com.google.android.connecteddevice.transport.ProtocolDevice
 import com.google.android.encryptionrunner.FakeEncryptionRunner
 import com.google.common.truth.Truth.assertThat
 import java.util.UUID
+import kotlinx.coroutines.test.StandardTestDispatcher
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
@@ -46,6 +47,7 @@ import org.mockito.kotlin.argumentCaptor
 import org.mockito.kotlin.doReturn
 import org.mockito.kotlin.eq
 import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
 import org.mockito.kotlin.spy
 import org.mockito.kotlin.stub
 import org.mockito.kotlin.validateMockitoUsage
@@ -72,6 +74,7 @@ class ChannelResolverTest {
   private var mockEncryptionRunner = mock<FakeEncryptionRunner>()
   private val testDevice1 = ProtocolDevice(testProtocol1, TEST_PROTOCOL_ID_1)
   private val testDevice2 = ProtocolDevice(testProtocol2, TEST_PROTOCOL_ID_2)
+  private val testDispatcher = StandardTestDispatcher()
   private lateinit var mockStorage: ConnectedDeviceStorage
   private lateinit var channelResolver: ChannelResolver
 
@@ -89,6 +92,7 @@ class ChannelResolverTest {
         mockCallback,
         mockStreamFactory,
         mockEncryptionRunner,
+        testDispatcher,
       )
   }
 
@@ -184,6 +188,7 @@ class ChannelResolverTest {
         TEST_CHALLENGE,
       )
     mockStream.messageReceivedListener?.onMessageReceived(validChallengeMessage)
+    testDispatcher.scheduler.advanceUntilIdle()
     argumentCaptor<DeviceMessage> {
       verify(mockStream).sendMessage(capture())
       assertThat(firstValue.operationType).isEqualTo(OperationType.ENCRYPTION_HANDSHAKE)
@@ -208,6 +213,30 @@ class ChannelResolverTest {
         TEST_CHALLENGE,
       )
     mockStream.messageReceivedListener?.onMessageReceived(validChallengeMessage)
+    testDispatcher.scheduler.advanceUntilIdle()
+    verify(mockCallback).onChannelResolved(any())
+  }
+
+  @Test
+  fun receivedValidChallenge_challengeResponseComputedOffCallbackThread() {
+    channelResolver.resolveReconnect(TEST_DEVICE_ID, TEST_CHALLENGE)
+    channelResolver.addProtocolDevice(testDevice2)
+    argumentCaptor<IDataReceivedListener>().apply {
+      verify(testProtocol2).registerDataReceivedListener(eq(TEST_PROTOCOL_ID_2), capture())
+      firstValue.onDataReceived(TEST_PROTOCOL_ID_2, createVersionMessage())
+    }
+    val validChallengeMessage =
+      DeviceMessage.createOutgoingMessage(
+        /* recipient= */ null,
+        /* isMessageEncrypted= */ false,
+        OperationType.ENCRYPTION_HANDSHAKE,
+        TEST_CHALLENGE,
+      )
+    mockStream.messageReceivedListener?.onMessageReceived(validChallengeMessage)
+    verify(mockStream, never()).sendMessage(any())
+    verify(mockCallback, never()).onChannelResolved(any())
+
+    testDispatcher.scheduler.advanceUntilIdle()
     verify(mockCallback).onChannelResolved(any())
   }
 
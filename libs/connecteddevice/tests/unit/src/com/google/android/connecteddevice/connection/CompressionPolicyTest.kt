@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.connecteddevice.connection
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import java.util.UUID
+import java.util.zip.Deflater
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val MIN_MESSAGE_SIZE = 64
+private const val MESSAGE_SIZE = 1000
+private const val FAILURE_THRESHOLD = 3
+private const val MAX_BACKOFF_MESSAGES = 4
+private const val MAX_NANOS_PER_SAVED_BYTE = 1_000L
+
+@RunWith(AndroidJUnit4::class)
+class CompressionPolicyTest {
+  private val recipient = UUID.randomUUID()
+  private val policy =
+    CompressionPolicy(
+      minMessageSize = MIN_MESSAGE_SIZE,
+      maxNanosPerSavedByte = MAX_NANOS_PER_SAVED_BYTE,
+      failureThreshold = FAILURE_THRESHOLD,
+      maxBackoffMessages = MAX_BACKOFF_MESSAGES,
+    )
+
+  @Test
+  fun levelFor_skipsMessagesBelowMinimumSize() {
+    assertThat(policy.levelFor(recipient, MIN_MESSAGE_SIZE - 1)).isNull()
+    assertThat(policy.levelFor(recipient, MIN_MESSAGE_SIZE)).isEqualTo(Deflater.BEST_COMPRESSION)
+    assertThat(policy.statsFor(recipient).skippedMessages).isEqualTo(1)
+  }
+
+  @Test
+  fun onMessageCompressed_lowersLevelWhenCompressionIsExpensive() {
+    val savedBytes = MESSAGE_SIZE / 2
+    val expensiveNanos = savedBytes * MAX_NANOS_PER_SAVED_BYTE * 2
+
+    policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE - savedBytes, expensiveNanos)
+    policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE - savedBytes, expensiveNanos)
+
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isEqualTo(Deflater.BEST_COMPRESSION - 2)
+  }
+
+  @Test
+  fun onMessageCompressed_keepsLevelWhenMeasuredTransmitIsSlower() {
+    val savedBytes = MESSAGE_SIZE / 2
+    val expensiveNanos = savedBytes * MAX_NANOS_PER_SAVED_BYTE * 2
+
+    policy.onMessageCompressed(
+      recipient,
+      MESSAGE_SIZE,
+      MESSAGE_SIZE - savedBytes,
+      expensiveNanos,
+      transmitNanosPerByte = MAX_NANOS_PER_SAVED_BYTE * 4.0,
+    )
+
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isEqualTo(Deflater.BEST_COMPRESSION)
+  }
+
+  @Test
+  fun onMessageCompressed_lowersLevelWhenMeasuredTransmitIsFaster() {
+    val savedBytes = MESSAGE_SIZE / 2
+    val affordableNanos = savedBytes * MAX_NANOS_PER_SAVED_BYTE / 2
+
+    policy.onMessageCompressed(
+      recipient,
+      MESSAGE_SIZE,
+      MESSAGE_SIZE - savedBytes,
+      affordableNanos,
+      transmitNanosPerByte = MAX_NANOS_PER_SAVED_BYTE / 4.0,
+    )
+
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isEqualTo(Deflater.BEST_COMPRESSION - 1)
+  }
+
+  @Test
+  fun onMessageCompressed_neverLowersLevelBelowBestSpeed() {
+    repeat(Deflater.BEST_COMPRESSION + 1) {
+      policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE / 2, Long.MAX_VALUE)
+    }
+
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isEqualTo(Deflater.BEST_SPEED)
+  }
+
+  @Test
+  fun onMessageCompressed_raisesLevelWhenCompressionIsCheapAgain() {
+    repeat(Deflater.BEST_COMPRESSION) {
+      policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE / 2, Long.MAX_VALUE)
+    }
+
+    policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE / 2, elapsedNanos = 0)
+
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isEqualTo(Deflater.BEST_SPEED + 1)
+  }
+
+  @Test
+  fun onMessageCompressed_backsOffAfterRepeatedFailures() {
+    repeat(FAILURE_THRESHOLD) { recordIncompressibleMessage() }
+
+    assertThat(policy.statsFor(recipient).isBackingOff).isTrue()
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isNull()
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isNotNull()
+  }
+
+  @Test
+  fun onMessageCompressed_doublesBackoffUpToMaximum() {
+    val backoffLengths = mutableListOf<Int>()
+    repeat(4) {
+      repeat(FAILURE_THRESHOLD) { recordIncompressibleMessage() }
+      var skipped = 0
+      while (policy.levelFor(recipient, MESSAGE_SIZE) == null) {
+        skipped++
+      }
+      backoffLengths.add(skipped)
+    }
+
+    assertThat(backoffLengths).containsExactly(1, 2, 4, MAX_BACKOFF_MESSAGES).inOrder()
+  }
+
+  @Test
+  fun onMessageCompressed_successResetsBackoff() {
+    repeat(FAILURE_THRESHOLD) { recordIncompressibleMessage() }
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isNull()
+
+    policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE / 2, elapsedNanos = 0)
+    repeat(FAILURE_THRESHOLD) { recordIncompressibleMessage() }
+
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isNull()
+    assertThat(policy.levelFor(recipient, MESSAGE_SIZE)).isNotNull()
+  }
+
+  @Test
+  fun onMessageCompressed_backoffIsPerRecipient() {
+    repeat(FAILURE_THRESHOLD) { recordIncompressibleMessage() }
+
+    assertThat(policy.levelFor(UUID.randomUUID(), MESSAGE_SIZE)).isNotNull()
+    assertThat(policy.levelFor(/* recipient= */ null, MESSAGE_SIZE)).isNotNull()
+  }
+
+  @Test
+  fun statsFor_reportsRatioAndTime() {
+    policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE / 4, elapsedNanos = 10)
+    policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE * 2, elapsedNanos = 20)
+
+    val stats = policy.statsFor(recipient)
+
+    assertThat(stats.compressedMessages).isEqualTo(2)
+    assertThat(stats.originalBytes).isEqualTo(2L * MESSAGE_SIZE)
+    assertThat(stats.compressedBytes).isEqualTo(MESSAGE_SIZE / 4L + MESSAGE_SIZE)
+    assertThat(stats.compressionRatio).isWithin(0.001).of(0.625)
+    assertThat(stats.compressionNanos).isEqualTo(30L)
+  }
+
+  @Test
+  fun statsFor_unknownRecipientHasNoMessages() {
+    val stats = policy.statsFor(UUID.randomUUID())
+
+    assertThat(stats.compressedMessages).isEqualTo(0)
+    assertThat(stats.skippedMessages).isEqualTo(0)
+    assertThat(stats.compressionRatio).isEqualTo(1.0)
+  }
+
+  private fun recordIncompressibleMessage() {
+    policy.onMessageCompressed(recipient, MESSAGE_SIZE, MESSAGE_SIZE, elapsedNanos = 0)
+  }
+}
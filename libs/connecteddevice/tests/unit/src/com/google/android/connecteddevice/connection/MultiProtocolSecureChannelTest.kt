@@ -20,6 +20,8 @@ import android.os.ParcelUuid
 import android.util.Base64
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.android.companionprotos.DeviceMessageProto.Message
+import com.google.android.companionprotos.PacketProto.Packet
 import com.google.android.companionprotos.VerificationCode
 import com.google.android.companionprotos.VerificationCodeState
 import com.google.android.connecteddevice.connection.MultiProtocolSecureChannel.ChannelError
@@ -39,21 +41,34 @@ import com.google.android.connecteddevice.util.ByteUtils
 import com.google.android.encryptionrunner.EncryptionRunnerFactory
 import com.google.android.encryptionrunner.FakeEncryptionRunner
 import com.google.android.encryptionrunner.HandshakeException
+import com.google.android.encryptionrunner.HandshakeMessage
+import com.google.android.encryptionrunner.HandshakeMessage.HandshakeState
+import com.google.android.encryptionrunner.Key
 import com.google.common.truth.Truth.assertThat
 import com.google.protobuf.ByteString
 import java.security.SignatureException
 import java.util.UUID
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import java.util.zip.DataFormatException
 import java.util.zip.Inflater
+import kotlin.concurrent.thread
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
 import org.junit.Assert.fail
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.kotlin.any
 import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.doAnswer
 import org.mockito.kotlin.doReturn
 import org.mockito.kotlin.eq
+import org.mockito.kotlin.inOrder
 import org.mockito.kotlin.mock
 import org.mockito.kotlin.never
 import org.mockito.kotlin.spy
@@ -64,6 +79,7 @@ import org.mockito.kotlin.whenever
 
 private const val PROTOCOL_ID_1 = "testProtocol1"
 private const val PROTOCOL_ID_2 = "testProtocol2"
+private const val STORAGE_LATENCY_MS = 50L
 
 @RunWith(AndroidJUnit4::class)
 class MultiProtocolSecureChannelTest {
@@ -74,6 +90,7 @@ class MultiProtocolSecureChannelTest {
   private val mockCallback: MultiProtocolSecureChannel.Callback = mock()
   private val mockOobRunner: OobRunner = mock()
   private val mockShowVerificationCodeListener: ShowVerificationCodeListener = mock()
+  private val testDispatcher = StandardTestDispatcher()
 
   private lateinit var secureChannel: MultiProtocolSecureChannel
   private lateinit var spied: MultiProtocolSecureChannel
@@ -292,6 +309,74 @@ class MultiProtocolSecureChannelTest {
     assertThat(deviceMessage.message).isEqualTo(message)
   }
 
+  @Test
+  fun compressMessage_skipsMessagesBelowMinimumSize() {
+    completeHandshakeAndSaveTheKey()
+    val recipient = UUID.randomUUID()
+
+    val message = ByteArray(CompressionPolicy.DEFAULT_MIN_MESSAGE_SIZE - 1)
+    val deviceMessage =
+      DeviceMessage.createOutgoingMessage(
+        recipient,
+        /* isMessageEncrypted= */ false,
+        OperationType.CLIENT_MESSAGE,
+        message,
+      )
+    secureChannel.compressMessage(deviceMessage)
+
+    assertThat(deviceMessage.message).isEqualTo(message)
+    assertThat(deviceMessage.originalMessageSize).isEqualTo(0)
+    val stats = secureChannel.getCompressionStats(recipient)
+    assertThat(stats.skippedMessages).isEqualTo(1)
+    assertThat(stats.compressedMessages).isEqualTo(0)
+  }
+
+  @Test
+  fun compressMessage_backsOffForIncompressiblePayloads() {
+    completeHandshakeAndSaveTheKey()
+    val recipient = UUID.randomUUID()
+
+    repeat(CompressionPolicy.DEFAULT_FAILURE_THRESHOLD + 1) {
+      val deviceMessage =
+        DeviceMessage.createOutgoingMessage(
+          recipient,
+          /* isMessageEncrypted= */ false,
+          OperationType.CLIENT_MESSAGE,
+          ByteUtils.randomBytes(1000),
+        )
+      secureChannel.compressMessage(deviceMessage)
+      assertThat(deviceMessage.originalMessageSize).isEqualTo(0)
+    }
+
+    val stats = secureChannel.getCompressionStats(recipient)
+    assertThat(stats.compressedMessages).isEqualTo(CompressionPolicy.DEFAULT_FAILURE_THRESHOLD)
+    assertThat(stats.skippedMessages).isEqualTo(1)
+    assertThat(stats.compressionRatio).isEqualTo(1.0)
+  }
+
+  @Test
+  fun compressMessage_recordsStatsPerRecipient() {
+    completeHandshakeAndSaveTheKey()
+    val recipient = UUID.randomUUID()
+
+    val deviceMessage =
+      DeviceMessage.createOutgoingMessage(
+        recipient,
+        /* isMessageEncrypted= */ false,
+        OperationType.CLIENT_MESSAGE,
+        ByteArray(1000),
+      )
+    secureChannel.compressMessage(deviceMessage)
+
+    val stats = secureChannel.getCompressionStats(recipient)
+    assertThat(stats.compressedMessages).isEqualTo(1)
+    assertThat(stats.originalBytes).isEqualTo(1000L)
+    assertThat(stats.compressedBytes).isEqualTo(deviceMessage.message.size.toLong())
+    assertThat(stats.compressionRatio).isLessThan(0.1)
+    assertThat(secureChannel.getCompressionStats(UUID.randomUUID()).compressedMessages)
+      .isEqualTo(0)
+  }
+
   @Test
   fun addStream_notifyCallbackWhenMessageReceived() {
     completeHandshakeAndSaveTheKey()
@@ -339,6 +424,116 @@ class MultiProtocolSecureChannelTest {
       .onEstablishSecureChannelFailure(ChannelError.CHANNEL_ERROR_DEVICE_DISCONNECTED)
   }
 
+  @Test
+  fun protocolDisconnect_resendsUnsentMessagesOnRemainingStream() {
+    val protocol1 = UnconfirmedProtocol()
+    val protocol2 = UnconfirmedProtocol()
+    val firstStream =
+      ProtocolStream(ProtocolDevice(protocol1, PROTOCOL_ID_1), maxPacketsInFlight = 1)
+    val secondStream =
+      ProtocolStream(ProtocolDevice(protocol2, PROTOCOL_ID_2), maxPacketsInFlight = 4)
+    completeHandshakeAndSaveTheKey(firstStream)
+    secureChannel.addStream(secondStream)
+    val deviceMessage =
+      DeviceMessage.createOutgoingMessage(
+        UUID.randomUUID(),
+        /* isMessageEncrypted= */ true,
+        OperationType.CLIENT_MESSAGE,
+        ByteUtils.randomBytes(10),
+      )
+    secureChannel.sendClientMessage(deviceMessage)
+    assertThat(protocol2.sentMessages()).isEmpty()
+
+    protocol1.disconnectDevice(PROTOCOL_ID_1)
+
+    assertThat(protocol2.sentMessages().map { it.payload.toByteArray() })
+      .contains(deviceMessage.message)
+  }
+
+  @Test
+  fun sendClientMessage_transmitsInSequenceOrderWhenEncryptionFinishesOutOfOrder() {
+    val firstEncryptionStarted = CountDownLatch(1)
+    val finishFirstEncryption = CountDownLatch(1)
+    completeHandshakeWithKey(
+      SequencingKey { sequenceNumber ->
+        if (sequenceNumber == 1) {
+          firstEncryptionStarted.countDown()
+          finishFirstEncryption.await(5, TimeUnit.SECONDS)
+        }
+      }
+    )
+    val firstMessage = createClientMessage()
+    val secondMessage = createClientMessage()
+
+    val sender = thread { secureChannel.sendClientMessage(firstMessage) }
+    assertThat(firstEncryptionStarted.await(5, TimeUnit.SECONDS)).isTrue()
+    assertThat(secureChannel.sendClientMessage(secondMessage)).isTrue()
+    verify(stream1, never()).sendMessage(secondMessage)
+    finishFirstEncryption.countDown()
+    sender.join()
+
+    inOrder(stream1) {
+      verify(stream1).sendMessage(firstMessage)
+      verify(stream1).sendMessage(secondMessage)
+    }
+  }
+
+  @Test
+  fun onDeviceMessageReceived_decryptsWhileEncryptionInProgress() {
+    val encryptionStarted = CountDownLatch(1)
+    val finishEncryption = CountDownLatch(1)
+    completeHandshakeWithKey(
+      SequencingKey {
+        encryptionStarted.countDown()
+        finishEncryption.await(5, TimeUnit.SECONDS)
+      }
+    )
+    val sender = thread { secureChannel.sendClientMessage(createClientMessage()) }
+    assertThat(encryptionStarted.await(5, TimeUnit.SECONDS)).isTrue()
+
+    val payload = ByteUtils.randomBytes(10)
+    secureChannel.onDeviceMessageReceived(createEncryptedClientMessage(payload))
+
+    assertThat(sender.isAlive).isTrue()
+    val captor = argumentCaptor<DeviceMessage>()
+    verify(mockCallback).onMessageReceived(captor.capture())
+    assertThat(captor.firstValue.message).isEqualTo(payload)
+    finishEncryption.countDown()
+    sender.join()
+  }
+
+  @Test
+  fun onDeviceMessageReceived_processesMessagesOneAtATimeInArrivalOrder() {
+    val firstPayload = ByteUtils.randomBytes(10)
+    val secondPayload = ByteUtils.randomBytes(10)
+    val firstDecryptionStarted = CountDownLatch(1)
+    val finishFirstDecryption = CountDownLatch(1)
+    completeHandshakeWithKey(
+      SequencingKey(
+        onDecrypt = { decrypted ->
+          if (decrypted.contentEquals(firstPayload)) {
+            firstDecryptionStarted.countDown()
+            finishFirstDecryption.await(5, TimeUnit.SECONDS)
+          }
+        }
+      )
+    )
+
+    val receiver = thread {
+      secureChannel.onDeviceMessageReceived(createEncryptedClientMessage(firstPayload))
+    }
+    assertThat(firstDecryptionStarted.await(5, TimeUnit.SECONDS)).isTrue()
+    secureChannel.onDeviceMessageReceived(createEncryptedClientMessage(secondPayload))
+    verify(mockCallback, never()).onMessageReceived(any())
+    finishFirstDecryption.countDown()
+    receiver.join()
+
+    val captor = argumentCaptor<DeviceMessage>()
+    verify(mockCallback, times(2)).onMessageReceived(captor.capture())
+    assertThat(captor.firstValue.message).isEqualTo(firstPayload)
+    assertThat(captor.secondValue.message).isEqualTo(secondPayload)
+  }
+
   @Test
   fun requestDisconnect_notifiesAllStreams() {
     setupSecureChannel(isReconnect = true)
@@ -440,10 +635,28 @@ class MultiProtocolSecureChannelTest {
 
       secureChannel.notifyVerificationCodeAccepted()
       secureChannel.setDeviceIdDuringAssociation(clientId)
+      testDispatcher.scheduler.advanceUntilIdle()
       verify(mockStorage).saveEncryptionKey(eq(clientId.toString()), any())
       verify(mockCallback).onSecureChannelEstablished()
     }
 
+  @Test
+  fun association_saveKeyFails_issueInvalidKeyError() {
+    mockStorage.stub {
+      onBlocking { saveEncryptionKey(any(), any()) } doAnswer
+        {
+          throw IllegalStateException("Failed to write the key.")
+        }
+    }
+    completeHandshakeAndSaveTheKey()
+
+    secureChannel.setDeviceIdDuringAssociation(UUID.randomUUID())
+    testDispatcher.scheduler.advanceUntilIdle()
+
+    verify(mockCallback)
+      .onEstablishSecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_ENCRYPTION_KEY)
+  }
+
   @Test
   fun association_wrongInitHandshakeMessage_issueInvalidHandshakeError() {
     setupSecureChannel(isReconnect = false)
@@ -482,6 +695,37 @@ class MultiProtocolSecureChannelTest {
       verify(mockCallback).onSecureChannelEstablished()
     }
 
+  @Test
+  fun reconnect_storageAccessDoesNotBlockCallbackThread() {
+    val clientId = UUID.randomUUID().toString()
+    mockStorage.stub {
+      onBlocking { getEncryptionKey(clientId) } doAnswer
+        {
+          // Stands in for the database query and keystore decryption.
+          Thread.sleep(STORAGE_LATENCY_MS)
+          byteArrayOf()
+        }
+    }
+    val established = CountDownLatch(1)
+    doAnswer { established.countDown() }.whenever(mockCallback).onSecureChannelEstablished()
+    setupSecureChannel(
+      isReconnect = true,
+      clientId,
+      storageDispatcher = null,
+    )
+    initHandshakeMessage()
+    respondToContinueMessage()
+
+    val startNanos = System.nanoTime()
+    respondToResumeMessage()
+    val callbackThreadNanos = System.nanoTime() - startNanos
+    assertThat(established.await(1, TimeUnit.SECONDS)).isTrue()
+    val reconnectionNanos = System.nanoTime() - startNanos
+
+    assertThat(callbackThreadNanos).isLessThan(TimeUnit.MILLISECONDS.toNanos(STORAGE_LATENCY_MS))
+    assertThat(reconnectionNanos).isAtLeast(TimeUnit.MILLISECONDS.toNanos(STORAGE_LATENCY_MS))
+  }
+
   @Test
   fun reconnect_deviceIdNotSet_issueInvalidStateError() {
     setupSecureChannel(isReconnect = true)
@@ -504,6 +748,46 @@ class MultiProtocolSecureChannelTest {
       .onEstablishSecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_ENCRYPTION_KEY)
   }
 
+  @Test
+  fun reconnect_readKeyFails_issueInvalidKeyError() {
+    val clientId = UUID.randomUUID().toString()
+    mockStorage.stub {
+      onBlocking { getEncryptionKey(clientId) } doAnswer
+        {
+          throw IllegalStateException("Failed to read the key.")
+        }
+    }
+    setupSecureChannel(isReconnect = true, clientId)
+    initHandshakeMessage()
+    respondToContinueMessage()
+    respondToResumeMessage()
+
+    verify(mockCallback)
+      .onEstablishSecureChannelFailure(ChannelError.CHANNEL_ERROR_INVALID_ENCRYPTION_KEY)
+  }
+
+  @Test
+  fun storageDispatcherFor_devicesOnOtherDispatchersDoNotWaitForBlockedDevice() =
+    runBlocking<Unit> {
+      val blockedId = UUID.randomUUID().toString()
+      val blockedDispatcher = MultiProtocolSecureChannel.storageDispatcherFor(blockedId)
+      assertThat(MultiProtocolSecureChannel.storageDispatcherFor(blockedId))
+        .isSameInstanceAs(blockedDispatcher)
+      val otherDispatcher =
+        generateSequence { UUID.randomUUID().toString() }
+          .map { MultiProtocolSecureChannel.storageDispatcherFor(it) }
+          .first { it !== blockedDispatcher }
+      val release = CountDownLatch(1)
+      val blocked = launch(blockedDispatcher) { release.await() }
+
+      try {
+        withTimeout(TimeUnit.SECONDS.toMillis(1)) { withContext(otherDispatcher) {} }
+      } finally {
+        release.countDown()
+      }
+      blocked.join()
+    }
+
   @Test
   fun processHandshakeResumingSession_incorrectHandshakeState_issueInvalidStateError() {
     val clientId = UUID.randomUUID().toString()
@@ -695,22 +979,65 @@ class MultiProtocolSecureChannelTest {
     assertThat(verificationCodeMessage.state).isEqualTo(VerificationCodeState.VISUAL_CONFIRMATION)
   }
 
-  private fun setupSecureChannel(isReconnect: Boolean, deviceId: String? = null) {
+  private fun setupSecureChannel(
+    isReconnect: Boolean,
+    deviceId: String? = null,
+    stream: ProtocolStream = stream1,
+    storageDispatcher: CoroutineDispatcher? = testDispatcher,
+  ) {
     val encryptionRunner = EncryptionRunnerFactory.newFakeRunner()
     encryptionRunner.setIsReconnect(isReconnect)
     secureChannel =
       MultiProtocolSecureChannel(
-          stream1,
+          stream,
           mockStorage,
           encryptionRunner,
           mockOobRunner,
           deviceId = deviceId,
           inflater = mockInflater,
+          storageDispatcher = storageDispatcher,
         )
         .apply { callback = mockCallback }
     spied = spy(secureChannel)
   }
 
+  /** Completes association with a runner that establishes [key] as the session key. */
+  private fun completeHandshakeWithKey(key: Key) {
+    val encryptionRunner = spy(EncryptionRunnerFactory.newFakeRunner())
+    doReturn(
+        HandshakeMessage.newBuilder()
+          .setHandshakeState(HandshakeState.FINISHED)
+          .setKey(key)
+          .build()
+      )
+      .whenever(encryptionRunner)
+      .notifyPinVerified()
+    secureChannel =
+      MultiProtocolSecureChannel(stream1, mockStorage, encryptionRunner, mockOobRunner)
+        .apply { callback = mockCallback }
+    secureChannel.showVerificationCodeListener = mockShowVerificationCodeListener
+    initHandshakeMessage()
+    respondToContinueMessage()
+    secureChannel.notifyVerificationCodeAccepted()
+  }
+
+  private fun createClientMessage() =
+    DeviceMessage.createOutgoingMessage(
+      UUID.randomUUID(),
+      /* isMessageEncrypted= */ true,
+      OperationType.CLIENT_MESSAGE,
+      ByteUtils.randomBytes(10),
+    )
+
+  /** Creates a client message that [SequencingKey] decrypts to [payload]. */
+  private fun createEncryptedClientMessage(payload: ByteArray) =
+    DeviceMessage.createOutgoingMessage(
+      UUID.randomUUID(),
+      /* isMessageEncrypted= */ true,
+      OperationType.CLIENT_MESSAGE,
+      payload.reversedArray(),
+    )
+
   private fun initHandshakeMessage(message: ByteArray = FakeEncryptionRunner.INIT_MESSAGE) {
     val deviceMessage =
       DeviceMessage.createOutgoingMessage(
@@ -742,10 +1069,11 @@ class MultiProtocolSecureChannelTest {
         message,
       )
     secureChannel.onDeviceMessageReceived(deviceMessage)
+    testDispatcher.scheduler.advanceUntilIdle()
   }
 
-  private fun completeHandshakeAndSaveTheKey() {
-    setupSecureChannel(isReconnect = false)
+  private fun completeHandshakeAndSaveTheKey(stream: ProtocolStream = stream1) {
+    setupSecureChannel(isReconnect = false, stream = stream)
     secureChannel.showVerificationCodeListener = mockShowVerificationCodeListener
     initHandshakeMessage()
     respondToContinueMessage()
@@ -783,6 +1111,57 @@ private open class TestProtocol : ConnectionProtocol() {
   }
 }
 
+/**
+ * Key which numbers messages as they are sequenced and invokes [onEncrypt] with the number before
+ * encrypting each one by reversing it. Decrypting reverses the data back and invokes [onDecrypt]
+ * with the result.
+ */
+private class SequencingKey(
+  private val onDecrypt: (ByteArray) -> Unit = {},
+  private val onEncrypt: (Int) -> Unit = {},
+) : Key {
+  private var sequenceNumber = 0
+
+  override fun asBytes() = byteArrayOf()
+
+  override fun encryptData(data: ByteArray) = prepareEncryption(data).encrypt()
+
+  override fun prepareEncryption(data: ByteArray): Key.PendingEncryption {
+    val number = ++sequenceNumber
+    return Key.PendingEncryption {
+      onEncrypt(number)
+      data.reversedArray()
+    }
+  }
+
+  override fun decryptData(encryptedData: ByteArray) =
+    encryptedData.reversedArray().also { onDecrypt(it) }
+
+  override fun getUniqueSession() = byteArrayOf()
+}
+
+/** Protocol which never confirms writes and disconnects when asked to. */
+private class UnconfirmedProtocol : TestProtocol() {
+  private val sentPackets = mutableListOf<ByteArray>()
+
+  override fun sendData(protocolId: String, data: ByteArray, callback: IDataSendCallback?) {
+    sentPackets.add(data)
+  }
+
+  override fun disconnectDevice(protocolId: String) {
+    deviceDisconnectedListeners[protocolId]?.invoke { it.onDeviceDisconnected(protocolId) }
+  }
+
+  override fun getMaxWriteSize(protocolId: String) = 512
+
+  /** Returns the messages whose first packet was written. */
+  fun sentMessages(): List<Message> =
+    sentPackets
+      .map { Packet.parseFrom(it) }
+      .filter { it.packetNumber == 1 }
+      .map { Message.parseFrom(it.payload) }
+}
+
 private class Base64CryptoHelper : CryptoHelper {
   override fun encrypt(value: ByteArray?): String? = Base64.encodeToString(value, Base64.DEFAULT)
 
@@ -17,11 +17,16 @@
 package com.google.android.connecteddevice.connection;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.android.companionprotos.PacketProto.Packet;
+import com.google.protobuf.ByteString;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -159,6 +164,68 @@ public class PacketFactoryTest {
     assertThat(reconstructedPayload.toByteArray()).isEqualTo(payload);
   }
 
+  @Test
+  public void testMakePacketIterator_splitsPayloadIntoExpectedPackets() throws Exception {
+    byte[] payload = new byte[100];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) i;
+    }
+    int messageId = 1;
+    // A 50 byte packet has an 11 byte header: 5 bytes for the packet number and 2 bytes each for
+    // the total packets, message id and payload size. That leaves 39 bytes of payload per packet.
+    int maxSize = 50;
+    List<Packet> expectedPackets = new ArrayList<>();
+    expectedPackets.add(makePacket(messageId, /* packetNumber= */ 1, payload, 0, 39));
+    expectedPackets.add(makePacket(messageId, /* packetNumber= */ 2, payload, 39, 39));
+    expectedPackets.add(makePacket(messageId, /* packetNumber= */ 3, payload, 78, 22));
+
+    List<Packet> packets = new ArrayList<>();
+    Iterator<Packet> iterator = PacketFactory.makePacketIterator(payload, messageId, maxSize);
+    while (iterator.hasNext()) {
+      packets.add(iterator.next());
+    }
+
+    assertThat(packets).containsExactlyElementsIn(expectedPackets).inOrder();
+    assertThat(PacketFactory.makePackets(payload, messageId, maxSize))
+        .containsExactlyElementsIn(expectedPackets)
+        .inOrder();
+  }
+
+  @Test
+  public void testMakePacketIterator_packetsFitWithinMaxSize() throws Exception {
+    byte[] payload = makePayload(/* length= */ 10000);
+    int maxSize = 50;
+
+    Iterator<Packet> iterator =
+        PacketFactory.makePacketIterator(payload, /* messageId= */ 1, maxSize);
+
+    while (iterator.hasNext()) {
+      assertThat(iterator.next().toByteArray().length).isAtMost(maxSize);
+    }
+  }
+
+  @Test
+  public void testMakePacketIterator_throwsWhenExhausted() throws Exception {
+    byte[] payload = makePayload(/* length= */ 100);
+    Iterator<Packet> iterator =
+        PacketFactory.makePacketIterator(payload, /* messageId= */ 1, /* maxSize= */ 1000);
+    iterator.next();
+
+    assertThat(iterator.hasNext()).isFalse();
+    assertThrows(NoSuchElementException.class, iterator::next);
+  }
+
+  /** Creates the packet {@code packetNumber} of 3 with the given slice of {@code payload}. */
+  private static Packet makePacket(
+      int messageId, int packetNumber, byte[] payload, int offset, int length) {
+    return Packet.newBuilder()
+        .setPacketNumber(packetNumber)
+        .setTotalPackets(3)
+        .setMessageId(messageId)
+        .setPayload(ByteString.copyFrom(payload, offset, length))
+        .build();
+  }
+
   /** Creates a byte array of the given length, populated with random bytes. */
   private static byte[] makePayload(int length) {
     byte[] payload = new byte[length];
@@ -15,11 +15,14 @@
  */
 package com.google.android.connecteddevice.connection
 
+import android.os.DeadObjectException
 import android.os.ParcelUuid
+import android.os.RemoteException
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import com.google.android.companionprotos.DeviceMessageProto.Message
 import com.google.android.companionprotos.OperationProto.OperationType
 import com.google.android.companionprotos.PacketProto.Packet
+import com.google.android.connecteddevice.connection.ProtocolStream.Companion.toDeviceMessageProto
 import com.google.android.connecteddevice.connection.ProtocolStream.MessageReceivedListener
 import com.google.android.connecteddevice.connection.ProtocolStream.ProtocolDisconnectListener
 import com.google.android.connecteddevice.model.DeviceMessage
@@ -32,8 +35,11 @@ import com.google.android.connecteddevice.util.ByteUtils
 import com.google.common.truth.Truth
 import com.google.common.truth.Truth.assertThat
 import com.google.protobuf.ByteString
+import java.time.Duration
 import java.util.UUID
 import java.util.concurrent.ThreadLocalRandom
+import kotlin.concurrent.thread
+import org.junit.Assert.assertThrows
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.Mockito.spy
@@ -47,6 +53,14 @@ import org.mockito.kotlin.never
 
 private const val PROTOCOL_ID = "testDevice"
 private const val MAX_WRITE_SIZE = 185
+private const val WINDOW_SIZE = 4
+private const val SIMULATED_ROUND_TRIP_MS = 5L
+private const val THROUGHPUT_PACKET_COUNT = 40
+private const val REASSEMBLY_TIMEOUT_MS = 1_000L
+private const val CONFIRMATION_TIMEOUT_MS = 1_000L
+// Close to the default reassembly limit, and many more packets than are allocated up front.
+private const val LARGE_MESSAGE_SIZE = 3 * 1024 * 1024
+private const val LARGE_PACKET_SIZE = 64 * 1024
 
 @RunWith(AndroidJUnit4::class)
 class ProtocolStreamTest {
@@ -55,6 +69,8 @@ class ProtocolStreamTest {
 
   private val stream = ProtocolStream(ProtocolDevice(protocol, PROTOCOL_ID))
 
+  private var currentTime = 0L
+
   @Test
   fun sendMessage_smallMessageSendsSinglePacket() {
     val recipient = UUID.randomUUID()
@@ -238,7 +254,354 @@ class ProtocolStreamTest {
     verify(protocol).disconnectDevice(PROTOCOL_ID)
   }
 
-  private fun createPackets(data: ByteArray): List<Packet> {
+  @Test
+  fun onDataReceived_duplicateFinalPacketIsIgnored() {
+    val listener: MessageReceivedListener = mock()
+    stream.messageReceivedListener = listener
+    val packets = createPackets(ByteUtils.randomBytes(MAX_WRITE_SIZE + 1))
+
+    packets.forEach { protocol.receiveData(it.toByteArray()) }
+    protocol.receiveData(packets.last().toByteArray())
+
+    verify(listener).onMessageReceived(any())
+    verify(protocol, never()).disconnectDevice(PROTOCOL_ID)
+  }
+
+  @Test
+  fun onDataReceived_stalledMessageIsDroppedAfterTimeout() {
+    val reassemblingStream = createReassemblingStream(maxReassemblyBytes = MAX_WRITE_SIZE * 10)
+    val listener: MessageReceivedListener = mock()
+    reassemblingStream.messageReceivedListener = listener
+    val stalledPackets = createPackets(ByteUtils.randomBytes(MAX_WRITE_SIZE * 2))
+    val otherPackets = createPackets(ByteUtils.randomBytes(MAX_WRITE_SIZE / 2))
+
+    protocol.receiveData(stalledPackets.first().toByteArray())
+    currentTime += REASSEMBLY_TIMEOUT_MS + 1
+    protocol.receiveData(otherPackets.first().toByteArray())
+    stalledPackets.drop(1).forEach { protocol.receiveData(it.toByteArray()) }
+
+    assertThat(reassemblingStream.expiredDroppedMessages).isEqualTo(1L)
+    verify(listener).onMessageReceived(any())
+    verify(protocol, never()).disconnectDevice(PROTOCOL_ID)
+  }
+
+  @Test
+  fun onDataReceived_activeMessageIsNotDropped() {
+    val reassemblingStream = createReassemblingStream(maxReassemblyBytes = MAX_WRITE_SIZE * 10)
+    val listener: MessageReceivedListener = mock()
+    reassemblingStream.messageReceivedListener = listener
+    val packets = createPackets(ByteUtils.randomBytes(MAX_WRITE_SIZE * 2))
+
+    packets.forEach {
+      currentTime += REASSEMBLY_TIMEOUT_MS - 1
+      protocol.receiveData(it.toByteArray())
+    }
+
+    assertThat(reassemblingStream.expiredDroppedMessages).isEqualTo(0L)
+    verify(listener).onMessageReceived(any())
+  }
+
+  @Test
+  fun onDataReceived_reassemblyLimitDropsLeastRecentMessage() {
+    val reassemblingStream = createReassemblingStream(maxReassemblyBytes = MAX_WRITE_SIZE * 4)
+    val listener: MessageReceivedListener = mock()
+    reassemblingStream.messageReceivedListener = listener
+    val droppedPackets = createPackets(ByteUtils.randomBytes(MAX_WRITE_SIZE * 2))
+    val message = ByteUtils.randomBytes(MAX_WRITE_SIZE * 2)
+    val packets = createPackets(message)
+
+    protocol.receiveData(droppedPackets.first().toByteArray())
+    currentTime++
+    packets.forEach { protocol.receiveData(it.toByteArray()) }
+    droppedPackets.drop(1).forEach { protocol.receiveData(it.toByteArray()) }
+
+    assertThat(reassemblingStream.overflowDroppedMessages).isEqualTo(1L)
+    val captor = argumentCaptor<DeviceMessage>()
+    verify(listener).onMessageReceived(captor.capture())
+    assertThat(captor.firstValue.message).isEqualTo(message)
+    verify(protocol, never()).disconnectDevice(PROTOCOL_ID)
+  }
+
+  @Test
+  fun onDataReceived_messageLargerThanReassemblyLimitIsDroppedWithoutDisconnecting() {
+    val reassemblingStream = createReassemblingStream(maxReassemblyBytes = MAX_WRITE_SIZE)
+    val listener: MessageReceivedListener = mock()
+    reassemblingStream.messageReceivedListener = listener
+    val droppedPackets = createPackets(ByteUtils.randomBytes(MAX_WRITE_SIZE * 2))
+    val message = ByteUtils.randomBytes(MAX_WRITE_SIZE / 2)
+
+    droppedPackets.forEach { protocol.receiveData(it.toByteArray()) }
+    createPackets(message).forEach { protocol.receiveData(it.toByteArray()) }
+
+    assertThat(reassemblingStream.overflowDroppedMessages).isEqualTo(1L)
+    val captor = argumentCaptor<DeviceMessage>()
+    verify(listener).onMessageReceived(captor.capture())
+    assertThat(captor.firstValue.message).isEqualTo(message)
+    verify(protocol, never()).disconnectDevice(PROTOCOL_ID)
+  }
+
+  @Test
+  fun onDataReceived_firstPacketOnlyReservesItsInitialBuffer() {
+    val reassemblingStream = createReassemblingStream(maxReassemblyBytes = MAX_WRITE_SIZE * 10)
+    val listener: MessageReceivedListener = mock()
+    reassemblingStream.messageReceivedListener = listener
+    val longMessage = ByteUtils.randomBytes(MAX_WRITE_SIZE * 9)
+    val longPackets = createPackets(longMessage)
+    val shortMessage = ByteUtils.randomBytes(MAX_WRITE_SIZE + 1)
+
+    // Reserving the whole long message would leave no room for the short one.
+    protocol.receiveData(longPackets.first().toByteArray())
+    currentTime++
+    createPackets(shortMessage).forEach { protocol.receiveData(it.toByteArray()) }
+    longPackets.drop(1).forEach { protocol.receiveData(it.toByteArray()) }
+
+    assertThat(reassemblingStream.overflowDroppedMessages).isEqualTo(0L)
+    val captor = argumentCaptor<DeviceMessage>()
+    verify(listener, times(2)).onMessageReceived(captor.capture())
+    assertThat(captor.allValues.map { it.message })
+      .containsExactly(shortMessage, longMessage)
+      .inOrder()
+  }
+
+  @Test
+  fun onDataReceived_largeMessageWithinDefaultLimitIsReceived() {
+    val listener: MessageReceivedListener = mock()
+    stream.messageReceivedListener = listener
+    val message = ByteUtils.randomBytes(LARGE_MESSAGE_SIZE)
+
+    createPackets(message, LARGE_PACKET_SIZE).forEach { protocol.receiveData(it.toByteArray()) }
+
+    val captor = argumentCaptor<DeviceMessage>()
+    verify(listener).onMessageReceived(captor.capture())
+    assertThat(captor.firstValue.message).isEqualTo(message)
+    assertThat(stream.overflowDroppedMessages).isEqualTo(0L)
+    verify(protocol, never()).disconnectDevice(PROTOCOL_ID)
+  }
+
+  @Test
+  fun sendMessage_windowOfOneWaitsForConfirmationBeforeNextPacket() {
+    val ackProtocol = ManualAckProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(ackProtocol, PROTOCOL_ID), maxPacketsInFlight = 1)
+
+    windowedStream.sendMessage(createOutgoingMessage(MAX_WRITE_SIZE * 3))
+    assertThat(ackProtocol.sentPackets).hasSize(1)
+
+    ackProtocol.confirm(0)
+    assertThat(ackProtocol.sentPackets).hasSize(2)
+  }
+
+  @Test
+  fun sendMessage_writesUpToWindowBeforeConfirmation() {
+    val ackProtocol = ManualAckProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(ackProtocol, PROTOCOL_ID), maxPacketsInFlight = WINDOW_SIZE)
+
+    windowedStream.sendMessage(createOutgoingMessage(MAX_WRITE_SIZE * WINDOW_SIZE * 2))
+
+    assertThat(ackProtocol.sentPackets).hasSize(WINDOW_SIZE)
+  }
+
+  @Test
+  fun sendMessage_outOfOrderConfirmationDoesNotAdvanceWindow() {
+    val ackProtocol = ManualAckProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(ackProtocol, PROTOCOL_ID), maxPacketsInFlight = WINDOW_SIZE)
+    windowedStream.sendMessage(createOutgoingMessage(MAX_WRITE_SIZE * WINDOW_SIZE * 2))
+
+    ackProtocol.confirm(1)
+    assertThat(ackProtocol.sentPackets).hasSize(WINDOW_SIZE)
+
+    ackProtocol.confirm(0)
+    assertThat(ackProtocol.sentPackets).hasSize(WINDOW_SIZE + 2)
+  }
+
+  @Test
+  fun sendMessage_windowedPacketsAreWrittenInOrder() {
+    val ackProtocol = ManualAckProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(ackProtocol, PROTOCOL_ID), maxPacketsInFlight = WINDOW_SIZE)
+    windowedStream.sendMessage(createOutgoingMessage(MAX_WRITE_SIZE * WINDOW_SIZE * 2))
+
+    while (ackProtocol.confirmNext()) {}
+
+    val packets = ackProtocol.sentPackets.map { Packet.parseFrom(it) }
+    assertThat(packets.map { it.packetNumber }).isInStrictOrder()
+    assertThat(packets.last().packetNumber).isEqualTo(packets.first().totalPackets)
+  }
+
+  @Test
+  fun sendMessage_windowedSenderOutperformsStopAndWait() {
+    val stopAndWaitMillis = measureSendMillis(maxPacketsInFlight = 1)
+    val windowedMillis = measureSendMillis(maxPacketsInFlight = WINDOW_SIZE)
+
+    assertThat(stopAndWaitMillis).isAtLeast(THROUGHPUT_PACKET_COUNT * SIMULATED_ROUND_TRIP_MS)
+    assertThat(windowedMillis).isAtMost(stopAndWaitMillis / WINDOW_SIZE + SIMULATED_ROUND_TRIP_MS)
+  }
+
+  @Test
+  fun sendMessage_confirmationFromAnotherThreadDuringSendDoesNotBlock() {
+    val concurrentAckProtocol = ConcurrentAckProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(concurrentAckProtocol, PROTOCOL_ID), maxPacketsInFlight = 1)
+
+    windowedStream.sendMessage(createOutgoingMessage(MAX_WRITE_SIZE * 3))
+
+    assertThat(concurrentAckProtocol.blockedConfirmations).isEqualTo(0)
+    assertThat(concurrentAckProtocol.sentPackets).isGreaterThan(1)
+    assertThat(windowedStream.pendingBytes).isEqualTo(0L)
+  }
+
+  @Test
+  fun protocolOnDataFailedToSend_releasesWindowAndKeepsMessage() {
+    val ackProtocol =
+      object : ManualAckProtocol() {
+        // The protocol never follows up on the disconnection request.
+        override fun disconnectDevice(protocolId: String) {}
+      }
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(ackProtocol, PROTOCOL_ID), maxPacketsInFlight = 1)
+    val failedMessage = createOutgoingMessage(MAX_WRITE_SIZE * 2)
+    val nextMessage = createOutgoingMessage(MAX_WRITE_SIZE / 2)
+    windowedStream.sendMessage(failedMessage)
+    windowedStream.sendMessage(nextMessage)
+
+    ackProtocol.fail(0)
+
+    assertThat(ackProtocol.sentPackets).hasSize(2)
+    val nextPacket = Packet.parseFrom(ackProtocol.sentPackets[1])
+    assertThat(Message.parseFrom(nextPacket.payload.toByteArray()).payload.toByteArray())
+      .isEqualTo(nextMessage.message)
+    ackProtocol.confirm(1)
+    assertThat(windowedStream.pendingBytes).isEqualTo(0L)
+    val unsentMessages = windowedStream.takeUnsentMessages()
+    assertThat(unsentMessages).hasSize(1)
+    assertThat(unsentMessages[0].payload.toByteArray()).isEqualTo(failedMessage.message)
+  }
+
+  @Test
+  fun protocolThrowsRemoteException_laterMessagesAreStillSent() {
+    val ackProtocol = DeadObjectOnceProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(ackProtocol, PROTOCOL_ID), maxPacketsInFlight = 1)
+    val failedMessage = createOutgoingMessage(MAX_WRITE_SIZE / 2)
+    val nextMessage = createOutgoingMessage(MAX_WRITE_SIZE / 2)
+
+    assertThrows(RemoteException::class.java) { windowedStream.sendMessage(failedMessage) }
+    windowedStream.sendMessage(nextMessage)
+
+    assertThat(ackProtocol.sentPackets).hasSize(1)
+    val nextPacket = Packet.parseFrom(ackProtocol.sentPackets[0])
+    assertThat(Message.parseFrom(nextPacket.payload.toByteArray()).payload.toByteArray())
+      .isEqualTo(nextMessage.message)
+    ackProtocol.confirm(0)
+    assertThat(windowedStream.pendingBytes).isEqualTo(0L)
+    val unsentMessages = windowedStream.takeUnsentMessages()
+    assertThat(unsentMessages).hasSize(1)
+    assertThat(unsentMessages[0].payload.toByteArray()).isEqualTo(failedMessage.message)
+  }
+
+  @Test
+  fun sendMessage_confirmationsClearPendingBytes() {
+    val ackProtocol = ManualAckProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(ackProtocol, PROTOCOL_ID), maxPacketsInFlight = 1)
+
+    windowedStream.sendMessage(createOutgoingMessage(MAX_WRITE_SIZE * 3))
+    assertThat(windowedStream.pendingBytes).isGreaterThan(MAX_WRITE_SIZE * 3L)
+
+    while (ackProtocol.confirmNext()) {}
+    assertThat(windowedStream.pendingBytes).isEqualTo(0L)
+  }
+
+  @Test
+  fun sendMessage_measuresConfirmationRate() {
+    val ackProtocol = ManualAckProtocol()
+    var currentNanos = 0L
+    val measuredStream =
+      ProtocolStream(
+        ProtocolDevice(ackProtocol, PROTOCOL_ID),
+        elapsedRealtimeNanos = { currentNanos },
+      )
+    assertThat(measuredStream.nanosPerByte).isNull()
+
+    measuredStream.sendMessage(createOutgoingMessage(MAX_WRITE_SIZE / 2))
+    currentNanos += 1_000_000
+    ackProtocol.confirm(0)
+
+    val payloadSize = Packet.parseFrom(ackProtocol.sentPackets[0]).payload.size()
+    assertThat(measuredStream.nanosPerByte).isEqualTo(1_000_000.0 / payloadSize)
+  }
+
+  @Test
+  fun protocolDisconnect_keepsMessagesNotCompletelyWritten() {
+    val ackProtocol = ManualAckProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(ackProtocol, PROTOCOL_ID), maxPacketsInFlight = 1)
+    val writtenMessage = createOutgoingMessage(MAX_WRITE_SIZE / 2)
+    val unsentMessage = createOutgoingMessage(MAX_WRITE_SIZE * 2)
+    windowedStream.sendMessage(writtenMessage)
+    windowedStream.sendMessage(unsentMessage)
+    windowedStream.requestDisconnect()
+
+    ackProtocol.disconnectDevice(PROTOCOL_ID)
+
+    val unsentMessages = windowedStream.takeUnsentMessages()
+    assertThat(unsentMessages).hasSize(1)
+    assertThat(unsentMessages[0].payload.toByteArray()).isEqualTo(unsentMessage.message)
+    assertThat(windowedStream.pendingBytes).isEqualTo(0L)
+    assertThat(windowedStream.takeUnsentMessages()).isEmpty()
+  }
+
+  @Test
+  fun resendMessages_sendsMessagesOfAnotherStream() {
+    val message = createOutgoingMessage(MAX_WRITE_SIZE / 2)
+    val messageProto = message.toDeviceMessageProto()
+
+    stream.resendMessages(listOf(messageProto))
+
+    argumentCaptor<ByteArray>().apply {
+      verify(protocol).sendData(eq(PROTOCOL_ID), capture(), any())
+      val packet = Packet.parseFrom(firstValue)
+      assertThat(Message.parseFrom(packet.payload.toByteArray())).isEqualTo(messageProto)
+    }
+  }
+
+  /**
+   * Returns the simulated time in milliseconds to send a message spanning at least
+   * [THROUGHPUT_PACKET_COUNT] packets over a protocol that confirms each write after
+   * [SIMULATED_ROUND_TRIP_MS].
+   */
+  private fun measureSendMillis(maxPacketsInFlight: Int): Long {
+    val latencyProtocol = LatencyProtocol()
+    val windowedStream =
+      ProtocolStream(ProtocolDevice(latencyProtocol, PROTOCOL_ID), maxPacketsInFlight)
+
+    windowedStream.sendMessage(createOutgoingMessage(MAX_WRITE_SIZE * THROUGHPUT_PACKET_COUNT))
+    latencyProtocol.confirmAll()
+
+    assertThat(windowedStream.pendingBytes).isEqualTo(0L)
+    return latencyProtocol.currentMillis
+  }
+
+  private fun createReassemblingStream(maxReassemblyBytes: Int): ProtocolStream =
+    ProtocolStream(
+      ProtocolDevice(protocol, PROTOCOL_ID),
+      WINDOW_SIZE,
+      Duration.ofMillis(REASSEMBLY_TIMEOUT_MS),
+      maxReassemblyBytes,
+      elapsedRealtime = { currentTime },
+    )
+
+  private fun createOutgoingMessage(size: Int): DeviceMessage =
+    DeviceMessage.createOutgoingMessage(
+      UUID.randomUUID(),
+      /* isMessageEncrypted= */ false,
+      DeviceMessage.OperationType.CLIENT_MESSAGE,
+      ByteUtils.randomBytes(size),
+    )
+
+  private fun createPackets(data: ByteArray, maxPacketSize: Int = MAX_WRITE_SIZE): List<Packet> {
     return try {
       val message =
         Message.newBuilder()
@@ -249,7 +612,7 @@ class ProtocolStreamTest {
       PacketFactory.makePackets(
         message.toByteArray(),
         ThreadLocalRandom.current().nextInt(),
-        MAX_WRITE_SIZE,
+        maxPacketSize,
       )
     } catch (e: Exception) {
       Truth.assertWithMessage("Uncaught exception while making packets.").fail()
@@ -326,4 +689,88 @@ class ProtocolStreamTest {
       return MAX_WRITE_SIZE
     }
   }
+
+  /** Protocol which records written packets and only confirms them when requested. */
+  open class ManualAckProtocol : TestProtocol() {
+    val sentPackets = mutableListOf<ByteArray>()
+    private val callbacks = mutableListOf<IDataSendCallback?>()
+    private var nextToConfirm = 0
+
+    override fun sendData(protocolId: String, data: ByteArray, callback: IDataSendCallback?) {
+      sentPackets.add(data)
+      callbacks.add(callback)
+    }
+
+    fun confirm(index: Int) {
+      callbacks[index]?.onDataSentSuccessfully()
+    }
+
+    fun fail(index: Int) {
+      callbacks[index]?.onDataFailedToSend()
+    }
+
+    /** Confirms the oldest unconfirmed packet. Returns `false` if there are none left. */
+    fun confirmNext(): Boolean {
+      if (nextToConfirm >= callbacks.size) {
+        return false
+      }
+      confirm(nextToConfirm++)
+      return true
+    }
+  }
+
+  /** Protocol whose binder throws on the first write, as a dead remote protocol would. */
+  class DeadObjectOnceProtocol : ManualAckProtocol() {
+    private var hasThrown = false
+
+    override fun sendData(protocolId: String, data: ByteArray, callback: IDataSendCallback?) {
+      if (!hasThrown) {
+        hasThrown = true
+        throw DeadObjectException()
+      }
+      super.sendData(protocolId, data, callback)
+    }
+  }
+
+  /**
+   * Protocol which confirms each write one simulated round trip after it was written, advancing a
+   * fake clock instead of waiting.
+   */
+  class LatencyProtocol : TestProtocol() {
+    private val pendingConfirmations = ArrayDeque<Pair<Long, IDataSendCallback?>>()
+
+    var currentMillis = 0L
+      private set
+
+    override fun sendData(protocolId: String, data: ByteArray, callback: IDataSendCallback?) {
+      pendingConfirmations.addLast(currentMillis + SIMULATED_ROUND_TRIP_MS to callback)
+    }
+
+    /** Delivers confirmations in the order they are due until none are outstanding. */
+    fun confirmAll() {
+      while (pendingConfirmations.isNotEmpty()) {
+        val (dueMillis, callback) = pendingConfirmations.removeFirst()
+        currentMillis = maxOf(currentMillis, dueMillis)
+        callback?.onDataSentSuccessfully()
+      }
+    }
+  }
+
+  /**
+   * Protocol which confirms each write on another thread and waits for the confirmation to be
+   * processed before returning from [sendData].
+   */
+  class ConcurrentAckProtocol : TestProtocol() {
+    @Volatile var sentPackets = 0
+    @Volatile var blockedConfirmations = 0
+
+    override fun sendData(protocolId: String, data: ByteArray, callback: IDataSendCallback?) {
+      sentPackets++
+      val confirmation = thread { callback?.onDataSentSuccessfully() }
+      confirmation.join(CONFIRMATION_TIMEOUT_MS)
+      if (confirmation.isAlive) {
+        blockedConfirmations++
+      }
+    }
+  }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.connecteddevice.connection
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+
+private const val MESSAGE_SIZE = 1_000
+private const val WRITE_SIZE = 185
+
+@RunWith(AndroidJUnit4::class)
+class StreamSchedulerTest {
+  private val scheduler = StreamScheduler()
+
+  @Test
+  fun selectStream_noStreamsReturnsNull() {
+    assertThat(scheduler.selectStream(emptyList(), MESSAGE_SIZE)).isNull()
+  }
+
+  @Test
+  fun selectStream_prefersFasterStream() {
+    val slowStream = createStream(nanosPerByte = 100.0)
+    val fastStream = createStream(nanosPerByte = 10.0)
+
+    assertThat(scheduler.selectStream(listOf(slowStream, fastStream), MESSAGE_SIZE))
+      .isSameInstanceAs(fastStream)
+  }
+
+  @Test
+  fun selectStream_accountsForPendingBytes() {
+    val busyStream = createStream(nanosPerByte = 10.0, pendingBytes = MESSAGE_SIZE * 20L)
+    val idleStream = createStream(nanosPerByte = 100.0)
+
+    assertThat(scheduler.selectStream(listOf(busyStream, idleStream), MESSAGE_SIZE))
+      .isSameInstanceAs(idleStream)
+  }
+
+  @Test
+  fun selectStream_prefersLargerWriteSizeWithoutMeasurements() {
+    val smallStream = createStream(maxWriteSize = WRITE_SIZE)
+    val largeStream = createStream(maxWriteSize = WRITE_SIZE * 4)
+
+    assertThat(scheduler.selectStream(listOf(smallStream, largeStream), MESSAGE_SIZE))
+      .isSameInstanceAs(largeStream)
+  }
+
+  @Test
+  fun selectStream_triesUnmeasuredStream() {
+    val measuredStream = createStream(nanosPerByte = 10.0)
+    val unmeasuredStream = createStream(maxWriteSize = WRITE_SIZE * 4)
+
+    assertThat(scheduler.selectStream(listOf(measuredStream, unmeasuredStream), MESSAGE_SIZE))
+      .isSameInstanceAs(unmeasuredStream)
+  }
+
+  @Test
+  fun selectStream_keepsActiveStreamUntilDrained() {
+    val slowStream = createStream(nanosPerByte = 100.0, pendingBytes = MESSAGE_SIZE.toLong())
+    val fastStream = createStream(nanosPerByte = 10.0)
+    scheduler.selectStream(listOf(slowStream), MESSAGE_SIZE)
+
+    assertThat(scheduler.selectStream(listOf(slowStream, fastStream), MESSAGE_SIZE))
+      .isSameInstanceAs(slowStream)
+  }
+
+  @Test
+  fun selectStream_switchesOnceActiveStreamDrained() {
+    val slowStream = createStream(nanosPerByte = 100.0)
+    val fastStream = createStream(nanosPerByte = 10.0)
+    scheduler.selectStream(listOf(slowStream), MESSAGE_SIZE)
+
+    assertThat(scheduler.selectStream(listOf(slowStream, fastStream), MESSAGE_SIZE))
+      .isSameInstanceAs(fastStream)
+  }
+
+  @Test
+  fun onStreamRemoved_selectsFromRemainingStreams() {
+    val removedStream = createStream(nanosPerByte = 10.0, pendingBytes = MESSAGE_SIZE.toLong())
+    val remainingStream = createStream(nanosPerByte = 100.0)
+    scheduler.selectStream(listOf(removedStream), MESSAGE_SIZE)
+
+    scheduler.onStreamRemoved(removedStream)
+
+    assertThat(scheduler.selectStream(listOf(remainingStream), MESSAGE_SIZE))
+      .isSameInstanceAs(remainingStream)
+  }
+
+  private fun createStream(
+    nanosPerByte: Double? = null,
+    pendingBytes: Long = 0,
+    maxWriteSize: Int = WRITE_SIZE,
+  ): ProtocolStream = mock {
+    on { this.nanosPerByte } doReturn nanosPerByte
+    on { this.pendingBytes } doReturn pendingBytes
+    on { this.maxWriteSize } doReturn maxWriteSize
+  }
+}
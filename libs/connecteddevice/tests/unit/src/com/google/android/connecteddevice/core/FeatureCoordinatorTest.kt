@@ -41,12 +41,15 @@ import org.mockito.kotlin.eq
 import org.mockito.kotlin.isNull
 import org.mockito.kotlin.mock
 import org.mockito.kotlin.never
+import org.mockito.kotlin.times
 import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
 
 @RunWith(AndroidJUnit4::class)
 class FeatureCoordinatorTest {
-  private val mockController: DeviceController = mock()
+  private val mockController: DeviceController = mock {
+    on { findConnectedDevice(any()) }.thenCallRealMethod()
+  }
   private val mockStorage: ConnectedDeviceStorage = mock()
   private val mockLoggingManager: LoggingManager = mock()
   private val mockSystemQueryCache: SystemQueryCache = mock()
@@ -440,6 +443,36 @@ class FeatureCoordinatorTest {
     verify(deviceCallback).onMessageReceived(connectedDevice, missedMessage)
   }
 
+  @Test
+  fun registerDeviceCallback_sendsMissedMessagesInArrivalOrder() {
+    val deviceCallback: IDeviceCallback = mockToBeAlive()
+    val recipientId = ParcelUuid(UUID.randomUUID())
+    val connectedDevice =
+      ConnectedDevice(
+        UUID.randomUUID().toString(),
+        "testDeviceName",
+        /* belongsToDriver= */ true,
+        /* hasSecureChannel= */ true,
+      )
+    val missedMessages =
+      List(3) {
+        DeviceMessage.createOutgoingMessage(
+          recipientId.uuid,
+          /* isMessageEncrypted= */ true,
+          CLIENT_MESSAGE,
+          ByteUtils.randomBytes(10),
+        )
+      }
+
+    missedMessages.forEach { coordinator.onMessageReceivedInternal(connectedDevice, it) }
+    coordinator.registerDeviceCallback(connectedDevice, recipientId, deviceCallback)
+
+    val captor = argumentCaptor<DeviceMessage>()
+    verify(deviceCallback, times(missedMessages.size))
+      .onMessageReceived(eq(connectedDevice), captor.capture())
+    assertThat(captor.allValues).containsExactlyElementsIn(missedMessages).inOrder()
+  }
+
   @Test
   fun registerDeviceCallback_blocksRecipientAndAlivePreviousRegistererIfIdAlreadyRegistered() {
     val deviceCallback: IDeviceCallback = mockToBeAlive()
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.connecteddevice.core
+
+import android.os.ParcelUuid
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.android.connecteddevice.model.DeviceMessage
+import com.google.android.connecteddevice.model.DeviceMessage.OperationType.CLIENT_MESSAGE
+import com.google.android.connecteddevice.util.ByteUtils
+import com.google.common.truth.Truth.assertThat
+import java.time.Duration
+import java.util.UUID
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val MAX_MESSAGES = 3
+private const val MAX_BYTES = 100L
+private const val MAX_TOTAL_MESSAGES = 5
+private const val MAX_TOTAL_BYTES = 150L
+private const val DEVICE_ID_1 = "device1"
+private const val DEVICE_ID_2 = "device2"
+
+@RunWith(AndroidJUnit4::class)
+class MissedMessageStoreTest {
+  private val timeToLive = Duration.ofMinutes(1)
+  private val recipientId = ParcelUuid(UUID.randomUUID())
+  private var currentTime = 0L
+  private val store =
+    MissedMessageStore(
+      maxMessagesPerRecipient = MAX_MESSAGES,
+      maxBytesPerRecipient = MAX_BYTES,
+      maxMessages = MAX_TOTAL_MESSAGES,
+      maxBytes = MAX_TOTAL_BYTES,
+      timeToLive = timeToLive,
+      elapsedRealtime = { currentTime },
+    )
+
+  @Test
+  fun remove_returnsMessagesInArrivalOrder() {
+    val messages = List(MAX_MESSAGES) { createMessage(size = 10) }
+    messages.forEach { store.add(recipientId, DEVICE_ID_1, it) }
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).containsExactlyElementsIn(messages).inOrder()
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).isEmpty()
+  }
+
+  @Test
+  fun remove_onlyReturnsMessagesFromRequestedDevice() {
+    val message1 = createMessage(size = 10)
+    val message2 = createMessage(size = 10)
+    store.add(recipientId, DEVICE_ID_1, message1)
+    store.add(recipientId, DEVICE_ID_2, message2)
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).containsExactly(message1)
+    assertThat(store.remove(recipientId, DEVICE_ID_2)).containsExactly(message2)
+  }
+
+  @Test
+  fun add_dropsOldestWhenCountLimitExceeded() {
+    val messages = List(MAX_MESSAGES + 2) { createMessage(size = 10) }
+    messages.forEach { store.add(recipientId, DEVICE_ID_1, it) }
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1))
+      .containsExactlyElementsIn(messages.takeLast(MAX_MESSAGES))
+      .inOrder()
+    assertThat(store.overflowDroppedMessages).isEqualTo(2L)
+  }
+
+  @Test
+  fun add_dropsOldestWhenByteLimitExceeded() {
+    val message1 = createMessage(size = 40)
+    val message2 = createMessage(size = 40)
+    val message3 = createMessage(size = 40)
+    store.add(recipientId, DEVICE_ID_1, message1)
+    store.add(recipientId, DEVICE_ID_1, message2)
+    store.add(recipientId, DEVICE_ID_1, message3)
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).containsExactly(message2, message3).inOrder()
+    assertThat(store.overflowDroppedMessages).isEqualTo(1L)
+  }
+
+  @Test
+  fun add_dropsMessageLargerThanByteLimit() {
+    store.add(recipientId, DEVICE_ID_1, createMessage(size = MAX_BYTES.toInt() + 1))
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).isEmpty()
+    assertThat(store.overflowDroppedMessages).isEqualTo(1L)
+  }
+
+  @Test
+  fun add_limitsApplyAcrossDevicesOfRecipient() {
+    val messages = List(MAX_MESSAGES + 1) { createMessage(size = 10) }
+    store.add(recipientId, DEVICE_ID_1, messages[0])
+    messages.drop(1).forEach { store.add(recipientId, DEVICE_ID_2, it) }
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).isEmpty()
+    assertThat(store.remove(recipientId, DEVICE_ID_2)).hasSize(MAX_MESSAGES)
+  }
+
+  @Test
+  fun add_limitsAreIndependentPerRecipient() {
+    val otherRecipientId = ParcelUuid(UUID.randomUUID())
+    repeat(MAX_MESSAGES) { store.add(recipientId, DEVICE_ID_1, createMessage(size = 10)) }
+    store.add(otherRecipientId, DEVICE_ID_1, createMessage(size = 10))
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).hasSize(MAX_MESSAGES)
+    assertThat(store.overflowDroppedMessages).isEqualTo(0L)
+  }
+
+  @Test
+  fun add_dropsOldestAcrossRecipientsWhenTotalCountLimitExceeded() {
+    val otherRecipientId = ParcelUuid(UUID.randomUUID())
+    val oldestMessage = createMessage(size = 10)
+    store.add(otherRecipientId, DEVICE_ID_1, oldestMessage)
+    val messages = List(MAX_TOTAL_MESSAGES - 1) { createMessage(size = 10) }
+    messages.take(MAX_MESSAGES).forEach { store.add(recipientId, DEVICE_ID_1, it) }
+    messages.drop(MAX_MESSAGES).forEach { store.add(otherRecipientId, DEVICE_ID_1, it) }
+    val newestMessage = createMessage(size = 10)
+    store.add(otherRecipientId, DEVICE_ID_1, newestMessage)
+
+    assertThat(store.remove(otherRecipientId, DEVICE_ID_1))
+      .containsExactlyElementsIn(messages.drop(MAX_MESSAGES) + newestMessage)
+      .inOrder()
+    assertThat(store.remove(recipientId, DEVICE_ID_1))
+      .containsExactlyElementsIn(messages.take(MAX_MESSAGES))
+      .inOrder()
+    assertThat(store.overflowDroppedMessages).isEqualTo(1L)
+  }
+
+  @Test
+  fun add_dropsOldestAcrossRecipientsWhenTotalByteLimitExceeded() {
+    val otherRecipientId = ParcelUuid(UUID.randomUUID())
+    val oldestMessage = createMessage(size = 60)
+    val message = createMessage(size = 50)
+    val newestMessage = createMessage(size = 50)
+    store.add(recipientId, DEVICE_ID_1, oldestMessage)
+    store.add(otherRecipientId, DEVICE_ID_1, message)
+    store.add(otherRecipientId, DEVICE_ID_2, newestMessage)
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).isEmpty()
+    assertThat(store.remove(otherRecipientId, DEVICE_ID_1)).containsExactly(message)
+    assertThat(store.remove(otherRecipientId, DEVICE_ID_2)).containsExactly(newestMessage)
+    assertThat(store.overflowDroppedMessages).isEqualTo(1L)
+  }
+
+  @Test
+  fun add_dropsExpiredMessagesOfOtherRecipients() {
+    val otherRecipientId = ParcelUuid(UUID.randomUUID())
+    store.add(otherRecipientId, DEVICE_ID_1, createMessage(size = 10))
+    currentTime += timeToLive.toMillis() + 1
+
+    store.add(recipientId, DEVICE_ID_1, createMessage(size = 10))
+
+    assertThat(store.expiredDroppedMessages).isEqualTo(1L)
+    assertThat(store.remove(otherRecipientId, DEVICE_ID_1)).isEmpty()
+  }
+
+  @Test
+  fun remove_dropsExpiredMessages() {
+    val expiredMessage = createMessage(size = 10)
+    store.add(recipientId, DEVICE_ID_1, expiredMessage)
+    currentTime += timeToLive.toMillis() / 2
+    val freshMessage = createMessage(size = 10)
+    store.add(recipientId, DEVICE_ID_1, freshMessage)
+    currentTime += timeToLive.toMillis() / 2 + 1
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).containsExactly(freshMessage)
+    assertThat(store.expiredDroppedMessages).isEqualTo(1L)
+  }
+
+  @Test
+  fun add_expiredMessagesDoNotCountTowardsLimits() {
+    repeat(MAX_MESSAGES) { store.add(recipientId, DEVICE_ID_1, createMessage(size = 10)) }
+    currentTime += timeToLive.toMillis() + 1
+    val message = createMessage(size = 10)
+    store.add(recipientId, DEVICE_ID_1, message)
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).containsExactly(message)
+    assertThat(store.overflowDroppedMessages).isEqualTo(0L)
+    assertThat(store.expiredDroppedMessages).isEqualTo(MAX_MESSAGES.toLong())
+  }
+
+  @Test
+  fun clear_removesAllMessages() {
+    store.add(recipientId, DEVICE_ID_1, createMessage(size = 10))
+
+    store.clear()
+
+    assertThat(store.remove(recipientId, DEVICE_ID_1)).isEmpty()
+  }
+
+  private fun createMessage(size: Int) =
+    DeviceMessage.createOutgoingMessage(
+      recipientId.uuid,
+      /* isMessageEncrypted= */ true,
+      CLIENT_MESSAGE,
+      ByteUtils.randomBytes(size),
+    )
+}
@@ -56,6 +56,7 @@ import java.security.InvalidParameterException
 import java.util.UUID
 import kotlin.test.fail
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.test.StandardTestDispatcher
 import kotlinx.coroutines.test.resetMain
@@ -68,6 +69,7 @@ import org.mockito.kotlin.any
 import org.mockito.kotlin.argumentCaptor
 import org.mockito.kotlin.doAnswer
 import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.doSuspendableAnswer
 import org.mockito.kotlin.eq
 import org.mockito.kotlin.mock
 import org.mockito.kotlin.never
@@ -79,6 +81,9 @@ import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
 
 private val TEST_CHALLENGE = "test Challenge".toByteArray()
+private const val STARTUP_DEVICE_COUNT = 8
+private const val STARTUP_PROTOCOL_COUNT = 3
+private const val CHALLENGE_LATENCY_MS = 40L
 private val TEST_OOB_DATA =
   OobData("key".toByteArray(), "serverIv".toByteArray(), "clientIv".toByteArray())
 
@@ -791,7 +796,71 @@ class MultiProtocolDeviceControllerTest {
         assertThat(firstValue.hasSecureChannel()).isFalse()
       }
       verify(mockCallback).onSecureChannelEstablished(any())
-      verify(mockStorage).getAllAssociatedDevices()
+      verify(mockStorage, never()).getAllAssociatedDevices()
+    }
+
+  @Test
+  fun onAssociatedDeviceUpdated_appliesChangeWithoutReloadingStorage() =
+    runBlocking<Unit> {
+      val deviceId = UUID.randomUUID()
+      val associatedDevice =
+        AssociatedDevice(
+          deviceId.toString(),
+          "address",
+          TEST_DEVICE_NAME,
+          /* isConnectionEnabled= */ true,
+        )
+      mockStorage.stub {
+        onBlocking { getAllAssociatedDevices() } doReturn listOf(associatedDevice)
+      }
+      deviceController.start()
+      deviceController.initiateConnectionToDevice(deviceId)
+      argumentCaptor<IDiscoveryCallback>().apply {
+        verify(testConnectionProtocol).startConnectionDiscovery(any(), any(), capture())
+        firstValue.onDeviceConnected(UUID.randomUUID().toString())
+      }
+      val newName = "newName"
+
+      argumentCaptor<ConnectedDeviceStorage.AssociatedDeviceCallback>().apply {
+        verify(mockStorage).registerAssociatedDeviceCallback(capture())
+        firstValue.onAssociatedDeviceUpdated(
+          AssociatedDevice(deviceId.toString(), "address", newName, /* isConnectionEnabled= */ true)
+        )
+      }
+
+      assertThat(deviceController.findConnectedDevice(deviceId.toString())?.deviceName)
+        .isEqualTo(newName)
+      verify(mockStorage, times(1)).getAllAssociatedDevices()
+    }
+
+  @Test
+  fun onAssociatedDeviceRemoved_removesDeviceWithoutReloadingStorage() =
+    runBlocking<Unit> {
+      val deviceId = UUID.randomUUID()
+      val associatedDevice =
+        AssociatedDevice(
+          deviceId.toString(),
+          "address",
+          TEST_DEVICE_NAME,
+          /* isConnectionEnabled= */ true,
+        )
+      mockStorage.stub {
+        onBlocking { getAllAssociatedDevices() } doReturn listOf(associatedDevice)
+      }
+      deviceController.start()
+      deviceController.initiateConnectionToDevice(deviceId)
+      argumentCaptor<IDiscoveryCallback>().apply {
+        verify(testConnectionProtocol).startConnectionDiscovery(any(), any(), capture())
+        firstValue.onDeviceConnected(UUID.randomUUID().toString())
+      }
+
+      argumentCaptor<ConnectedDeviceStorage.AssociatedDeviceCallback>().apply {
+        verify(mockStorage).registerAssociatedDeviceCallback(capture())
+        firstValue.onAssociatedDeviceRemoved(associatedDevice)
+      }
+
+      assertThat(deviceController.connectedDevices).isEmpty()
+      verify(mockStorage, times(1)).getAllAssociatedDevices()
     }
 
   @Test
@@ -923,6 +992,65 @@ class MultiProtocolDeviceControllerTest {
       }
     }
 
+  @Test
+  fun handleSecureChannelMessage_associatedDriverDeviceIsReportedAsDriverDevice() {
+    Dispatchers.setMain(testDispatcher)
+    val storage =
+      ConnectedDeviceStorage(
+        context,
+        Base64CryptoHelper(),
+        connectedDeviceDatabase.associatedDeviceDao(),
+        directExecutor(),
+      )
+    deviceController =
+      MultiProtocolDeviceController(
+        context,
+        TestLifecycleOwner(),
+        protocolDelegate,
+        storage,
+        mockOobRunner,
+        testAssociationServiceUuid.uuid,
+        enablePassenger = false,
+      )
+    deviceController.registerCallback(mockCallback, directExecutor())
+    val deviceId = UUID.randomUUID()
+    val testIdentifier = ParcelUuid(UUID.randomUUID())
+    val testDeviceMessage =
+      DeviceMessage.createOutgoingMessage(
+        null,
+        true,
+        OperationType.CLIENT_MESSAGE,
+        ByteUtils.uuidToBytes(deviceId) + ByteUtils.randomBytes(CHALLENGE_SECRET_BYTES),
+      )
+
+    deviceController.startAssociation(
+      TEST_DEVICE_NAME,
+      mockAssociationCallback,
+      testIdentifier.uuid,
+    )
+    argumentCaptor<IDiscoveryCallback>().apply {
+      verify(testConnectionProtocol)
+        .startAssociationDiscovery(eq(TEST_DEVICE_NAME), eq(testIdentifier), capture())
+      firstValue.onDeviceConnected(UUID.randomUUID().toString())
+    }
+    deviceController.handleSecureChannelMessage(
+      testDeviceMessage,
+      deviceController.getConnectedDevice(
+        deviceController.associationPendingDeviceId.get() ?: fail("Null device id.")
+      ) ?: fail("Failed to find the device."),
+    )
+    testDispatcher.scheduler.advanceUntilIdle()
+
+    argumentCaptor<ConnectedDevice>().apply {
+      verify(mockCallback).onDeviceConnected(capture())
+      assertThat(firstValue.deviceId).isEqualTo(deviceId.toString())
+      assertThat(firstValue.isAssociatedWithDriver).isTrue()
+    }
+    assertThat(deviceController.connectedDevices.single().isAssociatedWithDriver).isTrue()
+
+    Dispatchers.resetMain()
+  }
+
   @Test
   fun handleSecureChannelMessage_firstMessagePersistsDeviceAsUnclaimedWhenPassengerEnabled() =
     runBlocking<Unit> {
@@ -1045,6 +1173,70 @@ class MultiProtocolDeviceControllerTest {
     assertThat(otherUserConnectedDevice?.isAssociatedWithDriver).isFalse()
   }
 
+  @Test
+  fun findConnectedDevice_tracksConnectionAndDisconnection() {
+    val deviceId = UUID.randomUUID()
+    val testProtocolId = UUID.randomUUID()
+    mockStorage.stub {
+      onBlocking { getAllAssociatedDevices() } doReturn
+        listOf(
+          AssociatedDevice(
+            deviceId.toString(),
+            "address",
+            TEST_DEVICE_NAME,
+            /* isConnectionEnabled= */ true,
+          )
+        )
+    }
+    deviceController.start()
+    assertThat(deviceController.findConnectedDevice(deviceId.toString())).isNull()
+
+    deviceController.initiateConnectionToDevice(deviceId)
+    argumentCaptor<IDiscoveryCallback>().apply {
+      verify(testConnectionProtocol).startConnectionDiscovery(any(), any(), capture())
+      firstValue.onDeviceConnected(testProtocolId.toString())
+    }
+
+    val connectedDevice = deviceController.findConnectedDevice(deviceId.toString())
+    assertThat(connectedDevice).isNotNull()
+    assertThat(connectedDevice?.deviceName).isEqualTo(TEST_DEVICE_NAME)
+    assertThat(connectedDevice?.hasSecureChannel()).isFalse()
+    assertThat(deviceController.connectedDevices).containsExactly(connectedDevice)
+
+    val listeners =
+      testConnectionProtocol.deviceDisconnectedListenerList[testProtocolId.toString()]
+        ?: fail("Failed to find listeners.")
+    listeners.invoke { listener -> listener.onDeviceDisconnected(testProtocolId.toString()) }
+
+    assertThat(deviceController.findConnectedDevice(deviceId.toString())).isNull()
+    assertThat(deviceController.connectedDevices).isEmpty()
+  }
+
+  @Test
+  fun connectedDevices_returnsSameSnapshotUntilDevicesChange() {
+    val deviceId = UUID.randomUUID()
+    mockStorage.stub {
+      onBlocking { getAllAssociatedDevices() } doReturn
+        listOf(
+          AssociatedDevice(
+            deviceId.toString(),
+            "address",
+            TEST_DEVICE_NAME,
+            /* isConnectionEnabled= */ true,
+          )
+        )
+    }
+    deviceController.start()
+    deviceController.initiateConnectionToDevice(deviceId)
+    argumentCaptor<IDiscoveryCallback>().apply {
+      verify(testConnectionProtocol).startConnectionDiscovery(any(), any(), capture())
+      firstValue.onDeviceConnected(UUID.randomUUID().toString())
+    }
+
+    assertThat(deviceController.connectedDevices)
+      .isSameInstanceAs(deviceController.connectedDevices)
+  }
+
   @Test
   fun connectedDevices_returnsEmptyListWithNoConnectedDevices() =
     runBlocking<Unit> {
@@ -1299,6 +1491,57 @@ class MultiProtocolDeviceControllerTest {
       .startConnectionDiscovery(eq(disabledDeviceId), any(), any())
   }
 
+  @Test
+  fun start_startupLatencyDoesNotGrowWithAssociatedDevices() {
+    Dispatchers.setMain(testDispatcher)
+
+    val devices =
+      List(STARTUP_DEVICE_COUNT) {
+        AssociatedDevice(
+          UUID.randomUUID().toString(),
+          /* address= */ "",
+          /* name= */ null,
+          /* isConnectionEnabled= */ true,
+        )
+      }
+    val protocols = List(STARTUP_PROTOCOL_COUNT) { spy(TestConnectionProtocol()) }
+    val startupProtocolDelegate = ProtocolDelegate().apply { protocols.forEach { addProtocol(it) } }
+    mockStorage.stub {
+      onBlocking { getDriverAssociatedDevices() } doReturn devices
+      onBlocking { getAllAssociatedDevices() } doReturn devices
+      // Stands in for the database query and keystore decryption of the challenge secret.
+      onBlocking { hashWithChallengeSecret(any(), any()) } doSuspendableAnswer
+        {
+          delay(CHALLENGE_LATENCY_MS)
+          TEST_CHALLENGE
+        }
+    }
+    MultiProtocolDeviceController(
+        context,
+        TestLifecycleOwner(),
+        startupProtocolDelegate,
+        mockStorage,
+        mockOobRunner,
+        testAssociationServiceUuid.uuid,
+        enablePassenger = false,
+      )
+      .start()
+
+    testDispatcher.scheduler.advanceUntilIdle()
+
+    for (protocol in protocols) {
+      for (device in devices) {
+        verify(protocol)
+          .startConnectionDiscovery(eq(ParcelUuid.fromString(device.id)), any(), any())
+      }
+    }
+    // Challenges for all devices are generated concurrently, so startup takes as long as a single
+    // challenge rather than one per associated device.
+    assertThat(testDispatcher.scheduler.currentTime).isEqualTo(CHALLENGE_LATENCY_MS)
+
+    Dispatchers.resetMain()
+  }
+
   @Test
   fun generateSecureChannelCallback_onSecureChannelEstablishedDuringAssociation_sendDeviceId() {
     startAssociation()
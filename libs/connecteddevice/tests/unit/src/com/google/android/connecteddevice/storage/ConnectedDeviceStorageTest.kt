@@ -20,6 +20,7 @@ import android.content.Context
 import android.util.Base64
 import android.util.Pair
 import androidx.room.Room
+import androidx.room.RoomDatabase
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import com.google.android.companionprotos.DeviceOS
@@ -30,15 +31,21 @@ import com.google.common.truth.Truth.assertThat
 import com.google.common.util.concurrent.MoreExecutors.directExecutor
 import java.security.InvalidParameterException
 import java.util.UUID
+import java.util.concurrent.CopyOnWriteArrayList
 import kotlin.test.assertFailsWith
 import kotlin.test.assertNotNull
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.mockito.kotlin.any
 import org.mockito.kotlin.argumentCaptor
 import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
 import org.mockito.kotlin.verify
 
 @RunWith(AndroidJUnit4::class)
@@ -46,10 +53,15 @@ class ConnectedDeviceStorageTest {
 
   private lateinit var context: Context
   private lateinit var connectedDeviceDatabase: ConnectedDeviceDatabase
+  private lateinit var database: AssociatedDeviceDao
+  private lateinit var cryptoHelper: FakeCryptoHelper
   private lateinit var addedAssociatedDevices: MutableList<Pair<Int, AssociatedDevice>>
 
   private lateinit var connectedDeviceStorage: ConnectedDeviceStorage
 
+  // The queries the database has run, as reported by its query callback.
+  private val executedQueries = CopyOnWriteArrayList<ExecutedQuery>()
+
   @Before
   fun setUp() {
     context = ApplicationProvider.getApplicationContext()
@@ -57,12 +69,18 @@ class ConnectedDeviceStorageTest {
       Room.inMemoryDatabaseBuilder(context, ConnectedDeviceDatabase::class.java)
         .allowMainThreadQueries()
         .setQueryExecutor(directExecutor())
+        .setQueryCallback(
+          RoomDatabase.QueryCallback { sqlQuery, bindArgs ->
+            executedQueries.add(ExecutedQuery(sqlQuery, bindArgs))
+          },
+          directExecutor(),
+        )
         .build()
-    val database: AssociatedDeviceDao = connectedDeviceDatabase.associatedDeviceDao()
+    database = connectedDeviceDatabase.associatedDeviceDao()
+    cryptoHelper = FakeCryptoHelper()
     addedAssociatedDevices = mutableListOf()
 
-    connectedDeviceStorage =
-      ConnectedDeviceStorage(context, FakeCryptoHelper(), database, directExecutor())
+    connectedDeviceStorage = createStorage()
   }
 
   @After
@@ -171,6 +189,93 @@ class ConnectedDeviceStorageTest {
       assertThat(connectedDeviceStorage.getEncryptionKey(UUID.randomUUID().toString())).isNull()
     }
 
+  @Test
+  fun getEncryptionKey_decryptsStoredKeyOnlyOnce() =
+    runBlocking<Unit> {
+      val deviceId: String = addRandomAssociatedDevice(ACTIVE_USER_ID).id
+      val key: ByteArray = ByteUtils.randomBytes(16)
+      connectedDeviceStorage.saveEncryptionKey(deviceId, key)
+      val reloadedStorage = createStorage()
+
+      repeat(3) { assertThat(reloadedStorage.getEncryptionKey(deviceId)).isEqualTo(key) }
+
+      assertThat(cryptoHelper.decryptCount).isEqualTo(1)
+    }
+
+  @Test
+  fun getEncryptionKey_returnsNewKeyAfterSave() =
+    runBlocking<Unit> {
+      val deviceId: String = addRandomAssociatedDevice(ACTIVE_USER_ID).id
+      val unused = connectedDeviceStorage.getEncryptionKey(deviceId)
+      val newKey: ByteArray = ByteUtils.randomBytes(16)
+
+      connectedDeviceStorage.saveEncryptionKey(deviceId, newKey)
+
+      assertThat(connectedDeviceStorage.getEncryptionKey(deviceId)).isEqualTo(newKey)
+    }
+
+  @Test
+  fun getEncryptionKey_notAffectedByChangesToReturnedKey() =
+    runBlocking<Unit> {
+      val deviceId: String = addRandomAssociatedDevice(ACTIVE_USER_ID).id
+      val key: ByteArray = ByteUtils.randomBytes(16)
+      connectedDeviceStorage.saveEncryptionKey(deviceId, key)
+
+      connectedDeviceStorage.getEncryptionKey(deviceId)?.fill(0)
+
+      assertThat(connectedDeviceStorage.getEncryptionKey(deviceId)).isEqualTo(key)
+    }
+
+  @Test
+  fun getEncryptionKey_readsStoredKeyAgainAfterDeviceRemoved() =
+    runBlocking<Unit> {
+      val deviceId: String = addRandomAssociatedDevice(ACTIVE_USER_ID).id
+      val unused = connectedDeviceStorage.getEncryptionKey(deviceId)
+      val decryptCount = cryptoHelper.decryptCount
+
+      connectedDeviceStorage.removeAssociatedDevice(deviceId)
+      val unusedAfterRemoval = connectedDeviceStorage.getEncryptionKey(deviceId)
+
+      assertThat(cryptoHelper.decryptCount).isEqualTo(decryptCount + 1)
+    }
+
+  @Test
+  fun hashWithChallengeSecret_decryptsSecretOnlyOnce() =
+    runBlocking<Unit> {
+      val deviceId: String = addRandomAssociatedDevice(ACTIVE_USER_ID).id
+      val secret = ByteUtils.randomBytes(ConnectedDeviceStorage.CHALLENGE_SECRET_BYTES)
+      connectedDeviceStorage.saveChallengeSecret(deviceId, secret)
+      val reloadedStorage = createStorage()
+      val value = ByteUtils.randomBytes(16)
+
+      val first = reloadedStorage.hashWithChallengeSecret(deviceId, value)
+      val second = reloadedStorage.hashWithChallengeSecret(deviceId, value)
+
+      assertThat(first).isNotNull()
+      assertThat(second).isEqualTo(first)
+      assertThat(cryptoHelper.decryptCount).isEqualTo(1)
+    }
+
+  @Test
+  fun hashWithChallengeSecret_usesNewSecretAfterSave() =
+    runBlocking<Unit> {
+      val deviceId: String = addRandomAssociatedDevice(ACTIVE_USER_ID).id
+      val value = ByteUtils.randomBytes(16)
+      connectedDeviceStorage.saveChallengeSecret(
+        deviceId,
+        ByteUtils.randomBytes(ConnectedDeviceStorage.CHALLENGE_SECRET_BYTES),
+      )
+      val oldHash = connectedDeviceStorage.hashWithChallengeSecret(deviceId, value)
+
+      connectedDeviceStorage.saveChallengeSecret(
+        deviceId,
+        ByteUtils.randomBytes(ConnectedDeviceStorage.CHALLENGE_SECRET_BYTES),
+      )
+
+      assertThat(connectedDeviceStorage.hashWithChallengeSecret(deviceId, value))
+        .isNotEqualTo(oldHash)
+    }
+
   @Test
   fun saveChallengeSecret_throwsForInvalidLengthSecret() =
     runBlocking<Unit> {
@@ -655,6 +760,20 @@ class ConnectedDeviceStorageTest {
       verify(callback).onAssociatedDeviceAdded(device)
     }
 
+  @Test
+  fun addAssociatedDeviceForUser_invokesCallbackWithStoredUserId() =
+    runBlocking<Unit> {
+      val callback: AssociatedDeviceCallback = mock<AssociatedDeviceCallback>()
+      connectedDeviceStorage.registerAssociatedDeviceCallback(callback)
+
+      val unused = addRandomAssociatedDevice(ACTIVE_USER_ID)
+
+      argumentCaptor<AssociatedDevice>().apply {
+        verify(callback).onAssociatedDeviceAdded(capture())
+        assertThat(firstValue.userId).isEqualTo(ACTIVE_USER_ID)
+      }
+    }
+
   @Test
   fun removeAssociatedDeviceForUser_invokesCallback() =
     runBlocking<Unit> {
@@ -739,6 +858,90 @@ class ConnectedDeviceStorageTest {
       connectedDeviceStorage.removeAssociatedDeviceClaim(UUID.randomUUID().toString())
     }
 
+  @Test
+  fun concurrentUpdatesOfDifferentFields_noUpdatesLost() =
+    runBlocking<Unit> {
+      val devices = List(CONCURRENT_DEVICE_COUNT) { addRandomAssociatedDevice(ACTIVE_USER_ID) }
+
+      withContext(Dispatchers.Default) {
+        for (device in devices) {
+          launch { connectedDeviceStorage.updateAssociatedDeviceName(device.id, "NewName") }
+          launch { connectedDeviceStorage.updateAssociatedDeviceOs(device.id, DeviceOS.ANDROID) }
+          launch { connectedDeviceStorage.updateAssociatedDeviceOsVersion(device.id, "osVersion") }
+          launch {
+            connectedDeviceStorage.updateAssociatedDeviceCompanionSdkVersion(
+              device.id,
+              "sdkVersion",
+            )
+          }
+          launch {
+            connectedDeviceStorage.updateAssociatedDeviceConnectionEnabled(
+              device.id,
+              /* isConnectionEnabled= */ false,
+            )
+          }
+          launch { connectedDeviceStorage.removeAssociatedDeviceClaim(device.id) }
+        }
+      }
+
+      for (device in devices) {
+        val updatedDevice = assertNotNull(connectedDeviceStorage.getAssociatedDevice(device.id))
+        assertThat(updatedDevice.name).isEqualTo("NewName")
+        assertThat(updatedDevice.os).isEqualTo(DeviceOS.ANDROID)
+        assertThat(updatedDevice.osVersion).isEqualTo("osVersion")
+        assertThat(updatedDevice.companionSdkVersion).isEqualTo("sdkVersion")
+        assertThat(updatedDevice.isConnectionEnabled).isFalse()
+        assertThat(updatedDevice.userId).isEqualTo(AssociatedDevice.UNCLAIMED_USER_ID)
+      }
+    }
+
+  @Test
+  fun setAssociatedDeviceName_doesNotIssueCallbackIfDeviceAlreadyHasAName() =
+    runBlocking<Unit> {
+      val callback: AssociatedDeviceCallback = mock<AssociatedDeviceCallback>()
+      connectedDeviceStorage.registerAssociatedDeviceCallback(callback)
+      val device: AssociatedDevice = addRandomAssociatedDevice(ACTIVE_USER_ID)
+
+      connectedDeviceStorage.setAssociatedDeviceName(device.id, "NewName")
+
+      verify(callback, never()).onAssociatedDeviceUpdated(any())
+    }
+
+  @Test
+  fun getAssociatedDeviceIdsForUser_populatedDatabaseUsesUserIdIndex() =
+    runBlocking<Unit> {
+      repeat(POPULATED_DEVICE_COUNT) { addRandomAssociatedDevice(ACTIVE_USER_ID + it % USER_COUNT) }
+
+      val query = recordQuery { database.getAssociatedDeviceIdsForUser(ACTIVE_USER_ID) }
+
+      assertThat(explainQueryPlan(query)).contains(USER_ID_INDEX)
+      assertThat(connectedDeviceStorage.getAssociatedDeviceIdsForUser(ACTIVE_USER_ID))
+        .hasSize(POPULATED_DEVICE_COUNT / USER_COUNT)
+    }
+
+  @Test
+  fun getAssociatedDevice_populatedDatabaseSearchesByPrimaryKey() =
+    runBlocking<Unit> {
+      repeat(POPULATED_DEVICE_COUNT) { addRandomAssociatedDevice(ACTIVE_USER_ID) }
+
+      val query = recordQuery { database.getAssociatedDevice("id") }
+
+      assertThat(explainQueryPlan(query)).startsWith("SEARCH")
+    }
+
+  @Test
+  fun migration3To4_addsUserIdIndex() =
+    runBlocking<Unit> {
+      val query = recordQuery { database.getAssociatedDeviceIdsForUser(ACTIVE_USER_ID) }
+      val sqliteDatabase = connectedDeviceDatabase.openHelper.writableDatabase
+      sqliteDatabase.execSQL("DROP INDEX $USER_ID_INDEX")
+      assertThat(explainQueryPlan(query)).doesNotContain(USER_ID_INDEX)
+
+      ConnectedDeviceStorage.MIGRATION_3_4.migrate(sqliteDatabase)
+
+      assertThat(explainQueryPlan(query)).contains(USER_ID_INDEX)
+    }
+
   // This method cannot be annotated with @CanIgnoreReturnValue because the test will be published
   // externally.
   private suspend fun addRandomAssociatedDevice(userId: Int): AssociatedDevice {
@@ -763,14 +966,40 @@ class ConnectedDeviceStorageTest {
     addedAssociatedDevices.add(Pair(userId, device))
   }
 
+  /** Runs [daoCall] and returns the last query it ran, as Room generated it from the DAO. */
+  private suspend fun recordQuery(daoCall: suspend () -> Unit): ExecutedQuery {
+    executedQueries.clear()
+    daoCall()
+    return executedQueries.last { it.sql.startsWith("SELECT") }
+  }
+
+  private fun explainQueryPlan(query: ExecutedQuery): String {
+    val sqliteDatabase = connectedDeviceDatabase.openHelper.readableDatabase
+    val bindArgs = query.bindArgs.toTypedArray()
+    return sqliteDatabase.query("EXPLAIN QUERY PLAN ${query.sql}", bindArgs).use { cursor ->
+      buildString {
+        while (cursor.moveToNext()) {
+          append(cursor.getString(cursor.getColumnIndexOrThrow("detail")))
+        }
+      }
+    }
+  }
+
+  private data class ExecutedQuery(val sql: String, val bindArgs: List<Any?>)
+
+  private fun createStorage() =
+    ConnectedDeviceStorage(context, cryptoHelper, database, directExecutor())
+
   /** A CryptoHelper that does base64 de/encoding to simulate encryption. */
   private class FakeCryptoHelper : CryptoHelper {
+    var decryptCount = 0
 
     override fun encrypt(value: ByteArray?): String? {
       return Base64.encodeToString(value, Base64.DEFAULT)
     }
 
     override fun decrypt(value: String?): ByteArray? {
+      decryptCount++
       return Base64.decode(value, Base64.DEFAULT)
     }
   }
@@ -778,5 +1007,9 @@ class ConnectedDeviceStorageTest {
   companion object {
     private const val ACTIVE_USER_ID: Int = 10
     private const val TEST_ADDRESS: String = "00:00:00:00:00:00"
+    private const val POPULATED_DEVICE_COUNT = 200
+    private const val CONCURRENT_DEVICE_COUNT = 50
+    private const val USER_COUNT = 4
+    private const val USER_ID_INDEX = "index_associated_devices_userId"
   }
 }
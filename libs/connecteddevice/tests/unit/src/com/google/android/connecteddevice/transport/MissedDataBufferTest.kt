@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.connecteddevice.transport
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val MAX_COUNT = 3
+private const val MAX_BYTES = 100L
+
+@RunWith(AndroidJUnit4::class)
+class MissedDataBufferTest {
+  private val buffer = MissedDataBuffer(maxCount = MAX_COUNT, maxBytes = MAX_BYTES)
+
+  @Test
+  fun drain_returnsDataInArrivalOrder() {
+    val data = List(MAX_COUNT) { ByteArray(10) }
+    data.forEach { buffer.add(it) }
+
+    assertThat(buffer.drain()).containsExactlyElementsIn(data).inOrder()
+    assertThat(buffer.drain()).isEmpty()
+  }
+
+  @Test
+  fun add_dropsOldestWhenCountExceeded() {
+    val data = List(MAX_COUNT + 2) { ByteArray(10) }
+    data.forEach { buffer.add(it) }
+
+    assertThat(buffer.drain()).containsExactlyElementsIn(data.takeLast(MAX_COUNT)).inOrder()
+    assertThat(buffer.droppedCount).isEqualTo(2)
+  }
+
+  @Test
+  fun add_dropsOldestWhenBytesExceeded() {
+    val first = ByteArray(60)
+    val second = ByteArray(60)
+    buffer.add(first)
+    buffer.add(second)
+
+    assertThat(buffer.drain()).containsExactly(second)
+    assertThat(buffer.droppedCount).isEqualTo(1)
+  }
+
+  @Test
+  fun add_dataLargerThanLimitIsDropped() {
+    buffer.add(ByteArray(MAX_BYTES.toInt() + 1))
+
+    assertThat(buffer.size).isEqualTo(0)
+    assertThat(buffer.droppedCount).isEqualTo(1)
+  }
+
+  @Test
+  fun drain_releasesByteBudget() {
+    buffer.add(ByteArray(60))
+    buffer.drain()
+    val data = ByteArray(60)
+    buffer.add(data)
+
+    assertThat(buffer.drain()).containsExactly(data)
+    assertThat(buffer.droppedCount).isEqualTo(0)
+  }
+
+  @Test
+  fun clear_removesAllData() {
+    buffer.add(ByteArray(10))
+    buffer.add(ByteArray(10))
+
+    buffer.clear()
+
+    assertThat(buffer.size).isEqualTo(0)
+    assertThat(buffer.drain()).isEmpty()
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.connecteddevice.transport.proxy;
+
+import com.google.protos.aae.bleproxy.BlePeripheralMessage.BlePeripheralMessageParcel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Local stand-in for the BLE proxy that {@link NetworkSocketFactory} connects to.
+ *
+ * <p>Listens on an ephemeral loopback port and writes length-delimited parcels to the single client
+ * that connects to it.
+ */
+final class LoopbackProxyServer implements Closeable {
+  private final ServerSocket serverSocket;
+  private Socket clientSocket;
+  private Socket serverSideSocket;
+
+  LoopbackProxyServer() throws IOException {
+    serverSocket =
+        new ServerSocket(/* port= */ 0, /* backlog= */ 1, InetAddress.getLoopbackAddress());
+  }
+
+  /** Connects a client to this server and returns the client side of the connection. */
+  Socket connect() throws IOException {
+    clientSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    clientSocket.setTcpNoDelay(true);
+    serverSideSocket = serverSocket.accept();
+    serverSideSocket.setTcpNoDelay(true);
+    return clientSocket;
+  }
+
+  /** Sends {@code parcel} to the connected client. */
+  void send(BlePeripheralMessageParcel parcel) throws IOException {
+    OutputStream outputStream = serverSideSocket.getOutputStream();
+    parcel.writeDelimitedTo(outputStream);
+    outputStream.flush();
+  }
+
+  /** Closes the server side of the connection, which the client observes as end of stream. */
+  void disconnect() throws IOException {
+    serverSideSocket.close();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (serverSideSocket != null) {
+      serverSideSocket.close();
+    }
+    if (clientSocket != null) {
+      clientSocket.close();
+    }
+    serverSocket.close();
+  }
+}
@@ -19,8 +19,10 @@ package com.google.android.connecteddevice.transport.proxy;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.protobuf.ByteString;
@@ -37,9 +39,15 @@ import com.google.protos.aae.bleproxy.BlePeripheralMessage.NotifyStartedAdvertis
 import com.google.protos.aae.bleproxy.BlePeripheralMessage.UpdateCharacteristicMessage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.Socket;
 import java.util.Arrays;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -51,11 +59,19 @@ import org.mockito.junit.MockitoRule;
 
 @RunWith(AndroidJUnit4.class)
 public final class MessageReaderTest {
+  private static final long CALLBACK_TIMEOUT_MS = 5000;
+  private static final int MESSAGE_COUNT = 20;
+
   @Rule public final MockitoRule mockito = MockitoJUnit.rule();
 
+  private final DelayRecordingScheduler scheduler = new DelayRecordingScheduler();
+
   private MessageReader messageReader;
+  private LoopbackProxyServer server;
+  private MessageReader socketReader;
 
   @Mock private MessageReader.Callback mockCallback;
+  @Mock private MessageReader.Callback mockSocketCallback;
 
   @Before
   public void setUp() {
@@ -63,8 +79,19 @@ public final class MessageReaderTest {
         new MessageReader(
             new ByteArrayInputStream(new byte[] {}),
             mockCallback,
-            Executors.newSingleThreadScheduledExecutor());
-    messageReader.startProcessingInputStream();
+            scheduler);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    // Invalidate before closing the server so that the reader does not report the closed socket.
+    if (socketReader != null) {
+      socketReader.invalidate();
+    }
+    if (server != null) {
+      server.close();
+    }
+    scheduler.shutdownNow();
   }
 
   @Test
@@ -143,10 +170,117 @@ public final class MessageReaderTest {
                 createParcel(message, PayloadType.UPDATE_CHARACTERISTIC)));
   }
 
+  @Test
+  public void startProcessingInputStream_dispatchesMessagesFromSocket() throws Exception {
+    startSocketReader(mockSocketCallback);
+
+    server.send(
+        createParcel(
+            NotifyStartedAdvertisingMessage.getDefaultInstance(),
+            PayloadType.NOTIFY_STARTED_ADVERTISING));
+
+    verify(mockSocketCallback, timeout(CALLBACK_TIMEOUT_MS)).onAdvertisingStarted();
+  }
+
+  @Test
+  public void startProcessingInputStream_notifiesFailureWhenProxyDisconnects() throws Exception {
+    startSocketReader(mockSocketCallback);
+
+    server.disconnect();
+
+    verify(mockSocketCallback, timeout(CALLBACK_TIMEOUT_MS)).onInputStreamFailure();
+  }
+
+  @Test
+  public void startProcessingInputStream_deliversMessagesWithoutScheduledPolling()
+      throws Exception {
+    AdvertisingCallback advertisingCallback = new AdvertisingCallback();
+    startSocketReader(advertisingCallback);
+    BlePeripheralMessageParcel parcel =
+        createParcel(
+            NotifyStartedAdvertisingMessage.getDefaultInstance(),
+            PayloadType.NOTIFY_STARTED_ADVERTISING);
+
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      advertisingCallback.latch = new CountDownLatch(1);
+      server.send(parcel);
+      assertThat(advertisingCallback.latch.await(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+          .isTrue();
+    }
+
+    // The polling reader checked the stream on a fixed delay, so every message waited for it.
+    assertThat(scheduler.delayedTaskCount.get()).isEqualTo(0);
+  }
+
+  private void startSocketReader(MessageReader.Callback callback) throws IOException {
+    server = new LoopbackProxyServer();
+    Socket socket = server.connect();
+    socketReader = new MessageReader(socket.getInputStream(), callback, scheduler);
+    socketReader.startProcessingInputStream();
+  }
+
   private static BlePeripheralMessageParcel createParcel(MessageLite message, PayloadType type) {
     return BlePeripheralMessageParcel.newBuilder()
         .setPayload(message.toByteString())
         .setType(type)
         .build();
   }
+
+  /** Counts down a latch for each message, so that delivery is observed without mock overhead. */
+  private static final class AdvertisingCallback implements MessageReader.Callback {
+    private volatile CountDownLatch latch;
+
+    @Override
+    public void onAdvertisingStarted() {
+      latch.countDown();
+    }
+
+    @Override
+    public void onRemoteDeviceConnected(BluetoothDevice device) {}
+
+    @Override
+    public void onRemoteDeviceDisconnected(BluetoothDevice device) {}
+
+    @Override
+    public void onCharacteristicWrite(
+        BluetoothDevice device, BluetoothGattCharacteristic characteristic) {}
+
+    @Override
+    public void onCharacteristicUpdated(BluetoothDevice device) {}
+
+    @Override
+    public void onInputStreamFailure() {}
+  }
+
+  /** Counts the tasks that are scheduled to run after a delay rather than as soon as possible. */
+  private static final class DelayRecordingScheduler extends ScheduledThreadPoolExecutor {
+    private final AtomicInteger delayedTaskCount = new AtomicInteger();
+
+    DelayRecordingScheduler() {
+      super(/* corePoolSize= */ 1);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      // execute() also goes through here, without a delay.
+      if (delay > 0) {
+        delayedTaskCount.incrementAndGet();
+      }
+      return super.schedule(command, delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(
+        Runnable command, long initialDelay, long period, TimeUnit unit) {
+      delayedTaskCount.incrementAndGet();
+      return super.scheduleAtFixedRate(command, initialDelay, period, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(
+        Runnable command, long initialDelay, long delay, TimeUnit unit) {
+      delayedTaskCount.incrementAndGet();
+      return super.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+    }
+  }
 }
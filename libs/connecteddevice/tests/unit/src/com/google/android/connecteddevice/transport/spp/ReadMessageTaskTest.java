@@ -19,6 +19,8 @@ package com.google.android.connecteddevice.transport.spp;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.robolectric.Shadows.shadowOf;
@@ -88,6 +90,53 @@ public class ReadMessageTaskTest {
     verify(mockCallback, timeout(1000)).onMessageReceived(testData2);
   }
 
+  @Test
+  public void testRun_messageLargerThanReceiveBuffer_informCallback() throws IOException {
+    byte[] largeData = new byte[ReadMessageTask.RECEIVE_BUFFER_SIZE * 2 + 1];
+    largeData[largeData.length - 1] = 1;
+    shadowOf(shadowBluetoothSocket)
+        .getInputStreamFeeder()
+        .write(SppManager.wrapWithArrayLength(largeData));
+    shadowOf(shadowBluetoothSocket)
+        .getInputStreamFeeder()
+        .write(SppManager.wrapWithArrayLength(testData1));
+
+    executor.execute(readMessageTask);
+
+    verify(mockCallback, timeout(1000)).onMessageReceived(largeData);
+    verify(mockCallback, timeout(1000)).onMessageReceived(testData1);
+  }
+
+  @Test
+  public void testRun_messageLongerThanMax_onMessageReadError() throws IOException {
+    readMessageTask =
+        new ReadMessageTask(
+            shadowBluetoothSocket.getInputStream(),
+            mockCallback,
+            callbackExecutor,
+            /* maxMessageSize= */ testData1.length);
+    shadowOf(shadowBluetoothSocket)
+        .getInputStreamFeeder()
+        .write(SppManager.wrapWithArrayLength(testData2));
+
+    executor.execute(readMessageTask);
+
+    verify(mockCallback, timeout(1000)).onMessageReadError();
+    verify(mockCallback, never()).onMessageReceived(any());
+  }
+
+  @Test
+  public void testRun_negativeLength_onMessageReadError() throws IOException {
+    shadowOf(shadowBluetoothSocket)
+        .getInputStreamFeeder()
+        .write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+
+    executor.execute(readMessageTask);
+
+    verify(mockCallback, timeout(1000)).onMessageReadError();
+    verify(mockCallback, never()).onMessageReceived(any());
+  }
+
   @Test
   public void testReadData_splittedMessages_readSuccessfully(){
     FakeInputStream fakeInputStream = new FakeInputStream(messageSplitLength);
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.connecteddevice.transport.spp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+@RunWith(AndroidJUnit4.class)
+public class SppMessageWriterTest {
+  private static final int MESSAGE_COUNT = 1_000;
+  private static final int BUFFER_SIZE = 64;
+  private final byte[] testData1 = "data1".getBytes(UTF_8);
+  private final byte[] testData2 = "testData2".getBytes(UTF_8);
+  private final List<Runnable> queuedTasks = new ArrayList<>();
+
+  @Rule public final MockitoRule mockito = MockitoJUnit.rule();
+
+  @Mock private SppMessageWriter.Callback mockCallback;
+  @Mock private PendingSentMessage.OnSuccessListener mockOnSuccessListener;
+
+  @Test
+  public void write_writesLengthPrefixedMessage() {
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    SppMessageWriter writer = new SppMessageWriter(sink, directExecutor(), mockCallback);
+
+    writer.write(testData1, createPendingSentMessage());
+
+    assertThat(sink.toByteArray()).isEqualTo(SppManager.wrapWithArrayLength(testData1));
+    verify(mockOnSuccessListener).onSuccess();
+  }
+
+  @Test
+  public void write_coalescesQueuedMessagesIntoOneWrite() {
+    CountingOutputStream sink = new CountingOutputStream(new ByteArrayOutputStream());
+    SppMessageWriter writer =
+        new SppMessageWriter(sink, queuedTasks::add, mockCallback, BUFFER_SIZE);
+
+    writer.write(testData1, createPendingSentMessage());
+    writer.write(testData2, createPendingSentMessage());
+    verify(mockOnSuccessListener, never()).onSuccess();
+    runQueuedTasks();
+
+    assertThat(sink.writeCount).isEqualTo(1);
+    assertThat(sink.toByteArray())
+        .isEqualTo(
+            concat(
+                SppManager.wrapWithArrayLength(testData1),
+                SppManager.wrapWithArrayLength(testData2)));
+    verify(mockOnSuccessListener, times(2)).onSuccess();
+  }
+
+  @Test
+  public void write_largeMessageWrittenWithoutCopy() {
+    CountingOutputStream sink = new CountingOutputStream(new ByteArrayOutputStream());
+    SppMessageWriter writer =
+        new SppMessageWriter(sink, directExecutor(), mockCallback, BUFFER_SIZE);
+    byte[] largeData = new byte[BUFFER_SIZE * 2];
+
+    writer.write(largeData, createPendingSentMessage());
+
+    assertThat(sink.writtenArrays).contains(largeData);
+    assertThat(sink.toByteArray()).isEqualTo(SppManager.wrapWithArrayLength(largeData));
+  }
+
+  @Test
+  public void write_notifiesCallbackOnError() {
+    OutputStream failingStream =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw new IOException();
+          }
+        };
+    SppMessageWriter writer =
+        new SppMessageWriter(failingStream, directExecutor(), mockCallback, BUFFER_SIZE);
+
+    writer.write(new byte[BUFFER_SIZE * 2], createPendingSentMessage());
+
+    verify(mockCallback).onWriteError();
+    verify(mockOnSuccessListener, never()).onSuccess();
+  }
+
+  @Test
+  public void write_loopbackSocket_writesMoreBytesPerSocketWriteThanPerMessagePath()
+      throws Exception {
+    // The path SppMessageWriter replaced: a framed copy and a socket write for every message.
+    CountingOutputStream perMessageStream =
+        sendOverLoopbackSocket(
+            socketStream -> {
+              for (int i = 0; i < MESSAGE_COUNT; i++) {
+                socketStream.write(
+                    SppManager.wrapWithArrayLength(Integer.toString(i).getBytes(UTF_8)));
+              }
+            });
+    ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    CountingOutputStream coalescedStream =
+        sendOverLoopbackSocket(
+            socketStream -> {
+              // Hold the write executor until all messages are queued, as in a burst.
+              CountDownLatch queued = new CountDownLatch(1);
+              writeExecutor.execute(
+                  () -> {
+                    try {
+                      queued.await();
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                  });
+              SppMessageWriter writer =
+                  new SppMessageWriter(socketStream, writeExecutor, mockCallback);
+              for (int i = 0; i < MESSAGE_COUNT; i++) {
+                writer.write(Integer.toString(i).getBytes(UTF_8), createPendingSentMessage());
+              }
+              queued.countDown();
+            });
+    writeExecutor.shutdown();
+
+    verify(mockOnSuccessListener, timeout(1000).times(MESSAGE_COUNT)).onSuccess();
+    assertThat(coalescedStream.byteCount).isEqualTo(perMessageStream.byteCount);
+    assertThat(perMessageStream.writeCount).isEqualTo(MESSAGE_COUNT);
+    assertThat(coalescedStream.bytesPerWrite())
+        .isAtLeast(10 * perMessageStream.bytesPerWrite());
+  }
+
+  /**
+   * Sends {@link #MESSAGE_COUNT} messages with {@code socketWriter} over a loopback socket, checks
+   * that they arrive in order and returns the stream that counted the writes to the socket.
+   */
+  private static CountingOutputStream sendOverLoopbackSocket(SocketWriter socketWriter)
+      throws Exception {
+    InetAddress loopbackAddress = InetAddress.getLoopbackAddress();
+    try (ServerSocket serverSocket = new ServerSocket(0, 1, loopbackAddress);
+        Socket clientSocket = new Socket(loopbackAddress, serverSocket.getLocalPort());
+        Socket acceptedSocket = serverSocket.accept()) {
+      CountingOutputStream socketStream = new CountingOutputStream(clientSocket.getOutputStream());
+      socketWriter.writeMessages(socketStream);
+
+      DataInputStream inputStream = new DataInputStream(acceptedSocket.getInputStream());
+      byte[] lengthBytes = new byte[SppManager.LENGTH_BYTES_SIZE];
+      for (int i = 0; i < MESSAGE_COUNT; i++) {
+        inputStream.readFully(lengthBytes);
+        byte[] message = new byte[lengthBytes[0]];
+        inputStream.readFully(message);
+        assertThat(new String(message, UTF_8)).isEqualTo(Integer.toString(i));
+      }
+      return socketStream;
+    }
+  }
+
+  private PendingSentMessage createPendingSentMessage() {
+    PendingSentMessage pendingSentMessage = new PendingSentMessage();
+    pendingSentMessage.setOnSuccessListener(mockOnSuccessListener);
+    return pendingSentMessage;
+  }
+
+  private void runQueuedTasks() {
+    while (!queuedTasks.isEmpty()) {
+      queuedTasks.remove(0).run();
+    }
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = new byte[first.length + second.length];
+    System.arraycopy(first, 0, result, 0, first.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  /** Writes the test messages to a socket stream. */
+  private interface SocketWriter {
+    void writeMessages(OutputStream socketStream) throws IOException;
+  }
+
+  /** Records the writes that reach the underlying stream. */
+  private static class CountingOutputStream extends FilterOutputStream {
+    final List<byte[]> writtenArrays = new ArrayList<>();
+    int writeCount = 0;
+    long byteCount = 0;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      writeCount++;
+      byteCount += len;
+      writtenArrays.add(b);
+      out.write(b, off, len);
+    }
+
+    double bytesPerWrite() {
+      return (double) byteCount / writeCount;
+    }
+
+    byte[] toByteArray() {
+      return ((ByteArrayOutputStream) out).toByteArray();
+    }
+  }
+}
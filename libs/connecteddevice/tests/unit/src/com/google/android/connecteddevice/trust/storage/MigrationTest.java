@@ -20,7 +20,7 @@ import org.junit.runner.RunWith;
 
 @RunWith(AndroidJUnit4.class)
 public class MigrationTest {
-  private static final int CURRENT_VERSION = 4;
+  private static final int CURRENT_VERSION = 5;
 
   private static final String TRUSTED_DEVICES_TABLE = "trusted_devices";
 
@@ -44,7 +44,7 @@ public class MigrationTest {
           new FrameworkSQLiteOpenHelperFactory());
 
   @Test
-  public void testMigrate1To4() throws IOException {
+  public void testMigrate1To5() throws IOException {
     int startingVersion = 1;
     // Create the database in version 1
     try (SupportSQLiteDatabase db = helper.createDatabase(DATABASE_NAME, startingVersion)) {
@@ -60,7 +60,7 @@ public class MigrationTest {
   }
 
   @Test
-  public void testMigrate2To4() throws IOException {
+  public void testMigrate2To5() throws IOException {
     int startingVersion = 2;
     // Create the database in version 2
     try (SupportSQLiteDatabase db = helper.createDatabase(DATABASE_NAME, startingVersion)) {
@@ -77,7 +77,7 @@ public class MigrationTest {
   }
 
   @Test
-  public void testMigrate3To4() throws IOException {
+  public void testMigrate3To5() throws IOException {
     int startingVersion = 3;
     // Create the database in version 3
     try (SupportSQLiteDatabase db = helper.createDatabase(DATABASE_NAME, startingVersion)) {
@@ -93,6 +93,23 @@ public class MigrationTest {
     assertThat(dbEntity).isEqualTo(expectedDevice);
   }
 
+  @Test
+  public void testMigrate4To5() throws IOException {
+    int startingVersion = 4;
+    // Create the database in version 4
+    try (SupportSQLiteDatabase db = helper.createDatabase(DATABASE_NAME, startingVersion)) {
+      insertTrustedDevice(db, startingVersion);
+    }
+
+    TrustedDeviceEntity dbEntity =
+        getMigratedRoomDatabase().trustedDeviceDao().getTrustedDevice(DEFAULT_DEVICE_ID);
+
+    TrustedDeviceEntity expectedDevice =
+        new TrustedDeviceEntity(
+            DEFAULT_DEVICE_ID, DEFAULT_USER_ID, DEFAULT_HANDLE, DEFAULT_IS_VALID);
+    assertThat(dbEntity).isEqualTo(expectedDevice);
+  }
+
   @Test
   public void validateSchemaChanges() throws IOException {
     int startingVersion = 1;
@@ -131,6 +148,7 @@ public class MigrationTest {
       new Migration[] {
         TrustedDeviceDatabaseProvider.MIGRATION_1_2,
         TrustedDeviceDatabaseProvider.MIGRATION_2_3,
-        TrustedDeviceDatabaseProvider.MIGRATION_3_4
+        TrustedDeviceDatabaseProvider.MIGRATION_3_4,
+        TrustedDeviceDatabaseProvider.MIGRATION_4_5
       };
 }
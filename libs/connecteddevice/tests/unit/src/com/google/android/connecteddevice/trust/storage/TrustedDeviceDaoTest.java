@@ -5,10 +5,12 @@ import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import android.content.Context;
+import android.database.Cursor;
 import androidx.room.Room;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -26,6 +28,13 @@ public final class TrustedDeviceDaoTest {
   private static final long OTHER_HANDLE = 12L;
   private static final byte[] OTHER_FEATURE_STATE = "other".getBytes(UTF_8);
 
+  private static final int POPULATED_DEVICE_COUNT = 200;
+  private static final int USER_COUNT = 4;
+  private static final String USER_ID_INDEX = "index_trusted_devices_userId_isValid";
+
+  // The queries the database has run, as reported by its query callback.
+  private final List<ExecutedQuery> executedQueries = new CopyOnWriteArrayList<>();
+
   private TrustedDeviceDatabase database;
   private TrustedDeviceDao trustedDeviceDao;
 
@@ -36,6 +45,9 @@ public final class TrustedDeviceDaoTest {
     database = Room.inMemoryDatabaseBuilder(context, TrustedDeviceDatabase.class)
       .allowMainThreadQueries()
       .setQueryExecutor(directExecutor())
+      .setQueryCallback(
+          (sqlQuery, bindArgs) -> executedQueries.add(new ExecutedQuery(sqlQuery, bindArgs)),
+          directExecutor())
       .build();
 
     trustedDeviceDao = database.trustedDeviceDao();
@@ -188,4 +200,70 @@ public final class TrustedDeviceDaoTest {
         trustedDeviceDao.getInvalidTrustedDevicesForUser(entity.userId);
     assertThat(storedDevices).containsExactly(other);
   }
+
+  @Test
+  public void testIsTrustedDeviceValid() {
+    trustedDeviceDao.addOrReplaceTrustedDevice(
+        new TrustedDeviceEntity(DEFAULT_ID, DEFAULT_USER_ID, DEFAULT_HANDLE, /* isValid= */ true));
+    trustedDeviceDao.addOrReplaceTrustedDevice(
+        new TrustedDeviceEntity(OTHER_ID, DEFAULT_USER_ID, OTHER_HANDLE, /* isValid= */ false));
+
+    assertThat(trustedDeviceDao.isTrustedDeviceValid(DEFAULT_ID)).isTrue();
+    assertThat(trustedDeviceDao.isTrustedDeviceValid(OTHER_ID)).isFalse();
+    assertThat(trustedDeviceDao.isTrustedDeviceValid("unknown")).isFalse();
+  }
+
+  @Test
+  public void testGetValidTrustedDevicesForUser_populatedDatabaseUsesUserIdIndex() {
+    for (int i = 0; i < POPULATED_DEVICE_COUNT; i++) {
+      trustedDeviceDao.addOrReplaceTrustedDevice(
+          new TrustedDeviceEntity(
+              "id" + i, DEFAULT_USER_ID + i % USER_COUNT, i, /* isValid= */ i % 2 == 0));
+    }
+
+    ExecutedQuery validDevicesQuery =
+        recordQuery(() -> trustedDeviceDao.getValidTrustedDevicesForUser(DEFAULT_USER_ID));
+    ExecutedQuery deviceQuery = recordQuery(() -> trustedDeviceDao.getTrustedDevice("id1"));
+
+    assertThat(explainQueryPlan(validDevicesQuery)).contains(USER_ID_INDEX);
+    assertThat(explainQueryPlan(deviceQuery)).startsWith("SEARCH");
+    assertThat(trustedDeviceDao.getValidTrustedDevicesForUser(DEFAULT_USER_ID))
+        .hasSize(POPULATED_DEVICE_COUNT / USER_COUNT);
+  }
+
+  /** Runs {@code daoCall} and returns the last query it ran, as Room generated it from the DAO. */
+  private ExecutedQuery recordQuery(Runnable daoCall) {
+    executedQueries.clear();
+    daoCall.run();
+    for (int i = executedQueries.size() - 1; i >= 0; i--) {
+      if (executedQueries.get(i).sql.startsWith("SELECT")) {
+        return executedQueries.get(i);
+      }
+    }
+    throw new AssertionError("The DAO did not run a query.");
+  }
+
+  private String explainQueryPlan(ExecutedQuery query) {
+    StringBuilder plan = new StringBuilder();
+    try (Cursor cursor =
+        database
+            .getOpenHelper()
+            .getReadableDatabase()
+            .query("EXPLAIN QUERY PLAN " + query.sql, query.bindArgs.toArray())) {
+      while (cursor.moveToNext()) {
+        plan.append(cursor.getString(cursor.getColumnIndexOrThrow("detail")));
+      }
+    }
+    return plan.toString();
+  }
+
+  private static final class ExecutedQuery {
+    final String sql;
+    final List<?> bindArgs;
+
+    ExecutedQuery(String sql, List<?> bindArgs) {
+      this.sql = sql;
+      this.bindArgs = bindArgs;
+    }
+  }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.connecteddevice.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.connecteddevice.logging.model.LogRecord;
+import com.google.android.connecteddevice.logging.model.LogRecord.Level;
+import com.google.common.collect.EvictingQueue;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Queue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class LoggerTest {
+  private static final String TAG = "LoggerTest";
+  private static final int CAPACITY = 4;
+  private static final int ALLOCATION_ITERATIONS = 10_000;
+  private static final int MESSAGE_ID = 1_000;
+
+  private final Logger logger = new Logger(CAPACITY);
+
+  @Test
+  public void getLogRecords_returnsRecordsInOrder() {
+    logger.debug(TAG, "first");
+    logger.info(TAG, "second");
+    logger.error(TAG, "third", new IllegalStateException());
+
+    List<LogRecord> records = logger.getLogRecords();
+
+    assertThat(records).hasSize(3);
+    assertThat(records.get(0).getMessage()).isEqualTo("first");
+    assertThat(records.get(0).getLevel()).isEqualTo(Level.DEBUG);
+    assertThat(records.get(1).getMessage()).isEqualTo("second");
+    assertThat(records.get(1).getLevel()).isEqualTo(Level.INFO);
+    assertThat(records.get(2).getLevel()).isEqualTo(Level.ERROR);
+    assertThat(records.get(2).getBackTrace()).contains("IllegalStateException");
+  }
+
+  @Test
+  public void getLogRecords_keepsOnlyMostRecentRecords() {
+    for (int i = 0; i < CAPACITY + 2; i++) {
+      logger.debug(TAG, "message " + i);
+    }
+
+    List<LogRecord> records = logger.getLogRecords();
+
+    assertThat(records).hasSize(CAPACITY);
+    assertThat(records.get(0).getMessage()).isEqualTo("message 2");
+    assertThat(records.get(CAPACITY - 1).getMessage()).isEqualTo("message " + (CAPACITY + 1));
+  }
+
+  @Test
+  public void formattedRecord_isFormattedWhenExported() {
+    logger.debug(TAG, "Received %s of %d.", "argument", 3);
+
+    assertThat(logger.getLogRecords().get(0).getMessage()).isEqualTo("Received argument of 3.");
+  }
+
+  @Test
+  public void intFormattedRecord_isFormattedWhenExported() {
+    logger.debug(TAG, "Parsed packet %d of message %d.", 2, 1_000);
+
+    assertThat(logger.getLogRecords().get(0).getMessage())
+        .isEqualTo("Parsed packet 2 of message 1000.");
+  }
+
+  @Test
+  public void formattedRecord_doesNotRetainMutableArgument() {
+    StringBuilder argument = new StringBuilder("argument");
+
+    logger.debug(TAG, "Received %s.", argument, /* arg2= */ null);
+    argument.setLength(0);
+
+    assertThat(logger.getLogRecords().get(0).getMessage()).isEqualTo("Received argument.");
+  }
+
+  @Test
+  public void formattedRecord_ignoresUnusedArgument() {
+    logger.info(TAG, "Received %d bytes.", 10, /* arg2= */ null);
+
+    assertThat(logger.getLogRecords().get(0).getMessage()).isEqualTo("Received 10 bytes.");
+  }
+
+  @Test
+  public void formattedRecord_invalidFormatFallsBackToArguments() {
+    logger.verbose(TAG, "Received %d bytes.", "ten", /* arg2= */ null);
+
+    assertThat(logger.getLogRecords().get(0).getMessage())
+        .isEqualTo("Received %d bytes. [ten, null]");
+  }
+
+  @Test
+  public void plainRecord_isNotFormatted() {
+    logger.debug(TAG, "100% done");
+
+    assertThat(logger.getLogRecords().get(0).getMessage()).isEqualTo("100% done");
+  }
+
+  @Test
+  public void toByteArray_serializesRecords() {
+    logger.debug(TAG, "message");
+
+    assertThat(new String(logger.toByteArray(), UTF_8)).contains("\"message\":\"message\"");
+  }
+
+  @Test
+  public void safeLog_allocatesLessThanCreatingLogRecords() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    Queue<LogRecord> previousQueue = EvictingQueue.create(CAPACITY);
+    String argument = "argument";
+
+    // Warm up both paths before measuring.
+    logWithSafeLog(argument);
+    logWithLogRecords(previousQueue, argument);
+    long threadId = Thread.currentThread().getId();
+    long start = threadBean.getThreadAllocatedBytes(threadId);
+    logWithSafeLog(argument);
+    long safeLogBytes = threadBean.getThreadAllocatedBytes(threadId) - start;
+    start = threadBean.getThreadAllocatedBytes(threadId);
+    logWithLogRecords(previousQueue, argument);
+    long logRecordBytes = threadBean.getThreadAllocatedBytes(threadId) - start;
+
+    assertThat(safeLogBytes).isLessThan(logRecordBytes);
+  }
+
+  @Test
+  public void safeLog_formatOverloadAllocatesFarLessThanFormattingEachMessage() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    // Only a tag that is not loggable at this level skips formatting for logcat.
+    assumeFalse(Log.isLoggable(TAG, Log.DEBUG));
+    Queue<LogRecord> previousQueue = EvictingQueue.create(CAPACITY);
+
+    // Warm up both paths before measuring.
+    logPacketsWithSafeLog();
+    logPacketsWithLogRecords(previousQueue);
+    long threadId = Thread.currentThread().getId();
+    long start = threadBean.getThreadAllocatedBytes(threadId);
+    logPacketsWithSafeLog();
+    long safeLogBytes = threadBean.getThreadAllocatedBytes(threadId) - start;
+    start = threadBean.getThreadAllocatedBytes(threadId);
+    logPacketsWithLogRecords(previousQueue);
+    long logRecordBytes = threadBean.getThreadAllocatedBytes(threadId) - start;
+
+    assertThat(safeLogBytes).isLessThan(logRecordBytes / 10);
+  }
+
+  /** Logs a per-packet line the way {@code ProtocolStream} does, with unboxed arguments. */
+  private static void logPacketsWithSafeLog() {
+    for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+      SafeLog.logd(TAG, "Parsed packet %d of message %d.", i, MESSAGE_ID);
+    }
+  }
+
+  /** Logs a per-packet line the way it was logged before formatting was deferred. */
+  private static void logPacketsWithLogRecords(Queue<LogRecord> queue) {
+    for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+      String message = "Parsed packet " + i + " of message " + MESSAGE_ID + ".";
+      Log.d(TAG, message);
+      queue.add(new LogRecord(Level.DEBUG, TAG, message));
+    }
+  }
+
+  private static void logWithSafeLog(String argument) {
+    for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+      SafeLog.logd(TAG, "Received " + argument + ".");
+    }
+  }
+
+  /** Logs the way {@link SafeLog} did before {@link Logger} kept its records in a ring. */
+  private static void logWithLogRecords(Queue<LogRecord> queue, String argument) {
+    for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+      String message = "Received " + argument + ".";
+      Log.d(TAG, message);
+      queue.add(new LogRecord(Level.DEBUG, TAG, message));
+    }
+  }
+}
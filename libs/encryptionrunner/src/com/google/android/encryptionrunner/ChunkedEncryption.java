@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.encryptionrunner;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SignatureException;
+import java.util.Arrays;
+
+/**
+ * Encrypts a message of any length as a sequence of chunks so that neither side has to hold the
+ * whole message in memory.
+ *
+ * <p>Each chunk is encrypted with {@link Key#encryptData(byte[])} and written as a 4-byte
+ * big-endian length followed by the encrypted chunk. The first byte of every decrypted chunk marks
+ * whether it is the last chunk of the message, so a message that has been cut short cannot be
+ * mistaken for a complete one.
+ *
+ * <p>Every chunk takes the next place in the key's sequence of encrypted messages. No other message
+ * may be encrypted or decrypted with the same key until the stream has been closed.
+ */
+final class ChunkedEncryption {
+  /** Upper bound of the bytes that encrypting a chunk adds to it. */
+  @VisibleForTesting static final int MAX_CHUNK_OVERHEAD = 1024;
+
+  private static final byte CHUNK_FLAG_MORE = 0;
+  private static final byte CHUNK_FLAG_LAST = 1;
+  private static final int CHUNK_FLAG_LENGTH = 1;
+
+  private ChunkedEncryption() {}
+
+  /** Encrypts the data written to it in chunks and writes the chunks to another stream. */
+  static class EncryptingOutputStream extends OutputStream {
+    private final Key key;
+    private final DataOutputStream out;
+    private final int chunkSize;
+    // The first byte is reserved for the chunk flag.
+    private final byte[] chunk;
+    private int chunkLength = 0;
+    private boolean isClosed = false;
+
+    EncryptingOutputStream(@NonNull Key key, @NonNull OutputStream out, int chunkSize) {
+      if (chunkSize <= 0) {
+        throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+      }
+      this.key = key;
+      this.out = new DataOutputStream(out);
+      this.chunkSize = chunkSize;
+      chunk = new byte[CHUNK_FLAG_LENGTH + chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      assertOpen();
+      if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      }
+      while (len > 0) {
+        // A full chunk is only written once more data arrives, because the last chunk of the
+        // message is not known until the stream is closed.
+        if (chunkLength == chunkSize) {
+          writeChunk(CHUNK_FLAG_MORE);
+        }
+        int copyLength = Math.min(len, chunkSize - chunkLength);
+        System.arraycopy(b, off, chunk, CHUNK_FLAG_LENGTH + chunkLength, copyLength);
+        chunkLength += copyLength;
+        off += copyLength;
+        len -= copyLength;
+      }
+    }
+
+    /** Encrypts and writes the data written so far as a chunk of its own. */
+    @Override
+    public void flush() throws IOException {
+      assertOpen();
+      if (chunkLength > 0) {
+        writeChunk(CHUNK_FLAG_MORE);
+      }
+      out.flush();
+    }
+
+    /** Writes the last chunk of the message and closes the underlying stream. */
+    @Override
+    public void close() throws IOException {
+      if (isClosed) {
+        return;
+      }
+      try {
+        writeChunk(CHUNK_FLAG_LAST);
+        out.flush();
+      } finally {
+        isClosed = true;
+        out.close();
+      }
+    }
+
+    private void writeChunk(byte flag) throws IOException {
+      chunk[0] = flag;
+      int plaintextLength = CHUNK_FLAG_LENGTH + chunkLength;
+      byte[] encryptedChunk =
+          key.encryptData(
+              plaintextLength == chunk.length ? chunk : Arrays.copyOf(chunk, plaintextLength));
+      out.writeInt(encryptedChunk.length);
+      out.write(encryptedChunk);
+      chunkLength = 0;
+    }
+
+    private void assertOpen() throws IOException {
+      if (isClosed) {
+        throw new IOException("Stream closed");
+      }
+    }
+  }
+
+  /** Reads chunks from another stream and returns their decrypted data. */
+  static class DecryptingInputStream extends InputStream {
+    private final Key key;
+    private final DataInputStream in;
+    private final int maxEncryptedChunkLength;
+    private byte[] chunk = new byte[CHUNK_FLAG_LENGTH];
+    private int position = CHUNK_FLAG_LENGTH;
+    private boolean isLastChunkRead = false;
+
+    DecryptingInputStream(@NonNull Key key, @NonNull InputStream in, int maxChunkSize) {
+      if (maxChunkSize <= 0) {
+        throw new IllegalArgumentException("Chunk size must be positive: " + maxChunkSize);
+      }
+      this.key = key;
+      this.in = new DataInputStream(in);
+      maxEncryptedChunkLength = CHUNK_FLAG_LENGTH + maxChunkSize + MAX_CHUNK_OVERHEAD;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+      if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      }
+      if (len == 0) {
+        return 0;
+      }
+      while (position == chunk.length) {
+        if (isLastChunkRead) {
+          return -1;
+        }
+        readChunk();
+      }
+      int readLength = Math.min(len, chunk.length - position);
+      System.arraycopy(chunk, position, b, off, readLength);
+      position += readLength;
+      return readLength;
+    }
+
+    @Override
+    public int available() {
+      return chunk.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
+    private void readChunk() throws IOException {
+      int encryptedLength;
+      try {
+        encryptedLength = in.readInt();
+      } catch (EOFException e) {
+        throw new IOException("Stream ended before the last chunk of the message.", e);
+      }
+      if (encryptedLength <= 0 || encryptedLength > maxEncryptedChunkLength) {
+        throw new IOException("Invalid encrypted chunk length: " + encryptedLength);
+      }
+      byte[] encryptedChunk = new byte[encryptedLength];
+      in.readFully(encryptedChunk);
+      byte[] decryptedChunk;
+      try {
+        decryptedChunk = key.decryptData(encryptedChunk);
+      } catch (SignatureException e) {
+        throw new IOException("Could not decrypt chunk.", e);
+      }
+      if (decryptedChunk.length < CHUNK_FLAG_LENGTH
+          || (decryptedChunk[0] != CHUNK_FLAG_MORE && decryptedChunk[0] != CHUNK_FLAG_LAST)) {
+        throw new IOException("Decrypted chunk is malformed.");
+      }
+      isLastChunkRead = decryptedChunk[0] == CHUNK_FLAG_LAST;
+      chunk = decryptedChunk;
+      position = CHUNK_FLAG_LENGTH;
+    }
+  }
+}
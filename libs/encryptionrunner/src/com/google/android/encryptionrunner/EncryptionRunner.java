@@ -87,6 +87,24 @@ import androidx.annotation.NonNull;
  * sendToClient(serverMessage.getNextMessage());
  * }
  *
+ * <p>3. Resuming a session.
+ *
+ * <p>Two devices that have stored the key of a previous session can skip the handshake and derive
+ * the keys of a new session from it in a single round trip.
+ *
+ * <pre>{@code
+ * HandshakeMessage clientMessage = clientRunner.initSessionResumption(previousKey);
+ * sendToServer(clientMessage.getNextMessage());
+ *
+ * HandshakeMessage serverMessage = serverRunner.respondToSessionResumption(message, previousKey);
+ * sendToClient(serverMessage.getNextMessage());
+ *
+ * HandshakeMessage lastMessage = clientRunner.continueSessionResumption(message);
+ * }
+ *
+ * <p>Both {@code serverMessage} and {@code lastMessage} are {@code FINISHED} and contain the key of
+ * the new session.
+ *
  * <p>Also see {@link EncryptionRunnerTest} for examples.
  */
 public interface EncryptionRunner {
@@ -178,6 +196,56 @@ public interface EncryptionRunner {
   HandshakeMessage initReconnectAuthentication(@NonNull byte[] previousKey)
       throws HandshakeException;
 
+  /**
+   * Starts resuming the session of {@code previousKey} instead of running a new handshake.
+   *
+   * <p>The returned message should be passed to the other device's {@link
+   * #respondToSessionResumption(byte[], byte[])}.
+   *
+   * @param previousKey previously stored key.
+   * @return a handshake message with the message to send to the other device.
+   * @throws HandshakeException if this runner does not support session resumption.
+   */
+  @NonNull
+  default HandshakeMessage initSessionResumption(@NonNull byte[] previousKey)
+      throws HandshakeException {
+    throw new HandshakeException("Session resumption is not supported.");
+  }
+
+  /**
+   * Verifies a session resumption request and derives the key of the resumed session.
+   *
+   * <p>The message passed to this method should have been generated by {@link
+   * #initSessionResumption(byte[])}.
+   *
+   * @param message message from the other device.
+   * @param previousKey previously stored key.
+   * @return a handshake message with the key of the resumed session and the message to send back
+   *     to the other device.
+   * @throws HandshakeException if the message is not valid for {@code previousKey}.
+   */
+  @NonNull
+  default HandshakeMessage respondToSessionResumption(
+      @NonNull byte[] message, @NonNull byte[] previousKey) throws HandshakeException {
+    throw new HandshakeException("Session resumption is not supported.");
+  }
+
+  /**
+   * Completes a session resumption started by {@link #initSessionResumption(byte[])}.
+   *
+   * <p>The response passed to this method should have been generated by the other device's {@link
+   * #respondToSessionResumption(byte[], byte[])}.
+   *
+   * @param response the response from the other device.
+   * @return a handshake message with the key of the resumed session.
+   * @throws HandshakeException if the response is not valid for the resumed session.
+   */
+  @NonNull
+  default HandshakeMessage continueSessionResumption(@NonNull byte[] response)
+      throws HandshakeException {
+    throw new HandshakeException("Session resumption is not supported.");
+  }
+
   /**
    * De-serializes a previously serialized key generated by an instance of this encryption runner.
    *
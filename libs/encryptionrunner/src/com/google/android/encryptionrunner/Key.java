@@ -17,6 +17,10 @@
 package com.google.android.encryptionrunner;
 
 import androidx.annotation.NonNull;
+import com.google.android.encryptionrunner.ChunkedEncryption.DecryptingInputStream;
+import com.google.android.encryptionrunner.ChunkedEncryption.EncryptingOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 
@@ -35,6 +39,24 @@ public interface Key {
   @NonNull
   byte[] encryptData(@NonNull byte[] data);
 
+  /**
+   * Assigns data its position in the sequence of encrypted messages and returns the work left to
+   * encrypt it.
+   *
+   * <p>Only calls to this method need to be serialized. The returned {@link PendingEncryption} can
+   * be completed on any thread, concurrently with other messages and with {@link #decryptData}, but
+   * the encrypted messages must reach the remote device in the order this method was called. The
+   * default implementation encrypts immediately.
+   *
+   * @param data the data to be encrypted
+   * @return the encryption of the data.
+   */
+  @NonNull
+  default PendingEncryption prepareEncryption(@NonNull byte[] data) {
+    byte[] encryptedData = encryptData(data);
+    return () -> encryptedData;
+  }
+
   /**
    * Decrypts data using this key.
    *
@@ -45,6 +67,41 @@ public interface Key {
   @NonNull
   byte[] decryptData(@NonNull byte[] encryptedData) throws SignatureException;
 
+  /**
+   * Returns a stream that encrypts the data written to it in chunks of at most {@code chunkSize}
+   * bytes and writes them to {@code out}, so a large message never has to be held in memory as a
+   * whole. Closing the returned stream marks the end of the message and closes {@code out}.
+   *
+   * <p>Every chunk takes the next place in the sequence of encrypted messages. No other data may be
+   * encrypted with this key until the returned stream has been closed.
+   *
+   * @param out the stream that receives the encrypted chunks.
+   * @param chunkSize the maximum number of plaintext bytes in a chunk.
+   * @return a stream that accepts the data to be encrypted.
+   */
+  @NonNull
+  default OutputStream encryptingStream(@NonNull OutputStream out, int chunkSize) {
+    return new EncryptingOutputStream(this, out, chunkSize);
+  }
+
+  /**
+   * Returns a stream of the data decrypted from the chunks that {@link #encryptingStream} wrote to
+   * {@code in}. Reading it fails with an {@link java.io.IOException} if a chunk cannot be decrypted
+   * or if {@code in} ends before the last chunk of the message.
+   *
+   * <p>No other data may be decrypted with this key until the returned stream has been read to the
+   * end.
+   *
+   * @param in the stream of encrypted chunks.
+   * @param maxChunkSize the largest chunk size that is accepted; chunks announcing a larger length
+   *     are rejected before they are read.
+   * @return a stream of the decrypted data.
+   */
+  @NonNull
+  default InputStream decryptingStream(@NonNull InputStream in, int maxChunkSize) {
+    return new DecryptingInputStream(this, in, maxChunkSize);
+  }
+
   /**
    * Returns a cryptographic digest of the key.
    *
@@ -52,4 +109,11 @@ public interface Key {
    */
   @NonNull
   byte[] getUniqueSession() throws NoSuchAlgorithmException;
+
+  /** Encryption of data whose position in the sequence of messages is already decided. */
+  interface PendingEncryption {
+    /** Returns the encrypted data. */
+    @NonNull
+    byte[] encrypt();
+  }
 }
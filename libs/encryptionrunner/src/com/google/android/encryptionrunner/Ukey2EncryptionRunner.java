@@ -22,6 +22,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.google.security.cryptauth.lib.securegcm.D2DConnectionContext;
 import com.google.security.cryptauth.lib.securegcm.Ukey2Handshake;
+import com.google.security.cryptauth.lib.securegcm.Ukey2KeyPairPool;
 import com.google.security.cryptauth.lib.securemessage.CryptoOps;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -29,12 +30,22 @@ import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
  * An {@link EncryptionRunner} that uses UKey2 as the underlying implementation.
  *
  * <p>See go/ukey2 for more details on UKey2 itself.
+ *
+ * <p>Session resumption skips the UKey2 handshake. Each device contributes a random nonce and the
+ * keys of the new session are derived from the stored session and both nonces, so the new session
+ * does not get fresh key material from a key exchange. Anyone who learns the stored key can derive
+ * the keys of every session resumed from it.
  */
 public class Ukey2EncryptionRunner implements EncryptionRunner {
   private static final String TAG = "Ukey2EncryptionRunner";
@@ -48,6 +59,20 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
   private static final byte[] SERVER = "SERVER".getBytes();
   private static final byte[] CLIENT = "CLIENT".getBytes();
 
+  private static final int RESUME_NONCE_LENGTH = 32;
+  private static final byte[] CLIENT_KEY = "CLIENT_KEY".getBytes();
+  private static final byte[] SERVER_KEY = "SERVER_KEY".getBytes();
+
+  private static final int KEY_PAIR_POOL_CAPACITY = 2;
+  private static final long KEY_PAIR_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+  /**
+   * Ephemeral key pairs for the handshakes of all runners. They are generated on a background
+   * thread that exits once the pool is full.
+   */
+  private static final Ukey2KeyPairPool KEY_PAIR_POOL =
+      new Ukey2KeyPairPool(KEY_PAIR_POOL_CAPACITY, createKeyPairExecutor());
+
   /** Full length of the verification code bytes. */
   private static final int FULL_VERIFICATION_LENGTH = 32;
 
@@ -66,15 +91,22 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
   private byte[] prevUniqueSesion;
   private boolean isReconnect;
   private boolean isInitReconnectionVerification;
+  private byte[] resumptionNonce;
 
   @Mode private int mode = Mode.UNKNOWN;
 
+  public Ukey2EncryptionRunner() {
+    // Runners are created before the connection is set up, so the key pair for this runner's
+    // handshake is generated while the devices are still exchanging versions.
+    KEY_PAIR_POOL.prefill();
+  }
+
   @Override
   public HandshakeMessage initHandshake() throws HandshakeException {
     assertUkey2ClientUninitialized();
     mode = Mode.CLIENT;
     try {
-      uKey2Client = Ukey2Handshake.forInitiator(CIPHER);
+      uKey2Client = Ukey2Handshake.forInitiator(CIPHER, KEY_PAIR_POOL);
       return HandshakeMessage.newBuilder()
           .setHandshakeState(getNextHandshakeMessageState())
           .setNextMessage(uKey2Client.getNextHandshakeMessage())
@@ -97,7 +129,7 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
     mode = Mode.SERVER;
 
     try {
-      uKey2Client = Ukey2Handshake.forResponder(CIPHER);
+      uKey2Client = Ukey2Handshake.forResponder(CIPHER, KEY_PAIR_POOL);
       uKey2Client.parseHandshakeMessage(initializationRequest);
       return HandshakeMessage.newBuilder()
           .setHandshakeState(getNextHandshakeMessageState())
@@ -288,6 +320,81 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
         .build();
   }
 
+  /**
+   * Starts resuming a session by sending a nonce that is authenticated with the previous session.
+   */
+  @Override
+  public HandshakeMessage initSessionResumption(byte[] previousKey) throws HandshakeException {
+    assertSessionResumptionUninitialized();
+    mode = Mode.CLIENT;
+    prevUniqueSesion = uniqueSessionOf(previousKey);
+    resumptionNonce = generateResumptionNonce();
+
+    return HandshakeMessage.newBuilder()
+        .setHandshakeState(HandshakeMessage.HandshakeState.RESUMING_SESSION)
+        .setNextMessage(
+            concatByteArrays(
+                resumptionNonce, computeMAC(prevUniqueSesion, resumptionNonce, CLIENT)))
+        .build();
+  }
+
+  /**
+   * Verifies the nonce of the other device and responds with a nonce of its own. The key of the
+   * resumed session can be used as soon as the response has been sent.
+   */
+  @Override
+  public HandshakeMessage respondToSessionResumption(byte[] message, byte[] previousKey)
+      throws HandshakeException {
+    assertSessionResumptionUninitialized();
+    mode = Mode.SERVER;
+    assertResumptionMessageLength(message);
+    prevUniqueSesion = uniqueSessionOf(previousKey);
+
+    byte[] clientNonce = Arrays.copyOf(message, RESUME_NONCE_LENGTH);
+    byte[] clientMac = Arrays.copyOfRange(message, RESUME_NONCE_LENGTH, message.length);
+    if (!MessageDigest.isEqual(clientMac, computeMAC(prevUniqueSesion, clientNonce, CLIENT))) {
+      isRunnerValid = false;
+      throw new HandshakeException("Session resumption failed because of message mismatch.");
+    }
+
+    byte[] serverNonce = generateResumptionNonce();
+    byte[] nonces = concatByteArrays(clientNonce, serverNonce);
+    currentKey = deriveResumedKey(prevUniqueSesion, nonces);
+
+    return HandshakeMessage.newBuilder()
+        .setHandshakeState(HandshakeMessage.HandshakeState.FINISHED)
+        .setKey(currentKey)
+        .setNextMessage(
+            concatByteArrays(serverNonce, computeMAC(prevUniqueSesion, nonces, SERVER)))
+        .build();
+  }
+
+  @Override
+  public HandshakeMessage continueSessionResumption(byte[] response) throws HandshakeException {
+    if (mode != Mode.CLIENT || resumptionNonce == null || currentKey != null) {
+      throw new IllegalStateException("Session resumption has not been started.");
+    }
+    if (!isRunnerValid) {
+      throw new IllegalStateException("runner has been invalidated");
+    }
+    assertResumptionMessageLength(response);
+
+    byte[] serverNonce = Arrays.copyOf(response, RESUME_NONCE_LENGTH);
+    byte[] serverMac = Arrays.copyOfRange(response, RESUME_NONCE_LENGTH, response.length);
+    byte[] nonces = concatByteArrays(resumptionNonce, serverNonce);
+    if (!MessageDigest.isEqual(serverMac, computeMAC(prevUniqueSesion, nonces, SERVER))) {
+      isRunnerValid = false;
+      throw new HandshakeException("Session resumption failed because of message mismatch.");
+    }
+
+    currentKey = deriveResumedKey(prevUniqueSesion, nonces);
+
+    return HandshakeMessage.newBuilder()
+        .setHandshakeState(HandshakeMessage.HandshakeState.FINISHED)
+        .setKey(currentKey)
+        .build();
+  }
+
   @Override
   public Key keyOf(byte[] serialized) {
     return new UKey2Key(D2DConnectionContext.fromSavedSession(serialized));
@@ -344,6 +451,72 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
     }
   }
 
+  private void assertSessionResumptionUninitialized() {
+    assertUkey2ClientUninitialized();
+    if (mode != Mode.UNKNOWN) {
+      throw new IllegalStateException("Session resumption already initialized.");
+    }
+  }
+
+  private void assertResumptionMessageLength(byte[] message) throws HandshakeException {
+    if (message.length != RESUME_NONCE_LENGTH + RESUME_HMAC_LENGTH) {
+      isRunnerValid = false;
+      throw new HandshakeException(
+          String.format(
+              "Session resumption failed because message length of %d does not equal %d",
+              message.length, RESUME_NONCE_LENGTH + RESUME_HMAC_LENGTH));
+    }
+  }
+
+  private byte[] uniqueSessionOf(byte[] previousKey) throws HandshakeException {
+    try {
+      return keyOf(previousKey).getUniqueSession();
+    } catch (NoSuchAlgorithmException | IllegalArgumentException e) {
+      throw new HandshakeException(e);
+    }
+  }
+
+  private static byte[] generateResumptionNonce() {
+    byte[] nonce = new byte[RESUME_NONCE_LENGTH];
+    CryptoOps.getSharedSecureRandom().nextBytes(nonce);
+    return nonce;
+  }
+
+  private static ThreadPoolExecutor createKeyPairExecutor() {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            /* corePoolSize= */ 1,
+            /* maximumPoolSize= */ 1,
+            KEY_PAIR_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "Ukey2KeyPairPool");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Derives the key of a resumed session from the unique session of the previous session and the
+   * nonces of both devices. Each direction gets its own key, in the same way as a UKey2 session.
+   */
+  private UKey2Key deriveResumedKey(byte[] previous, byte[] nonces) throws HandshakeException {
+    byte[] clientKey = computeMAC(previous, nonces, CLIENT_KEY);
+    byte[] serverKey = computeMAC(previous, nonces, SERVER_KEY);
+    if (clientKey == null || serverKey == null) {
+      throw new HandshakeException("Derivation of the resumed session keys has failed.");
+    }
+    SecretKey clientSecretKey = new SecretKeySpec(clientKey, "AES");
+    SecretKey serverSecretKey = new SecretKeySpec(serverKey, "AES");
+    return new UKey2Key(
+        mode == Mode.CLIENT
+            ? D2DConnectionContext.fromSessionKeys(clientSecretKey, serverSecretKey)
+            : D2DConnectionContext.fromSessionKeys(serverSecretKey, clientSecretKey));
+  }
+
   @Nullable
   private static byte[] computeMAC(byte[] previous, byte[] next, byte[] info) {
     try {
@@ -389,6 +562,11 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
       return connectionContext.encodeMessageToPeer(data);
     }
 
+    @Override
+    public PendingEncryption prepareEncryption(byte[] data) {
+      return connectionContext.sequenceMessageToPeer(data)::encode;
+    }
+
     @Override
     public byte[] decryptData(byte[] encryptedData) throws SignatureException {
       return connectionContext.decodeMessageFromPeer(encryptedData);
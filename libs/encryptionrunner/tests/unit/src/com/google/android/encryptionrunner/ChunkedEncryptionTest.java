@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.encryptionrunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.encryptionrunner.EncryptionRunnerFactory.EncryptionRunnerType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ChunkedEncryptionTest {
+  private static final int CHUNK_SIZE = 16 * 1024;
+  private static final int LARGE_MESSAGE_SIZE = 1024 * 1024;
+  private static final int LENGTH_SIZE = 4;
+
+  private final byte[] testData = "testData".getBytes(UTF_8);
+
+  private Key clientKey;
+  private Key serverKey;
+
+  @Before
+  public void setUp() throws Exception {
+    EncryptionRunner clientRunner = EncryptionRunnerFactory.newRunner(EncryptionRunnerType.UKEY2);
+    EncryptionRunner serverRunner = EncryptionRunnerFactory.newRunner(EncryptionRunnerType.UKEY2);
+    HandshakeMessage initialClientMessage = clientRunner.initHandshake();
+    HandshakeMessage initialServerMessage =
+        serverRunner.respondToInitRequest(initialClientMessage.getNextMessage());
+    HandshakeMessage clientMessage =
+        clientRunner.continueHandshake(initialServerMessage.getNextMessage());
+    serverRunner.continueHandshake(clientMessage.getNextMessage());
+    serverKey = serverRunner.notifyPinVerified().getKey();
+    clientKey = clientRunner.notifyPinVerified().getKey();
+  }
+
+  @Test
+  public void largeMessage_roundTripsInBoundedChunks() throws Exception {
+    byte[] message = new byte[LARGE_MESSAGE_SIZE];
+    new Random(/* seed= */ 1).nextBytes(message);
+
+    byte[] encrypted = encrypt(clientKey, message, CHUNK_SIZE);
+
+    for (byte[] encryptedChunk : splitChunks(encrypted)) {
+      assertThat(encryptedChunk.length)
+          .isAtMost(CHUNK_SIZE + 1 + ChunkedEncryption.MAX_CHUNK_OVERHEAD);
+    }
+    assertThat(splitChunks(encrypted)).hasLength(LARGE_MESSAGE_SIZE / CHUNK_SIZE);
+    assertThat(decrypt(serverKey, encrypted, CHUNK_SIZE)).isEqualTo(message);
+  }
+
+  @Test
+  public void encryptingStream_writesFullChunksBeforeClose() throws Exception {
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    OutputStream encryptingStream = clientKey.encryptingStream(sink, CHUNK_SIZE);
+
+    encryptingStream.write(new byte[CHUNK_SIZE * 3 + 1]);
+
+    assertThat(splitChunks(sink.toByteArray())).hasLength(3);
+  }
+
+  @Test
+  public void emptyMessage_roundTrips() throws Exception {
+    byte[] encrypted = encrypt(clientKey, new byte[0], CHUNK_SIZE);
+
+    assertThat(splitChunks(encrypted)).hasLength(1);
+    assertThat(decrypt(serverKey, encrypted, CHUNK_SIZE)).isEmpty();
+  }
+
+  @Test
+  public void flush_makesWrittenDataReadable() throws Exception {
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    OutputStream encryptingStream = clientKey.encryptingStream(sink, CHUNK_SIZE);
+
+    encryptingStream.write(testData);
+    encryptingStream.flush();
+
+    InputStream decryptingStream =
+        serverKey.decryptingStream(new ByteArrayInputStream(sink.toByteArray()), CHUNK_SIZE);
+    byte[] decrypted = new byte[testData.length];
+    new DataInputStream(decryptingStream).readFully(decrypted);
+    assertThat(decrypted).isEqualTo(testData);
+  }
+
+  @Test
+  public void truncatedMessage_throwsIOException() throws Exception {
+    byte[] encrypted = encrypt(clientKey, new byte[CHUNK_SIZE * 2], CHUNK_SIZE);
+    byte[][] encryptedChunks = splitChunks(encrypted);
+    int lastChunkStart =
+        encrypted.length - LENGTH_SIZE - encryptedChunks[encryptedChunks.length - 1].length;
+    byte[] truncated = Arrays.copyOf(encrypted, lastChunkStart);
+
+    assertThrows(IOException.class, () -> decrypt(serverKey, truncated, CHUNK_SIZE));
+  }
+
+  @Test
+  public void tamperedChunk_throwsIOException() throws Exception {
+    byte[] encrypted = encrypt(clientKey, testData, CHUNK_SIZE);
+
+    encrypted[encrypted.length - 1] ^= 1;
+
+    assertThrows(IOException.class, () -> decrypt(serverKey, encrypted, CHUNK_SIZE));
+  }
+
+  @Test
+  public void chunkLargerThanMax_throwsIOException() throws Exception {
+    byte[] encrypted = encrypt(clientKey, new byte[CHUNK_SIZE], CHUNK_SIZE);
+
+    assertThrows(IOException.class, () -> decrypt(serverKey, encrypted, /* maxChunkSize= */ 1));
+  }
+
+  @Test
+  public void fakeKey_roundTrips() throws Exception {
+    Key fakeKey = new FakeEncryptionRunner.FakeKey();
+
+    byte[] encrypted = encrypt(fakeKey, testData, /* chunkSize= */ 3);
+
+    assertThat(decrypt(fakeKey, encrypted, /* maxChunkSize= */ 3)).isEqualTo(testData);
+  }
+
+  private static byte[] encrypt(Key key, byte[] message, int chunkSize) throws IOException {
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    try (OutputStream encryptingStream = key.encryptingStream(sink, chunkSize)) {
+      encryptingStream.write(message);
+    }
+    return sink.toByteArray();
+  }
+
+  private static byte[] decrypt(Key key, byte[] encrypted, int maxChunkSize) throws IOException {
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    try (InputStream decryptingStream =
+        key.decryptingStream(new ByteArrayInputStream(encrypted), maxChunkSize)) {
+      byte[] buffer = new byte[1024];
+      int readLength;
+      while ((readLength = decryptingStream.read(buffer)) != -1) {
+        decrypted.write(buffer, 0, readLength);
+      }
+    }
+    return decrypted.toByteArray();
+  }
+
+  /** Returns the encrypted chunks of a chunked message without their length prefixes. */
+  private static byte[][] splitChunks(byte[] encrypted) {
+    ByteBuffer buffer = ByteBuffer.wrap(encrypted);
+    List<byte[]> chunks = new ArrayList<>();
+    while (buffer.hasRemaining()) {
+      byte[] chunk = new byte[buffer.getInt()];
+      buffer.get(chunk);
+      chunks.add(chunk);
+    }
+    return chunks.toArray(new byte[0][]);
+  }
+}
@@ -32,6 +32,8 @@ import org.junit.runner.RunWith;
  */
 @RunWith(AndroidJUnit4.class)
 public class EncryptionRunnerTest {
+  private static final int LATENCY_ITERATIONS = 20;
+
   private final byte[] testData = "testData".getBytes(StandardCharsets.UTF_8);
 
   private Key clientKey;
@@ -90,6 +92,123 @@ public class EncryptionRunnerTest {
     assertThat(clientKey.decryptData(serverKey.encryptData(testData))).isEqualTo(testData);
   }
 
+  @Test
+  public void uKey2Runner_resumeSession_encrypt_and_decrypt() throws Exception {
+    setUpFirstConnection(EncryptionRunnerTest::newRunner, EncryptionRunnerTest::assertHandshake);
+    EncryptionRunner clientRunner = newRunner();
+    EncryptionRunner serverRunner = newRunner();
+
+    HandshakeMessage clientMessage = clientRunner.initSessionResumption(clientKey.asBytes());
+    assertThat(clientMessage.getHandshakeState())
+        .isEqualTo(HandshakeMessage.HandshakeState.RESUMING_SESSION);
+    assertThat(clientMessage.getKey()).isNull();
+    assertThat(clientMessage.getNextMessage()).isNotNull();
+
+    HandshakeMessage serverMessage =
+        serverRunner.respondToSessionResumption(
+            clientMessage.getNextMessage(), serverKey.asBytes());
+    assertThat(serverMessage.getHandshakeState())
+        .isEqualTo(HandshakeMessage.HandshakeState.FINISHED);
+    assertThat(serverMessage.getKey()).isNotNull();
+    assertThat(serverMessage.getNextMessage()).isNotNull();
+
+    HandshakeMessage finalClientMessage =
+        clientRunner.continueSessionResumption(serverMessage.getNextMessage());
+    assertThat(finalClientMessage.getHandshakeState())
+        .isEqualTo(HandshakeMessage.HandshakeState.FINISHED);
+    assertThat(finalClientMessage.getKey()).isNotNull();
+    assertThat(finalClientMessage.getNextMessage()).isNull();
+
+    Key resumedServerKey = serverMessage.getKey();
+    Key resumedClientKey = finalClientMessage.getKey();
+    assertThat(resumedServerKey.decryptData(resumedClientKey.encryptData(testData)))
+        .isEqualTo(testData);
+    assertThat(resumedClientKey.decryptData(resumedServerKey.encryptData(testData)))
+        .isEqualTo(testData);
+    assertThat(resumedClientKey.getUniqueSession()).isEqualTo(resumedServerKey.getUniqueSession());
+    assertThat(resumedClientKey.getUniqueSession()).isNotEqualTo(clientKey.getUniqueSession());
+  }
+
+  @Test
+  public void uKey2Runner_resumeSession_derivesDifferentKeysEachTime() throws Exception {
+    setUpFirstConnection(EncryptionRunnerTest::newRunner, EncryptionRunnerTest::assertHandshake);
+    byte[] previousClientKey = clientKey.asBytes();
+    byte[] previousServerKey = serverKey.asBytes();
+
+    resumeSession(EncryptionRunnerTest::newRunner, previousClientKey, previousServerKey);
+    byte[] firstUniqueSession = clientKey.getUniqueSession();
+    resumeSession(EncryptionRunnerTest::newRunner, previousClientKey, previousServerKey);
+
+    assertThat(clientKey.getUniqueSession()).isNotEqualTo(firstUniqueSession);
+  }
+
+  @Test
+  public void uKey2Runner_resumeSession_differentPreviousKeyFails() throws Exception {
+    setUpFirstConnection(EncryptionRunnerTest::newRunner, EncryptionRunnerTest::assertHandshake);
+    byte[] previousClientKey = clientKey.asBytes();
+    setUpFirstConnection(EncryptionRunnerTest::newRunner, EncryptionRunnerTest::assertHandshake);
+    EncryptionRunner clientRunner = newRunner();
+    EncryptionRunner serverRunner = newRunner();
+
+    HandshakeMessage clientMessage = clientRunner.initSessionResumption(previousClientKey);
+
+    Assert.assertThrows(
+        HandshakeException.class,
+        () ->
+            serverRunner.respondToSessionResumption(
+                clientMessage.getNextMessage(), serverKey.asBytes()));
+  }
+
+  @Test
+  public void uKey2Runner_resumeSession_tamperedResponseFails() throws Exception {
+    setUpFirstConnection(EncryptionRunnerTest::newRunner, EncryptionRunnerTest::assertHandshake);
+    EncryptionRunner clientRunner = newRunner();
+    EncryptionRunner serverRunner = newRunner();
+    HandshakeMessage clientMessage = clientRunner.initSessionResumption(clientKey.asBytes());
+    byte[] serverResponse =
+        serverRunner
+            .respondToSessionResumption(clientMessage.getNextMessage(), serverKey.asBytes())
+            .getNextMessage();
+
+    serverResponse[0] ^= 1;
+
+    Assert.assertThrows(
+        HandshakeException.class, () -> clientRunner.continueSessionResumption(serverResponse));
+  }
+
+  @Test
+  public void fakeRunner_resumeSession_notSupported() throws Exception {
+    setUpFirstConnection(
+        EncryptionRunnerFactory::newFakeRunner, EncryptionRunnerTest::assertHandshake);
+    EncryptionRunner clientRunner = EncryptionRunnerFactory.newFakeRunner();
+
+    Assert.assertThrows(
+        HandshakeException.class, () -> clientRunner.initSessionResumption(clientKey.asBytes()));
+  }
+
+  @Test
+  public void uKey2Runner_resumeSession_fasterThanReconnection() throws Exception {
+    setUpFirstConnection(EncryptionRunnerTest::newRunner, EncryptionRunnerTest::assertHandshake);
+    byte[] previousClientKey = clientKey.asBytes();
+    byte[] previousServerKey = serverKey.asBytes();
+    // Warm up both paths so class loading and JIT do not count against either of them.
+    reconnect(EncryptionRunnerTest::newRunner, previousClientKey, previousServerKey);
+    resumeSession(EncryptionRunnerTest::newRunner, previousClientKey, previousServerKey);
+
+    long reconnectionStart = System.nanoTime();
+    for (int i = 0; i < LATENCY_ITERATIONS; i++) {
+      reconnect(EncryptionRunnerTest::newRunner, previousClientKey, previousServerKey);
+    }
+    long reconnectionNanos = System.nanoTime() - reconnectionStart;
+    long resumptionStart = System.nanoTime();
+    for (int i = 0; i < LATENCY_ITERATIONS; i++) {
+      resumeSession(EncryptionRunnerTest::newRunner, previousClientKey, previousServerKey);
+    }
+    long resumptionNanos = System.nanoTime() - resumptionStart;
+
+    assertThat(resumptionNanos).isLessThan(reconnectionNanos);
+  }
+
   @Test
   public void invalidPin_fake() throws Exception {
     assertInvalidPinThrowsError(
@@ -145,6 +264,47 @@ public class EncryptionRunnerTest {
     clientKey = finalClientMessage.getKey();
   }
 
+  /** Resumes the session of the given keys in a single round trip. */
+  private void resumeSession(
+      RunnerFactory runnerFactory, byte[] previousClientKey, byte[] previousServerKey)
+      throws Exception {
+    EncryptionRunner clientRunner = runnerFactory.newRunner();
+    EncryptionRunner serverRunner = runnerFactory.newRunner();
+    HandshakeMessage clientMessage = clientRunner.initSessionResumption(previousClientKey);
+    HandshakeMessage serverMessage =
+        serverRunner.respondToSessionResumption(clientMessage.getNextMessage(), previousServerKey);
+    HandshakeMessage finalClientMessage =
+        clientRunner.continueSessionResumption(serverMessage.getNextMessage());
+    serverKey = serverMessage.getKey();
+    clientKey = finalClientMessage.getKey();
+  }
+
+  /** Reconnects with a full handshake followed by reconnection authentication. */
+  private void reconnect(
+      RunnerFactory runnerFactory, byte[] previousClientKey, byte[] previousServerKey)
+      throws Exception {
+    EncryptionRunner clientRunner = runnerFactory.newRunner();
+    EncryptionRunner serverRunner = runnerFactory.newRunner();
+    clientRunner.setIsReconnect(true);
+    serverRunner.setIsReconnect(true);
+    HandshakeMessage initialClientMessage = clientRunner.initHandshake();
+    HandshakeMessage initialServerMessage =
+        serverRunner.respondToInitRequest(initialClientMessage.getNextMessage());
+    HandshakeMessage clientMessage =
+        clientRunner.continueHandshake(initialServerMessage.getNextMessage());
+    serverRunner.continueHandshake(clientMessage.getNextMessage());
+    HandshakeMessage nextClientMessage =
+        clientRunner.initReconnectAuthentication(previousClientKey);
+    HandshakeMessage finalServerMessage =
+        serverRunner.authenticateReconnection(
+            nextClientMessage.getNextMessage(), previousServerKey);
+    HandshakeMessage finalClientMessage =
+        clientRunner.authenticateReconnection(
+            finalServerMessage.getNextMessage(), previousServerKey);
+    serverKey = finalServerMessage.getKey();
+    clientKey = finalClientMessage.getKey();
+  }
+
   /**
    * Runs through the set up of the handshake and verifies that messages can be encrypted and
    * decrypted afterwards.
@@ -20,11 +20,13 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.security.cryptauth.lib.securegcm.DeviceToDeviceMessagesProto.DeviceToDeviceMessage;
 import com.google.security.cryptauth.lib.securegcm.TransportCryptoOps.Payload;
 import com.google.security.cryptauth.lib.securegcm.TransportCryptoOps.PayloadType;
+import com.google.security.cryptauth.lib.securemessage.CachingSecretKey;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.util.Arrays;
+import javax.annotation.Nullable;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -34,11 +36,22 @@ import javax.crypto.spec.SecretKeySpec;
  *
  * Subclasses keep track of the keys shared with the other device, and of the sequence in which the
  * messages are expected.
+ *
+ * This class is thread safe. Encoding only holds the lock guarding the sequence numbers while it
+ * assigns one, so encryption and signing of different messages can run concurrently with each
+ * other and with decoding. Decoding holds a lock of its own from verification until the sequence
+ * number check, so messages are checked in the order they are decoded.
  */
 public abstract class D2DConnectionContext {
   private static final String UTF8 = "UTF-8";
   private final int protocolVersion;
 
+  /** Guards the sequence numbers of subclasses. */
+  protected final Object sequenceNumberLock = new Object();
+
+  /** Serializes decoding so that messages reach the sequence number check in order. */
+  private final Object decodeLock = new Object();
+
   protected D2DConnectionContext(int protocolVersion) {
     this.protocolVersion = protocolVersion;
   }
@@ -57,21 +70,25 @@ public abstract class D2DConnectionContext {
    * @param payload the payload that should be encrypted.
    */
   public byte[] encodeMessageToPeer(byte[] payload) {
-    incrementSequenceNumberForEncoding();
-    DeviceToDeviceMessage message = createDeviceToDeviceMessage(
-        payload, getSequenceNumberForEncoding());
-    try {
-      return D2DCryptoOps.signcryptPayload(
-          new Payload(PayloadType.DEVICE_TO_DEVICE_MESSAGE,
-              message.toByteArray()),
-          getEncodeKey());
-    } catch (InvalidKeyException e) {
-      // should never happen, since we agreed on the key earlier
-      throw new RuntimeException(e);
-    } catch (NoSuchAlgorithmException e) {
-      // should never happen
-      throw new RuntimeException(e);
+    return sequenceMessageToPeer(payload).encode();
+  }
+
+  /**
+   * Assigns the next sequence number to a payload without encrypting and signing it yet.
+   *
+   * <p>The returned message can be encoded on any thread, concurrently with other messages. The
+   * other device only accepts messages in sequence number order, so they must be delivered in the
+   * order this method was called, regardless of the order in which they finish encoding.
+   *
+   * @param payload the payload that should be encrypted.
+   */
+  public SequencedMessage sequenceMessageToPeer(byte[] payload) {
+    int sequenceNumber;
+    synchronized (sequenceNumberLock) {
+      incrementSequenceNumberForEncoding();
+      sequenceNumber = getSequenceNumberForEncoding();
     }
+    return new SequencedMessage(payload, sequenceNumber);
   }
 
   /**
@@ -99,6 +116,12 @@ public abstract class D2DConnectionContext {
    * @throws SignatureException if the message from the remote peer did not pass verification
    */
   public byte[] decodeMessageFromPeer(byte[] message) throws SignatureException {
+    synchronized (decodeLock) {
+      return decodeMessageFromPeerLocked(message);
+    }
+  }
+
+  private byte[] decodeMessageFromPeerLocked(byte[] message) throws SignatureException {
     try {
       Payload payload = D2DCryptoOps.verifydecryptPayload(message, getDecodeKey());
       if (!PayloadType.DEVICE_TO_DEVICE_MESSAGE.equals(payload.getPayloadType())) {
@@ -106,9 +129,11 @@ public abstract class D2DConnectionContext {
       }
 
       DeviceToDeviceMessage messageProto = DeviceToDeviceMessage.parseFrom(payload.getMessage());
-      incrementSequenceNumberForDecoding();
-      if (messageProto.getSequenceNumber() != getSequenceNumberForDecoding()) {
-        throw new SignatureException("Incorrect sequence number");
+      synchronized (sequenceNumberLock) {
+        incrementSequenceNumberForDecoding();
+        if (messageProto.getSequenceNumber() != getSequenceNumberForDecoding()) {
+          throw new SignatureException("Incorrect sequence number");
+        }
       }
 
       return messageProto.getMessage().toByteArray();
@@ -138,6 +163,15 @@ public abstract class D2DConnectionContext {
     }
   }
 
+  /**
+   * Wraps a session key so that the sub-keys derived from it to sign and encrypt each message are
+   * only derived once for the lifetime of the connection.
+   */
+  @Nullable
+  static SecretKey withDerivedKeyCache(@Nullable SecretKey sessionKey) {
+    return sessionKey == null ? null : CachingSecretKey.wrap(sessionKey);
+  }
+
   // package-private
   static DeviceToDeviceMessage createDeviceToDeviceMessage(byte[] message, int sequenceNumber) {
     DeviceToDeviceMessage.Builder deviceToDeviceMessage = DeviceToDeviceMessage.newBuilder();
@@ -243,6 +277,21 @@ public abstract class D2DConnectionContext {
     }
   }
 
+  /**
+   * Constructs a context for a new session whose keys were agreed on without a handshake, e.g.
+   * keys derived from a saved session when resuming it. Both sequence numbers start at zero.
+   *
+   * @param encodeKey the 32 byte AES key used to encode messages to the other device.
+   * @param decodeKey the 32 byte AES key used to decode messages from the other device.
+   * @return a context for the new session.
+   */
+  public static D2DConnectionContext fromSessionKeys(SecretKey encodeKey, SecretKey decodeKey) {
+    if (encodeKey == null || decodeKey == null) {
+      throw new IllegalArgumentException("Session keys must not be null");
+    }
+    return new D2DConnectionContextV1(encodeKey, decodeKey, 0, 0);
+  }
+
   /**
    * Convert 4 bytes in big-endian representation into a signed int.
    */
@@ -271,4 +320,37 @@ public abstract class D2DConnectionContext {
 
     return bytes;
   }
+
+  /** A payload that has been assigned its sequence number but has not been encoded yet. */
+  public final class SequencedMessage {
+    private final byte[] payload;
+    private final int sequenceNumber;
+
+    private SequencedMessage(byte[] payload, int sequenceNumber) {
+      this.payload = payload;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    /** Returns the sequence number the other device expects this message to carry. */
+    public int getSequenceNumber() {
+      return sequenceNumber;
+    }
+
+    /** Encrypts and signs the payload for transmission to the other device. */
+    public byte[] encode() {
+      DeviceToDeviceMessage message = createDeviceToDeviceMessage(payload, sequenceNumber);
+      try {
+        return D2DCryptoOps.signcryptPayload(
+            new Payload(PayloadType.DEVICE_TO_DEVICE_MESSAGE,
+                message.toByteArray()),
+            getEncodeKey());
+      } catch (InvalidKeyException e) {
+        // should never happen, since we agreed on the key earlier
+        throw new RuntimeException(e);
+      } catch (NoSuchAlgorithmException e) {
+        // should never happen
+        throw new RuntimeException(e);
+      }
+    }
+  }
 }
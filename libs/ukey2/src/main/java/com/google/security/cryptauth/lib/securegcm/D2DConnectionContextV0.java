@@ -40,7 +40,7 @@ public class D2DConnectionContextV0 extends D2DConnectionContext {
    */
   D2DConnectionContextV0(SecretKey sharedKey, int initialSequenceNumber) {
     super(PROTOCOL_VERSION);
-    this.sharedKey = sharedKey;
+    this.sharedKey = withDerivedKeyCache(sharedKey);
     this.sequenceNumber = initialSequenceNumber;
   }
 
@@ -103,7 +103,9 @@ public class D2DConnectionContextV0 extends D2DConnectionContext {
       bytes.write(0);
 
       // Sequence number
-      bytes.write(signedIntToBytes(sequenceNumber));
+      synchronized (sequenceNumberLock) {
+        bytes.write(signedIntToBytes(sequenceNumber));
+      }
 
       // Key
       bytes.write(sharedKey.getEncoded());
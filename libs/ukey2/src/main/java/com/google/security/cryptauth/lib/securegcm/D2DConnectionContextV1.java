@@ -49,8 +49,8 @@ public class D2DConnectionContextV1 extends D2DConnectionContext {
       int initialEncodeSequenceNumber,
       int initialDecodeSequenceNumber) {
     super(PROTOCOL_VERSION);
-    this.encodeKey = encodeKey;
-    this.decodeKey = decodeKey;
+    this.encodeKey = withDerivedKeyCache(encodeKey);
+    this.decodeKey = withDerivedKeyCache(decodeKey);
     this.encodeSequenceNumber = initialEncodeSequenceNumber;
     this.decodeSequenceNumber = initialDecodeSequenceNumber;
   }
@@ -124,11 +124,13 @@ public class D2DConnectionContextV1 extends D2DConnectionContext {
       // Protocol version
       bytes.write(1);
 
-      // Encode sequence number
-      bytes.write(signedIntToBytes(encodeSequenceNumber));
+      synchronized (sequenceNumberLock) {
+        // Encode sequence number
+        bytes.write(signedIntToBytes(encodeSequenceNumber));
 
-      // Decode sequence number
-      bytes.write(signedIntToBytes(decodeSequenceNumber));
+        // Decode sequence number
+        bytes.write(signedIntToBytes(decodeSequenceNumber));
+      }
 
       // Encode Key
       bytes.write(encodeKey.getEncoded());
@@ -33,7 +33,6 @@ import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -126,7 +125,18 @@ public class Ukey2Handshake {
    * @throws HandshakeException
    */
   public static Ukey2Handshake forInitiator(HandshakeCipher cipher) throws HandshakeException {
-    return new Ukey2Handshake(InternalState.CLIENT_START, cipher);
+    return new Ukey2Handshake(InternalState.CLIENT_START, cipher, null);
+  }
+
+  /**
+   * Creates a {@link Ukey2Handshake} for an initiator / client that takes its ephemeral key pair
+   * from {@code keyPairPool} instead of generating it.
+   *
+   * @throws HandshakeException
+   */
+  public static Ukey2Handshake forInitiator(HandshakeCipher cipher, Ukey2KeyPairPool keyPairPool)
+      throws HandshakeException {
+    return new Ukey2Handshake(InternalState.CLIENT_START, cipher, keyPairPool);
   }
 
   /**
@@ -136,7 +146,18 @@ public class Ukey2Handshake {
    * @throws HandshakeException
    */
   public static Ukey2Handshake forResponder(HandshakeCipher cipher) throws HandshakeException {
-    return new Ukey2Handshake(InternalState.SERVER_START, cipher);
+    return new Ukey2Handshake(InternalState.SERVER_START, cipher, null);
+  }
+
+  /**
+   * Creates a {@link Ukey2Handshake} for a responder / server that takes its ephemeral key pair
+   * from {@code keyPairPool} instead of generating it.
+   *
+   * @throws HandshakeException
+   */
+  public static Ukey2Handshake forResponder(HandshakeCipher cipher, Ukey2KeyPairPool keyPairPool)
+      throws HandshakeException {
+    return new Ukey2Handshake(InternalState.SERVER_START, cipher, keyPairPool);
   }
 
   /**
@@ -281,10 +302,14 @@ public class Ukey2Handshake {
    * Never invoked directly. Caller should use {@link #forInitiator(HandshakeCipher)} or
    * {@link #forResponder(HandshakeCipher)} instead.
    *
+   * @param keyPairPool the pool to take the ephemeral key pair from, or {@code null} to generate
+   * it.
    * @throws HandshakeException if an unrecoverable error occurs and the connection should be shut
    * down.
    */
-  private Ukey2Handshake(InternalState state, HandshakeCipher cipher) throws HandshakeException {
+  private Ukey2Handshake(
+      InternalState state, HandshakeCipher cipher, @Nullable Ukey2KeyPairPool keyPairPool)
+      throws HandshakeException {
     if (cipher == null) {
       throwIllegalArgumentException("Invalid handshake cipher");
     }
@@ -303,7 +328,7 @@ public class Ukey2Handshake {
     }
     this.handshakeState = state;
 
-    this.ourKeyPair = genKeyPair(cipher);
+    this.ourKeyPair = genKeyPair(cipher, keyPairPool);
   }
 
   /**
@@ -579,15 +604,18 @@ public class Ukey2Handshake {
   }
 
   /**
-   * Generates a keypair for the provided handshake cipher. Currently only P256_SHA512 is
-   * supported.
+   * Generates a keypair for the provided handshake cipher, or takes it from {@code keyPairPool} if
+   * one is provided. Currently only P256_SHA512 is supported.
    *
    * @throws HandshakeException
    */
-  private KeyPair genKeyPair(HandshakeCipher cipher) throws HandshakeException {
+  private KeyPair genKeyPair(HandshakeCipher cipher, @Nullable Ukey2KeyPairPool keyPairPool)
+      throws HandshakeException {
     switch (cipher) {
       case P256_SHA512:
-        return PublicKeyProtoUtil.generateEcP256KeyPair();
+        return keyPairPool != null
+            ? keyPairPool.take()
+            : PublicKeyProtoUtil.generateEcP256KeyPair();
       default:
         // Should never happen
         throwHandshakeException("unknown cipher: " + cipher);
@@ -986,9 +1014,8 @@ public class Ukey2Handshake {
    * Generates a cryptoraphically random nonce of NONCE_LENGTH_IN_BYTES bytes.
    */
   private static byte[] generateRandomNonce() {
-    SecureRandom rng = new SecureRandom();
     byte[] randomNonce = new byte[NONCE_LENGTH_IN_BYTES];
-    rng.nextBytes(randomNonce);
+    CryptoOps.getSharedSecureRandom().nextBytes(randomNonce);
     return randomNonce;
   }
 
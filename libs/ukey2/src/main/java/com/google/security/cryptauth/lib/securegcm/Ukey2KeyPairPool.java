@@ -0,0 +1,105 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.security.cryptauth.lib.securegcm;
+
+import com.google.security.cryptauth.lib.securemessage.PublicKeyProtoUtil;
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A pool of ephemeral NIST P-256 key pairs for {@link Ukey2Handshake}s using
+ * {@link Ukey2Handshake.HandshakeCipher#P256_SHA512}.
+ *
+ * Key pairs are generated on the provided {@link Executor} so that creating a handshake does not
+ * have to wait for key generation. Every key pair is handed out at most once. If the pool is empty,
+ * a key pair is generated on the calling thread as it would be without a pool.
+ *
+ * This class is thread safe.
+ */
+public class Ukey2KeyPairPool {
+  private final Executor executor;
+  private final BlockingQueue<KeyPair> keyPairs;
+  private final AtomicBoolean isRefillScheduled = new AtomicBoolean(false);
+
+  /**
+   * @param capacity the maximum number of key pairs to hold.
+   * @param executor the executor on which key pairs are generated.
+   */
+  public Ukey2KeyPairPool(int capacity, Executor executor) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    if (executor == null) {
+      throw new NullPointerException();
+    }
+    this.executor = executor;
+    this.keyPairs = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * Starts generating key pairs until the pool is full. Call this ahead of the first handshake,
+   * e.g. when a connection is expected.
+   */
+  public void prefill() {
+    scheduleRefill();
+  }
+
+  /**
+   * @return the number of key pairs that are ready to be handed out.
+   */
+  public int size() {
+    return keyPairs.size();
+  }
+
+  /**
+   * Removes a key pair from the pool, generating one if the pool is empty, and schedules the pool
+   * to be refilled.
+   */
+  KeyPair take() {
+    KeyPair keyPair = keyPairs.poll();
+    scheduleRefill();
+    return keyPair != null ? keyPair : PublicKeyProtoUtil.generateEcP256KeyPair();
+  }
+
+  private void scheduleRefill() {
+    if (keyPairs.remainingCapacity() > 0 && isRefillScheduled.compareAndSet(false, true)) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          refill();
+        }
+      });
+    }
+  }
+
+  private void refill() {
+    try {
+      do {
+        while (keyPairs.remainingCapacity() > 0) {
+          keyPairs.offer(PublicKeyProtoUtil.generateEcP256KeyPair());
+        }
+        isRefillScheduled.set(false);
+        // A key pair taken after the last check but before the flag was cleared did not schedule
+        // another refill, so pick it up here.
+      } while (keyPairs.remainingCapacity() > 0 && isRefillScheduled.compareAndSet(false, true));
+    } catch (RuntimeException e) {
+      isRefillScheduled.set(false);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.security.cryptauth.lib.securemessage;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * A {@link SecretKey} that remembers the sub-keys derived from it by {@link CryptoOps}, along with
+ * the {@link Cipher} and {@link Mac} instances used with them.
+ *
+ * <p>{@link CryptoOps} derives a fresh sub-key for every signature and encryption operation. Keys
+ * that are used for many messages, such as the session keys of a {@code D2DConnectionContext},
+ * can be wrapped in this class so that each sub-key is only derived once and each JCA instance is
+ * only looked up once per concurrent user.
+ *
+ * <p>Everything cached is held by this key alone, so it becomes unreachable together with the key
+ * when the session that owns the key ends.
+ *
+ * <p>Instances behave like the wrapped key for equality and encoding purposes.
+ */
+public final class CachingSecretKey implements SecretKey {
+  private static final long serialVersionUID = 1L;
+
+  private final SecretKey key;
+  private final transient ConcurrentMap<String, SecretKey> derivedKeys =
+      new ConcurrentHashMap<>();
+  // Idle instances by JCA name. JCA instances are not thread safe, so each is used by one caller
+  // at a time.
+  private final transient ConcurrentMap<String, Queue<Cipher>> idleCiphers =
+      new ConcurrentHashMap<>();
+  private final transient ConcurrentMap<String, Queue<Mac>> idleMacs = new ConcurrentHashMap<>();
+
+  private CachingSecretKey(SecretKey key) {
+    this.key = key;
+  }
+
+  /**
+   * Returns a {@link CachingSecretKey} for {@code key}, or {@code key} itself if it is already a
+   * {@link CachingSecretKey}.
+   */
+  public static CachingSecretKey wrap(SecretKey key) {
+    if (key == null) {
+      throw new NullPointerException();
+    }
+    if (key instanceof CachingSecretKey) {
+      return (CachingSecretKey) key;
+    }
+    return new CachingSecretKey(key);
+  }
+
+  /**
+   * @return the sub-key of this key for {@code purpose}, deriving it on first use
+   * @see CryptoOps#deriveAes256KeyFor(SecretKey, String)
+   */
+  SecretKey getDerivedKey(String purpose) throws NoSuchAlgorithmException, InvalidKeyException {
+    SecretKey derivedKey = derivedKeys.get(purpose);
+    if (derivedKey == null) {
+      // Derivation is deterministic, so a concurrent derivation of the same purpose is harmless.
+      derivedKey = CryptoOps.deriveAes256KeyFor(key, purpose);
+      derivedKeys.putIfAbsent(purpose, derivedKey);
+    }
+    return derivedKey;
+  }
+
+  /** @return an idle {@link Cipher} for {@code jcaName}, creating one if there is none */
+  Cipher takeCipher(String jcaName) throws NoSuchAlgorithmException, NoSuchPaddingException {
+    Cipher cipher = getIdleQueue(idleCiphers, jcaName).poll();
+    return cipher != null ? cipher : Cipher.getInstance(jcaName);
+  }
+
+  /** Makes {@code cipher}, taken with {@link #takeCipher}, available to the next caller. */
+  void releaseCipher(String jcaName, Cipher cipher) {
+    getIdleQueue(idleCiphers, jcaName).offer(cipher);
+  }
+
+  /** @return an idle {@link Mac} for {@code jcaName}, creating one if there is none */
+  Mac takeMac(String jcaName) throws NoSuchAlgorithmException {
+    Mac mac = getIdleQueue(idleMacs, jcaName).poll();
+    return mac != null ? mac : Mac.getInstance(jcaName);
+  }
+
+  /** Makes {@code mac}, taken with {@link #takeMac}, available to the next caller. */
+  void releaseMac(String jcaName, Mac mac) {
+    getIdleQueue(idleMacs, jcaName).offer(mac);
+  }
+
+  private static <T> Queue<T> getIdleQueue(ConcurrentMap<String, Queue<T>> idle, String jcaName) {
+    Queue<T> queue = idle.get(jcaName);
+    if (queue == null) {
+      queue = new ConcurrentLinkedQueue<>();
+      Queue<T> existingQueue = idle.putIfAbsent(jcaName, queue);
+      if (existingQueue != null) {
+        queue = existingQueue;
+      }
+    }
+    return queue;
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return key.getAlgorithm();
+  }
+
+  @Override
+  public String getFormat() {
+    return key.getFormat();
+  }
+
+  @Override
+  public byte[] getEncoded() {
+    return key.getEncoded();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof SecretKey)) {
+      return false;
+    }
+    SecretKey otherKey = (SecretKey) other;
+    return getAlgorithm().equalsIgnoreCase(otherKey.getAlgorithm())
+        && MessageDigest.isEqual(getEncoded(), otherKey.getEncoded());
+  }
+
+  @Override
+  public int hashCode() {
+    return key.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "CachingSecretKey(" + getAlgorithm() + ")";
+  }
+
+  private Object readResolve() {
+    // The cache is transient, so rebuild it rather than deserializing an instance without one.
+    return new CachingSecretKey(key);
+  }
+}
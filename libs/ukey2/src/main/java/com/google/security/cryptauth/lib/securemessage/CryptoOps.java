@@ -26,6 +26,8 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.annotation.Nullable;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -43,6 +45,20 @@ public class CryptoOps {
   
   private CryptoOps() {}  // Do not instantiate
 
+  /**
+   * Returns a {@link SecureRandom} that is shared by all callers in the process.
+   * <p>
+   * {@link SecureRandom} is thread safe, so there is no need for every message or handshake to
+   * create, and on some platforms seed, its own instance. The instance is created on first use.
+   */
+  public static SecureRandom getSharedSecureRandom() {
+    return SharedSecureRandomHolder.INSTANCE;
+  }
+
+  private static class SharedSecureRandomHolder {
+    static final SecureRandom INSTANCE = new SecureRandom();
+  }
+
   /**
    * Enum of supported signature types, with additional mappings to indicate the name of the
    * underlying JCA algorithm used to create the signature.
@@ -133,6 +149,13 @@ public class CryptoOps {
    */
   private static final byte[] SALT = sha256("SecureMessage");
 
+  /**
+   * Block sizes of the ciphers used by {@link #generateIv}, keyed by JCA name, so that an IV does
+   * not require looking up a {@link Cipher}.
+   */
+  private static final ConcurrentMap<String, Integer> CIPHER_BLOCK_SIZES =
+      new ConcurrentHashMap<>();
+
   /**
    * Signs {@code data} using the algorithm specified by {@code sigType} with {@code signingKey}.
    *
@@ -167,11 +190,16 @@ public class CryptoOps {
         throw new IllegalStateException(e);  // Consistent with failures in Mac.doFinal
       }
     } else {
-      Mac macScheme = Mac.getInstance(sigType.getJcaName());
       // Note that an AES-256 SecretKey should work with most Mac schemes
-      SecretKey derivedKey = deriveAes256KeyFor(getSecretKey(signingKey), getPurpose(sigType));
-      macScheme.init(derivedKey);
-      return macScheme.doFinal(data);
+      SecretKey secretKey = getSecretKey(signingKey);
+      SecretKey derivedKey = getDerivedKey(secretKey, getPurpose(sigType));
+      Mac macScheme = takeMac(secretKey, sigType.getJcaName());
+      try {
+        macScheme.init(derivedKey);
+        return macScheme.doFinal(data);
+      } finally {
+        releaseMac(secretKey, sigType.getJcaName(), macScheme);
+      }
     }
   }
 
@@ -199,11 +227,15 @@ public class CryptoOps {
       sigScheme.update(data);
       return sigScheme.verify(signature);
     } else {
-      Mac macScheme = Mac.getInstance(sigType.getJcaName());
-      SecretKey derivedKey =
-          deriveAes256KeyFor(getSecretKey(verificationKey), getPurpose(sigType));
-      macScheme.init(derivedKey);
-      return constantTimeArrayEquals(signature, macScheme.doFinal(data));
+      SecretKey secretKey = getSecretKey(verificationKey);
+      SecretKey derivedKey = getDerivedKey(secretKey, getPurpose(sigType));
+      Mac macScheme = takeMac(secretKey, sigType.getJcaName());
+      try {
+        macScheme.init(derivedKey);
+        return constantTimeArrayEquals(signature, macScheme.doFinal(data));
+      } finally {
+        releaseMac(secretKey, sigType.getJcaName(), macScheme);
+      }
     }
   }
 
@@ -220,8 +252,7 @@ public class CryptoOps {
       throw new NullPointerException();
     }
     try {
-      Cipher encrypter = Cipher.getInstance(encType.getJcaName());
-      byte[] iv = new byte[encrypter.getBlockSize()];
+      byte[] iv = new byte[getBlockSize(encType.getJcaName())];
       rng.nextBytes(iv);
       return iv;
     } catch (NoSuchPaddingException e) {
@@ -250,11 +281,15 @@ public class CryptoOps {
       throw new NoSuchAlgorithmException("Cannot use NONE type here");
     }
     try {
-      Cipher encrypter = Cipher.getInstance(encType.getJcaName());
-      SecretKey derivedKey =
-          deriveAes256KeyFor(getSecretKey(encryptionKey), getPurpose(encType));
-      encrypter.init(Cipher.ENCRYPT_MODE, derivedKey, new IvParameterSpec(iv), rng);
-      return encrypter.doFinal(plaintext);
+      SecretKey secretKey = getSecretKey(encryptionKey);
+      SecretKey derivedKey = getDerivedKey(secretKey, getPurpose(encType));
+      Cipher encrypter = takeCipher(secretKey, encType.getJcaName());
+      try {
+        encrypter.init(Cipher.ENCRYPT_MODE, derivedKey, new IvParameterSpec(iv), rng);
+        return encrypter.doFinal(plaintext);
+      } finally {
+        releaseCipher(secretKey, encType.getJcaName(), encrypter);
+      }
     } catch (InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);  // Should never happen
     } catch (IllegalBlockSizeException e) {
@@ -290,11 +325,15 @@ public class CryptoOps {
       throw new NoSuchAlgorithmException("Cannot use NONE type here");
     }
     try {
-      Cipher decrypter = Cipher.getInstance(encType.getJcaName());
-      SecretKey derivedKey =
-          deriveAes256KeyFor(getSecretKey(decryptionKey), getPurpose(encType));
-      decrypter.init(Cipher.DECRYPT_MODE, derivedKey, new IvParameterSpec(iv));
-      return decrypter.doFinal(ciphertext);
+      SecretKey secretKey = getSecretKey(decryptionKey);
+      SecretKey derivedKey = getDerivedKey(secretKey, getPurpose(encType));
+      Cipher decrypter = takeCipher(secretKey, encType.getJcaName());
+      try {
+        decrypter.init(Cipher.DECRYPT_MODE, derivedKey, new IvParameterSpec(iv));
+        return decrypter.doFinal(ciphertext);
+      } finally {
+        releaseCipher(secretKey, encType.getJcaName(), decrypter);
+      }
     } catch (NoSuchPaddingException e) {
       throw new AssertionError(e);  // Should never happen
     }
@@ -381,6 +420,67 @@ public class CryptoOps {
     }
   }
 
+  /**
+   * Returns the sub-key of {@code masterKey} for {@code purpose}, reusing a previously derived
+   * sub-key when {@code masterKey} is a {@link CachingSecretKey}.
+   *
+   * @see #deriveAes256KeyFor(SecretKey, String)
+   */
+  private static SecretKey getDerivedKey(SecretKey masterKey, String purpose)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    if (masterKey instanceof CachingSecretKey) {
+      return ((CachingSecretKey) masterKey).getDerivedKey(purpose);
+    }
+    return deriveAes256KeyFor(masterKey, purpose);
+  }
+
+  /**
+   * @return a {@link Cipher} for {@code jcaName} to use with {@code key}. Instances used with a
+   *     {@link CachingSecretKey} are kept by that key, so that neither the instances nor the key
+   *     material they were last initialized with outlive it. Callers must initialize the instance
+   *     before use and hand it back with {@link #releaseCipher} when done.
+   */
+  private static Cipher takeCipher(SecretKey key, String jcaName)
+      throws NoSuchAlgorithmException, NoSuchPaddingException {
+    if (key instanceof CachingSecretKey) {
+      return ((CachingSecretKey) key).takeCipher(jcaName);
+    }
+    return Cipher.getInstance(jcaName);
+  }
+
+  private static void releaseCipher(SecretKey key, String jcaName, Cipher cipher) {
+    if (key instanceof CachingSecretKey) {
+      ((CachingSecretKey) key).releaseCipher(jcaName, cipher);
+    }
+  }
+
+  /**
+   * @return a {@link Mac} for {@code jcaName} to use with {@code key}, kept in the same way as the
+   *     instances returned by {@link #takeCipher}. Hand it back with {@link #releaseMac} when done.
+   */
+  private static Mac takeMac(SecretKey key, String jcaName) throws NoSuchAlgorithmException {
+    if (key instanceof CachingSecretKey) {
+      return ((CachingSecretKey) key).takeMac(jcaName);
+    }
+    return Mac.getInstance(jcaName);
+  }
+
+  private static void releaseMac(SecretKey key, String jcaName, Mac mac) {
+    if (key instanceof CachingSecretKey) {
+      ((CachingSecretKey) key).releaseMac(jcaName, mac);
+    }
+  }
+
+  private static int getBlockSize(String jcaName)
+      throws NoSuchAlgorithmException, NoSuchPaddingException {
+    Integer blockSize = CIPHER_BLOCK_SIZES.get(jcaName);
+    if (blockSize == null) {
+      blockSize = Cipher.getInstance(jcaName).getBlockSize();
+      CIPHER_BLOCK_SIZES.put(jcaName, blockSize);
+    }
+    return blockSize;
+  }
+
   /**
    * A key derivation function specific to this library, which accepts a {@code masterKey} and an
    * arbitrary {@code purpose} describing the intended application of the derived sub-key,
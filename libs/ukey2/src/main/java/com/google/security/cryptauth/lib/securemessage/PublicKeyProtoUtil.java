@@ -28,7 +28,6 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.ECFieldFp;
@@ -395,7 +394,7 @@ public class PublicKeyProtoUtil {
     } catch (InvalidAlgorithmParameterException e) {
       // Construct an appropriate KeyPair manually, since this platform refuses to do it for us
       DHParameterSpec spec = new DHParameterSpec(DH_P, DH_G);
-      BigInteger x = new BigInteger(DH_LEN, new SecureRandom());
+      BigInteger x = new BigInteger(DH_LEN, CryptoOps.getSharedSecureRandom());
       DHPrivateKey privateKey = new DHPrivateKeyShim(x, spec);
       DHPublicKey publicKey = new DHPublicKeyShim(DH_G.modPow(x, DH_P), spec);
       return new KeyPair(publicKey, privateKey);
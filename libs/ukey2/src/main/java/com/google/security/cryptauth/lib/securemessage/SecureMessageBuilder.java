@@ -47,7 +47,7 @@ public class SecureMessageBuilder {
 
   public SecureMessageBuilder() {
     reset();
-    this.rng = new SecureRandom();
+    this.rng = CryptoOps.getSharedSecureRandom();
   }
 
   /**
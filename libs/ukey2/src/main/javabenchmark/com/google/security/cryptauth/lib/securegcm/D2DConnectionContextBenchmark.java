@@ -0,0 +1,202 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.security.cryptauth.lib.securegcm;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for encoding and decoding messages with a {@link D2DConnectionContext}, and for saving
+ * and restoring its session.
+ *
+ * <p>A message can only be decoded once, in sequence, so each iteration of the decoding benchmarks
+ * decodes a batch of {@link #MESSAGE_BATCH_SIZE} messages encoded before the iteration, and reports
+ * the time per message.
+ *
+ * <p>The {@code contended} group encodes and decodes on the same context from two threads at once,
+ * the way a connection does when messages flow in both directions. Its per-operation times should
+ * stay close to those of {@link #encodeMessageToPeer} and {@link #decodeMessageFromPeer}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class D2DConnectionContextBenchmark {
+  private static final int MESSAGE_BATCH_SIZE = 256;
+  // Enough batches for the JIT to compile the decoding path before measuring.
+  private static final int BATCH_WARMUP_ITERATIONS = 40;
+  private static final int BATCH_MEASUREMENT_ITERATIONS = 20;
+
+  /** A connected pair of contexts and a payload of {@link #payloadSize} bytes. */
+  @State(Scope.Thread)
+  public static class Connection {
+    @Param({"16", "1024", "16384", "262144"})
+    public int payloadSize;
+
+    D2DConnectionContext sender;
+    D2DConnectionContext receiver;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      D2DConnectionContext[] contexts = Ukey2Handshakes.connect();
+      sender = contexts[0];
+      receiver = contexts[1];
+      payload = new byte[payloadSize];
+      new Random(/* seed= */ payloadSize).nextBytes(payload);
+    }
+  }
+
+  /**
+   * A {@link Connection} with a batch of messages encoded before each iteration. The receiver
+   * decodes them in the order they were encoded, so every message is valid for the receiver.
+   */
+  @State(Scope.Thread)
+  public static class ReceivedMessages extends Connection {
+    final byte[][] encodedMessages = new byte[MESSAGE_BATCH_SIZE][];
+
+    @Setup(Level.Iteration)
+    public void encodeMessages() {
+      encodeBatch(sender, payload, encodedMessages);
+    }
+  }
+
+  /** A connected pair of contexts shared by all threads of a benchmark group. */
+  @State(Scope.Group)
+  public static class SharedConnection {
+    @Param({"1024", "16384"})
+    public int payloadSize;
+
+    D2DConnectionContext sender;
+    D2DConnectionContext receiver;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      D2DConnectionContext[] contexts = Ukey2Handshakes.connect();
+      sender = contexts[0];
+      receiver = contexts[1];
+      payload = new byte[payloadSize];
+      new Random(/* seed= */ payloadSize).nextBytes(payload);
+    }
+  }
+
+  /**
+   * Messages from the receiver of a {@link SharedConnection} to its sender, encoded before each
+   * iteration by the only thread that decodes them.
+   */
+  @State(Scope.Thread)
+  public static class IncomingMessages {
+    final byte[][] encodedMessages = new byte[MESSAGE_BATCH_SIZE][];
+
+    @Setup(Level.Iteration)
+    public void encodeMessages(SharedConnection connection) {
+      encodeBatch(connection.receiver, connection.payload, encodedMessages);
+    }
+  }
+
+  /** A session saved from a connected context. */
+  @State(Scope.Thread)
+  public static class SavedSession {
+    D2DConnectionContext context;
+    byte[] savedSession;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      context = Ukey2Handshakes.connect()[0];
+      savedSession = context.saveSession();
+    }
+  }
+
+  @Benchmark
+  public byte[] encodeMessageToPeer(Connection connection) {
+    return connection.sender.encodeMessageToPeer(connection.payload);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OperationsPerInvocation(MESSAGE_BATCH_SIZE)
+  @Warmup(iterations = BATCH_WARMUP_ITERATIONS)
+  @Measurement(iterations = BATCH_MEASUREMENT_ITERATIONS)
+  public void decodeMessageFromPeer(ReceivedMessages messages, Blackhole blackhole)
+      throws Exception {
+    for (byte[] encodedMessage : messages.encodedMessages) {
+      blackhole.consume(messages.receiver.decodeMessageFromPeer(encodedMessage));
+    }
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OperationsPerInvocation(MESSAGE_BATCH_SIZE)
+  @Warmup(iterations = BATCH_WARMUP_ITERATIONS)
+  @Measurement(iterations = BATCH_MEASUREMENT_ITERATIONS)
+  public void contendedEncode(SharedConnection connection, Blackhole blackhole) {
+    for (int i = 0; i < MESSAGE_BATCH_SIZE; i++) {
+      blackhole.consume(connection.sender.encodeMessageToPeer(connection.payload));
+    }
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OperationsPerInvocation(MESSAGE_BATCH_SIZE)
+  @Warmup(iterations = BATCH_WARMUP_ITERATIONS)
+  @Measurement(iterations = BATCH_MEASUREMENT_ITERATIONS)
+  public void contendedDecode(
+      SharedConnection connection, IncomingMessages messages, Blackhole blackhole)
+      throws Exception {
+    for (byte[] encodedMessage : messages.encodedMessages) {
+      blackhole.consume(connection.sender.decodeMessageFromPeer(encodedMessage));
+    }
+  }
+
+  @Benchmark
+  public byte[] saveSession(SavedSession session) {
+    return session.context.saveSession();
+  }
+
+  @Benchmark
+  public D2DConnectionContext fromSavedSession(SavedSession session) {
+    return D2DConnectionContext.fromSavedSession(session.savedSession);
+  }
+
+  /** Fills {@code encodedMessages} with messages from {@code sender}, in sequence. */
+  private static void encodeBatch(
+      D2DConnectionContext sender, byte[] payload, byte[][] encodedMessages) {
+    for (int i = 0; i < encodedMessages.length; i++) {
+      encodedMessages[i] = sender.encodeMessageToPeer(payload);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.security.cryptauth.lib.securegcm;
+
+import com.google.security.cryptauth.lib.securegcm.Ukey2Handshake.HandshakeCipher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for a complete {@link Ukey2Handshake} between an initiator and a responder.
+ *
+ * The benchmarks with a {@link Ukey2KeyPairPool} measure the time spent on the critical path when
+ * the ephemeral key pairs were generated ahead of time. Each of their iterations runs a batch of
+ * {@link #POOLED_BATCH_SIZE} operations and reports the time per operation. The pool is filled with
+ * enough key pairs for the whole batch before each iteration, outside of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Ukey2HandshakeBenchmark {
+  private static final int POOLED_BATCH_SIZE = 100;
+  // Enough batches for the JIT to compile the handshake before measuring.
+  private static final int POOLED_WARMUP_ITERATIONS = 20;
+  private static final int POOLED_MEASUREMENT_ITERATIONS = 10;
+
+  /** A key pair pool that holds enough key pairs for both sides of a batch of handshakes. */
+  @State(Scope.Thread)
+  public static class PrefilledKeyPairPool {
+    private final List<Runnable> refillTasks = new ArrayList<>();
+    final Ukey2KeyPairPool keyPairPool =
+        new Ukey2KeyPairPool(
+            2 * POOLED_BATCH_SIZE,
+            new Executor() {
+              @Override
+              public void execute(Runnable task) {
+                refillTasks.add(task);
+              }
+            });
+
+    @Setup(Level.Iteration)
+    public void refill() {
+      keyPairPool.prefill();
+      while (!refillTasks.isEmpty()) {
+        refillTasks.remove(0).run();
+      }
+    }
+  }
+
+  /**
+   * Runs all three rounds of the handshake, verifies it on both sides and derives the resulting
+   * connection contexts.
+   */
+  @Benchmark
+  public D2DConnectionContext[] fullHandshake() throws Exception {
+    return Ukey2Handshakes.connect();
+  }
+
+  /** Runs the same handshake as {@link #fullHandshake()} with pre-generated key pairs. */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OperationsPerInvocation(POOLED_BATCH_SIZE)
+  @Warmup(iterations = POOLED_WARMUP_ITERATIONS)
+  @Measurement(iterations = POOLED_MEASUREMENT_ITERATIONS)
+  public void fullHandshakeWithKeyPairPool(PrefilledKeyPairPool pool, Blackhole blackhole)
+      throws Exception {
+    for (int i = 0; i < POOLED_BATCH_SIZE; i++) {
+      blackhole.consume(
+          Ukey2Handshakes.connect(
+              Ukey2Handshake.forInitiator(HandshakeCipher.P256_SHA512, pool.keyPairPool),
+              Ukey2Handshake.forResponder(HandshakeCipher.P256_SHA512, pool.keyPairPool)));
+    }
+  }
+
+  /** Creates the initiator state, which includes generating its ephemeral key pair. */
+  @Benchmark
+  public Ukey2Handshake createInitiator() throws Exception {
+    return Ukey2Handshake.forInitiator(HandshakeCipher.P256_SHA512);
+  }
+
+  /** Creates the initiator state with a pre-generated ephemeral key pair. */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OperationsPerInvocation(POOLED_BATCH_SIZE)
+  @Warmup(iterations = POOLED_WARMUP_ITERATIONS)
+  @Measurement(iterations = POOLED_MEASUREMENT_ITERATIONS)
+  public void createInitiatorWithKeyPairPool(PrefilledKeyPairPool pool, Blackhole blackhole)
+      throws Exception {
+    for (int i = 0; i < POOLED_BATCH_SIZE; i++) {
+      blackhole.consume(
+          Ukey2Handshake.forInitiator(HandshakeCipher.P256_SHA512, pool.keyPairPool));
+    }
+  }
+}
@@ -0,0 +1,56 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.security.cryptauth.lib.securegcm;
+
+import com.google.security.cryptauth.lib.securegcm.Ukey2Handshake.HandshakeCipher;
+
+/**
+ * Runs complete {@link Ukey2Handshake}s for the benchmarks.
+ */
+final class Ukey2Handshakes {
+  private static final int AUTH_STRING_LENGTH = 32;
+
+  private Ukey2Handshakes() {}
+
+  /**
+   * Runs a handshake with fresh key pairs and returns the initiator and responder contexts, in that
+   * order.
+   */
+  static D2DConnectionContext[] connect() throws Exception {
+    return connect(
+        Ukey2Handshake.forInitiator(HandshakeCipher.P256_SHA512),
+        Ukey2Handshake.forResponder(HandshakeCipher.P256_SHA512));
+  }
+
+  /**
+   * Runs all three rounds of the handshake between {@code initiator} and {@code responder},
+   * verifies it on both sides and returns their connection contexts, in that order.
+   */
+  static D2DConnectionContext[] connect(Ukey2Handshake initiator, Ukey2Handshake responder)
+      throws Exception {
+    responder.parseHandshakeMessage(initiator.getNextHandshakeMessage());
+    initiator.parseHandshakeMessage(responder.getNextHandshakeMessage());
+    responder.parseHandshakeMessage(initiator.getNextHandshakeMessage());
+
+    initiator.getVerificationString(AUTH_STRING_LENGTH);
+    responder.getVerificationString(AUTH_STRING_LENGTH);
+    initiator.verifyHandshake();
+    responder.verifyHandshake();
+
+    return new D2DConnectionContext[] {
+      initiator.toConnectionContext(), responder.toConnectionContext()
+    };
+  }
+}
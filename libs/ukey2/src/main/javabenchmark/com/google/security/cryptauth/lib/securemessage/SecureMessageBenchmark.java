@@ -0,0 +1,79 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.security.cryptauth.lib.securemessage;
+
+import com.google.security.cryptauth.lib.securemessage.CryptoOps.EncType;
+import com.google.security.cryptauth.lib.securemessage.CryptoOps.SigType;
+import com.google.security.cryptauth.lib.securemessage.SecureMessageProto.HeaderAndBody;
+import com.google.security.cryptauth.lib.securemessage.SecureMessageProto.SecureMessage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for signcrypting messages with {@link SecureMessageBuilder} and verifying and
+ * decrypting them with {@link SecureMessageParser}, using a single symmetric key as the D2D library
+ * does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecureMessageBenchmark {
+
+  @Param({"16", "1024", "16384", "262144"})
+  public int payloadSize;
+
+  private SecretKey key;
+  private byte[] payload;
+  private SecureMessage secureMessage;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyGenerator aesKeygen = KeyGenerator.getInstance("AES");
+    aesKeygen.init(256);
+    key = aesKeygen.generateKey();
+    payload = new byte[payloadSize];
+    new Random(/* seed= */ payloadSize).nextBytes(payload);
+    secureMessage = buildSignCryptedMessage();
+  }
+
+  @Benchmark
+  public SecureMessage buildSignCryptedMessage() throws Exception {
+    return new SecureMessageBuilder()
+        .buildSignCryptedMessage(key, SigType.HMAC_SHA256, key, EncType.AES_256_CBC, payload);
+  }
+
+  @Benchmark
+  public HeaderAndBody parseSignCryptedMessage() throws Exception {
+    return SecureMessageParser.parseSignCryptedMessage(
+        secureMessage, key, SigType.HMAC_SHA256, key, EncType.AES_256_CBC);
+  }
+}
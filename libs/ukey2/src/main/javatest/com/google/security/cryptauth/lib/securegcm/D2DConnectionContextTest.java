@@ -504,6 +504,26 @@ public class D2DConnectionContextTest {
         initiatorCtx.decodeMessageFromPeerAsString(responderCtx.encodeMessageToPeer(PONG)));
   }
 
+  @Test
+  public void testFromSessionKeys() throws Exception {
+    D2DConnectionContext initiatorCtx =
+        D2DConnectionContext.fromSessionKeys(INITIATOR_ENCODE_KEY, INITIATOR_DECODE_KEY);
+    D2DConnectionContext responderCtx =
+        D2DConnectionContext.fromSessionKeys(INITIATOR_DECODE_KEY, INITIATOR_ENCODE_KEY);
+
+    // Sanity check
+    assertEquals(D2DConnectionContextV1.PROTOCOL_VERSION, initiatorCtx.getProtocolVersion());
+    assertEquals(0, initiatorCtx.getSequenceNumberForEncoding());
+    assertEquals(0, initiatorCtx.getSequenceNumberForDecoding());
+    Assert.assertArrayEquals(initiatorCtx.getSessionUnique(), responderCtx.getSessionUnique());
+
+    // Make sure they can talk to one another
+    assertEquals(PING,
+        responderCtx.decodeMessageFromPeerAsString(initiatorCtx.encodeMessageToPeer(PING)));
+    assertEquals(PONG,
+        initiatorCtx.decodeMessageFromPeerAsString(responderCtx.encodeMessageToPeer(PONG)));
+  }
+
   @Test
   public void testSaveSessionV1_negativeSeqNumbers() throws Exception {
     D2DConnectionContext initiatorCtx = new D2DConnectionContextV1(INITIATOR_ENCODE_KEY,
@@ -542,6 +562,67 @@ public class D2DConnectionContextTest {
     assertEquals(-8, initiatorCtx.getSequenceNumberForEncoding());
   }
 
+  @Test
+  public void testSequencedMessagesEncodedOutOfOrder() throws Exception {
+    initiatorCtx = createConnectionContext(
+        D2DConnectionContextV1.PROTOCOL_VERSION, true /** isInitiator */);
+    responderCtx = createConnectionContext(
+        D2DConnectionContextV1.PROTOCOL_VERSION, false /** isInitiator */);
+
+    D2DConnectionContext.SequencedMessage first =
+        initiatorCtx.sequenceMessageToPeer(PING.getBytes("UTF-8"));
+    D2DConnectionContext.SequencedMessage second =
+        initiatorCtx.sequenceMessageToPeer(PONG.getBytes("UTF-8"));
+    byte[] secondMessage = second.encode();
+    byte[] firstMessage = first.encode();
+
+    assertEquals(first.getSequenceNumber() + 1, second.getSequenceNumber());
+    assertEquals(PING, responderCtx.decodeMessageFromPeerAsString(firstMessage));
+    assertEquals(PONG, responderCtx.decodeMessageFromPeerAsString(secondMessage));
+  }
+
+  @Test
+  public void testConcurrentEncodeAndDecode() throws Exception {
+    final int messageCount = 200;
+    initiatorCtx = createConnectionContext(
+        D2DConnectionContextV1.PROTOCOL_VERSION, true /** isInitiator */);
+    responderCtx = createConnectionContext(
+        D2DConnectionContextV1.PROTOCOL_VERSION, false /** isInitiator */);
+    final byte[][] incomingMessages = new byte[messageCount][];
+    for (int i = 0; i < messageCount; i++) {
+      incomingMessages[i] = responderCtx.encodeMessageToPeer(PONG);
+    }
+    final byte[][] outgoingMessages = new byte[messageCount][];
+    final Throwable[] decodeFailure = new Throwable[1];
+
+    Thread decoder = new Thread(() -> {
+      try {
+        for (byte[] message : incomingMessages) {
+          assertEquals(PONG, initiatorCtx.decodeMessageFromPeerAsString(message));
+        }
+      } catch (Throwable t) {
+        // Includes assertion failures, which would otherwise only end the decoder thread.
+        decodeFailure[0] = t;
+      }
+    });
+    decoder.start();
+    for (int i = 0; i < messageCount; i++) {
+      outgoingMessages[i] = initiatorCtx.encodeMessageToPeer(PING);
+    }
+    decoder.join();
+
+    if (decodeFailure[0] instanceof Exception) {
+      throw (Exception) decodeFailure[0];
+    } else if (decodeFailure[0] != null) {
+      throw (Error) decodeFailure[0];
+    }
+    assertEquals(messageCount, initiatorCtx.getSequenceNumberForEncoding());
+    assertEquals(messageCount + 1, initiatorCtx.getSequenceNumberForDecoding());
+    for (byte[] message : outgoingMessages) {
+      assertEquals(PING, responderCtx.decodeMessageFromPeerAsString(message));
+    }
+  }
+
   D2DConnectionContext createConnectionContext(int protocolVersion, boolean isInitiator) {
     return createConnectionContext(
         protocolVersion, isInitiator, INITIATOR_ENCODE_KEY, INITIATOR_DECODE_KEY, 0, 1);
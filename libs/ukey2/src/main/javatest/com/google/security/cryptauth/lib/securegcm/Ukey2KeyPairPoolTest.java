@@ -0,0 +1,135 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.security.cryptauth.lib.securegcm;
+
+import com.google.security.cryptauth.lib.securegcm.Ukey2Handshake.HandshakeCipher;
+import com.google.security.cryptauth.lib.securegcm.Ukey2Handshake.State;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+/**
+ * Android compatible tests for the {@link Ukey2KeyPairPool} class.
+ */
+public class Ukey2KeyPairPoolTest extends TestCase {
+
+  private static final int CAPACITY = 2;
+  private static final int AUTH_STRING_LENGTH = 32;
+
+  private final List<Runnable> queuedTasks = new ArrayList<>();
+  private final Executor queueingExecutor = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      queuedTasks.add(task);
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    KeyEncodingTest.installSunEcSecurityProviderIfNecessary();
+    super.setUp();
+  }
+
+  public void testPrefillGeneratesUpToCapacity() {
+    if (KeyEncoding.isLegacyCryptoRequired()) {
+      return;
+    }
+    Ukey2KeyPairPool pool = new Ukey2KeyPairPool(CAPACITY, queueingExecutor);
+
+    pool.prefill();
+    pool.prefill();
+    assertEquals(0, pool.size());
+    assertEquals(1, queuedTasks.size());
+    runQueuedTasks();
+
+    assertEquals(CAPACITY, pool.size());
+  }
+
+  public void testTakeHandsOutEveryKeyPairOnceAndRefills() {
+    if (KeyEncoding.isLegacyCryptoRequired()) {
+      return;
+    }
+    Ukey2KeyPairPool pool = new Ukey2KeyPairPool(CAPACITY, queueingExecutor);
+    pool.prefill();
+    runQueuedTasks();
+
+    KeyPair first = pool.take();
+    KeyPair second = pool.take();
+    assertNotSame(first, second);
+    assertEquals(0, pool.size());
+    runQueuedTasks();
+
+    assertEquals(CAPACITY, pool.size());
+    KeyPair third = pool.take();
+    assertNotSame(first, third);
+    assertNotSame(second, third);
+  }
+
+  public void testTakeGeneratesKeyPairWhenEmpty() {
+    if (KeyEncoding.isLegacyCryptoRequired()) {
+      return;
+    }
+    Ukey2KeyPairPool pool = new Ukey2KeyPairPool(CAPACITY, queueingExecutor);
+
+    assertNotNull(pool.take());
+    assertEquals(1, queuedTasks.size());
+  }
+
+  public void testInvalidCapacity() {
+    try {
+      new Ukey2KeyPairPool(0, queueingExecutor);
+      fail("Expected failure as capacity must be positive");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testHandshakeWithKeyPairPool() throws Exception {
+    if (KeyEncoding.isLegacyCryptoRequired()) {
+      return;
+    }
+    Ukey2KeyPairPool pool = new Ukey2KeyPairPool(CAPACITY, queueingExecutor);
+    pool.prefill();
+    runQueuedTasks();
+
+    Ukey2Handshake client = Ukey2Handshake.forInitiator(HandshakeCipher.P256_SHA512, pool);
+    Ukey2Handshake server = Ukey2Handshake.forResponder(HandshakeCipher.P256_SHA512, pool);
+    assertEquals(0, pool.size());
+
+    server.parseHandshakeMessage(client.getNextHandshakeMessage());
+    client.parseHandshakeMessage(server.getNextHandshakeMessage());
+    server.parseHandshakeMessage(client.getNextHandshakeMessage());
+    Assert.assertArrayEquals(
+        client.getVerificationString(AUTH_STRING_LENGTH),
+        server.getVerificationString(AUTH_STRING_LENGTH));
+    client.verifyHandshake();
+    server.verifyHandshake();
+    assertEquals(State.FINISHED, client.getHandshakeState());
+    assertEquals(State.FINISHED, server.getHandshakeState());
+
+    D2DConnectionContext clientContext = client.toConnectionContext();
+    D2DConnectionContext serverContext = server.toConnectionContext();
+    Assert.assertArrayEquals(clientContext.getSessionUnique(), serverContext.getSessionUnique());
+  }
+
+  private void runQueuedTasks() {
+    while (!queuedTasks.isEmpty()) {
+      queuedTasks.remove(0).run();
+    }
+  }
+}
@@ -18,7 +18,9 @@ import static org.junit.Assert.assertThrows;
 
 import com.google.security.cryptauth.lib.securemessage.CryptoOps.EncType;
 import com.google.security.cryptauth.lib.securemessage.CryptoOps.SigType;
+import java.security.SecureRandom;
 import java.util.Arrays;
+import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -98,6 +100,54 @@ public class CryptoOpsTest extends TestCase {
                               CryptoOps.deriveAes256KeyFor(aesKey2, "A").getEncoded()));
   }
 
+  public void testCachingSecretKey_derivesSameKeys() throws Exception {
+    CachingSecretKey cachingKey = CachingSecretKey.wrap(aesKey1);
+    // Derive twice to exercise both the initial derivation and the cached value
+    for (int i = 0; i < 2; i++) {
+      assertTrue(Arrays.equals(CryptoOps.deriveAes256KeyFor(aesKey1, "A").getEncoded(),
+                               cachingKey.getDerivedKey("A").getEncoded()));
+    }
+    assertFalse(Arrays.equals(cachingKey.getDerivedKey("A").getEncoded(),
+                              cachingKey.getDerivedKey("B").getEncoded()));
+  }
+
+  public void testCachingSecretKey_equalsWrappedKey() {
+    CachingSecretKey cachingKey = CachingSecretKey.wrap(aesKey1);
+    assertEquals(aesKey1, cachingKey);
+    assertEquals(cachingKey, aesKey1);
+    assertEquals(aesKey1.hashCode(), cachingKey.hashCode());
+    assertFalse(cachingKey.equals(aesKey2));
+    assertSame(cachingKey, CachingSecretKey.wrap(cachingKey));
+  }
+
+  public void testCachingSecretKey_interoperatesWithUncachedKey() throws Exception {
+    SecureRandom rng = new SecureRandom();
+    byte[] plaintext = CryptoOps.utf8StringToBytes("Cached and uncached keys must agree");
+    CachingSecretKey cachingKey = CachingSecretKey.wrap(aesKey1);
+    byte[] iv = CryptoOps.generateIv(EncType.AES_256_CBC, rng);
+
+    byte[] ciphertext = CryptoOps.encrypt(cachingKey, EncType.AES_256_CBC, rng, iv, plaintext);
+    byte[] signature = CryptoOps.sign(SigType.HMAC_SHA256, cachingKey, rng, ciphertext);
+
+    assertTrue(CryptoOps.verify(aesKey1, SigType.HMAC_SHA256, signature, ciphertext));
+    assertTrue(Arrays.equals(
+        plaintext, CryptoOps.decrypt(aesKey1, EncType.AES_256_CBC, iv, ciphertext)));
+  }
+
+  public void testCachingSecretKey_keepsJcaInstancesForReuse() throws Exception {
+    CachingSecretKey cachingKey = CachingSecretKey.wrap(aesKey1);
+    String jcaName = EncType.AES_256_CBC.getJcaName();
+
+    Cipher cipher = cachingKey.takeCipher(jcaName);
+    assertNotSame(cipher, cachingKey.takeCipher(jcaName));
+    cachingKey.releaseCipher(jcaName, cipher);
+    assertSame(cipher, cachingKey.takeCipher(jcaName));
+
+    // Instances are kept per key, so a new session does not get the instances of another one.
+    cachingKey.releaseCipher(jcaName, cipher);
+    assertNotSame(cipher, CachingSecretKey.wrap(aesKey2).takeCipher(jcaName));
+  }
+
   public void testHkdf() throws Exception {
     SecretKey inputKey = new SecretKeySpec(HKDF_CASE1_IKM, "AES");
     byte[] result = CryptoOps.hkdf(inputKey, HKDF_CASE1_SALT, HKDF_CASE1_INFO);
@@ -133,6 +183,12 @@ public class CryptoOpsTest extends TestCase {
         () -> CryptoOps.hkdf(inputKey, HKDF_CASE1_SALT, HKDF_CASE1_INFO, 32 * 256 + 1));
   }
 
+  public void testSharedSecureRandomIsReused() {
+    SecureRandom sharedSecureRandom = CryptoOps.getSharedSecureRandom();
+    assertNotNull(sharedSecureRandom);
+    assertSame(sharedSecureRandom, CryptoOps.getSharedSecureRandom());
+  }
+
   public void testConcat() {
     byte[] a = { 1, 2, 3, 4};
     byte[] b = { 5 , 6 };